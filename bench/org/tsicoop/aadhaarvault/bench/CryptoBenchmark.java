@@ -0,0 +1,105 @@
+package org.tsicoop.aadhaarvault.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tsicoop.aadhaarvault.framework.CryptoEngine;
+import org.tsicoop.aadhaarvault.framework.VaultRecord;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-record encrypt and decrypt throughput for a 12 digit ID number.
+ *
+ * KmsService.aesEncrypt/aesDecrypt are thin wrappers over CryptoEngine and are measured through it.
+ * The legacy* benchmarks reproduce the original AES/CBC path (new Cipher and SecureRandom per call,
+ * IV copied around the ciphertext) as the baseline for the GCM engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+    private byte[] key;
+    private byte[] idNumber;
+    private byte[] gcmCiphertext;
+    private byte[] cbcCiphertext;
+    private byte[] record;
+
+    @Setup
+    public void setup() throws Exception {
+        key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        idNumber = "234123412346".getBytes(StandardCharsets.UTF_8);
+        gcmCiphertext = CryptoEngine.encrypt(idNumber, key);
+        cbcCiphertext = legacyEncrypt();
+        record = VaultRecord.encrypt(idNumber, key, VaultRecord.KEY_WRAPPED, null);
+    }
+
+    @Benchmark
+    public byte[] gcmEncrypt() throws Exception {
+        return CryptoEngine.encrypt(idNumber, key);
+    }
+
+    @Benchmark
+    public byte[] gcmDecrypt() throws Exception {
+        return CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, gcmCiphertext, key);
+    }
+
+    @Benchmark
+    public byte[] cbcDecrypt() throws Exception {
+        return CryptoEngine.decrypt(CryptoEngine.ALG_AES_CBC, cbcCiphertext, key);
+    }
+
+    @Benchmark
+    public byte[] recordEncrypt() throws Exception {
+        return VaultRecord.encrypt(idNumber, key, VaultRecord.KEY_WRAPPED, null);
+    }
+
+    @Benchmark
+    public byte[] recordDecrypt() throws Exception {
+        return VaultRecord.parse(record).decrypt(key);
+    }
+
+    @Benchmark
+    public byte[] legacyCbcEncrypt() throws Exception {
+        return legacyEncrypt();
+    }
+
+    @Benchmark
+    public byte[] legacyCbcDecrypt() throws Exception {
+        byte[] iv = Arrays.copyOfRange(cbcCiphertext, 0, 16);
+        byte[] encryptedData = Arrays.copyOfRange(cbcCiphertext, 16, cbcCiphertext.length);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher.doFinal(encryptedData);
+    }
+
+    private byte[] legacyEncrypt() throws Exception {
+        byte[] iv = new byte[16];
+        new SecureRandom().nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        byte[] encryptedData = cipher.doFinal(idNumber);
+        byte[] encryptedDataWithIv = new byte[iv.length + encryptedData.length];
+        System.arraycopy(iv, 0, encryptedDataWithIv, 0, iv.length);
+        System.arraycopy(encryptedData, 0, encryptedDataWithIv, iv.length, encryptedData.length);
+        return encryptedDataWithIv;
+    }
+}
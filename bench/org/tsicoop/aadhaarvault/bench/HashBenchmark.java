@@ -0,0 +1,77 @@
+package org.tsicoop.aadhaarvault.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tsicoop.aadhaarvault.framework.CryptoEngine;
+import org.tsicoop.aadhaarvault.framework.LookupHasher;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup hash and Base64 throughput: every store and fetch-by-value hashes the ID number, and rows
+ * in the legacy TEXT columns are Base64 decoded on every fetch. hmacHash is the current lookup hash,
+ * hashData the legacy salted SHA-256 still computed while VAULT_LOOKUP_LEGACY_HASH_READ is on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+    private LookupHasher lookupHasher;
+    private String idNumber;
+    private ByteBuffer idBytes;
+    private byte[] ciphertext;
+    private String ciphertextBase64;
+
+    @Setup
+    public void setup() throws Exception {
+        String salt = System.getenv("TSI_LOOKUP_SALT");
+        lookupHasher = new LookupHasher(salt != null && !salt.trim().isEmpty() ? salt : "bench-lookup-salt");
+        idNumber = "234123412346";
+        idBytes = ByteBuffer.allocateDirect(idNumber.length()).put(idNumber.getBytes(StandardCharsets.UTF_8)).flip();
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        ciphertext = CryptoEngine.encrypt(idNumber.getBytes(), key);
+        ciphertextBase64 = Base64.getEncoder().encodeToString(ciphertext);
+    }
+
+    @Benchmark
+    public byte[] hmacHash() {
+        return lookupHasher.hash(idBytes);
+    }
+
+    @Benchmark
+    public String hashData() throws Exception {
+        return lookupHasher.hashData(idNumber);
+    }
+
+    @Benchmark
+    public String base64Encode() {
+        return Base64.getEncoder().encodeToString(ciphertext);
+    }
+
+    @Benchmark
+    public byte[] base64Decode() {
+        return Base64.getDecoder().decode(ciphertextBase64);
+    }
+
+    @Benchmark
+    public byte[] base64RoundTrip() {
+        return Base64.getDecoder().decode(Base64.getEncoder().encodeToString(ciphertext));
+    }
+}
@@ -0,0 +1,45 @@
+package org.tsicoop.aadhaarvault.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the vault benchmarks at 1, 2, 4 ... up to bench.maxThreads threads (default: available
+ * processors) to show contention, with the GC profiler for allocation rates. Each thread count
+ * writes its own JSON result, e.g. target/jmh/vault-t4.json, so runs can be compared later.
+ *
+ * mvn -P bench compile exec:exec [-Dbench.include=CryptoBenchmark] [-Dbench.maxThreads=8]
+ */
+public class VaultBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        String include = System.getProperty("bench.include", "org.tsicoop.aadhaarvault.bench.*");
+        int maxThreads = Integer.getInteger("bench.maxThreads", Runtime.getRuntime().availableProcessors());
+        File resultDir = new File(System.getProperty("bench.resultDir", "target/jmh"));
+        resultDir.mkdirs();
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(Math.max(1, maxThreads)); // always finish with exactly maxThreads
+
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultDir, "vault-t" + threads + ".json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
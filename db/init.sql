@@ -13,34 +13,93 @@ CREATE TABLE api_user (
 -- Create Table: id_type_master
 CREATE TABLE id_type_master (
     id_type_code VARCHAR(50) PRIMARY KEY,
+    type_id SMALLSERIAL NOT NULL UNIQUE, -- Compact id, stored in id_vault.id_type_id
     id_type_name VARCHAR(255) NOT NULL UNIQUE,
     description TEXT,
     validation_regex TEXT,
-    active BOOLEAN DEFAULT TRUE
+    active BOOLEAN DEFAULT TRUE,
+    data_key_max_uses INTEGER, -- Max records encrypted under one cached data key (NULL = app default, 0/1 = no reuse)
+    data_key_max_age_seconds INTEGER, -- Max lifetime of a cached data key (NULL = app default)
+    canonical_form VARCHAR(20) NOT NULL DEFAULT 'TRIM', -- Form hashed for lookups: TRIM, DIGITS or ALNUM_UPPER
+    checksum VARCHAR(20) -- Check digit algorithm: VERHOEFF or NULL
 );
 
 -- Insert initial ID types (Optional, but good for quick setup)
-INSERT INTO id_type_master (id_type_code, id_type_name, validation_regex, active) VALUES
-('AADHAAR', 'Aadhaar Number', '^\\d{4}\\s\\d{4}\\s\\d{4}$', TRUE),
-('VOTER_ID', 'Voter ID', '^[A-Z]{3}\\d{7}$', TRUE),
-('ABHA_ID', 'ABHA ID', '^\\d{2}-\\d{4}-\\d{4}-\\d{4}$', TRUE)
+INSERT INTO id_type_master (id_type_code, id_type_name, validation_regex, active, canonical_form, checksum) VALUES
+('AADHAAR', 'Aadhaar Number', '^[2-9][0-9]{3}[ -]?[0-9]{4}[ -]?[0-9]{4}$', TRUE, 'DIGITS', 'VERHOEFF'),
+('VOTER_ID', 'Voter ID', '^[A-Za-z]{3}[0-9]{7}$', TRUE, 'ALNUM_UPPER', NULL),
+('ABHA_ID', 'ABHA ID', '^[0-9]{2}-?[0-9]{4}-?[0-9]{4}-?[0-9]{4}$', TRUE, 'DIGITS', NULL)
 ON CONFLICT (id_type_code) DO NOTHING; -- Avoid errors if run multiple times
 
+-- Create Table: key_encryption_key
+-- KMS-wrapped key-encryption keys for the optional key hierarchy (KMS_KEY_HIERARCHY_ENABLED).
+-- One KEK per client, ID type and rotation period; row data keys are derived from it with HKDF.
+CREATE TABLE key_encryption_key (
+    kek_id BIGSERIAL PRIMARY KEY,
+    api_key VARCHAR(255) NOT NULL REFERENCES api_user(api_key),
+    id_type_code VARCHAR(50) NOT NULL REFERENCES id_type_master(id_type_code),
+    period_start BIGINT NOT NULL, -- Start of the rotation period (epoch seconds)
+    encrypted_kek TEXT NOT NULL, -- Base64 encoded KEK, wrapped by the key provider
+    master_key_id VARCHAR(255), -- Key provider key the KEK was wrapped under
+    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE (api_key, id_type_code, period_start)
+);
+
+-- Create Table: masking_key
+-- Long-lived, provider-wrapped keys for the masked form of stored IDs (see MaskingKeys).
+CREATE TABLE masking_key (
+    key_id BIGSERIAL PRIMARY KEY,
+    encrypted_key TEXT NOT NULL, -- Base64 encoded key, wrapped by the key provider
+    master_key_id VARCHAR(255), -- Key provider key the masking key was wrapped under
+    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP
+);
+
 -- Create Table: id_vault
--- Note: encrypted_id_number and encrypted_data_key are TEXT for Base64 encoded binary data
--- hashed_id_number uses a deterministic hash (globally salted)
+-- Note: encrypted_id_bin holds a binary, versioned record (see VaultRecord) and encrypted_data_key_bin the
+-- wrapped data key. encrypted_id_number / encrypted_data_key are the legacy Base64 TEXT columns, read
+-- only for rows not yet moved by the binary_format_migration job.
+-- hashed_id_bin is the deterministic HMAC-SHA256 lookup hash; hashed_id_number holds the legacy salted SHA-256
+-- (Base64) only for rows not yet moved by the lookup_hash_migration job.
 CREATE TABLE id_vault (
     reference_key UUID PRIMARY KEY,
     id_type_code VARCHAR(50) NOT NULL REFERENCES id_type_master(id_type_code),
-    encrypted_id_number TEXT NOT NULL,
-    encrypted_data_key TEXT, -- Stores the Base64 encoded encrypted data key from KMS
-    hashed_id_number VARCHAR(255) NOT NULL,
-    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP
+    encrypted_id_bin BYTEA, -- version | alg | key type | key id | IV + ciphertext + tag
+    encrypted_data_key_bin BYTEA, -- Encrypted data key as returned by the key provider (NULL when kek_id is set)
+    encrypted_id_number TEXT, -- Legacy Base64 format
+    encrypted_data_key TEXT, -- Legacy Base64 format
+    kek_id BIGINT REFERENCES key_encryption_key(kek_id), -- Row data key is derived from this KEK and reference_key
+    cipher_alg SMALLINT NOT NULL DEFAULT 0, -- Format of encrypted_id_number: 0 = legacy AES-CBC, 1 = AES-GCM
+    hashed_id_bin BYTEA, -- HMAC-SHA256 of the ID number keyed with TSI_LOOKUP_SALT (32 bytes)
+    hashed_id_number VARCHAR(255), -- Legacy Base64 salted SHA-256
+    masked_id_bin BYTEA, -- Masked ID number (last four characters visible) under a masking key, same record layout
+    hash_prefix BIGINT, -- First 8 bytes of hashed_id_bin, for the compact lookup index
+    id_type_id SMALLINT, -- id_type_master.type_id of id_type_code
+    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP WITHOUT TIME ZONE -- Last change of hashed_id_bin, if any
 );
 
 -- Unique index to prevent duplicate IDs for the same type (using deterministic hash)
 CREATE UNIQUE INDEX ux_id_type_hashed_id ON id_vault (id_type_code, hashed_id_number);
+CREATE UNIQUE INDEX ux_id_type_hashed_id_bin ON id_vault (id_type_code, hashed_id_bin);
+-- Compact lookup index (about 16 bytes per key instead of a type code and a 32-byte hash); matches are
+-- confirmed against hashed_id_bin
+CREATE INDEX ix_id_vault_hash_prefix ON id_vault (hash_prefix, id_type_id);
+-- Rows stored or repointed since a point in time, polled by the lookup filter and index
+CREATE INDEX ix_id_vault_created_at ON id_vault (created_at);
+CREATE INDEX ix_id_vault_updated_at ON id_vault (updated_at) WHERE updated_at IS NOT NULL;
+
 
+-- Create Table: vault_job_checkpoint
+-- Progress of online maintenance jobs (format migration, key rotation), so they resume after a stop or restart
+CREATE TABLE vault_job_checkpoint (
+    job_name VARCHAR(100) PRIMARY KEY,
+    last_reference_key UUID, -- Last id_vault row processed (keyset pagination)
+    shard_id SMALLINT NOT NULL DEFAULT 0, -- Shard last_reference_key refers to, for jobs scanning every shard
+    rows_processed BIGINT NOT NULL DEFAULT 0,
+    status VARCHAR(20) NOT NULL, -- RUNNING, STOPPED, COMPLETED, FAILED
+    message TEXT,
+    updated_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP
+);
 
 -- Create Table: event_log
 CREATE TABLE event_log (
@@ -62,4 +121,4 @@ CREATE TABLE admin_user (
     active BOOLEAN DEFAULT TRUE,
     created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP,
     last_login_at TIMESTAMP WITHOUT TIME ZONE
-);
\ No newline at end of file
+);
\ No newline at end of file
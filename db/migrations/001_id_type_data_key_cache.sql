@@ -0,0 +1,6 @@
+-- 001_id_type_data_key_cache.sql
+-- Per ID type limits for reusing a KMS data key on the store path.
+-- NULL falls back to KMS_DATA_KEY_CACHE_MAX_USES / KMS_DATA_KEY_CACHE_MAX_AGE_SECONDS.
+
+ALTER TABLE id_type_master ADD COLUMN IF NOT EXISTS data_key_max_uses INTEGER;
+ALTER TABLE id_type_master ADD COLUMN IF NOT EXISTS data_key_max_age_seconds INTEGER;
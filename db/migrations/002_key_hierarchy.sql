@@ -0,0 +1,19 @@
+-- 002_key_hierarchy.sql
+-- Optional key hierarchy: one KMS-wrapped KEK per client, ID type and rotation period.
+-- Rows written in this mode store kek_id instead of a per-row encrypted_data_key.
+
+-- Create Table: key_encryption_key
+-- KMS-wrapped key-encryption keys for the optional key hierarchy (KMS_KEY_HIERARCHY_ENABLED).
+-- One KEK per client, ID type and rotation period; row data keys are derived from it with HKDF.
+CREATE TABLE IF NOT EXISTS key_encryption_key (
+    kek_id BIGSERIAL PRIMARY KEY,
+    api_key VARCHAR(255) NOT NULL REFERENCES api_user(api_key),
+    id_type_code VARCHAR(50) NOT NULL REFERENCES id_type_master(id_type_code),
+    period_start BIGINT NOT NULL, -- Start of the rotation period (epoch seconds)
+    encrypted_kek TEXT NOT NULL, -- Base64 encoded KEK, wrapped by the key provider
+    master_key_id VARCHAR(255), -- Key provider key the KEK was wrapped under
+    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE (api_key, id_type_code, period_start)
+);
+
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS kek_id BIGINT REFERENCES key_encryption_key(kek_id);
@@ -0,0 +1,5 @@
+-- 003_cipher_alg.sql
+-- Records the cipher of each row: existing rows are legacy AES-CBC (0), new rows are AES-GCM (1).
+-- Adding a column with a constant default does not rewrite the table (PostgreSQL 11+).
+
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS cipher_alg SMALLINT NOT NULL DEFAULT 0;
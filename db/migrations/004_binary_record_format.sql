@@ -0,0 +1,17 @@
+-- 004_binary_record_format.sql
+-- Binary record format: new rows are written to encrypted_id_bin / encrypted_data_key_bin (bytea).
+-- Existing rows keep working from the Base64 TEXT columns until the online migration moves them:
+--   POST /api/admin/jobs {"_func": "start_vault_job", "jobName": "binary_format_migration"}
+
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS encrypted_id_bin BYTEA;
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS encrypted_data_key_bin BYTEA;
+ALTER TABLE id_vault ALTER COLUMN encrypted_id_number DROP NOT NULL;
+
+CREATE TABLE IF NOT EXISTS vault_job_checkpoint (
+    job_name VARCHAR(100) PRIMARY KEY,
+    last_reference_key UUID, -- Last id_vault row processed (keyset pagination)
+    rows_processed BIGINT NOT NULL DEFAULT 0,
+    status VARCHAR(20) NOT NULL, -- RUNNING, STOPPED, COMPLETED, FAILED
+    message TEXT,
+    updated_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP
+);
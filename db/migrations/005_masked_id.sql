@@ -0,0 +1,13 @@
+-- 005_masked_id.sql
+-- Masked ID numbers for fetch_masked_id_by_reference, encrypted under long-lived masking keys.
+-- New rows get one at store time; existing rows are filled in by the online backfill job:
+--   POST /api/admin/jobs {"_func": "start_vault_job", "jobName": "masked_id_backfill"}
+
+CREATE TABLE IF NOT EXISTS masking_key (
+    key_id BIGSERIAL PRIMARY KEY,
+    encrypted_key TEXT NOT NULL, -- Base64 encoded key, wrapped by the key provider
+    master_key_id VARCHAR(255), -- Key provider key the masking key was wrapped under
+    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP
+);
+
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS masked_id_bin BYTEA;
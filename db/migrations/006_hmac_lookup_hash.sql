@@ -0,0 +1,10 @@
+-- 006_hmac_lookup_hash.sql
+-- HMAC-SHA256 lookup hashes stored as 32-byte bytea. New rows only fill hashed_id_bin; lookups also match
+-- the legacy Base64 hashed_id_number and upgrade the rows they find. The rest are converted online:
+--   POST /api/admin/jobs {"_func": "start_vault_job", "jobName": "lookup_hash_migration"}
+-- Once it has completed, set VAULT_LOOKUP_LEGACY_HASH_READ=false.
+
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS hashed_id_bin BYTEA;
+ALTER TABLE id_vault ALTER COLUMN hashed_id_number DROP NOT NULL;
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS ux_id_type_hashed_id_bin ON id_vault (id_type_code, hashed_id_bin);
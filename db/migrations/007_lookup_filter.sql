@@ -0,0 +1,5 @@
+-- 007_lookup_filter.sql
+-- Index on id_vault.created_at, used by the lookup filter (VAULT_BLOOM_ENABLED) to pick up rows stored on
+-- other nodes without scanning the table. Built concurrently, so run outside a transaction.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ix_id_vault_created_at ON id_vault (created_at);
@@ -0,0 +1,14 @@
+-- 008_hash_prefix.sql
+-- Compact lookup index on the first 8 bytes of the lookup hash and a small integer type id. New rows fill
+-- both columns; existing rows are filled in by the online backfill job:
+--   POST /api/admin/jobs {"_func": "start_vault_job", "jobName": "hash_prefix_backfill"}
+-- Once it has completed, set VAULT_LOOKUP_PREFIX_READ=true. The index is built concurrently, so run this
+-- script outside a transaction.
+
+ALTER TABLE id_type_master ADD COLUMN IF NOT EXISTS type_id SMALLSERIAL;
+CREATE UNIQUE INDEX IF NOT EXISTS ux_id_type_master_type_id ON id_type_master (type_id);
+
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS hash_prefix BIGINT;
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS id_type_id SMALLINT;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ix_id_vault_hash_prefix ON id_vault (hash_prefix, id_type_id);
@@ -0,0 +1,26 @@
+-- 009_id_normalization.sql
+-- Per-type canonical form and checksum for the ID validation done before any KMS or database work.
+-- Lookup hashes are computed over the canonical form from now on. Rows stored before are found through
+-- their old hash while VAULT_LOOKUP_RAW_HASH_READ=true and repointed by the online job:
+--   POST /api/admin/jobs {"_func": "start_vault_job", "jobName": "id_normalization"}
+-- Once it has completed, set VAULT_LOOKUP_RAW_HASH_READ=false.
+-- Repointed rows get id_vault.updated_at, so the lookup filter and index on other nodes pick up their new hash.
+-- The index is built concurrently, so run this outside a transaction.
+
+ALTER TABLE id_type_master ADD COLUMN IF NOT EXISTS canonical_form VARCHAR(20) NOT NULL DEFAULT 'TRIM';
+ALTER TABLE id_type_master ADD COLUMN IF NOT EXISTS checksum VARCHAR(20);
+
+ALTER TABLE id_vault ADD COLUMN IF NOT EXISTS updated_at TIMESTAMP WITHOUT TIME ZONE;
+CREATE INDEX CONCURRENTLY IF NOT EXISTS ix_id_vault_updated_at ON id_vault (updated_at) WHERE updated_at IS NOT NULL;
+
+UPDATE id_type_master SET canonical_form = 'DIGITS', checksum = 'VERHOEFF' WHERE id_type_code = 'AADHAAR';
+UPDATE id_type_master SET canonical_form = 'ALNUM_UPPER' WHERE id_type_code = 'VOTER_ID';
+UPDATE id_type_master SET canonical_form = 'DIGITS' WHERE id_type_code = 'ABHA_ID';
+
+-- The seeded patterns were stored with doubled backslashes and never matched; replace them unless changed since
+UPDATE id_type_master SET validation_regex = '^[2-9][0-9]{3}[ -]?[0-9]{4}[ -]?[0-9]{4}$'
+ WHERE id_type_code = 'AADHAAR' AND validation_regex = '^\\d{4}\\s\\d{4}\\s\\d{4}$';
+UPDATE id_type_master SET validation_regex = '^[A-Za-z]{3}[0-9]{7}$'
+ WHERE id_type_code = 'VOTER_ID' AND validation_regex = '^[A-Z]{3}\\d{7}$';
+UPDATE id_type_master SET validation_regex = '^[0-9]{2}-?[0-9]{4}-?[0-9]{4}-?[0-9]{4}$'
+ WHERE id_type_code = 'ABHA_ID' AND validation_regex = '^\\d{2}-\\d{4}-\\d{4}-\\d{4}$';
@@ -0,0 +1,91 @@
+-- 010_partitioned_id_vault.sql
+-- Converts id_vault to a table range-partitioned on vault_bucket (the last 10 bits of the lookup hash, see
+-- VaultPartitions), so vacuum, index maintenance and the unique dedupe index work per partition. Keys issued
+-- from now on carry their bucket; the bucket of every existing reference key is kept in id_vault_legacy_ref.
+--
+-- Before running it:
+-- - lookup_hash_migration and id_normalization have completed (a row's bucket follows its lookup hash), and
+-- - writes are stopped: the rows are copied in one transaction.
+-- Afterwards set VAULT_PARTITIONED=true on every node and restart. The old table is kept as
+-- id_vault_unpartitioned until dropped by hand.
+
+BEGIN;
+
+LOCK TABLE id_vault IN EXCLUSIVE MODE;
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM id_vault WHERE hashed_id_bin IS NULL) THEN
+        RAISE EXCEPTION 'id_vault still has legacy-hash rows; complete lookup_hash_migration first';
+    END IF;
+END
+$$;
+
+-- A foreign key cannot reference a partitioned table by reference_key alone
+ALTER TABLE event_log DROP CONSTRAINT IF EXISTS event_log_reference_key_fkey;
+
+ALTER TABLE id_vault RENAME TO id_vault_unpartitioned;
+ALTER INDEX IF EXISTS id_vault_pkey RENAME TO id_vault_unpartitioned_pkey;
+ALTER INDEX IF EXISTS ux_id_type_hashed_id RENAME TO ux_id_type_hashed_id_unpartitioned;
+ALTER INDEX IF EXISTS ux_id_type_hashed_id_bin RENAME TO ux_id_type_hashed_id_bin_unpartitioned;
+ALTER INDEX IF EXISTS ix_id_vault_hash_prefix RENAME TO ix_id_vault_hash_prefix_unpartitioned;
+ALTER INDEX IF EXISTS ix_id_vault_created_at RENAME TO ix_id_vault_created_at_unpartitioned;
+ALTER INDEX IF EXISTS ix_id_vault_updated_at RENAME TO ix_id_vault_updated_at_unpartitioned;
+
+CREATE TABLE id_vault (
+    reference_key UUID NOT NULL,
+    id_type_code VARCHAR(50) NOT NULL REFERENCES id_type_master(id_type_code),
+    encrypted_id_bin BYTEA,
+    encrypted_data_key_bin BYTEA,
+    encrypted_id_number TEXT,
+    encrypted_data_key TEXT,
+    kek_id BIGINT REFERENCES key_encryption_key(kek_id),
+    cipher_alg SMALLINT NOT NULL DEFAULT 0,
+    hashed_id_bin BYTEA NOT NULL,
+    hashed_id_number VARCHAR(255),
+    masked_id_bin BYTEA,
+    hash_prefix BIGINT,
+    id_type_id SMALLINT,
+    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP WITHOUT TIME ZONE,
+    vault_bucket SMALLINT NOT NULL, -- 0..1023, from hashed_id_bin
+    PRIMARY KEY (reference_key, vault_bucket)
+) PARTITION BY RANGE (vault_bucket);
+
+-- 16 partitions of 64 buckets; a partition can later be detached and split along bucket boundaries
+DO $$
+BEGIN
+    FOR p IN 0..15 LOOP
+        EXECUTE format('CREATE TABLE id_vault_p%s PARTITION OF id_vault FOR VALUES FROM (%s) TO (%s)',
+                       lpad(p::text, 2, '0'), p * 64, (p + 1) * 64);
+    END LOOP;
+END
+$$;
+
+-- The bucket is part of the key, so these are unique per type and lookup hash as before
+CREATE UNIQUE INDEX ux_id_type_hashed_id_bin ON id_vault (id_type_code, hashed_id_bin, vault_bucket);
+CREATE INDEX ix_id_vault_hash_prefix ON id_vault (hash_prefix, id_type_id);
+CREATE INDEX ix_id_vault_created_at ON id_vault (created_at);
+CREATE INDEX ix_id_vault_updated_at ON id_vault (updated_at) WHERE updated_at IS NOT NULL;
+
+INSERT INTO id_vault (reference_key, id_type_code, encrypted_id_bin, encrypted_data_key_bin, encrypted_id_number,
+                      encrypted_data_key, kek_id, cipher_alg, hashed_id_bin, hashed_id_number, masked_id_bin,
+                      hash_prefix, id_type_id, created_at, updated_at, vault_bucket)
+SELECT reference_key, id_type_code, encrypted_id_bin, encrypted_data_key_bin, encrypted_id_number,
+       encrypted_data_key, kek_id, cipher_alg, hashed_id_bin, hashed_id_number, masked_id_bin,
+       hash_prefix, id_type_id, created_at, updated_at,
+       ((get_byte(hashed_id_bin, 30) << 8) | get_byte(hashed_id_bin, 31)) & 1023
+  FROM id_vault_unpartitioned;
+
+-- Bucket of each reference key issued before partitioning (those keys do not carry it)
+CREATE TABLE id_vault_legacy_ref (
+    reference_key UUID PRIMARY KEY,
+    vault_bucket SMALLINT NOT NULL
+);
+INSERT INTO id_vault_legacy_ref (reference_key, vault_bucket)
+SELECT reference_key, vault_bucket FROM id_vault;
+
+COMMIT;
+
+ANALYZE id_vault;
+ANALYZE id_vault_legacy_ref;
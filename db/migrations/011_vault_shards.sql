@@ -0,0 +1,53 @@
+-- 011_vault_shards.sql
+-- Prepares the primary database for spreading id_vault over several Postgres instances (see ShardRouter).
+-- Rows are routed by vault bucket (the last 10 bits of the lookup hash, see VaultPartitions); this table
+-- says which shard owns each bucket. Shard 0 is this database. Every bucket starts here, and ranges of
+-- buckets are moved to the shards listed in VAULT_SHARD_URLS, while the vault keeps serving, by the job:
+--   POST /api/admin/jobs {"_func": "start_vault_job", "jobName": "reshard", "fromBucket": 512, "toBucket": 1023, "targetShard": 1}
+--
+-- Before running it, lookup_hash_migration and id_normalization have completed (a row's bucket follows
+-- its lookup hash). Create each extra shard with db/shard/shard_init.sql, then set VAULT_SHARD_URLS on
+-- every node and restart.
+
+BEGIN;
+
+DO $$
+BEGIN
+    IF EXISTS (SELECT 1 FROM id_vault WHERE hashed_id_bin IS NULL) THEN
+        RAISE EXCEPTION 'id_vault still has legacy-hash rows; complete lookup_hash_migration first';
+    END IF;
+END
+$$;
+
+CREATE TABLE IF NOT EXISTS vault_shard_bucket (
+    vault_bucket SMALLINT PRIMARY KEY, -- 0..1023
+    shard_id SMALLINT NOT NULL DEFAULT 0, -- Position in VAULT_SHARD_URLS (1..n); 0 = this database
+    state VARCHAR(20) NOT NULL DEFAULT 'ACTIVE', -- ACTIVE, COPYING, FROZEN (stores refused), DRAINING (old copies being deleted)
+    target_shard_id SMALLINT, -- While moving: the new owner; while DRAINING: the old one
+    move_started_at TIMESTAMP WITHOUT TIME ZONE,
+    updated_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP
+);
+INSERT INTO vault_shard_bucket (vault_bucket)
+SELECT b FROM generate_series(0, 1023) AS b
+ON CONFLICT (vault_bucket) DO NOTHING;
+
+-- Rows moved to another shard are no longer in this database's id_vault
+ALTER TABLE event_log DROP CONSTRAINT IF EXISTS event_log_reference_key_fkey;
+
+-- Bucket of each reference key issued before sharding (those keys do not carry it); already filled when
+-- 010_partitioned_id_vault.sql has run. Keys stored later with the old format are added by the reshard job.
+CREATE TABLE IF NOT EXISTS id_vault_legacy_ref (
+    reference_key UUID PRIMARY KEY,
+    vault_bucket SMALLINT NOT NULL
+);
+INSERT INTO id_vault_legacy_ref (reference_key, vault_bucket)
+SELECT reference_key, ((get_byte(hashed_id_bin, 30) << 8) | get_byte(hashed_id_bin, 31)) & 1023
+  FROM id_vault
+ON CONFLICT (reference_key) DO NOTHING;
+
+-- Shard a job scanning every shard (cmk_rotation, binary_format_migration, masked_id_backfill) has reached
+ALTER TABLE vault_job_checkpoint ADD COLUMN IF NOT EXISTS shard_id SMALLINT NOT NULL DEFAULT 0;
+
+COMMIT;
+
+ANALYZE id_vault_legacy_ref;
@@ -0,0 +1,28 @@
+-- shard_init.sql
+-- Schema of an extra id_vault shard (see ShardRouter and 011_vault_shards.sql). A shard holds only
+-- id_vault: ID types, clients, keys and the event log stay on the primary, so there are no foreign keys.
+-- docker-compose runs it for the postgres_shard services (profile "shards").
+
+CREATE TABLE IF NOT EXISTS id_vault (
+    reference_key UUID PRIMARY KEY,
+    id_type_code VARCHAR(50) NOT NULL,
+    encrypted_id_bin BYTEA,
+    encrypted_data_key_bin BYTEA,
+    encrypted_id_number TEXT,
+    encrypted_data_key TEXT,
+    kek_id BIGINT,
+    cipher_alg SMALLINT NOT NULL DEFAULT 0,
+    hashed_id_bin BYTEA NOT NULL,
+    hashed_id_number VARCHAR(255),
+    masked_id_bin BYTEA,
+    hash_prefix BIGINT,
+    id_type_id SMALLINT,
+    created_at TIMESTAMP WITHOUT TIME ZONE DEFAULT CURRENT_TIMESTAMP,
+    vault_bucket SMALLINT NOT NULL -- 0..1023, from hashed_id_bin; ranges of it are moved between shards
+);
+
+CREATE UNIQUE INDEX IF NOT EXISTS ux_id_type_hashed_id_bin ON id_vault (id_type_code, hashed_id_bin);
+CREATE INDEX IF NOT EXISTS ix_id_vault_hash_prefix ON id_vault (hash_prefix, id_type_id);
+CREATE INDEX IF NOT EXISTS ix_id_vault_created_at ON id_vault (created_at);
+-- Range scans and deletes of the reshard job
+CREATE INDEX IF NOT EXISTS ix_id_vault_bucket ON id_vault (vault_bucket, reference_key);
@@ -41,5 +41,74 @@ set AWS_SECRET_ACCESS_KEY=%AWS_SECRET_ACCESS_KEY%
 set AWS_REGION=%AWS_REGION%
 set AWS_KMS_KEY_IDENTIFIER=%AWS_KMS_KEY_IDENTIFIER%
 set TSI_LOOKUP_SALT=%TSI_LOOKUP_SALT%
+set AWS_KMS_HTTP_MAX_CONNECTIONS=%AWS_KMS_HTTP_MAX_CONNECTIONS%
+set AWS_KMS_HTTP_CONNECTION_TIMEOUT_MS=%AWS_KMS_HTTP_CONNECTION_TIMEOUT_MS%
+set AWS_KMS_HTTP_SOCKET_TIMEOUT_MS=%AWS_KMS_HTTP_SOCKET_TIMEOUT_MS%
+set AWS_KMS_HTTP_ACQUISITION_TIMEOUT_MS=%AWS_KMS_HTTP_ACQUISITION_TIMEOUT_MS%
+set AWS_KMS_HTTP_MAX_IDLE_MS=%AWS_KMS_HTTP_MAX_IDLE_MS%
+set AWS_KMS_HTTP_TCP_KEEP_ALIVE=%AWS_KMS_HTTP_TCP_KEEP_ALIVE%
+set AWS_KMS_API_CALL_TIMEOUT_MS=%AWS_KMS_API_CALL_TIMEOUT_MS%
+set AWS_KMS_API_CALL_ATTEMPT_TIMEOUT_MS=%AWS_KMS_API_CALL_ATTEMPT_TIMEOUT_MS%
+set KMS_DATA_KEY_CACHE_MAX_USES=%KMS_DATA_KEY_CACHE_MAX_USES%
+set KMS_DATA_KEY_CACHE_MAX_AGE_SECONDS=%KMS_DATA_KEY_CACHE_MAX_AGE_SECONDS%
+set KMS_DECRYPTED_KEY_CACHE_MAX_ENTRIES=%KMS_DECRYPTED_KEY_CACHE_MAX_ENTRIES%
+set KMS_DECRYPTED_KEY_CACHE_TTL_SECONDS=%KMS_DECRYPTED_KEY_CACHE_TTL_SECONDS%
+set KMS_DATA_KEY_POOL_LOW=%KMS_DATA_KEY_POOL_LOW%
+set KMS_DATA_KEY_POOL_HIGH=%KMS_DATA_KEY_POOL_HIGH%
+set KMS_DATA_KEY_POOL_MAX_IDLE_SECONDS=%KMS_DATA_KEY_POOL_MAX_IDLE_SECONDS%
+set VAULT_ASYNC_ENABLED=%VAULT_ASYNC_ENABLED%
+set VAULT_ASYNC_WORKER_THREADS=%VAULT_ASYNC_WORKER_THREADS%
+set KMS_PROVIDER=%KMS_PROVIDER%
+set KMS_LOCAL_MASTER_KEY_FILE=%KMS_LOCAL_MASTER_KEY_FILE%
+set KMS_LOCAL_KEYSTORE=%KMS_LOCAL_KEYSTORE%
+set KMS_LOCAL_KEYSTORE_PASSWORD=%KMS_LOCAL_KEYSTORE_PASSWORD%
+set KMS_LOCAL_KEY_ALIAS=%KMS_LOCAL_KEY_ALIAS%
+set KMS_LOCAL_LATENCY_MS=%KMS_LOCAL_LATENCY_MS%
+set KMS_LOCAL_LATENCY_JITTER_MS=%KMS_LOCAL_LATENCY_JITTER_MS%
+set KMS_KEY_HIERARCHY_ENABLED=%KMS_KEY_HIERARCHY_ENABLED%
+set KMS_KEK_ROTATION_PERIOD_SECONDS=%KMS_KEK_ROTATION_PERIOD_SECONDS%
+set KMS_KEK_CACHE_TTL_SECONDS=%KMS_KEK_CACHE_TTL_SECONDS%
+set VAULT_JOB_CHUNK_SIZE=%VAULT_JOB_CHUNK_SIZE%
+set VAULT_JOB_THROTTLE_MS=%VAULT_JOB_THROTTLE_MS%
+set VAULT_JOB_STALE_SECONDS=%VAULT_JOB_STALE_SECONDS%
+set VAULT_ROTATION_CONCURRENCY=%VAULT_ROTATION_CONCURRENCY%
+set KMS_RESILIENCE_ENABLED=%KMS_RESILIENCE_ENABLED%
+set KMS_BULKHEAD_MAX_CONCURRENT=%KMS_BULKHEAD_MAX_CONCURRENT%
+set KMS_BULKHEAD_MAX_WAIT_MS=%KMS_BULKHEAD_MAX_WAIT_MS%
+set KMS_CALL_TIMEOUT_MS=%KMS_CALL_TIMEOUT_MS%
+set KMS_BREAKER_WINDOW_SIZE=%KMS_BREAKER_WINDOW_SIZE%
+set KMS_BREAKER_MIN_CALLS=%KMS_BREAKER_MIN_CALLS%
+set KMS_BREAKER_FAILURE_RATE_PERCENT=%KMS_BREAKER_FAILURE_RATE_PERCENT%
+set KMS_BREAKER_SLOW_CALL_MS=%KMS_BREAKER_SLOW_CALL_MS%
+set KMS_BREAKER_OPEN_MS=%KMS_BREAKER_OPEN_MS%
+set KMS_BREAKER_HALF_OPEN_PROBES=%KMS_BREAKER_HALF_OPEN_PROBES%
+set KMS_HEDGE_ENABLED=%KMS_HEDGE_ENABLED%
+set KMS_HEDGE_MIN_DELAY_MS=%KMS_HEDGE_MIN_DELAY_MS%
+set KMS_HEDGE_MIN_SAMPLES=%KMS_HEDGE_MIN_SAMPLES%
+set KMS_LATENCY_WINDOW_SECONDS=%KMS_LATENCY_WINDOW_SECONDS%
+set FAULT_PROFILE=%FAULT_PROFILE%
+set FAULT_KMS=%FAULT_KMS%
+set FAULT_DB=%FAULT_DB%
+set VAULT_LOOKUP_LEGACY_HASH_READ=%VAULT_LOOKUP_LEGACY_HASH_READ%
+set VAULT_LOOKUP_PREFIX_READ=%VAULT_LOOKUP_PREFIX_READ%
+set VAULT_LOOKUP_RAW_HASH_READ=%VAULT_LOOKUP_RAW_HASH_READ%
+set VAULT_BLOOM_ENABLED=%VAULT_BLOOM_ENABLED%
+set VAULT_BLOOM_FPP=%VAULT_BLOOM_FPP%
+set VAULT_BLOOM_MIN_CAPACITY=%VAULT_BLOOM_MIN_CAPACITY%
+set VAULT_BLOOM_REFRESH_SECONDS=%VAULT_BLOOM_REFRESH_SECONDS%
+set VAULT_BLOOM_REBUILD_HOURS=%VAULT_BLOOM_REBUILD_HOURS%
+set VAULT_BLOOM_SNAPSHOT_FILE=%VAULT_BLOOM_SNAPSHOT_FILE%
+set VAULT_REFERENCE_CACHE_MAX_ENTRIES=%VAULT_REFERENCE_CACHE_MAX_ENTRIES%
+set VAULT_LOOKUP_INDEX_DIR=%VAULT_LOOKUP_INDEX_DIR%
+set VAULT_LOOKUP_INDEX_MIN_SLOTS=%VAULT_LOOKUP_INDEX_MIN_SLOTS%
+set VAULT_LOOKUP_INDEX_REFRESH_SECONDS=%VAULT_LOOKUP_INDEX_REFRESH_SECONDS%
+set VAULT_ID_TYPE_CACHE_SECONDS=%VAULT_ID_TYPE_CACHE_SECONDS%
+set VAULT_ID_VALIDATION_REGEX=%VAULT_ID_VALIDATION_REGEX%
+set VAULT_PARTITIONED=%VAULT_PARTITIONED%
+set VAULT_SHARD_URLS=%VAULT_SHARD_URLS%
+set VAULT_SHARD_USER=%VAULT_SHARD_USER%
+set VAULT_SHARD_PASSWORD=%VAULT_SHARD_PASSWORD%
+set VAULT_SHARD_POOL_SIZE=%VAULT_SHARD_POOL_SIZE%
+set VAULT_SHARD_REFRESH_SECONDS=%VAULT_SHARD_REFRESH_SECONDS%
 copy %TSI_AADHAR_VAULT_PLUS_HOME%\target\tsi_aadhaar_vault_plus.war %JETTY_BASE%\webapps\ROOT.war >NUL
 java -jar %JETTY_HOME%/start.jar
@@ -23,5 +23,74 @@ export AWS_SECRET_ACCESS_KEY=$AWS_SECRET_ACCESS_KEY
 export AWS_REGION=$AWS_REGION
 export AWS_KMS_KEY_IDENTIFIER=$AWS_KMS_KEY_IDENTIFIER
 export TSI_LOOKUP_SALT=$TSI_LOOKUP_SALT
+export AWS_KMS_HTTP_MAX_CONNECTIONS=$AWS_KMS_HTTP_MAX_CONNECTIONS
+export AWS_KMS_HTTP_CONNECTION_TIMEOUT_MS=$AWS_KMS_HTTP_CONNECTION_TIMEOUT_MS
+export AWS_KMS_HTTP_SOCKET_TIMEOUT_MS=$AWS_KMS_HTTP_SOCKET_TIMEOUT_MS
+export AWS_KMS_HTTP_ACQUISITION_TIMEOUT_MS=$AWS_KMS_HTTP_ACQUISITION_TIMEOUT_MS
+export AWS_KMS_HTTP_MAX_IDLE_MS=$AWS_KMS_HTTP_MAX_IDLE_MS
+export AWS_KMS_HTTP_TCP_KEEP_ALIVE=$AWS_KMS_HTTP_TCP_KEEP_ALIVE
+export AWS_KMS_API_CALL_TIMEOUT_MS=$AWS_KMS_API_CALL_TIMEOUT_MS
+export AWS_KMS_API_CALL_ATTEMPT_TIMEOUT_MS=$AWS_KMS_API_CALL_ATTEMPT_TIMEOUT_MS
+export KMS_DATA_KEY_CACHE_MAX_USES=$KMS_DATA_KEY_CACHE_MAX_USES
+export KMS_DATA_KEY_CACHE_MAX_AGE_SECONDS=$KMS_DATA_KEY_CACHE_MAX_AGE_SECONDS
+export KMS_DECRYPTED_KEY_CACHE_MAX_ENTRIES=$KMS_DECRYPTED_KEY_CACHE_MAX_ENTRIES
+export KMS_DECRYPTED_KEY_CACHE_TTL_SECONDS=$KMS_DECRYPTED_KEY_CACHE_TTL_SECONDS
+export KMS_DATA_KEY_POOL_LOW=$KMS_DATA_KEY_POOL_LOW
+export KMS_DATA_KEY_POOL_HIGH=$KMS_DATA_KEY_POOL_HIGH
+export KMS_DATA_KEY_POOL_MAX_IDLE_SECONDS=$KMS_DATA_KEY_POOL_MAX_IDLE_SECONDS
+export VAULT_ASYNC_ENABLED=$VAULT_ASYNC_ENABLED
+export VAULT_ASYNC_WORKER_THREADS=$VAULT_ASYNC_WORKER_THREADS
+export KMS_PROVIDER=$KMS_PROVIDER
+export KMS_LOCAL_MASTER_KEY_FILE=$KMS_LOCAL_MASTER_KEY_FILE
+export KMS_LOCAL_KEYSTORE=$KMS_LOCAL_KEYSTORE
+export KMS_LOCAL_KEYSTORE_PASSWORD=$KMS_LOCAL_KEYSTORE_PASSWORD
+export KMS_LOCAL_KEY_ALIAS=$KMS_LOCAL_KEY_ALIAS
+export KMS_LOCAL_LATENCY_MS=$KMS_LOCAL_LATENCY_MS
+export KMS_LOCAL_LATENCY_JITTER_MS=$KMS_LOCAL_LATENCY_JITTER_MS
+export KMS_KEY_HIERARCHY_ENABLED=$KMS_KEY_HIERARCHY_ENABLED
+export KMS_KEK_ROTATION_PERIOD_SECONDS=$KMS_KEK_ROTATION_PERIOD_SECONDS
+export KMS_KEK_CACHE_TTL_SECONDS=$KMS_KEK_CACHE_TTL_SECONDS
+export VAULT_JOB_CHUNK_SIZE=$VAULT_JOB_CHUNK_SIZE
+export VAULT_JOB_THROTTLE_MS=$VAULT_JOB_THROTTLE_MS
+export VAULT_JOB_STALE_SECONDS=$VAULT_JOB_STALE_SECONDS
+export VAULT_ROTATION_CONCURRENCY=$VAULT_ROTATION_CONCURRENCY
+export KMS_RESILIENCE_ENABLED=$KMS_RESILIENCE_ENABLED
+export KMS_BULKHEAD_MAX_CONCURRENT=$KMS_BULKHEAD_MAX_CONCURRENT
+export KMS_BULKHEAD_MAX_WAIT_MS=$KMS_BULKHEAD_MAX_WAIT_MS
+export KMS_CALL_TIMEOUT_MS=$KMS_CALL_TIMEOUT_MS
+export KMS_BREAKER_WINDOW_SIZE=$KMS_BREAKER_WINDOW_SIZE
+export KMS_BREAKER_MIN_CALLS=$KMS_BREAKER_MIN_CALLS
+export KMS_BREAKER_FAILURE_RATE_PERCENT=$KMS_BREAKER_FAILURE_RATE_PERCENT
+export KMS_BREAKER_SLOW_CALL_MS=$KMS_BREAKER_SLOW_CALL_MS
+export KMS_BREAKER_OPEN_MS=$KMS_BREAKER_OPEN_MS
+export KMS_BREAKER_HALF_OPEN_PROBES=$KMS_BREAKER_HALF_OPEN_PROBES
+export KMS_HEDGE_ENABLED=$KMS_HEDGE_ENABLED
+export KMS_HEDGE_MIN_DELAY_MS=$KMS_HEDGE_MIN_DELAY_MS
+export KMS_HEDGE_MIN_SAMPLES=$KMS_HEDGE_MIN_SAMPLES
+export KMS_LATENCY_WINDOW_SECONDS=$KMS_LATENCY_WINDOW_SECONDS
+export FAULT_PROFILE=$FAULT_PROFILE
+export FAULT_KMS=$FAULT_KMS
+export FAULT_DB=$FAULT_DB
+export VAULT_LOOKUP_LEGACY_HASH_READ=$VAULT_LOOKUP_LEGACY_HASH_READ
+export VAULT_LOOKUP_PREFIX_READ=$VAULT_LOOKUP_PREFIX_READ
+export VAULT_LOOKUP_RAW_HASH_READ=$VAULT_LOOKUP_RAW_HASH_READ
+export VAULT_BLOOM_ENABLED=$VAULT_BLOOM_ENABLED
+export VAULT_BLOOM_FPP=$VAULT_BLOOM_FPP
+export VAULT_BLOOM_MIN_CAPACITY=$VAULT_BLOOM_MIN_CAPACITY
+export VAULT_BLOOM_REFRESH_SECONDS=$VAULT_BLOOM_REFRESH_SECONDS
+export VAULT_BLOOM_REBUILD_HOURS=$VAULT_BLOOM_REBUILD_HOURS
+export VAULT_BLOOM_SNAPSHOT_FILE=$VAULT_BLOOM_SNAPSHOT_FILE
+export VAULT_REFERENCE_CACHE_MAX_ENTRIES=$VAULT_REFERENCE_CACHE_MAX_ENTRIES
+export VAULT_LOOKUP_INDEX_DIR=$VAULT_LOOKUP_INDEX_DIR
+export VAULT_LOOKUP_INDEX_MIN_SLOTS=$VAULT_LOOKUP_INDEX_MIN_SLOTS
+export VAULT_LOOKUP_INDEX_REFRESH_SECONDS=$VAULT_LOOKUP_INDEX_REFRESH_SECONDS
+export VAULT_ID_TYPE_CACHE_SECONDS=$VAULT_ID_TYPE_CACHE_SECONDS
+export VAULT_ID_VALIDATION_REGEX=$VAULT_ID_VALIDATION_REGEX
+export VAULT_PARTITIONED=$VAULT_PARTITIONED
+export VAULT_SHARD_URLS=$VAULT_SHARD_URLS
+export VAULT_SHARD_USER=$VAULT_SHARD_USER
+export VAULT_SHARD_PASSWORD=$VAULT_SHARD_PASSWORD
+export VAULT_SHARD_POOL_SIZE=$VAULT_SHARD_POOL_SIZE
+export VAULT_SHARD_REFRESH_SECONDS=$VAULT_SHARD_REFRESH_SECONDS
 cp %TSI_AADHAR_VAULT_PLUS_HOME%\target\tsi_aadhaar_vault_plus.war %JETTY_BASE%\webapps\ROOT.war
 java -jar $JETTY_HOME/start.jar
\ No newline at end of file
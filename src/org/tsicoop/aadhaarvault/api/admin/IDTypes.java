@@ -4,16 +4,19 @@ import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.IdNormalizer;
 import org.tsicoop.aadhaarvault.framework.InputProcessor;
 import org.tsicoop.aadhaarvault.framework.OutputProcessor;
 import org.tsicoop.aadhaarvault.framework.REST;
 import org.tsicoop.aadhaarvault.framework.PoolDB;
+import org.tsicoop.aadhaarvault.framework.ShardRouter;
 
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 
 public class IDTypes implements REST {
 
@@ -42,6 +45,15 @@ public class IDTypes implements REST {
                 if (func.equalsIgnoreCase(GET_ALL_ID_TYPES)) {
                     outputArray =  getAllIdTypes();
                 } else if (func.equalsIgnoreCase(UPDATE_ID_TYPE)) {
+                    String idTypeCode = (String) input.get("idTypeCode");
+                    IdNormalizer.getHandle().invalidate(idTypeCode); // compare with the stored definition
+                    IdNormalizer.IdType current = IdNormalizer.getHandle().getIdType(idTypeCode);
+                    if (current != null && current.changesLookup((String) input.get("canonicalForm"), (String) input.get("checksum"))
+                        && hasStoredIds(idTypeCode)) {
+                        OutputProcessor.errorResponse(res, HttpServletResponse.SC_BAD_REQUEST, "Bad Request",
+                                                      "ID type '" + idTypeCode + "' has stored IDs; its canonical form and checksum cannot change.", req.getRequestURI());
+                        return;
+                    }
                     output = updateIdType(input);
                 }
             }
@@ -62,7 +74,7 @@ public class IDTypes implements REST {
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         PoolDB pool = null;
-        String sql = "SELECT id_type_code, id_type_name, description, validation_regex, active FROM id_type_master ORDER BY id_type_name";
+        String sql = "SELECT id_type_code, id_type_name, description, validation_regex, active, data_key_max_uses, data_key_max_age_seconds, canonical_form, checksum FROM id_type_master ORDER BY id_type_name";
         try {
             pool = new PoolDB();
             conn = pool.getConnection();
@@ -75,6 +87,10 @@ public class IDTypes implements REST {
                 idType.put("description", rs.getString("description"));
                 idType.put("validationRegex", rs.getString("validation_regex"));
                 idType.put("active", rs.getBoolean("active"));
+                idType.put("dataKeyMaxUses", rs.getObject("data_key_max_uses"));
+                idType.put("dataKeyMaxAgeSeconds", rs.getObject("data_key_max_age_seconds"));
+                idType.put("canonicalForm", rs.getString("canonical_form"));
+                idType.put("checksum", rs.getString("checksum"));
                 outputArray.add(idType);
             }
         } finally {
@@ -101,12 +117,17 @@ public class IDTypes implements REST {
             String description = (String) input.get("description");
             String validationRegex = (String) input.get("validationRegex");
             Boolean activeStatus = (Boolean) input.get("active"); // Expecting "active": true/false
+            Long dataKeyMaxUses = (Long) input.get("dataKeyMaxUses"); // Optional, null = use default
+            Long dataKeyMaxAgeSeconds = (Long) input.get("dataKeyMaxAgeSeconds"); // Optional, null = use default
+            String canonicalForm = (String) input.get("canonicalForm"); // Optional, null = unchanged (TRIM for a new type)
+            String checksum = (String) input.get("checksum"); // Optional, null = unchanged, NONE = no checksum
             String sql = null;
             if (isIdTypePresent(idTypeCode)) {
-                sql = "UPDATE id_type_master SET id_type_name = ?, description = ?, validation_regex = ?, active = ? WHERE id_type_code = ?";
+                sql = "UPDATE id_type_master SET id_type_name = ?, description = ?, validation_regex = ?, active = ?, data_key_max_uses = ?, data_key_max_age_seconds = ?, "
+                      + "canonical_form = COALESCE(?, canonical_form), checksum = NULLIF(COALESCE(?, checksum), 'NONE') WHERE id_type_code = ?";
             }
             else{
-                sql = "insert into id_type_master (id_type_name,description,validation_regex,active,id_type_code) values (?,?,?,?,?)";
+                sql = "insert into id_type_master (id_type_name,description,validation_regex,active,data_key_max_uses,data_key_max_age_seconds,canonical_form,checksum,id_type_code) values (?,?,?,?,?,?,COALESCE(?, 'TRIM'),NULLIF(?, 'NONE'),?)";
             }
             //System.out.println(sql);
             conn = pool.getConnection();
@@ -115,20 +136,55 @@ public class IDTypes implements REST {
             pstmt.setString(2, description);
             pstmt.setString(3, validationRegex);
             pstmt.setBoolean(4, activeStatus);
-            pstmt.setString(5, idTypeCode);
+            pstmt.setObject(5, dataKeyMaxUses != null ? dataKeyMaxUses.intValue() : null, Types.INTEGER);
+            pstmt.setObject(6, dataKeyMaxAgeSeconds != null ? dataKeyMaxAgeSeconds.intValue() : null, Types.INTEGER);
+            pstmt.setString(7, canonicalForm);
+            pstmt.setString(8, checksum);
+            pstmt.setString(9, idTypeCode);
 
             pstmt.executeUpdate();
+            IdNormalizer.getHandle().invalidate(idTypeCode); // other nodes pick it up within vault.idType.cacheSeconds
             updatedIdType.put("idTypeCode", idTypeCode);
             updatedIdType.put("idTypeName", idTypeName);
             updatedIdType.put("description", description);
             updatedIdType.put("validationRegex", validationRegex);
             updatedIdType.put("active", activeStatus);
+            updatedIdType.put("dataKeyMaxUses", dataKeyMaxUses);
+            updatedIdType.put("dataKeyMaxAgeSeconds", dataKeyMaxAgeSeconds);
+            updatedIdType.put("canonicalForm", canonicalForm);
+            updatedIdType.put("checksum", checksum);
         } finally {
             pool.cleanup(null, pstmt, conn);
         }
         return updatedIdType;
     }
 
+    /**
+     * @return true if any shard of id_vault has a row of the type.
+     */
+    private boolean hasStoredIds(String idTypeCode) throws SQLException {
+        ShardRouter router = ShardRouter.getHandle();
+        int shards = router != null ? router.getShardCount() : 1;
+        for (int shard = ShardRouter.PRIMARY; shard < shards; shard++) {
+            Connection conn = null;
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            PoolDB pool = new PoolDB(shard, true);
+            try {
+                conn = pool.getConnection();
+                pstmt = conn.prepareStatement("SELECT 1 FROM id_vault WHERE id_type_code = ? LIMIT 1");
+                pstmt.setString(1, idTypeCode);
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return true;
+                }
+            } finally {
+                pool.cleanup(rs, pstmt, conn);
+            }
+        }
+        return false;
+    }
+
     private boolean isIdTypePresent(String idTypeCode) throws SQLException {
         Connection conn = null;
         PreparedStatement pstmt = null;
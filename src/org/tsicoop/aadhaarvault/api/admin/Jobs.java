@@ -0,0 +1,171 @@
+package org.tsicoop.aadhaarvault.api.admin;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.InputProcessor;
+import org.tsicoop.aadhaarvault.framework.JobRunner;
+import org.tsicoop.aadhaarvault.framework.OutputProcessor;
+import org.tsicoop.aadhaarvault.framework.REST;
+import org.tsicoop.aadhaarvault.framework.ShardRouter;
+import org.tsicoop.aadhaarvault.framework.VaultJob;
+import org.tsicoop.aadhaarvault.jobs.BinaryFormatMigrationJob;
+import org.tsicoop.aadhaarvault.jobs.CmkRotationJob;
+import org.tsicoop.aadhaarvault.jobs.HashPrefixBackfillJob;
+import org.tsicoop.aadhaarvault.jobs.IdNormalizationJob;
+import org.tsicoop.aadhaarvault.jobs.LookupHashMigrationJob;
+import org.tsicoop.aadhaarvault.jobs.MaskedIdBackfillJob;
+import org.tsicoop.aadhaarvault.jobs.ReshardJob;
+
+public class Jobs implements REST {
+
+    private static final String FUNCTION = "_func";
+
+    private static final String START_VAULT_JOB = "start_vault_job";
+    private static final String STOP_VAULT_JOB = "stop_vault_job";
+    private static final String UPDATE_VAULT_JOB = "update_vault_job";
+    private static final String GET_VAULT_JOBS = "get_vault_jobs";
+
+    @Override
+    public void get(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_FOUND, "Not Found", "Resource not found for GET request.", req.getRequestURI());
+    }
+
+    @Override
+    public void post(HttpServletRequest req, HttpServletResponse res) {
+        JSONObject input = null;
+        JSONObject output = null;
+        JSONArray outputArray = null;
+        String func = null;
+        try{
+            input = InputProcessor.getInput(req);
+            func = (String) input.get(FUNCTION);
+
+            if(func != null) {
+                if (func.equalsIgnoreCase(START_VAULT_JOB)) {
+                    output = startVaultJob(input);
+                } else if (func.equalsIgnoreCase(STOP_VAULT_JOB)) {
+                    output = stopVaultJob((String) input.get("jobName"));
+                } else if (func.equalsIgnoreCase(UPDATE_VAULT_JOB)) {
+                    output = updateVaultJob(input);
+                } else if (func.equalsIgnoreCase(GET_VAULT_JOBS)) {
+                    outputArray = JobRunner.getStatus();
+                }
+            }
+        }catch(Exception e){
+            OutputProcessor.sendError(res,HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"Unknown server error");
+            e.printStackTrace();
+        }
+        if(outputArray != null){
+            OutputProcessor.send(res, HttpServletResponse.SC_OK, outputArray);
+        }else {
+            OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
+        }
+    }
+
+    /**
+     * Maps a job name from the API to a new job instance.
+     *
+     * @return null for a job that cannot run while id_vault is sharded (see ShardRouter): the lookup
+     *         hash jobs would move rows to another bucket, and hash_prefix_backfill reads
+     *         id_type_master, which only the primary has. The others scan every shard.
+     */
+    private VaultJob createJob(String jobName, JSONObject input) throws Exception {
+        if (ShardRouter.getHandle() != null && !isShardAware(jobName)) {
+            return null;
+        }
+        if (BinaryFormatMigrationJob.NAME.equalsIgnoreCase(jobName)) {
+            return new BinaryFormatMigrationJob();
+        } else if (CmkRotationJob.NAME.equalsIgnoreCase(jobName)) {
+            return new CmkRotationJob((String) input.get("destinationKeyId"));
+        } else if (MaskedIdBackfillJob.NAME.equalsIgnoreCase(jobName)) {
+            return new MaskedIdBackfillJob();
+        } else if (LookupHashMigrationJob.NAME.equalsIgnoreCase(jobName)) {
+            return new LookupHashMigrationJob();
+        } else if (HashPrefixBackfillJob.NAME.equalsIgnoreCase(jobName)) {
+            return new HashPrefixBackfillJob();
+        } else if (IdNormalizationJob.NAME.equalsIgnoreCase(jobName)) {
+            return new IdNormalizationJob();
+        } else if (ReshardJob.NAME.equalsIgnoreCase(jobName)) {
+            return new ReshardJob((Number) input.get("fromBucket"), (Number) input.get("toBucket"), (Number) input.get("targetShard"));
+        }
+        throw new Exception("Unknown job: " + jobName);
+    }
+
+    private static boolean isShardAware(String jobName) {
+        return ReshardJob.NAME.equalsIgnoreCase(jobName) || CmkRotationJob.NAME.equalsIgnoreCase(jobName)
+               || BinaryFormatMigrationJob.NAME.equalsIgnoreCase(jobName) || MaskedIdBackfillJob.NAME.equalsIgnoreCase(jobName);
+    }
+
+    /**
+     * Starts (or resumes from its checkpoint) a maintenance job on this node.
+     */
+    private JSONObject startVaultJob(JSONObject input) throws Exception {
+        VaultJob job = createJob((String) input.get("jobName"), input);
+        JSONObject output = new JSONObject();
+        if (job == null) {
+            output.put("jobName", input.get("jobName"));
+            output.put("started", false);
+            output.put("message", "Job is not available while id_vault is sharded: it rewrites lookup hashes or reads primary-only tables; "
+                                  + "only " + CmkRotationJob.NAME + ", " + BinaryFormatMigrationJob.NAME + ", " + MaskedIdBackfillJob.NAME + " and " + ReshardJob.NAME + " run on every shard");
+            return output;
+        }
+        job.configure(input);
+        String refused = JobRunner.start(job);
+        output.put("jobName", job.getName());
+        output.put("started", refused == null);
+        output.put("message", refused == null ? "Job started" : refused);
+        return output;
+    }
+
+    /**
+     * Asks a running job to stop after its current chunk; it can be resumed with start_vault_job.
+     */
+    private JSONObject stopVaultJob(String jobName) {
+        boolean stopping = JobRunner.stop(jobName);
+        JSONObject output = new JSONObject();
+        output.put("jobName", jobName);
+        output.put("stopping", stopping);
+        output.put("message", stopping ? "Job will stop after the current chunk" : "Job is not running");
+        return output;
+    }
+
+    /**
+     * Changes the tuning (chunkSize, throttleMs, concurrency) of a running job from its next chunk.
+     */
+    private JSONObject updateVaultJob(JSONObject input) {
+        String jobName = (String) input.get("jobName");
+        VaultJob job = JobRunner.get(jobName);
+        boolean updated = job != null && job.isRunning();
+        if (updated) {
+            job.configure(input);
+        }
+        JSONObject output = updated ? job.getStatus() : new JSONObject();
+        output.put("jobName", jobName);
+        output.put("updated", updated);
+        return output;
+    }
+
+    @Override
+    public void put(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed", "PUT method not supported for jobs.", req.getRequestURI());
+    }
+
+    @Override
+    public void delete(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed", "DELETE method not supported for jobs.", req.getRequestURI());
+    }
+
+    @Override
+    public boolean validate(String method, HttpServletRequest req, HttpServletResponse res) {
+        String authHeader = req.getHeader("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized", "Missing or invalid Authorization header.", req.getRequestURI());
+            return false;
+        }
+
+        // Call framework's basic input validation
+        return InputProcessor.validate(req, res);
+    }
+}
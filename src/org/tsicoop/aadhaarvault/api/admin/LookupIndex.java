@@ -0,0 +1,87 @@
+package org.tsicoop.aadhaarvault.api.admin;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.InputProcessor;
+import org.tsicoop.aadhaarvault.framework.MappedLookupIndex;
+import org.tsicoop.aadhaarvault.framework.OutputProcessor;
+import org.tsicoop.aadhaarvault.framework.REST;
+
+/**
+ * Maintenance of this node's memory-mapped lookup index (see MappedLookupIndex). Each node keeps
+ * its own index, so these functions act only on the node that serves the request.
+ */
+public class LookupIndex implements REST {
+
+    private static final String FUNCTION = "_func";
+
+    private static final String REBUILD_LOOKUP_INDEX = "rebuild_lookup_index";
+    private static final String VERIFY_LOOKUP_INDEX = "verify_lookup_index";
+    private static final String GET_LOOKUP_INDEX_STATUS = "get_lookup_index_status";
+
+    @Override
+    public void get(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_FOUND, "Not Found", "Resource not found for GET request.", req.getRequestURI());
+    }
+
+    @Override
+    public void post(HttpServletRequest req, HttpServletResponse res) {
+        JSONObject input = null;
+        JSONObject output = null;
+        String func = null;
+        try{
+            input = InputProcessor.getInput(req);
+            func = (String) input.get(FUNCTION);
+
+            MappedLookupIndex lookupIndex = MappedLookupIndex.getHandle();
+            if (func != null && lookupIndex == null) {
+                output = new JSONObject();
+                output.put("enabled", false);
+                output.put("message", "Lookup index is not enabled on this node (VAULT_LOOKUP_INDEX_DIR)");
+            } else if(func != null) {
+                if (func.equalsIgnoreCase(REBUILD_LOOKUP_INDEX)) {
+                    output = scanOutput(lookupIndex.requestRebuild(), "Rebuild started");
+                } else if (func.equalsIgnoreCase(VERIFY_LOOKUP_INDEX)) {
+                    output = scanOutput(lookupIndex.requestVerify(), "Verify started");
+                } else if (func.equalsIgnoreCase(GET_LOOKUP_INDEX_STATUS)) {
+                    output = lookupIndex.getStats();
+                }
+            }
+        }catch(Exception e){
+            OutputProcessor.sendError(res,HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"Unknown server error");
+            e.printStackTrace();
+        }
+        OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
+    }
+
+    private JSONObject scanOutput(boolean started, String message) {
+        JSONObject output = new JSONObject();
+        output.put("enabled", true);
+        output.put("started", started);
+        output.put("message", started ? message : "A build or verify is already running, or the index is not built yet");
+        return output;
+    }
+
+    @Override
+    public void put(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed", "PUT method not supported for the lookup index.", req.getRequestURI());
+    }
+
+    @Override
+    public void delete(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed", "DELETE method not supported for the lookup index.", req.getRequestURI());
+    }
+
+    @Override
+    public boolean validate(String method, HttpServletRequest req, HttpServletResponse res) {
+        String authHeader = req.getHeader("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized", "Missing or invalid Authorization header.", req.getRequestURI());
+            return false;
+        }
+
+        // Call framework's basic input validation
+        return InputProcessor.validate(req, res);
+    }
+}
@@ -0,0 +1,176 @@
+package org.tsicoop.aadhaarvault.api.admin;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.FaultInjector;
+import org.tsicoop.aadhaarvault.framework.IdNormalizer;
+import org.tsicoop.aadhaarvault.framework.InputProcessor;
+import org.tsicoop.aadhaarvault.framework.KmsService;
+import org.tsicoop.aadhaarvault.framework.LookupFilter;
+import org.tsicoop.aadhaarvault.framework.MappedLookupIndex;
+import org.tsicoop.aadhaarvault.framework.OutputProcessor;
+import org.tsicoop.aadhaarvault.framework.PoolDB;
+import org.tsicoop.aadhaarvault.framework.ReferenceKeyCache;
+import org.tsicoop.aadhaarvault.framework.REST;
+import org.tsicoop.aadhaarvault.framework.ShardRouter;
+import org.tsicoop.aadhaarvault.framework.VaultPartitions;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class Metrics implements REST {
+
+    private static final String FUNCTION = "_func";
+
+    private static final String GET_VAULT_METRICS = "get_vault_metrics";
+    private static final String GET_PARTITION_REPORT = "get_partition_report";
+
+    @Override
+    public void get(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_NOT_FOUND, "Not Found", "Resource not found for GET request.", req.getRequestURI());
+    }
+
+    @Override
+    public void post(HttpServletRequest req, HttpServletResponse res) {
+        JSONObject input = null;
+        JSONObject output = null;
+        String func = null;
+        try{
+            input = InputProcessor.getInput(req);
+            func = (String) input.get(FUNCTION);
+
+            if(func != null) {
+                if (func.equalsIgnoreCase(GET_VAULT_METRICS)) {
+                    output = getVaultMetrics();
+                } else if (func.equalsIgnoreCase(GET_PARTITION_REPORT)) {
+                    output = getPartitionReport();
+                }
+            }
+        }catch(Exception e){
+            OutputProcessor.sendError(res,HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"Unknown server error");
+            e.printStackTrace();
+        }
+        OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
+    }
+
+    /**
+     * Collects in-process counters (KMS caches etc.) for this node.
+     * Values are since the last restart and are not aggregated across nodes.
+     */
+    private JSONObject getVaultMetrics() {
+        JSONObject metrics = new JSONObject();
+        KmsService kmsService = KmsService.getHandle();
+        if (kmsService != null) {
+            metrics.put("kms", kmsService.getStats());
+        }
+        LookupFilter lookupFilter = LookupFilter.getHandle();
+        if (lookupFilter != null) {
+            metrics.put("lookupFilter", lookupFilter.getStats());
+        }
+        MappedLookupIndex lookupIndex = MappedLookupIndex.getHandle();
+        if (lookupIndex != null) {
+            metrics.put("lookupIndex", lookupIndex.getStats());
+        }
+        ReferenceKeyCache referenceKeyCache = ReferenceKeyCache.getHandle();
+        if (referenceKeyCache != null) {
+            metrics.put("referenceKeyCache", referenceKeyCache.getStats());
+        }
+        IdNormalizer idNormalizer = IdNormalizer.getHandle();
+        if (idNormalizer != null) {
+            metrics.put("idValidation", idNormalizer.getStats());
+        }
+        ShardRouter shardRouter = ShardRouter.getHandle();
+        if (shardRouter != null) {
+            metrics.put("shards", shardRouter.getStats());
+        }
+        if (FaultInjector.isEnabled()) {
+            metrics.put("faultInjection", FaultInjector.getStats());
+        }
+        return metrics;
+    }
+
+    /**
+     * Size of each id_vault partition from the catalog (row counts are the planner's estimates as
+     * of the last ANALYZE), and how uneven they are: skew is the largest partition's row count
+     * over the mean, so 1.0 is perfectly even. Lists the table itself when it is not partitioned.
+     */
+    private JSONObject getPartitionReport() throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        String sql = "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) AS bound, GREATEST(c.reltuples, 0)::bigint AS approx_rows, "
+                     + "pg_relation_size(c.oid) AS table_bytes, pg_indexes_size(c.oid) AS index_bytes, "
+                     + "s.n_dead_tup, s.last_autovacuum, s.last_vacuum "
+                     + "FROM pg_class c LEFT JOIN pg_stat_user_tables s ON s.relid = c.oid "
+                     + "WHERE c.oid IN (SELECT inhrelid FROM pg_inherits WHERE inhparent = 'id_vault'::regclass) "
+                     + "OR (c.oid = 'id_vault'::regclass AND c.relkind = 'r') ORDER BY c.relname";
+        JSONArray partitions = new JSONArray();
+        long totalRows = 0, maxRows = 0, totalBytes = 0;
+        String largest = null;
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                long rows = rs.getLong("approx_rows");
+                long tableBytes = rs.getLong("table_bytes");
+                long indexBytes = rs.getLong("index_bytes");
+                JSONObject partition = new JSONObject();
+                partition.put("name", rs.getString("relname"));
+                partition.put("bound", rs.getString("bound"));
+                partition.put("approxRows", rows);
+                partition.put("tableBytes", tableBytes);
+                partition.put("indexBytes", indexBytes);
+                partition.put("deadRows", rs.getLong("n_dead_tup"));
+                partition.put("lastAutovacuum", rs.getTimestamp("last_autovacuum") != null ? rs.getTimestamp("last_autovacuum").toString() : null);
+                partition.put("lastVacuum", rs.getTimestamp("last_vacuum") != null ? rs.getTimestamp("last_vacuum").toString() : null);
+                partitions.add(partition);
+                totalRows += rows;
+                totalBytes += tableBytes + indexBytes;
+                if (largest == null || rows > maxRows) {
+                    maxRows = rows;
+                    largest = rs.getString("relname");
+                }
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        JSONObject report = new JSONObject();
+        report.put("partitioned", VaultPartitions.isEnabled());
+        report.put("buckets", VaultPartitions.BUCKETS);
+        report.put("partitionCount", partitions.size());
+        report.put("approxRows", totalRows);
+        report.put("totalBytes", totalBytes);
+        report.put("largestPartition", largest);
+        report.put("skew", totalRows > 0 ? (double) maxRows * partitions.size() / totalRows : 0.0);
+        report.put("partitions", partitions);
+        return report;
+    }
+
+    @Override
+    public void put(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed", "PUT method not supported for metrics.", req.getRequestURI());
+    }
+
+    @Override
+    public void delete(HttpServletRequest req, HttpServletResponse res) {
+        OutputProcessor.errorResponse(res, HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Method Not Allowed", "DELETE method not supported for metrics.", req.getRequestURI());
+    }
+
+    @Override
+    public boolean validate(String method, HttpServletRequest req, HttpServletResponse res) {
+        String authHeader = req.getHeader("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            OutputProcessor.errorResponse(res, HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized", "Missing or invalid Authorization header.", req.getRequestURI());
+            return false;
+        }
+
+        // Call framework's basic input validation
+        return InputProcessor.validate(req, res);
+    }
+}
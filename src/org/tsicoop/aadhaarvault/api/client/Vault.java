@@ -1,5 +1,6 @@
 package org.tsicoop.aadhaarvault.api.client;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.json.simple.JSONArray;
@@ -11,14 +12,15 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Map;
 import java.util.UUID;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 
 public class Vault implements REST {
@@ -27,19 +29,38 @@ public class Vault implements REST {
 
     private static final String STORE_ID = "store_id";
     private static final String FETCH_ID_BY_REFERENCE = "fetch_id_by_reference";
+    private static final String FETCH_MASKED_ID_BY_REFERENCE = "fetch_masked_id_by_reference";
 
     private static final String FETCH_REFERENCE_BY_ID_VALUE = "fetch_reference_by_id_value";
 
-    // IMPORTANT: In a real application, KmsService should be injected via DI framework.
-    // For now, we'll instantiate it directly.
+    // Shared, process-wide KmsService created in InterceptingFilter.init
     private final KmsService kmsService; // Manages KMS operations AND client-side AES crypto
-    private final LookupHasher lookupHasher = new LookupHasher(); // For hashing IDs for reverse lookup
-
-    // Hardcoded for example. In production, load from config.
+    private final LookupHasher lookupHasher = LookupHasher.getDefault(); // For hashing IDs for reverse lookup
+    // Also match rows still carrying the legacy salted SHA-256 hash (until lookup_hash_migration completes)
+    private final boolean legacyHashRead;
+    // Probe the compact (hash_prefix, id_type_id) index instead of the full-hash one (once hash_prefix_backfill completes)
+    private final boolean prefixRead;
+    // Also match rows hashed as submitted, before ID normalization (until id_normalization completes)
+    private final boolean rawHashRead;
+    // id_vault is partitioned on vault_bucket; every query names the bucket (see VaultPartitions)
+    private final boolean partitioned;
+    // id_vault is spread over several databases by vault bucket (null when it is not, see ShardRouter)
+    private final ShardRouter shardRouter;
+
+    // A blocking step in an async pipeline (DB write, AES, audit log)
+    private interface Stage<T, R> {
+        R apply(T value) throws Exception;
+    }
 
     public Vault() {
-        this.kmsService = new KmsService(   SystemConfig.getAppConfig().getProperty("aws.region"),
-                                            SystemConfig.getAppConfig().getProperty("aws.kms.identifier"));
+        this.kmsService = KmsService.getHandle();
+        this.partitioned = VaultPartitions.isEnabled();
+        this.shardRouter = ShardRouter.getHandle();
+        // Both hash migrations must have completed before partitioning or sharding: a row's bucket follows its lookup hash
+        boolean bucketed = partitioned || shardRouter != null;
+        this.legacyHashRead = !bucketed && SystemConfig.getBooleanProperty("vault.lookup.legacyHashRead", true);
+        this.prefixRead = SystemConfig.getBooleanProperty("vault.lookup.prefixRead", false);
+        this.rawHashRead = !bucketed && SystemConfig.getBooleanProperty("vault.lookup.rawHashRead", true);
     }
 
     @Override
@@ -52,6 +73,7 @@ public class Vault implements REST {
         JSONObject input = null;
         JSONObject output = null;
         JSONArray outputArray = null;
+        CompletableFuture<JSONObject> pendingOutput = null;
         String func = null;
         String referenceKey = null;
         String apiKey = null;
@@ -62,11 +84,15 @@ public class Vault implements REST {
 
             if(func != null){
                 if(func.equalsIgnoreCase(STORE_ID)){
-                    output = storeId(apiKey,input);
+                    pendingOutput = storeId(apiKey,input);
                 } else if (func.equalsIgnoreCase(FETCH_ID_BY_REFERENCE)) {
                     referenceKey = (String) input.get("reference-key");
                     UUID referenceKeyID = UUID.fromString(referenceKey);
-                    output = fetchIdByReference(apiKey, referenceKeyID);
+                    pendingOutput = fetchIdByReference(apiKey, referenceKeyID, "FETCH");
+                } else if (func.equalsIgnoreCase(FETCH_MASKED_ID_BY_REFERENCE)) {
+                    referenceKey = (String) input.get("reference-key");
+                    UUID referenceKeyID = UUID.fromString(referenceKey);
+                    pendingOutput = fetchMaskedIdByReference(apiKey, referenceKeyID);
                 } else if (func.equalsIgnoreCase(FETCH_REFERENCE_BY_ID_VALUE)) {
                     output = fetchReferenceByIdValue(apiKey, input);
                 }else {
@@ -74,208 +100,627 @@ public class Vault implements REST {
                 }
             }
 
-            if(outputArray != null){
+            if(pendingOutput != null){
+                respond(req, res, pendingOutput);
+            }else if(outputArray != null){
                 OutputProcessor.send(res, HttpServletResponse.SC_OK, outputArray);
             }else {
                 OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
             }
         }catch(Exception e){
-            OutputProcessor.sendError(res,HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"Unknown server error");
-            e.printStackTrace();
+            sendFailure(res, e);
         }
 
     }
 
-    private JSONObject storeId(String apiKey, JSONObject input) throws Exception {
-        JSONObject output = new JSONObject();
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        PoolDB pool = null;
-
-        try {
-            pool = new PoolDB();
-            String idType = (String) input.get("idType");
-            String idNumber = (String) input.get("idNumber");
+    /**
+     * Sends the output of an asynchronous operation. If the result is not ready yet, the request is
+     * put into async mode and the servlet thread is released until the future completes.
+     */
+    private void respond(HttpServletRequest req, HttpServletResponse res, CompletableFuture<JSONObject> pendingOutput) {
+        if (pendingOutput.isDone() || !req.isAsyncSupported() || !AsyncExecutor.isEnabled()) {
+            JSONObject output = pendingOutput.join(); // failures surface as CompletionException
+            try {
+                OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
+            } finally {
+                SecureBuffer.closeAll(output); // wipe a decrypted ID once it is written
+            }
+            return;
+        }
+        AsyncContext asyncContext = req.startAsync();
+        pendingOutput.whenComplete((output, error) -> {
+            try {
+                if (error != null) {
+                    sendFailure(res, error);
+                } else {
+                    OutputProcessor.send(res, HttpServletResponse.SC_OK, output);
+                }
+            } finally {
+                SecureBuffer.closeAll(output);
+                asyncContext.complete();
+            }
+        });
+    }
 
-            if (idType == null || idType.trim().isEmpty() || idNumber == null || idNumber.trim().isEmpty()) {
-                throw new Exception("Missing required fields (idType, idNumber).");
+    /**
+     * KMS calls shed by ResilientKeyProvider (breaker open, bulkhead full, timeout) are answered with
+     * 503 so clients back off and retry, as are stores into a vault bucket frozen while it moves to
+     * another shard; ID numbers rejected by the IdNormalizer with 400; anything else is an internal
+     * error.
+     */
+    private static void sendFailure(HttpServletResponse res, Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InvalidIdException) {
+                OutputProcessor.sendError(res, HttpServletResponse.SC_BAD_REQUEST, cause.getMessage());
+                return;
             }
+            if (cause instanceof KmsUnavailableException) {
+                System.err.println("Vault: " + cause.getMessage());
+                OutputProcessor.sendError(res, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Key service unavailable, please retry");
+                return;
+            }
+            if (cause instanceof BucketMovingException) {
+                OutputProcessor.sendError(res, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Vault shard is being rebalanced, please retry");
+                return;
+            }
+        }
+        OutputProcessor.sendError(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unknown server error");
+        error.printStackTrace();
+    }
 
-            // 1. Validate ID Type
-            JSONObject idTypeDetails = getIdTypeDetails(idType);
-            if (idTypeDetails == null || !(boolean) idTypeDetails.get("active")) {
-                throw new Exception("Invalid or inactive ID type: " + idType);
+    /**
+     * Runs the next (blocking) stage once the future completes: inline if it already has, otherwise
+     * on the shared AsyncExecutor so KMS SDK threads are never blocked on JDBC.
+     */
+    private static <T, R> CompletableFuture<R> then(CompletableFuture<T> future, Stage<T, R> stage) {
+        Function<T, R> fn = value -> {
+            try {
+                return stage.apply(value);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
             }
+        };
+        if (future.isDone() || AsyncExecutor.getHandle() == null) {
+            return future.thenApply(fn);
+        }
+        return future.thenApplyAsync(fn, AsyncExecutor.getHandle());
+    }
 
-            // 2. Validate ID Number format using regex from id_type_master
-            /*String validationRegex = (String) idTypeDetails.get("validationRegex");
-            if (validationRegex != null && !validationRegex.trim().isEmpty()) {
-                try {
-                    if (!Pattern.compile(validationRegex).matcher(idNumber).matches()) {
-                        throw new Exception("ID number format invalid for type: " + idType);
-                    }
-                } catch (PatternSyntaxException e) {
-                    throw new Exception("Invalid regex in DB for ID type " + idType);
-                }
-            }*/
+    private CompletableFuture<JSONObject> storeId(String apiKey, JSONObject input) throws Exception {
+        String idType = (String) input.get("idType");
+        String idNumber = (String) input.get("idNumber");
 
-            // Encrypt ID Number
-            Map<String, String> dataKeyMap = kmsService.generateDataKey();
-            byte[] plaintextDataKey = Base64.getDecoder().decode(dataKeyMap.get("plaintextDataKey"));
-            String encryptedDataKeyBase64 = dataKeyMap.get("encryptedDataKey");
+        if (idType == null || idType.trim().isEmpty() || idNumber == null || idNumber.trim().isEmpty()) {
+            throw new Exception("Missing required fields (idType, idNumber).");
+        }
 
-            // Encrypt ID Number using the plaintextDataKey
-            byte[] encryptedIdData = kmsService.aesEncrypt(idNumber.getBytes("UTF-8"), plaintextDataKey);
+        // 1. Validate ID Type
+        IdNormalizer.IdType idTypeDetails = IdNormalizer.getHandle().getIdType(idType);
+        if (idTypeDetails == null || !idTypeDetails.isActive()) {
+            throw new Exception("Invalid or inactive ID type: " + idType);
+        }
 
-            // --- Base64 encode before storing into TEXT column ---
-            String encryptedIdDataBase64 = Base64.getEncoder().encodeToString(encryptedIdData); // <<--- NEW LINE
-            System.out.println("DEBUG_ENCRYPT: Final blob length (IV+Ciphertext): " + encryptedIdData.length); // Still useful debug
-            System.out.println("DEBUG_STORE: Encrypted Data BEFORE DB Write (Base64): " + encryptedIdDataBase64); // <<--- NEW DEBUG
+        // 2. Validate the ID number (pattern, format, checksum) before any KMS or database work is
+        //    spent on it, and hash its canonical form for reverse lookup
+        byte[] hashedId;
+        try (SecureBuffer canonicalId = idTypeDetails.normalize(idNumber)) {
+            hashedId = lookupHasher.hash(canonicalId);
+        }
 
-            //  Hash ID Number for reverse lookup
-            String hashedIdNumber = lookupHasher.hashData(idNumber); // Using password hasher for simple hashing
+        int bucket = VaultPartitions.bucket(hashedId);
+        if (shardRouter != null) {
+            shardRouter.shardForWrite(bucket); // a frozen bucket is refused before any KMS work
+        }
 
-            String refKey = getReferenceKeyIfIdPresent(idType, hashedIdNumber);
-            if(refKey == null) {
-                // 5. Generate Reference Key
-                UUID referenceKeyID = UUID.randomUUID();
-                refKey = referenceKeyID.toString();
+        // 3. Request the data key first (reused per ID type within its cache limits), so that a
+        //    KMS round trip on a cache miss overlaps the duplicate check below. In key-hierarchy
+        //    mode it is derived locally from the client's current KEK and the new reference key.
+        UUID referenceKeyID = partitioned || shardRouter != null ? VaultPartitions.newReferenceKey(bucket) : UUID.randomUUID();
+        KeyHierarchy keyHierarchy = kmsService.getKeyHierarchy();
+        KeyHierarchy.Kek kek = keyHierarchy.isEnabled() ? keyHierarchy.currentKek(apiKey, idType) : null;
+        CompletableFuture<DataKey> dataKeyFuture = kek != null
+                ? CompletableFuture.completedFuture(kek.deriveDataKey(referenceKeyID))
+                : kmsService.generateDataKeyAsync(idType,
+                                                  idTypeDetails.getDataKeyMaxUses(),
+                                                  idTypeDetails.getDataKeyMaxAgeSeconds());
+
+        // 4. Check for an existing record. The ID number is stored as submitted; from here on it is
+        //    carried off-heap and wiped once the record is stored.
+        SecureBuffer idValue = SecureBuffer.of(idNumber);
+        UUID existingRefKey;
+        try {
+            existingRefKey = findReferenceKey(idType, idValue, hashedId, 0);
+            if (existingRefKey == null) {
+                existingRefKey = findRawReferenceKey(idType, idValue, hashedId, 0);
+            }
+        } catch (Exception e) {
+            idValue.close();
+            dataKeyFuture.thenAccept(DataKey::destroy);
+            throw e;
+        }
+        if (existingRefKey != null) {
+            idValue.close();
+            dataKeyFuture.thenAccept(DataKey::destroy); // not needed for a duplicate
+            return CompletableFuture.completedFuture(storeOutput(existingRefKey.toString(), idType));
+        }
+
+        Long kekId = kek != null ? kek.getId() : null;
+        Integer typeId = idTypeDetails.getTypeId();
+        CompletableFuture<JSONObject> stored = then(dataKeyFuture, dataKey -> insertRecord(apiKey, referenceKeyID, idType, typeId, idValue, hashedId, dataKey, kekId));
+        stored.whenComplete((output, error) -> idValue.close());
+        return stored;
+    }
+
+    private JSONObject insertRecord(String apiKey, UUID referenceKeyID, String idType, Integer typeId, SecureBuffer idValue, byte[] hashedId, DataKey dataKey, Long kekId) throws Exception {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        PoolDB pool = null;
+        ShardRouter.WriteFence fence = null;
+        int bucket = VaultPartitions.bucket(hashedId);
+        int shard = ShardRouter.PRIMARY;
+
+        // Encrypt ID Number (AES-GCM, binary vault record) using the plaintext data key, then zero our copy of it
+        int keyType = kekId != null ? VaultRecord.KEY_KEK : VaultRecord.KEY_WRAPPED;
+        byte[] keyId = kekId != null ? VaultRecord.kekKeyId(kekId) : null;
+        byte[] encryptedIdRecord;
+        try {
+            encryptedIdRecord = VaultRecord.encrypt(idValue.readable(), dataKey.getPlaintextKey(), keyType, keyId);
+        } finally {
+            dataKey.destroy();
+        }
+        // Masked form under the long-lived masking key, for fetch_masked_id_by_reference
+        byte[] maskedIdRecord = kmsService.getMaskingKeys().seal(idValue.readable());
 
-                // 6. Save to id_vault table
-                String sql = "INSERT INTO id_vault (reference_key, id_type_code, encrypted_id_number, encrypted_data_key, hashed_id_number, created_at) VALUES (?, ?, ?, ?, ?,?)";
+        try {
+            if (shardRouter != null) {
+                // Route by the bucket's row in vault_shard_bucket, held until the row is committed, so
+                // a move cannot freeze or switch the bucket while this store is in flight
+                fence = shardRouter.fenceWrite(bucket);
+                shard = fence.getShard();
+            }
+            boolean withBucket = ShardRouter.storesBucket(shard);
+            if (fence != null && shard == ShardRouter.PRIMARY) {
+                conn = fence.getConnection(); // committed by fence.release
+            } else {
+                pool = new PoolDB(shard, true);
                 conn = pool.getConnection();
-                pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-                pstmt.setObject(1, referenceKeyID); // Set UUID directly
-                pstmt.setString(2, idType);
-                pstmt.setString(3, encryptedIdDataBase64);
-                pstmt.setString(4, encryptedDataKeyBase64);
-                pstmt.setString(5, hashedIdNumber);
-                pstmt.setTimestamp(6, Timestamp.valueOf(LocalDateTime.now()));
+            }
+            // 5. Save to id_vault table (encrypted_data_key_bin is null for rows keyed through a KEK)
+            String sql = withBucket
+                    ? "INSERT INTO id_vault (reference_key, id_type_code, encrypted_id_bin, encrypted_data_key_bin, hashed_id_bin, created_at, kek_id, cipher_alg, masked_id_bin, hash_prefix, id_type_id, vault_bucket) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                    : "INSERT INTO id_vault (reference_key, id_type_code, encrypted_id_bin, encrypted_data_key_bin, hashed_id_bin, created_at, kek_id, cipher_alg, masked_id_bin, hash_prefix, id_type_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setObject(1, referenceKeyID); // Set UUID directly
+            pstmt.setString(2, idType);
+            pstmt.setBytes(3, encryptedIdRecord);
+            pstmt.setBytes(4, dataKey.getEncryptedDataKeyBytes());
+            pstmt.setBytes(5, hashedId);
+            pstmt.setTimestamp(6, Timestamp.valueOf(LocalDateTime.now()));
+            pstmt.setObject(7, kekId, Types.BIGINT);
+            pstmt.setInt(8, CryptoEngine.ALG_AES_GCM);
+            pstmt.setBytes(9, maskedIdRecord);
+            pstmt.setLong(10, LookupHasher.prefix(hashedId));
+            pstmt.setObject(11, typeId, Types.SMALLINT);
+            if (withBucket) {
+                pstmt.setShort(12, (short) bucket);
+            }
+            try {
                 pstmt.executeUpdate();
-
-                // Log the 'STORE' event (conceptual call, implement in separate logging class)
-                logEvent(apiKey, "STORE", idType, referenceKeyID.toString());
+            } catch (SQLException e) {
+                if (!"23505".equals(e.getSQLState())) {
+                    throw e;
+                }
+                // Unique violation on the lookup hash: stored concurrently, or on another node after
+                // the duplicate check here was answered by a lookup filter that had not seen it yet
+                UUID existingRefKey = findReferenceKey(idType, idValue, hashedId, Long.MAX_VALUE);
+                if (existingRefKey == null) {
+                    throw e;
+                }
+                return storeOutput(existingRefKey.toString(), idType);
+            }
+            if (fence != null) {
+                fence.release();
+            }
+            LookupFilter lookupFilter = LookupFilter.getHandle();
+            if (lookupFilter != null) {
+                lookupFilter.add(idType, hashedId);
+            }
+            ReferenceKeyCache referenceKeyCache = ReferenceKeyCache.getHandle();
+            if (referenceKeyCache != null) {
+                referenceKeyCache.put(idType, hashedId, referenceKeyID);
+            }
+            MappedLookupIndex lookupIndex = MappedLookupIndex.getHandle();
+            if (lookupIndex != null) {
+                lookupIndex.add(idType, hashedId, referenceKeyID);
             }
 
-            output.put("referenceKey", refKey);
-            output.put("idType", idType);
+            // Log the 'STORE' event (conceptual call, implement in separate logging class)
+            logEvent(apiKey, "STORE", idType, referenceKeyID.toString());
 
+            return storeOutput(referenceKeyID.toString(), idType);
         } finally {
-            pool.cleanup(null, pstmt, conn);
+            if (pool != null) {
+                pool.cleanup(null, pstmt, conn);
+            } else if (pstmt != null) {
+                try {
+                    pstmt.close(); // the connection is the fence's
+                } catch (SQLException ignored) {
+                }
+            }
+            if (fence != null) {
+                fence.close();
+            }
         }
+    }
+
+    private JSONObject storeOutput(String refKey, String idType) {
+        JSONObject output = new JSONObject();
+        output.put("referenceKey", refKey);
+        output.put("idType", idType);
         return output;
     }
 
-    private String getReferenceKeyIfIdPresent(String idTypeCode, String hashedIdNumber) throws SQLException {
+    /**
+     * Looks up the row holding this ID number by its HMAC lookup hash and, while legacy reads are on,
+     * by the old salted SHA-256 in hashed_id_number. A row found through the legacy hash is upgraded
+     * to hashed_id_bin on the spot, so each legacy row pays for the double lookup at most once.
+     * With prefixRead, the row is found through the compact index on the first 8 bytes of the hash
+     * and the small type id, and confirmed against the full hash.
+     *
+     * Reference keys found are kept in the ReferenceKeyCache (if enabled) and answered from it next time.
+     * With the MappedLookupIndex enabled, it answers before the database. With id_vault sharded, the
+     * query goes to the shard that owns the bucket of the lookup hash.
+     *
+     * @param idValue   The ID number as submitted, for the legacy hash; null to skip it.
+     * @param currentAt Trust the lookup index or filter (if enabled) when it says the ID number is
+     *                  not stored only if it has polled the rows stored on other nodes since this
+     *                  time: 0 on the store path, where the unique index catches a duplicate it
+     *                  missed, Long.MAX_VALUE to always ask the database.
+     * @return The row's reference key, or null if the ID number is not stored.
+     */
+    private UUID findReferenceKey(String idTypeCode, SecureBuffer idValue, byte[] hashedId, long currentAt) throws Exception {
+        ReferenceKeyCache referenceKeyCache = ReferenceKeyCache.getHandle();
+        UUID cachedReferenceKey = referenceKeyCache != null ? referenceKeyCache.get(idTypeCode, hashedId) : null;
+        if (cachedReferenceKey != null) {
+            return cachedReferenceKey;
+        }
+        MappedLookupIndex lookupIndex = MappedLookupIndex.getHandle();
+        if (lookupIndex != null) {
+            UUID indexedReferenceKey = lookupIndex.find(idTypeCode, hashedId);
+            if (indexedReferenceKey != null) {
+                if (referenceKeyCache != null) {
+                    referenceKeyCache.put(idTypeCode, hashedId, indexedReferenceKey);
+                }
+                return indexedReferenceKey;
+            }
+            if (lookupIndex.isComplete(idTypeCode, currentAt)) {
+                return null;
+            }
+        }
+        LookupFilter lookupFilter = LookupFilter.getHandle();
+        int filterAnswer = lookupFilter != null ? lookupFilter.check(idTypeCode, hashedId, currentAt) : LookupFilter.UNKNOWN;
+        if (filterAnswer == LookupFilter.ABSENT) {
+            return null;
+        }
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
-        String referenceKey = null;
-        PoolDB pool = new PoolDB();
-        String sql = "SELECT reference_key FROM id_vault WHERE id_type_code = ? AND hashed_id_number = ?";
+        UUID referenceKey = null;
+        String legacyHash = legacyHashRead && idValue != null ? lookupHasher.hashData(idValue) : null;
+        int bucket = VaultPartitions.bucket(hashedId);
+        int shard = shardRouter != null ? shardRouter.shardFor(bucket) : ShardRouter.PRIMARY;
+        boolean bucketMatch = partitioned && shard == ShardRouter.PRIMARY;
+        IdNormalizer.IdType idType = prefixRead ? IdNormalizer.getHandle().getIdType(idTypeCode) : null;
+        PoolDB pool = new PoolDB(shard, true);
+        String match = (prefixRead
+                ? "hash_prefix = ? AND id_type_id = ? AND hashed_id_bin = ?"
+                : "id_type_code = ? AND hashed_id_bin = ?")
+                + (bucketMatch ? " AND vault_bucket = ?" : "");
+        String sql = "SELECT reference_key, hashed_id_bin FROM id_vault WHERE "
+                     + (legacyHash != null ? "(" + match + ") OR (id_type_code = ? AND hashed_id_number = ?)" : match);
         try {
             conn = pool.getConnection();
             pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, idTypeCode);
-            pstmt.setString(2, hashedIdNumber);
+            int param = 1;
+            if (prefixRead) {
+                pstmt.setLong(param++, LookupHasher.prefix(hashedId));
+                pstmt.setObject(param++, idType != null ? idType.getTypeId() : null, Types.SMALLINT);
+            } else {
+                pstmt.setString(param++, idTypeCode);
+            }
+            pstmt.setBytes(param++, hashedId);
+            if (bucketMatch) {
+                pstmt.setShort(param++, (short) bucket);
+            }
+            if (legacyHash != null) {
+                pstmt.setString(param++, idTypeCode);
+                pstmt.setString(param, legacyHash);
+            }
             rs = pstmt.executeQuery();
-            if(rs.next())
-                referenceKey = rs.getString("reference_key");
+            if (rs.next()) {
+                referenceKey = (UUID) rs.getObject("reference_key");
+                if (rs.getBytes("hashed_id_bin") == null) {
+                    upgradeLookupHash(conn, referenceKey, hashedId);
+                }
+                if (referenceKeyCache != null) {
+                    referenceKeyCache.put(idTypeCode, hashedId, referenceKey);
+                }
+                if (lookupIndex != null) {
+                    lookupIndex.add(idTypeCode, hashedId, referenceKey); // e.g. a legacy-hash row, now upgraded
+                }
+            } else if (filterAnswer == LookupFilter.MAYBE) {
+                lookupFilter.recordFalsePositive();
+            }
         } finally {
             pool.cleanup(rs, pstmt, conn);
         }
         return referenceKey;
     }
 
-    private JSONObject fetchIdByReference(String apiKey, UUID referenceKey) throws Exception {
-        JSONObject output = null;
+    /**
+     * While rawHashRead is on, looks for a row stored before ID normalization under the hash of the
+     * ID number as submitted, if that differs from its canonical form. A row found is repointed to
+     * the canonical hash, so each such row pays for the second lookup at most once.
+     *
+     * @return The row's reference key, or null.
+     */
+    private UUID findRawReferenceKey(String idTypeCode, SecureBuffer idValue, byte[] hashedId, long currentAt) throws Exception {
+        if (!rawHashRead) {
+            return null;
+        }
+        byte[] rawHashedId = lookupHasher.hash(idValue);
+        if (Arrays.equals(rawHashedId, hashedId)) {
+            return null; // submitted in canonical form
+        }
+        UUID referenceKey = findReferenceKey(idTypeCode, null, rawHashedId, currentAt);
+        if (referenceKey == null) {
+            return null;
+        }
         Connection conn = null;
         PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        PoolDB pool = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("UPDATE id_vault SET hashed_id_bin = ?, hash_prefix = ?, updated_at = ? WHERE reference_key = ? AND hashed_id_bin = ?");
+            pstmt.setBytes(1, hashedId);
+            pstmt.setLong(2, LookupHasher.prefix(hashedId));
+            pstmt.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+            pstmt.setObject(4, referenceKey);
+            pstmt.setBytes(5, rawHashedId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            // The lookup itself succeeded; the row is simply repointed on a later lookup or by the job
+            System.err.println("Vault: could not normalize lookup hash of " + referenceKey + ": " + e.getMessage());
+        } finally {
+            pool.cleanup(null, pstmt, conn);
+        }
+        LookupFilter lookupFilter = LookupFilter.getHandle();
+        if (lookupFilter != null) {
+            lookupFilter.add(idTypeCode, hashedId);
+        }
+        ReferenceKeyCache referenceKeyCache = ReferenceKeyCache.getHandle();
+        if (referenceKeyCache != null) {
+            referenceKeyCache.put(idTypeCode, hashedId, referenceKey);
+        }
+        MappedLookupIndex lookupIndex = MappedLookupIndex.getHandle();
+        if (lookupIndex != null) {
+            lookupIndex.add(idTypeCode, hashedId, referenceKey);
+        }
+        return referenceKey;
+    }
 
+    private void upgradeLookupHash(Connection conn, UUID referenceKey, byte[] hashedId) {
+        PreparedStatement pstmt = null;
         try {
-            pool = new PoolDB();
-            // 1. Retrieve encrypted data and ID type from id_vault
-            String sql = "SELECT iv.encrypted_id_number, iv.encrypted_data_key, iv.id_type_code, idtm.id_type_name FROM id_vault iv JOIN id_type_master idtm ON iv.id_type_code = idtm.id_type_code WHERE iv.reference_key = ?";
+            pstmt = conn.prepareStatement("UPDATE id_vault SET hashed_id_bin = ?, hashed_id_number = NULL, hash_prefix = ?, updated_at = ?, "
+                                          + "id_type_id = (SELECT type_id FROM id_type_master m WHERE m.id_type_code = id_vault.id_type_code) "
+                                          + "WHERE reference_key = ? AND hashed_id_bin IS NULL");
+            pstmt.setBytes(1, hashedId);
+            pstmt.setLong(2, LookupHasher.prefix(hashedId));
+            pstmt.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+            pstmt.setObject(4, referenceKey);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            // The lookup itself succeeded; the row is simply upgraded on a later lookup or by the job
+            System.err.println("Vault: could not upgrade lookup hash of " + referenceKey + ": " + e.getMessage());
+        } finally {
+            if (pstmt != null) {
+                try {
+                    pstmt.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The shard holding the row of a reference key: the owner of the bucket the key carries
+     *         or, for a key issued before sharding, of the bucket recorded in id_vault_legacy_ref.
+     *         The primary when id_vault is not sharded.
+     */
+    private int shardOf(UUID referenceKey) throws SQLException {
+        if (shardRouter == null) {
+            return ShardRouter.PRIMARY;
+        }
+        int bucket = VaultPartitions.bucketOf(referenceKey);
+        if (bucket < 0) {
+            bucket = shardRouter.getLegacyBucket(referenceKey);
+        }
+        return bucket >= 0 ? shardRouter.shardFor(bucket) : ShardRouter.PRIMARY;
+    }
+
+    /**
+     * @param eventType Operation logged to event_log ('FETCH', or 'FETCH_MASKED' when masking a row
+     *                  that has no masked form yet).
+     */
+    private CompletableFuture<JSONObject> fetchIdByReference(String apiKey, UUID referenceKey, String eventType) throws Exception {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        VaultRecord record = null;
+        byte[] encryptedDataKey = null;
+        String idTypeCode = null;
+
+        // 1. Retrieve encrypted data and ID type from id_vault (connection is released before any KMS wait).
+        //    Rows not yet moved to the binary columns are read from the legacy Base64 columns.
+        int shard = shardOf(referenceKey);
+        PoolDB pool = new PoolDB(shard, true);
+        try {
+            String sql = "SELECT iv.encrypted_id_bin, iv.encrypted_data_key_bin, iv.encrypted_id_number, iv.encrypted_data_key, iv.kek_id, iv.cipher_alg, iv.id_type_code FROM id_vault iv WHERE iv.reference_key = ?"
+                         + (shard == ShardRouter.PRIMARY ? VaultPartitions.bucketCondition("iv.vault_bucket", referenceKey) : "");
             conn = pool.getConnection();
             pstmt = conn.prepareStatement(sql);
             pstmt.setObject(1, referenceKey); // Set UUID directly
+            if (shard == ShardRouter.PRIMARY) {
+                VaultPartitions.bindBucket(pstmt, 2, referenceKey);
+            }
             rs = pstmt.executeQuery();
 
             if (rs.next()) {
-                String encryptedIdNumberBase64 = rs.getString("encrypted_id_number");
-                byte[] encryptedIdNumberBytes = Base64.getDecoder().decode(encryptedIdNumberBase64); // This is the actual ID ciphertext
-
-                String idTypeCode = rs.getString("id_type_code");
-                String idTypeName = rs.getString("id_type_name"); // For richer response if desired
-                String storedEncryptedDataKeyBase64 = rs.getString("encrypted_data_key"); // <<--- RETRIEVE THIS FROM DB
-                // Debugging the input to KMS decryption
-                System.out.println("DEBUG_KMS_DECRYPT: Encrypted Data Key (Base64): " + storedEncryptedDataKeyBase64);
-
-                // Call KMS to decrypt the DATA KEY
-                // Pass the correct context (e.g., referenceKey.toString())
-                String plaintextDataKeyBase64 = kmsService.decryptDataKey(storedEncryptedDataKeyBase64); // <<--- Pass THIS to kmsService
-                byte[] plaintextDataKey = Base64.getDecoder().decode(plaintextDataKeyBase64);
-
-                // Use the decrypted PLAINTEXT DATA KEY to decrypt the actual ID
-                byte[] decryptedBytes = kmsService.aesDecrypt(encryptedIdNumberBytes, plaintextDataKey);
-                String decryptedId = new String(decryptedBytes, "UTF-8");
-
-                // Log the 'FETCH' event
-                logEvent(apiKey, "FETCH", idTypeCode, referenceKey.toString());
-
-                output = new JSONObject();
-                output.put("idType", idTypeCode);
-                output.put("idNumber", decryptedId);
+                idTypeCode = rs.getString("id_type_code");
+                byte[] encryptedIdRecord = rs.getBytes("encrypted_id_bin");
+                if (encryptedIdRecord != null) {
+                    record = VaultRecord.parse(encryptedIdRecord);
+                    encryptedDataKey = rs.getBytes("encrypted_data_key_bin");
+                } else {
+                    long rowKekId = rs.getLong("kek_id");
+                    Long kekId = rs.wasNull() ? null : rowKekId;
+                    record = VaultRecord.fromLegacy(rs.getInt("cipher_alg"), Base64.getDecoder().decode(rs.getString("encrypted_id_number")), kekId);
+                    String encryptedDataKeyBase64 = rs.getString("encrypted_data_key");
+                    encryptedDataKey = encryptedDataKeyBase64 != null ? Base64.getDecoder().decode(encryptedDataKeyBase64) : null;
+                }
             }
         } finally {
             pool.cleanup(rs, pstmt, conn);
         }
-        return output;
+
+        if (idTypeCode == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        VaultRecord encryptedId = record;
+        String fetchedIdTypeCode = idTypeCode;
+
+        // 2. Unwrap the DATA KEY (KMS is only called on a decrypted-key cache miss), or derive it
+        //    from the row's KEK (KMS is only called the first time this node sees the KEK)
+        CompletableFuture<DataKey> dataKeyFuture = encryptedId.getKeyType() == VaultRecord.KEY_KEK
+                ? kmsService.getKeyHierarchy().deriveDataKeyAsync(encryptedId.getKekId(), referenceKey)
+                : kmsService.unwrapDataKeyAsync(encryptedDataKey);
+        return then(dataKeyFuture, dataKey -> {
+            // Use the decrypted PLAINTEXT DATA KEY to decrypt the actual ID into an off-heap buffer;
+            // it is streamed into the response and wiped by respond()
+            SecureBuffer decryptedId;
+            try {
+                decryptedId = encryptedId.decryptToBuffer(dataKey.getPlaintextKey());
+            } finally {
+                dataKey.destroy();
+            }
+
+            try {
+                logEvent(apiKey, eventType, fetchedIdTypeCode, referenceKey.toString());
+            } catch (Exception e) {
+                decryptedId.close();
+                throw e;
+            }
+
+            JSONObject output = new JSONObject();
+            output.put("idType", fetchedIdTypeCode);
+            output.put("idNumber", decryptedId);
+            return output;
+        });
     }
 
-    private JSONObject fetchReferenceByIdValue(String apiKey, JSONObject input) throws Exception {
-        JSONObject output = null;
+    /**
+     * Returns the masked ID number kept at store time: one indexed read and a local decrypt under
+     * the cached masking key, no KMS call. Rows stored before masking was added and not yet reached
+     * by the masked_id_backfill job are decrypted in full and masked on the fly.
+     */
+    private CompletableFuture<JSONObject> fetchMaskedIdByReference(String apiKey, UUID referenceKey) throws Exception {
         Connection conn = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
-        PoolDB pool = null;
+        String idTypeCode = null;
+        byte[] maskedIdRecord = null;
 
+        int shard = shardOf(referenceKey);
+        PoolDB pool = new PoolDB(shard, true);
         try {
-            pool = new PoolDB();
-            String idType = (String) input.get("idType");
-            String idNumber = (String) input.get("idNumber");
-
-            // 1. Validate ID Type
-            JSONObject idTypeDetails = getIdTypeDetails(idType);
-            if (idTypeDetails == null || !(boolean) idTypeDetails.get("active")) {
-                throw new Exception("Invalid or inactive ID type: " + idType);
-            }
-
-            // 2. Hash the provided ID Number
-            String hashedIdNumber = lookupHasher.hashData(idNumber); // Using same hasher as during storage
-
-            // 3. Query id_vault for reference_key using id_type_code and hashed_id_number
-            String sql = "SELECT reference_key FROM id_vault WHERE id_type_code = ? AND hashed_id_number = ?";
+            String sql = "SELECT id_type_code, masked_id_bin FROM id_vault WHERE reference_key = ?"
+                         + (shard == ShardRouter.PRIMARY ? VaultPartitions.bucketCondition("vault_bucket", referenceKey) : "");
             conn = pool.getConnection();
             pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, idType);
-            pstmt.setString(2, hashedIdNumber);
+            pstmt.setObject(1, referenceKey);
+            if (shard == ShardRouter.PRIMARY) {
+                VaultPartitions.bindBucket(pstmt, 2, referenceKey);
+            }
             rs = pstmt.executeQuery();
-
             if (rs.next()) {
-                UUID referenceKey = (UUID) rs.getObject("reference_key");
-
-                // Log the 'FETCH' event
-                logEvent(apiKey, "FETCH", idType, referenceKey.toString());
-
-                output = new JSONObject();
-                output.put("reference-key", referenceKey.toString());
+                idTypeCode = rs.getString("id_type_code");
+                maskedIdRecord = rs.getBytes("masked_id_bin");
             }
         } finally {
             pool.cleanup(rs, pstmt, conn);
         }
+
+        if (idTypeCode == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (maskedIdRecord == null) {
+            return fetchIdByReference(apiKey, referenceKey, "FETCH_MASKED").thenApply(full -> {
+                if (full == null) {
+                    // Deleted or moved between the two reads
+                    return null;
+                }
+                try (SecureBuffer idValue = (SecureBuffer) full.remove("idNumber")) {
+                    full.put("maskedIdNumber", new String(MaskingKeys.mask(idValue.readable()), StandardCharsets.UTF_8));
+                }
+                return full;
+            });
+        }
+
+        JSONObject output = new JSONObject();
+        output.put("idType", idTypeCode);
+        output.put("maskedIdNumber", kmsService.getMaskingKeys().open(maskedIdRecord));
+
+        // Log the 'FETCH_MASKED' event
+        logEvent(apiKey, "FETCH_MASKED", idTypeCode, referenceKey.toString());
+        return CompletableFuture.completedFuture(output);
+    }
+
+    private JSONObject fetchReferenceByIdValue(String apiKey, JSONObject input) throws Exception {
+        long requestStarted = System.currentTimeMillis();
+        JSONObject output = null;
+        String idType = (String) input.get("idType");
+        String idNumber = (String) input.get("idNumber");
+
+        // 1. Validate ID Type
+        IdNormalizer.IdType idTypeDetails = IdNormalizer.getHandle().getIdType(idType);
+        if (idTypeDetails == null || !idTypeDetails.isActive()) {
+            throw new Exception("Invalid or inactive ID type: " + idType);
+        }
+
+        // 2. Validate and canonicalize the provided ID Number, hash it (same hasher as during
+        //    storage) and look it up by id_type_code and lookup hash
+        UUID referenceKey;
+        try (SecureBuffer canonicalId = idTypeDetails.normalize(idNumber);
+             SecureBuffer idValue = SecureBuffer.of(idNumber)) {
+            byte[] hashedId = lookupHasher.hash(canonicalId);
+            // "Not stored" from the lookup filter or index only counts if it has seen rows stored
+            // on other nodes up to this request; otherwise the database decides
+            referenceKey = findReferenceKey(idType, idValue, hashedId, requestStarted);
+            if (referenceKey == null) {
+                referenceKey = findRawReferenceKey(idType, idValue, hashedId, requestStarted);
+            }
+        }
+
+        if (referenceKey != null) {
+            // Log the 'FETCH' event
+            logEvent(apiKey, "FETCH", idType, referenceKey.toString());
+
+            output = new JSONObject();
+            output.put("reference-key", referenceKey.toString());
+        }
         return output;
     }
 
@@ -344,40 +789,9 @@ public class Vault implements REST {
         }
     }
 
-    /**
-     * Retrieves details for a given ID type from id_type_master.
-     * @param idTypeCode The code of the ID type.
-     * @return A JSONObject containing ID type details, or null if not found.
-     * @throws SQLException if a database access error occurs.
-     */
-    private JSONObject getIdTypeDetails(String idTypeCode) throws SQLException {
-        Connection conn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        PoolDB pool = new PoolDB();
-        String sql = "SELECT id_type_name, description, validation_regex, active FROM id_type_master WHERE id_type_code = ?";
-        try {
-            conn = pool.getConnection();
-            pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, idTypeCode);
-            rs = pstmt.executeQuery();
-            if (rs.next()) {
-                JSONObject details = new JSONObject();
-                details.put("idTypeName", rs.getString("id_type_name"));
-                details.put("description", rs.getString("description"));
-                details.put("validationRegex", rs.getString("validation_regex"));
-                details.put("active", rs.getBoolean("active"));
-                return details;
-            }
-        } finally {
-            pool.cleanup(rs, pstmt, conn);
-        }
-        return null; // ID type not found
-    }
-
     /**
      * Logs an event to the event_log table.
-     * @param operationType The type of operation ('STORE', 'FETCH').
+     * @param operationType The type of operation ('STORE', 'FETCH', 'FETCH_MASKED').
      * @param idTypeCode The code of the ID type involved.
      * @param referenceKey The reference key associated with the operation (can be null for some operations).
      */
@@ -404,4 +818,4 @@ public class Vault implements REST {
             pool.cleanup(null, pstmt, conn);
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
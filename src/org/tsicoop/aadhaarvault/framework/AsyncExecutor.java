@@ -0,0 +1,51 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared worker pool for the blocking (JDBC, crypto) stages of asynchronous request handling.
+ * KMS futures complete on SDK threads; handlers continue on this pool so that neither the SDK
+ * threads nor the servlet request threads are held while the database is busy.
+ */
+public class AsyncExecutor {
+
+    private static volatile ExecutorService executor = null;
+
+    public static synchronized void createInstance() {
+        if (executor == null) {
+            int threads = SystemConfig.getIntProperty("vault.async.workerThreads", 16);
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "vault-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public static ExecutorService getHandle() {
+        return executor;
+    }
+
+    public static boolean isEnabled() {
+        return executor != null && SystemConfig.getBooleanProperty("vault.async.enabled", true);
+    }
+
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+    }
+}
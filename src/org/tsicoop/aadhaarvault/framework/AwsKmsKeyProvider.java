@@ -0,0 +1,235 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kms.KmsAsyncClient;
+import software.amazon.awssdk.services.kms.KmsClient;
+import software.amazon.awssdk.services.kms.model.DataKeySpec;
+import software.amazon.awssdk.services.kms.model.DecryptRequest;
+import software.amazon.awssdk.services.kms.model.EncryptRequest;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
+import software.amazon.awssdk.services.kms.model.GenerateDataKeyResponse;
+import software.amazon.awssdk.services.kms.model.KmsException;
+import software.amazon.awssdk.services.kms.model.ReEncryptRequest;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Default KeyProvider backed by an AWS KMS customer managed key.
+ */
+public class AwsKmsKeyProvider implements KeyProvider {
+
+    private final KmsClient kmsClient;
+    private final KmsAsyncClient kmsAsyncClient; // Non-blocking variant for request handlers (see *Async methods)
+    private final String kmsKeyId; // KMS Key ARN or Alias ARN
+
+    public AwsKmsKeyProvider(String region, String kmsKeyId) {
+        // One SDK client per provider: its HTTP connection pool keeps TLS sessions to KMS warm
+        // across requests. Pool size and timeouts come from the app config (see SystemConfig).
+        this.kmsClient = KmsClient.builder()
+                .region(Region.of(region))
+                .httpClientBuilder(ApacheHttpClient.builder()
+                        .maxConnections(SystemConfig.getIntProperty("aws.kms.http.maxConnections", 50))
+                        .connectionTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.connectionTimeoutMs", 2000)))
+                        .socketTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.socketTimeoutMs", 5000)))
+                        .connectionAcquisitionTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.acquisitionTimeoutMs", 2000)))
+                        .connectionMaxIdleTime(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.maxIdleMs", 60000)))
+                        .tcpKeepAlive(SystemConfig.getBooleanProperty("aws.kms.http.tcpKeepAlive", true)))
+                .overrideConfiguration(overrideConfiguration())
+                .build();
+        // Async client on a Netty event loop: request threads are not held during the KMS round trip
+        this.kmsAsyncClient = KmsAsyncClient.builder()
+                .region(Region.of(region))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(SystemConfig.getIntProperty("aws.kms.http.maxConnections", 50))
+                        .connectionTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.connectionTimeoutMs", 2000)))
+                        .readTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.socketTimeoutMs", 5000)))
+                        .connectionAcquisitionTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.acquisitionTimeoutMs", 2000)))
+                        .connectionMaxIdleTime(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.http.maxIdleMs", 60000)))
+                        .tcpKeepAlive(SystemConfig.getBooleanProperty("aws.kms.http.tcpKeepAlive", true)))
+                .overrideConfiguration(overrideConfiguration())
+                .build();
+        this.kmsKeyId = kmsKeyId;
+    }
+
+    private static ClientOverrideConfiguration overrideConfiguration() {
+        return ClientOverrideConfiguration.builder()
+                .apiCallTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.apiCallTimeoutMs", 10000)))
+                .apiCallAttemptTimeout(Duration.ofMillis(SystemConfig.getIntProperty("aws.kms.apiCallAttemptTimeoutMs", 3000)))
+                .build();
+    }
+
+    @Override
+    public String getName() {
+        return "aws";
+    }
+
+    @Override
+    public String getKeyId() {
+        return kmsKeyId;
+    }
+
+    private GenerateDataKeyRequest generateDataKeyRequest() {
+        return GenerateDataKeyRequest.builder()
+                .keyId(kmsKeyId)
+                .keySpec(DataKeySpec.AES_256) // Request an AES-256 key
+                .build();
+    }
+
+    private static DataKey toDataKey(GenerateDataKeyResponse response) {
+        return new DataKey(response.plaintext().asByteArray(), response.ciphertextBlob().asByteArray());
+    }
+
+    @Override
+    public DataKey generateDataKey() {
+        try {
+            return toDataKey(kmsClient.generateDataKey(generateDataKeyRequest()));
+        } catch (KmsException e) {
+            throw kmsFailure("GenerateDataKey", "Failed to generate data key with KMS", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<DataKey> generateDataKeyAsync() {
+        return kmsAsyncClient.generateDataKey(generateDataKeyRequest())
+                .handle((response, error) -> {
+                    if (error != null) {
+                        throw kmsFailure("GenerateDataKey", "Failed to generate data key with KMS", error);
+                    }
+                    return toDataKey(response);
+                });
+    }
+
+    private DecryptRequest decryptDataKeyRequest(byte[] encryptedDataKey) {
+        return DecryptRequest.builder()
+                // No keyId: the blob names the CMK that wrapped it, and pinning the current CMK
+                // would break rows still wrapped by the previous one during a CMK rotation
+                .ciphertextBlob(SdkBytes.fromByteArray(encryptedDataKey))
+                .build();
+    }
+
+    @Override
+    public byte[] decryptDataKey(byte[] encryptedDataKey) {
+        try {
+            return kmsClient.decrypt(decryptDataKeyRequest(encryptedDataKey)).plaintext().asByteArray();
+        } catch (KmsException e) {
+            throw kmsFailure("DecryptDataKey", "Failed to decrypt data key with KMS", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptDataKeyAsync(byte[] encryptedDataKey) {
+        return kmsAsyncClient.decrypt(decryptDataKeyRequest(encryptedDataKey))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        throw kmsFailure("DecryptDataKey", "Failed to decrypt data key with KMS", error);
+                    }
+                    return response.plaintext().asByteArray();
+                });
+    }
+
+    private ReEncryptRequest reEncryptRequest(byte[] encryptedDataKey, String destinationKeyId) {
+        // KMS decrypts and re-wraps server side; the plaintext key never leaves KMS
+        return ReEncryptRequest.builder()
+                .ciphertextBlob(SdkBytes.fromByteArray(encryptedDataKey))
+                .destinationKeyId(destinationKeyId != null ? destinationKeyId : kmsKeyId)
+                .build();
+    }
+
+    @Override
+    public byte[] reEncrypt(byte[] encryptedDataKey, String destinationKeyId) {
+        try {
+            return kmsClient.reEncrypt(reEncryptRequest(encryptedDataKey, destinationKeyId)).ciphertextBlob().asByteArray();
+        } catch (KmsException e) {
+            throw kmsFailure("ReEncrypt", "Failed to re-encrypt data key with KMS", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> reEncryptAsync(byte[] encryptedDataKey, String destinationKeyId) {
+        return kmsAsyncClient.reEncrypt(reEncryptRequest(encryptedDataKey, destinationKeyId))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        throw kmsFailure("ReEncrypt", "Failed to re-encrypt data key with KMS", error);
+                    }
+                    return response.ciphertextBlob().asByteArray();
+                });
+    }
+
+    private EncryptRequest encryptRequest(byte[] plaintext, Map<String, String> encryptionContext) {
+        return EncryptRequest.builder()
+                .keyId(kmsKeyId)
+                .plaintext(SdkBytes.fromByteArray(plaintext))
+                .encryptionContext(encryptionContext)
+                .build();
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, Map<String, String> encryptionContext) {
+        try {
+            return kmsClient.encrypt(encryptRequest(plaintext, encryptionContext)).ciphertextBlob().asByteArray();
+        } catch (KmsException e) {
+            throw kmsFailure("Encryption", "Failed to encrypt data with KMS", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> encryptAsync(byte[] plaintext, Map<String, String> encryptionContext) {
+        return kmsAsyncClient.encrypt(encryptRequest(plaintext, encryptionContext))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        throw kmsFailure("Encryption", "Failed to encrypt data with KMS", error);
+                    }
+                    return response.ciphertextBlob().asByteArray();
+                });
+    }
+
+    private DecryptRequest decryptRequest(byte[] ciphertext, Map<String, String> encryptionContext) {
+        return DecryptRequest.builder()
+                .ciphertextBlob(SdkBytes.fromByteArray(ciphertext))
+                .encryptionContext(encryptionContext)
+                .build();
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, Map<String, String> encryptionContext) {
+        try {
+            return kmsClient.decrypt(decryptRequest(ciphertext, encryptionContext)).plaintext().asByteArray();
+        } catch (KmsException e) {
+            throw kmsFailure("Decryption", "Failed to decrypt data with KMS", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext, Map<String, String> encryptionContext) {
+        return kmsAsyncClient.decrypt(decryptRequest(ciphertext, encryptionContext))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        throw kmsFailure("Decryption", "Failed to decrypt data with KMS", error);
+                    }
+                    return response.plaintext().asByteArray();
+                });
+    }
+
+    private static RuntimeException kmsFailure(String operation, String message, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        System.err.println("KMS " + operation + " Error: " + cause.getMessage());
+        return new RuntimeException(message, cause);
+    }
+
+    @Override
+    public void close() {
+        if (kmsClient != null) {
+            kmsClient.close();
+        }
+        if (kmsAsyncClient != null) {
+            kmsAsyncClient.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bloom filter over lookup hashes. The HMAC lookup hash is already uniformly random, so
+ * the bit positions are taken straight from it by double hashing (Kirsch-Mitzenmacher) instead of
+ * hashing again. Bits are only ever set, so concurrent add and mightContain need no locking.
+ */
+public final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int numHashes;
+    private final long capacity;
+    private final AtomicLong count = new AtomicLong();
+
+    private BloomFilter(long numWords, int numHashes, long capacity) {
+        if (numWords > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large: " + numWords + " words");
+        }
+        this.words = new AtomicLongArray((int) numWords);
+        this.numBits = numWords * Long.SIZE;
+        this.numHashes = numHashes;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sizes a filter for the expected number of entries at the given false-positive rate.
+     */
+    public static BloomFilter create(long capacity, double falsePositiveRate) {
+        long n = Math.max(1, capacity);
+        double p = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+        long bits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        int hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+        return new BloomFilter((bits + Long.SIZE - 1) / Long.SIZE, hashes, n);
+    }
+
+    /**
+     * @return false if every bit was already set, i.e. the hash was (probably) added before; such
+     *         repeats are not counted.
+     */
+    public boolean add(byte[] lookupHash) {
+        ByteBuffer hash = ByteBuffer.wrap(lookupHash);
+        long h1 = hash.getLong(0);
+        long h2 = hash.getLong(8) | 1;
+        boolean changed = false;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = words.get(word);
+            while ((current & mask) == 0) {
+                if (words.compareAndSet(word, current, current | mask)) {
+                    changed = true;
+                    break;
+                }
+                current = words.get(word);
+            }
+        }
+        if (changed) {
+            count.incrementAndGet();
+        }
+        return changed;
+    }
+
+    /**
+     * @return false if the hash was definitely never added.
+     */
+    public boolean mightContain(byte[] lookupHash) {
+        ByteBuffer hash = ByteBuffer.wrap(lookupHash);
+        long h1 = hash.getLong(0);
+        long h2 = hash.getLong(8) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Distinct entries added so far (slightly under the true number once bits collide).
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getMemoryBytes() {
+        return numBits / Byte.SIZE;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * @return False-positive rate at the current count, (1 - e^(-kn/m))^k.
+     */
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) numHashes * count.get() / numBits), numHashes);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(words.length());
+        out.writeInt(numHashes);
+        out.writeLong(capacity);
+        out.writeLong(count.get());
+        for (int i = 0; i < words.length(); i++) {
+            out.writeLong(words.get(i));
+        }
+    }
+
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        long numWords = in.readLong();
+        int numHashes = in.readInt();
+        long capacity = in.readLong();
+        BloomFilter filter = new BloomFilter(numWords, numHashes, capacity);
+        filter.count.set(in.readLong());
+        for (int i = 0; i < numWords; i++) {
+            filter.words.set(i, in.readLong());
+        }
+        return filter;
+    }
+}
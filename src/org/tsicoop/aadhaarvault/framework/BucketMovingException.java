@@ -0,0 +1,15 @@
+package org.tsicoop.aadhaarvault.framework;
+
+/**
+ * Thrown when a row would be stored in a vault bucket that is frozen for the last step of a move
+ * between shards (see ShardRouter). The freeze lasts seconds; callers answer 503 so the client
+ * retries.
+ */
+public class BucketMovingException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public BucketMovingException(String message) {
+        super(message);
+    }
+}
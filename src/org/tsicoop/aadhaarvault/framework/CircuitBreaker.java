@@ -0,0 +1,130 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Failure-rate circuit breaker over a sliding window of the last windowSize calls.
+ *
+ * CLOSED: calls pass; once at least minCalls are in the window and failureRatePercent of them
+ * failed, the breaker opens. OPEN: calls are rejected for openMillis. HALF_OPEN: up to
+ * halfOpenProbes calls are let through as probes; if all succeed the breaker closes with an
+ * empty window, the first failure re-opens it.
+ *
+ * Callers pass the state returned by tryAcquire back to onResult, so a slow call admitted before
+ * the breaker opened is not mistaken for a probe.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int windowSize;
+    private final int minCalls;
+    private final int failureRatePercent;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    private State state = State.CLOSED;
+    private final boolean[] window;
+    private int windowIndex = 0;
+    private int windowCalls = 0;
+    private int windowFailures = 0;
+    private long openedAt = 0;
+    private int probesInFlight = 0;
+    private int probeSuccesses = 0;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+
+    public CircuitBreaker(int windowSize, int minCalls, int failureRatePercent, long openMillis, int halfOpenProbes) {
+        this.windowSize = Math.max(1, windowSize);
+        this.minCalls = Math.max(1, minCalls);
+        this.failureRatePercent = failureRatePercent;
+        this.openMillis = openMillis;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        this.window = new boolean[this.windowSize];
+    }
+
+    /**
+     * @return The state the call is admitted in, or null if it must be rejected.
+     */
+    public synchronized State tryAcquire() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            probesInFlight = 0;
+            probeSuccesses = 0;
+        }
+        if (state == State.CLOSED) {
+            return State.CLOSED;
+        }
+        if (state == State.HALF_OPEN && probesInFlight < halfOpenProbes) {
+            probesInFlight++;
+            return State.HALF_OPEN;
+        }
+        rejected.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Reports the outcome of a call admitted by tryAcquire.
+     */
+    public synchronized void onResult(State admittedIn, boolean failed) {
+        if (admittedIn == State.HALF_OPEN) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            probesInFlight--;
+            if (failed) {
+                open();
+            } else if (++probeSuccesses >= halfOpenProbes) {
+                state = State.CLOSED;
+                resetWindow();
+            }
+        } else if (admittedIn == State.CLOSED && state == State.CLOSED) {
+            if (windowCalls == windowSize) {
+                if (window[windowIndex]) {
+                    windowFailures--;
+                }
+            } else {
+                windowCalls++;
+            }
+            window[windowIndex] = failed;
+            if (failed) {
+                windowFailures++;
+            }
+            windowIndex = (windowIndex + 1) % windowSize;
+            if (windowCalls >= minCalls && windowFailures * 100 >= failureRatePercent * windowCalls) {
+                open();
+            }
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        opened.incrementAndGet();
+        resetWindow();
+        System.err.println("CircuitBreaker: opened for " + openMillis + " ms");
+    }
+
+    private void resetWindow() {
+        windowIndex = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("state", state.name());
+        stats.put("windowCalls", windowCalls);
+        stats.put("windowFailures", windowFailures);
+        stats.put("rejected", rejected.get());
+        stats.put("opened", opened.get());
+        return stats;
+    }
+}
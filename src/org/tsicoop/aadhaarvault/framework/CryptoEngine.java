@@ -0,0 +1,145 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Client-side record encryption with a plaintext data key.
+ *
+ * New records use AES-256-GCM laid out as IV(12) || ciphertext || tag(16) in a single pre-sized
+ * buffer. Cipher, SecureRandom and the IV scratch array are cached per thread, so an encrypt or
+ * decrypt allocates little beyond its output. The legacy AES/CBC format, IV(16) || ciphertext, can
+ * still be decrypted; id_vault.cipher_alg records which one a row uses.
+ */
+public final class CryptoEngine {
+
+    public static final int ALG_AES_CBC = 0; // Legacy rows, decrypt only
+    public static final int ALG_AES_GCM = 1;
+
+    public static final int GCM_IV_LENGTH = 12;
+    public static final int GCM_TAG_LENGTH = 16;
+    private static final int CBC_IV_LENGTH = 16;
+
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> newCipher("AES/GCM/NoPadding"));
+    private static final ThreadLocal<Cipher> CBC = ThreadLocal.withInitial(() -> newCipher("AES/CBC/PKCS5Padding"));
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<byte[]> IV = ThreadLocal.withInitial(() -> new byte[GCM_IV_LENGTH]);
+
+    private CryptoEngine() {
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(transformation + " not available", e);
+        }
+    }
+
+    /**
+     * @return Bytes encrypt() writes for a plaintext of the given length.
+     */
+    public static int encryptedSize(int plaintextLength) {
+        return GCM_IV_LENGTH + plaintextLength + GCM_TAG_LENGTH;
+    }
+
+    /**
+     * Encrypts plaintext (position to limit) with AES-GCM and writes IV || ciphertext || tag to out,
+     * which needs encryptedSize(plaintext.remaining()) bytes remaining.
+     *
+     * @return Number of bytes written.
+     */
+    public static int encrypt(ByteBuffer plaintext, byte[] key, ByteBuffer out) throws GeneralSecurityException {
+        byte[] iv = IV.get();
+        RANDOM.get().nextBytes(iv); // Fresh random IV per record; never reused with the same key
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        out.put(iv);
+        return GCM_IV_LENGTH + cipher.doFinal(plaintext, out);
+    }
+
+    public static byte[] encrypt(byte[] plaintext, byte[] key) throws GeneralSecurityException {
+        byte[] out = new byte[encryptedSize(plaintext.length)];
+        encrypt(ByteBuffer.wrap(plaintext), key, ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /**
+     * Decrypts an AES-GCM record (IV || ciphertext || tag, position to limit) into out, which needs
+     * in.remaining() - GCM_IV_LENGTH - GCM_TAG_LENGTH bytes remaining. Fails if the tag does not verify.
+     *
+     * @return Number of plaintext bytes written.
+     */
+    public static int decrypt(ByteBuffer in, byte[] key, ByteBuffer out) throws GeneralSecurityException {
+        byte[] iv = IV.get();
+        in.get(iv);
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        return cipher.doFinal(in, out);
+    }
+
+    /**
+     * @return Upper bound of the plaintext size for a payload of the given length.
+     */
+    public static int maxDecryptedSize(int cipherAlg, int payloadLength) {
+        return Math.max(0, payloadLength - (cipherAlg == ALG_AES_GCM ? GCM_IV_LENGTH + GCM_TAG_LENGTH : CBC_IV_LENGTH));
+    }
+
+    /**
+     * Decrypts a stored payload in either format (position to limit of in) into out, which may be a
+     * direct buffer (see SecureBuffer) and needs maxDecryptedSize bytes remaining.
+     *
+     * @return Number of plaintext bytes written.
+     */
+    public static int decrypt(int cipherAlg, ByteBuffer in, byte[] key, ByteBuffer out) throws GeneralSecurityException {
+        switch (cipherAlg) {
+            case ALG_AES_GCM:
+                return decrypt(in, key, out);
+            case ALG_AES_CBC: {
+                byte[] iv = new byte[CBC_IV_LENGTH];
+                in.get(iv);
+                Cipher cipher = CBC.get();
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+                return cipher.doFinal(in, out);
+            }
+            default:
+                throw new GeneralSecurityException("Unknown cipher algorithm: " + cipherAlg);
+        }
+    }
+
+    /**
+     * Decrypts a stored record in either format.
+     *
+     * @param cipherAlg ALG_AES_GCM or ALG_AES_CBC (id_vault.cipher_alg).
+     */
+    public static byte[] decrypt(int cipherAlg, byte[] data, byte[] key) throws GeneralSecurityException {
+        return decrypt(cipherAlg, data, 0, data.length, key);
+    }
+
+    /**
+     * As decrypt(int, byte[], byte[]), for a record embedded in a larger array (see VaultRecord).
+     */
+    public static byte[] decrypt(int cipherAlg, byte[] data, int offset, int length, byte[] key) throws GeneralSecurityException {
+        switch (cipherAlg) {
+            case ALG_AES_GCM: {
+                Cipher cipher = GCM.get();
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_LENGTH * 8, data, offset, GCM_IV_LENGTH));
+                return cipher.doFinal(data, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH);
+            }
+            case ALG_AES_CBC: {
+                Cipher cipher = CBC.get();
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(data, offset, CBC_IV_LENGTH));
+                return cipher.doFinal(data, offset + CBC_IV_LENGTH, length - CBC_IV_LENGTH);
+            }
+            default:
+                throw new GeneralSecurityException("Unknown cipher algorithm: " + cipherAlg);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A plaintext data key together with its KMS-encrypted form.
+ * The holder owns the plaintext bytes and should call destroy() once the key is no longer needed.
+ */
+public class DataKey {
+
+    private final byte[] plaintextKey;
+    private final byte[] encryptedDataKey; // As wrapped by the key provider (id_vault.encrypted_data_key_bin); null for derived keys
+
+    public DataKey(byte[] plaintextKey, byte[] encryptedDataKey) {
+        this.plaintextKey = plaintextKey;
+        this.encryptedDataKey = encryptedDataKey;
+    }
+
+    public DataKey(byte[] plaintextKey, String encryptedDataKeyBase64) {
+        this(plaintextKey, encryptedDataKeyBase64 != null ? Base64.getDecoder().decode(encryptedDataKeyBase64) : null);
+    }
+
+    public byte[] getPlaintextKey() {
+        return plaintextKey;
+    }
+
+    /**
+     * @return The encrypted data key Base64 encoded, as in the legacy id_vault.encrypted_data_key column.
+     */
+    public String getEncryptedDataKey() {
+        return encryptedDataKey != null ? Base64.getEncoder().encodeToString(encryptedDataKey) : null;
+    }
+
+    /**
+     * @return The encrypted data key; shared, do not modify.
+     */
+    public byte[] getEncryptedDataKeyBytes() {
+        return encryptedDataKey;
+    }
+
+    /**
+     * Returns an independent copy that the caller owns and must destroy.
+     */
+    public DataKey copy() {
+        return new DataKey(plaintextKey.clone(), encryptedDataKey);
+    }
+
+    /**
+     * Zeroes the plaintext key bytes.
+     */
+    public void destroy() {
+        Arrays.fill(plaintextKey, (byte) 0);
+    }
+}
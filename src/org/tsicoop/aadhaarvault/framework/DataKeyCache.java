@@ -0,0 +1,146 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Envelope-key cache for the store path.
+ * One data key per cache key (ID type) is handed out for up to maxUses encryptions or maxAge,
+ * whichever comes first, and is then retired and zeroed. Each caller receives its own copy of
+ * the plaintext key, so retiring a key never affects an encryption that is still in progress.
+ */
+public class DataKeyCache {
+
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong retired = new AtomicLong();
+
+    private static class Slot {
+        DataKey dataKey;
+        int uses;
+        long expiresAt;
+    }
+
+    /**
+     * Returns a data key for the given cache key, loading a fresh one when the current key has
+     * been used maxUses times or is older than maxAgeMillis. Caching is bypassed when maxUses is
+     * 1 or less, or maxAgeMillis is 0 or less.
+     *
+     * @return A copy of the cached key, owned by the caller.
+     */
+    public DataKey acquire(String cacheKey, int maxUses, long maxAgeMillis, Supplier<DataKey> loader) {
+        if (maxUses <= 1 || maxAgeMillis <= 0) {
+            misses.incrementAndGet();
+            return loader.get();
+        }
+        Slot slot = slots.computeIfAbsent(cacheKey, k -> new Slot());
+        synchronized (slot) {
+            long now = System.currentTimeMillis();
+            if (slot.dataKey == null || slot.uses >= maxUses || now >= slot.expiresAt) {
+                retire(slot);
+                // Concurrent stores for the same ID type wait here for a single KMS call
+                slot.dataKey = loader.get();
+                slot.expiresAt = now + maxAgeMillis;
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            slot.uses++;
+            return slot.dataKey.copy();
+        }
+    }
+
+    /**
+     * Non-loading variant of acquire for the async path.
+     *
+     * @return A copy of the current key, or null when there is no usable key (caller loads one and calls install).
+     */
+    public DataKey tryAcquire(String cacheKey, int maxUses, long maxAgeMillis) {
+        if (maxUses <= 1 || maxAgeMillis <= 0) {
+            return null;
+        }
+        Slot slot = slots.computeIfAbsent(cacheKey, k -> new Slot());
+        synchronized (slot) {
+            if (slot.dataKey == null || slot.uses >= maxUses || System.currentTimeMillis() >= slot.expiresAt) {
+                return null;
+            }
+            hits.incrementAndGet();
+            slot.uses++;
+            return slot.dataKey.copy();
+        }
+    }
+
+    /**
+     * Installs a freshly loaded key after a tryAcquire miss. If another caller installed a usable
+     * key in the meantime, that key is used instead and the new one is zeroed.
+     *
+     * @return A copy of the installed key, owned by the caller.
+     */
+    public DataKey install(String cacheKey, DataKey dataKey, int maxUses, long maxAgeMillis) {
+        misses.incrementAndGet();
+        if (maxUses <= 1 || maxAgeMillis <= 0) {
+            return dataKey;
+        }
+        Slot slot = slots.computeIfAbsent(cacheKey, k -> new Slot());
+        synchronized (slot) {
+            long now = System.currentTimeMillis();
+            if (slot.dataKey != null && slot.uses < maxUses && now < slot.expiresAt) {
+                dataKey.destroy();
+            } else {
+                retire(slot);
+                slot.dataKey = dataKey;
+                slot.expiresAt = now + maxAgeMillis;
+            }
+            slot.uses++;
+            return slot.dataKey.copy();
+        }
+    }
+
+    /**
+     * Retires and zeroes keys whose age limit has passed, so an idle ID type does not keep
+     * a plaintext key in memory.
+     */
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                if (slot.dataKey != null && now >= slot.expiresAt) {
+                    retire(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retires and zeroes every cached key.
+     */
+    public void clear() {
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                retire(slot);
+            }
+        }
+    }
+
+    private void retire(Slot slot) {
+        if (slot.dataKey != null) {
+            slot.dataKey.destroy();
+            slot.dataKey = null;
+            slot.uses = 0;
+            retired.incrementAndGet();
+        }
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("retired", retired.get());
+        stats.put("activeKeys", slots.values().stream().filter(s -> s.dataKey != null).count());
+        return stats;
+    }
+}
@@ -0,0 +1,193 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pool of pre-generated KMS data keys, refilled by a background thread.
+ * When the pool depth drops below lowWatermark a refill is scheduled that generates keys until
+ * highWatermark is reached, so the request thread can take a ready key without waiting for KMS.
+ * Keys that sit in the pool longer than maxIdleMillis are discarded and zeroed, either when a poll
+ * reaches them or by evictExpired, so an idle pool does not hold plaintext keys past their limit.
+ */
+public class DataKeyPool {
+
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final long maxIdleMillis;
+    private final Supplier<DataKey> generator;
+
+    private final ConcurrentLinkedQueue<PooledKey> keys = new ConcurrentLinkedQueue<PooledKey>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean refillScheduled = new AtomicBoolean(false);
+    private final ExecutorService refiller;
+
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong empty = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong refillErrors = new AtomicLong();
+    private final AtomicLong totalRefillNanos = new AtomicLong();
+    private volatile long lastRefillMillis = 0;
+    private volatile long maxRefillMillis = 0;
+
+    private static class PooledKey {
+        final DataKey dataKey;
+        final long createdAt;
+
+        PooledKey(DataKey dataKey, long createdAt) {
+            this.dataKey = dataKey;
+            this.createdAt = createdAt;
+        }
+    }
+
+    public DataKeyPool(int lowWatermark, int highWatermark, long maxIdleMillis, Supplier<DataKey> generator) {
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxIdleMillis = maxIdleMillis;
+        this.generator = generator;
+        this.refiller = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "kms-key-pool-refill");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public boolean isEnabled() {
+        return highWatermark > 0;
+    }
+
+    /**
+     * Fills the pool in the background, e.g. at startup.
+     */
+    public void prime() {
+        scheduleRefill();
+    }
+
+    /**
+     * Takes a pre-generated key without blocking.
+     *
+     * @return A DataKey owned by the caller, or null when the pool is empty (caller falls back to KMS).
+     */
+    public DataKey poll() {
+        if (!isEnabled()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        PooledKey pooled;
+        DataKey dataKey = null;
+        while (dataKey == null && (pooled = keys.poll()) != null) {
+            depth.decrementAndGet();
+            if (now - pooled.createdAt > maxIdleMillis) {
+                pooled.dataKey.destroy();
+                discarded.incrementAndGet();
+            } else {
+                dataKey = pooled.dataKey;
+            }
+        }
+        if (dataKey != null) {
+            taken.incrementAndGet();
+        } else {
+            empty.incrementAndGet();
+        }
+        if (depth.get() < lowWatermark) {
+            scheduleRefill();
+        }
+        return dataKey;
+    }
+
+    /**
+     * Zeroes the keys that have been in the pool longer than maxIdleMillis and refills the pool if
+     * that leaves it below the low watermark. A pool that was never filled stays empty. Called
+     * periodically from the KmsService key sweeper.
+     */
+    public void evictExpired() {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        PooledKey pooled;
+        // Keys are offered in the order they were generated, so the stale ones are at the head
+        while ((pooled = keys.peek()) != null && now - pooled.createdAt > maxIdleMillis) {
+            if (keys.remove(pooled)) { // false if a poll took it meanwhile
+                depth.decrementAndGet();
+                pooled.dataKey.destroy();
+                discarded.incrementAndGet();
+                evicted++;
+            }
+        }
+        if (evicted > 0 && depth.get() < lowWatermark) {
+            scheduleRefill();
+        }
+    }
+
+    private void scheduleRefill() {
+        if (isEnabled() && refillScheduled.compareAndSet(false, true)) {
+            try {
+                refiller.execute(this::refill);
+            } catch (Exception e) {
+                refillScheduled.set(false); // executor shut down
+            }
+        }
+    }
+
+    private void refill() {
+        try {
+            while (depth.get() < highWatermark && !Thread.currentThread().isInterrupted()) {
+                long start = System.nanoTime();
+                DataKey dataKey = generator.get();
+                long elapsed = System.nanoTime() - start;
+                totalRefillNanos.addAndGet(elapsed);
+                lastRefillMillis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+                maxRefillMillis = Math.max(maxRefillMillis, lastRefillMillis);
+                generated.incrementAndGet();
+                keys.offer(new PooledKey(dataKey, System.currentTimeMillis()));
+                depth.incrementAndGet();
+            }
+        } catch (Exception e) {
+            // Leave the pool as is; the next poll below the low watermark retries
+            refillErrors.incrementAndGet();
+            System.err.println("DataKeyPool: refill failed: " + e.getMessage());
+        } finally {
+            refillScheduled.set(false);
+        }
+    }
+
+    /**
+     * Stops the refill thread and zeroes all pooled keys.
+     */
+    public void close() {
+        refiller.shutdownNow();
+        PooledKey pooled;
+        while ((pooled = keys.poll()) != null) {
+            pooled.dataKey.destroy();
+            depth.decrementAndGet();
+        }
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long count = generated.get();
+        stats.put("depth", depth.get());
+        stats.put("lowWatermark", lowWatermark);
+        stats.put("highWatermark", highWatermark);
+        stats.put("taken", taken.get());
+        stats.put("empty", empty.get());
+        stats.put("discarded", discarded.get());
+        stats.put("generated", count);
+        stats.put("refillErrors", refillErrors.get());
+        stats.put("lastRefillMillis", lastRefillMillis);
+        stats.put("maxRefillMillis", maxRefillMillis);
+        stats.put("avgRefillMillis", count > 0 ? TimeUnit.NANOSECONDS.toMillis(totalRefillNanos.get() / count) : 0);
+        return stats;
+    }
+}
@@ -0,0 +1,146 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, TTL-based cache of plaintext data keys for the fetch path, keyed by the SHA-256 hash of
+ * the KMS-encrypted data key bytes (so Base64 and bytea rows share entries). Least recently used entries are evicted once maxEntries is reached,
+ * expired entries are evicted on access and by evictExpired(); evicted keys are zeroed.
+ */
+public class DecryptedKeyCache {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, CachedKey> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class CachedKey {
+        final byte[] plaintextKey;
+        final long expiresAt;
+
+        CachedKey(byte[] plaintextKey, long expiresAt) {
+            this.plaintextKey = plaintextKey;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public DecryptedKeyCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                if (size() > DecryptedKeyCache.this.maxEntries) {
+                    zero(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttlMillis > 0;
+    }
+
+    /**
+     * @return A copy of the cached plaintext key (owned by the caller), or null on a miss.
+     */
+    public byte[] get(byte[] encryptedDataKey) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String cacheKey = cacheKey(encryptedDataKey);
+        synchronized (entries) {
+            CachedKey entry = entries.get(cacheKey);
+            if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+                entries.remove(cacheKey);
+                zero(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.plaintextKey.clone();
+        }
+    }
+
+    /**
+     * Caches a copy of the given plaintext key; the caller keeps ownership of its array.
+     */
+    public void put(byte[] encryptedDataKey, byte[] plaintextKey) {
+        if (!isEnabled()) {
+            return;
+        }
+        String cacheKey = cacheKey(encryptedDataKey);
+        CachedKey entry = new CachedKey(plaintextKey.clone(), System.currentTimeMillis() + ttlMillis);
+        synchronized (entries) {
+            CachedKey previous = entries.put(cacheKey, entry);
+            if (previous != null) {
+                Arrays.fill(previous.plaintextKey, (byte) 0);
+            }
+        }
+    }
+
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Iterator<CachedKey> it = entries.values().iterator();
+            while (it.hasNext()) {
+                CachedKey entry = it.next();
+                if (now >= entry.expiresAt) {
+                    it.remove();
+                    zero(entry);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            for (CachedKey entry : entries.values()) {
+                Arrays.fill(entry.plaintextKey, (byte) 0);
+            }
+            entries.clear();
+        }
+    }
+
+    private void zero(CachedKey entry) {
+        Arrays.fill(entry.plaintextKey, (byte) 0);
+        evictions.incrementAndGet();
+    }
+
+    private static String cacheKey(byte[] encryptedDataKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(encryptedDataKey));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        stats.put("maxEntries", maxEntries);
+        return stats;
+    }
+}
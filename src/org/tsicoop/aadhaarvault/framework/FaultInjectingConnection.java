@@ -0,0 +1,83 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+
+/**
+ * Wraps a pooled JDBC connection for load tests so its statements are delayed or failed according
+ * to the FaultInjector DB rules. Used by PoolDB.createConnection when FAULT_PROFILE is set.
+ *
+ * Operations: query (executeQuery), update (executeUpdate, executeBatch, execute) and commit;
+ * PoolDB injects getConnection itself. Injected errors are SQLExceptions and injected timeouts
+ * SQLTransientConnectionExceptions, which is what the driver and Hikari throw for the real thing.
+ */
+final class FaultInjectingConnection {
+
+    private FaultInjectingConnection() {
+    }
+
+    static Connection wrap(Connection connection, FaultInjector faults) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new Handler(connection, faults));
+    }
+
+    static SQLException failure(String message) {
+        return message.contains("timeout") ? new SQLTransientConnectionException(message) : new SQLException(message);
+    }
+
+    private static class Handler implements InvocationHandler {
+
+        private final Object target;
+        private final FaultInjector faults;
+
+        Handler(Object target, FaultInjector faults) {
+            this.target = target;
+            this.faults = faults;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String operation = operationOf(method.getName());
+            if (operation != null) {
+                faults.inject(operation, FaultInjectingConnection::failure);
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            // Statements handed out by the connection are wrapped too
+            Class<?> type = method.getReturnType();
+            if (result != null && (type == Statement.class || type == PreparedStatement.class || type == CallableStatement.class)) {
+                return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { type }, new Handler(result, faults));
+            }
+            return result;
+        }
+
+        private static String operationOf(String methodName) {
+            switch (methodName) {
+                case "executeQuery":
+                    return "query";
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                case "executeBatch":
+                case "executeLargeBatch":
+                case "execute":
+                    return "update";
+                case "commit":
+                    return "commit";
+                default:
+                    return null;
+            }
+        }
+    }
+}
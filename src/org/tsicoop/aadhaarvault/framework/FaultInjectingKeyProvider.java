@@ -0,0 +1,102 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * KeyProvider decorator for load tests that delays or fails KMS calls according to the
+ * FaultInjector KMS rules. KmsService installs it under ResilientKeyProvider, so the bulkhead,
+ * breaker, timeouts and hedging react to the injected faults as they would to a real KMS.
+ *
+ * Injected failures are plain RuntimeExceptions, like the SDK errors the real providers throw.
+ */
+public class FaultInjectingKeyProvider implements KeyProvider {
+
+    private static final String GENERATE_DATA_KEY = "GenerateDataKey";
+    private static final String DECRYPT_DATA_KEY = "DecryptDataKey";
+    private static final String RE_ENCRYPT = "ReEncrypt";
+    private static final String ENCRYPT = "Encrypt";
+    private static final String DECRYPT = "Decrypt";
+
+    private final KeyProvider delegate;
+    private final FaultInjector faults;
+
+    public FaultInjectingKeyProvider(KeyProvider delegate, FaultInjector faults) {
+        this.delegate = delegate;
+        this.faults = faults;
+    }
+
+    public KeyProvider getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public String getKeyId() {
+        return delegate.getKeyId();
+    }
+
+    @Override
+    public DataKey generateDataKey() {
+        faults.inject(GENERATE_DATA_KEY, RuntimeException::new);
+        return delegate.generateDataKey();
+    }
+
+    @Override
+    public CompletableFuture<DataKey> generateDataKeyAsync() {
+        return faults.injectAsync(GENERATE_DATA_KEY, delegate::generateDataKeyAsync, RuntimeException::new);
+    }
+
+    @Override
+    public byte[] decryptDataKey(byte[] encryptedDataKey) {
+        faults.inject(DECRYPT_DATA_KEY, RuntimeException::new);
+        return delegate.decryptDataKey(encryptedDataKey);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptDataKeyAsync(byte[] encryptedDataKey) {
+        return faults.injectAsync(DECRYPT_DATA_KEY, () -> delegate.decryptDataKeyAsync(encryptedDataKey), RuntimeException::new);
+    }
+
+    @Override
+    public byte[] reEncrypt(byte[] encryptedDataKey, String destinationKeyId) {
+        faults.inject(RE_ENCRYPT, RuntimeException::new);
+        return delegate.reEncrypt(encryptedDataKey, destinationKeyId);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> reEncryptAsync(byte[] encryptedDataKey, String destinationKeyId) {
+        return faults.injectAsync(RE_ENCRYPT, () -> delegate.reEncryptAsync(encryptedDataKey, destinationKeyId), RuntimeException::new);
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, Map<String, String> encryptionContext) {
+        faults.inject(ENCRYPT, RuntimeException::new);
+        return delegate.encrypt(plaintext, encryptionContext);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> encryptAsync(byte[] plaintext, Map<String, String> encryptionContext) {
+        return faults.injectAsync(ENCRYPT, () -> delegate.encryptAsync(plaintext, encryptionContext), RuntimeException::new);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, Map<String, String> encryptionContext) {
+        faults.inject(DECRYPT, RuntimeException::new);
+        return delegate.decrypt(ciphertext, encryptionContext);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext, Map<String, String> encryptionContext) {
+        return faults.injectAsync(DECRYPT, () -> delegate.decryptAsync(ciphertext, encryptionContext), RuntimeException::new);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
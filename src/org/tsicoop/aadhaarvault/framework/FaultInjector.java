@@ -0,0 +1,255 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Latency, error and timeout injection for load tests, so KMS slowdowns and Postgres stalls can be
+ * reproduced without the real incident. Off unless FAULT_PROFILE is set; never enable in production.
+ *
+ * FAULT_PROFILE selects a preset (kms-slow, kms-brownout, db-stall) or "custom"; FAULT_KMS and
+ * FAULT_DB add or override rules per operation:
+ *
+ *   operation:key=value,key=value;operation:...     ("*" matches every operation)
+ *
+ *   medianMs, p99Ms  log-normal latency with this median and 99th percentile (constant without p99Ms)
+ *   errorRate        fraction of calls that fail after their latency
+ *   timeoutRate      fraction of calls that hang for timeoutMs (default 30000) and then fail
+ *
+ * KMS operations are the KeyProvider calls (GenerateDataKey, DecryptDataKey, ReEncrypt, Encrypt,
+ * Decrypt, see FaultInjectingKeyProvider); DB operations are getConnection, query, update and commit
+ * (see PoolDB).
+ */
+public final class FaultInjector {
+
+    private static final double Z_99 = 2.3263; // standard normal 99th percentile
+
+    private static final Map<String, String[]> PROFILES = new HashMap<>();
+
+    static {
+        // { KMS rules, DB rules }
+        PROFILES.put("custom", new String[] { "", "" });
+        PROFILES.put("kms-slow", new String[] { "*:medianMs=200,p99Ms=800", "" });
+        PROFILES.put("kms-brownout", new String[] { "*:medianMs=200,p99Ms=3000,errorRate=0.05,timeoutRate=0.01", "" });
+        PROFILES.put("db-stall", new String[] { "", "getConnection:medianMs=5,p99Ms=2000,timeoutRate=0.005;query:medianMs=2,p99Ms=500" });
+    }
+
+    private static FaultInjector kms = null;
+    private static FaultInjector db = null;
+    private static boolean loaded = false;
+
+    private final String target;
+    private final Map<String, Fault> rules;
+    private final Map<String, AtomicLong[]> counters = new ConcurrentHashMap<>(); // delayed, errors, timeouts
+
+    private static class Fault {
+        double medianMs = 0;
+        double p99Ms = 0;
+        double errorRate = 0;
+        double timeoutRate = 0;
+        long timeoutMs = 30000;
+    }
+
+    private FaultInjector(String target, Map<String, Fault> rules) {
+        this.target = target;
+        this.rules = rules;
+    }
+
+    private static synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        String profile = SystemConfig.getAppConfig() != null ? SystemConfig.getAppConfig().getProperty("fault.profile", "").trim().toLowerCase() : "";
+        if (profile.isEmpty() || profile.equals("off")) {
+            return;
+        }
+        String[] preset = PROFILES.get(profile);
+        if (preset == null) {
+            throw new IllegalArgumentException("Unknown fault injection profile: " + profile);
+        }
+        kms = create("kms", preset[0], SystemConfig.getAppConfig().getProperty("fault.kms", ""));
+        db = create("db", preset[1], SystemConfig.getAppConfig().getProperty("fault.db", ""));
+        System.err.println("FaultInjector: profile " + profile + " active (kms " + kms.rules.keySet() + ", db " + db.rules.keySet() + "). NOT FOR PRODUCTION USE.");
+    }
+
+    private static FaultInjector create(String target, String presetRules, String overrides) {
+        Map<String, Fault> rules = new LinkedHashMap<>();
+        parse(presetRules, rules);
+        parse(overrides, rules);
+        return new FaultInjector(target, rules);
+    }
+
+    private static void parse(String spec, Map<String, Fault> rules) {
+        for (String rule : spec.split(";")) {
+            if (rule.trim().isEmpty()) {
+                continue;
+            }
+            int colon = rule.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Fault rule needs operation:key=value, got: " + rule);
+            }
+            String operation = rule.substring(0, colon).trim();
+            Fault fault = rules.computeIfAbsent(operation, op -> new Fault());
+            for (String setting : rule.substring(colon + 1).split(",")) {
+                String[] kv = setting.split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("Fault setting needs key=value, got: " + setting);
+                }
+                double value = Double.parseDouble(kv[1].trim());
+                switch (kv[0].trim()) {
+                    case "medianMs": fault.medianMs = value; break;
+                    case "p99Ms": fault.p99Ms = value; break;
+                    case "errorRate": fault.errorRate = value; break;
+                    case "timeoutRate": fault.timeoutRate = value; break;
+                    case "timeoutMs": fault.timeoutMs = (long) value; break;
+                    default: throw new IllegalArgumentException("Unknown fault setting: " + kv[0]);
+                }
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        load();
+        return kms != null;
+    }
+
+    /**
+     * @return The KMS injector, or null when fault injection is off.
+     */
+    public static FaultInjector forKms() {
+        load();
+        return kms;
+    }
+
+    /**
+     * @return The DB injector, or null when fault injection is off.
+     */
+    public static FaultInjector forDb() {
+        load();
+        return db;
+    }
+
+    private static final int PASS = 0;
+    private static final int ERROR = 1;
+    private static final int TIMEOUT = 2;
+
+    private Fault faultFor(String operation) {
+        Fault fault = rules.get(operation);
+        return fault != null ? fault : rules.get("*");
+    }
+
+    private long sampleDelayMillis(Fault fault) {
+        if (fault.medianMs <= 0) {
+            return 0;
+        }
+        if (fault.p99Ms <= fault.medianMs) {
+            return (long) fault.medianMs;
+        }
+        double sigma = Math.log(fault.p99Ms / fault.medianMs) / Z_99;
+        double delay = fault.medianMs * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian());
+        return Math.min((long) delay, fault.timeoutMs);
+    }
+
+    private int sampleOutcome(Fault fault) {
+        double r = ThreadLocalRandom.current().nextDouble();
+        if (r < fault.timeoutRate) {
+            return TIMEOUT;
+        }
+        return r < fault.timeoutRate + fault.errorRate ? ERROR : PASS;
+    }
+
+    private AtomicLong[] countersFor(String operation) {
+        return counters.computeIfAbsent(operation, op -> new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong() });
+    }
+
+    /**
+     * Blocks for the operation's injected latency and throws if it draws an error or a timeout.
+     *
+     * @param failure Builds the exception to throw from a message.
+     */
+    public <E extends Exception> void inject(String operation, Function<String, E> failure) throws E {
+        Fault fault = faultFor(operation);
+        if (fault == null) {
+            return;
+        }
+        int outcome = sampleOutcome(fault);
+        long delay = outcome == TIMEOUT ? fault.timeoutMs : sampleDelayMillis(fault);
+        AtomicLong[] count = countersFor(operation);
+        if (delay > 0) {
+            count[0].incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (outcome != PASS) {
+            count[outcome].incrementAndGet();
+            throw failure.apply(message(operation, outcome, delay));
+        }
+    }
+
+    /**
+     * Non-blocking variant: starts the call after the injected latency, or fails without calling.
+     */
+    public <T> CompletableFuture<T> injectAsync(String operation, Supplier<CompletableFuture<T>> call, Function<String, ? extends RuntimeException> failure) {
+        Fault fault = faultFor(operation);
+        if (fault == null) {
+            return call.get();
+        }
+        int outcome = sampleOutcome(fault);
+        long delay = outcome == TIMEOUT ? fault.timeoutMs : sampleDelayMillis(fault);
+        AtomicLong[] count = countersFor(operation);
+        if (delay > 0) {
+            count[0].incrementAndGet();
+        }
+        if (outcome != PASS) {
+            count[outcome].incrementAndGet();
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                    .execute(() -> failed.completeExceptionally(failure.apply(message(operation, outcome, delay))));
+            return failed;
+        }
+        if (delay == 0) {
+            return call.get();
+        }
+        return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                .thenCompose(ignored -> call.get());
+    }
+
+    private String message(String operation, int outcome, long delay) {
+        return "Injected " + target + " " + (outcome == TIMEOUT ? "timeout" : "error") + " in " + operation + " after " + delay + " ms";
+    }
+
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        if (isEnabled()) {
+            stats.put("kms", kms.getOperationStats());
+            stats.put("db", db.getOperationStats());
+        }
+        return stats;
+    }
+
+    private JSONObject getOperationStats() {
+        JSONObject stats = new JSONObject();
+        for (Map.Entry<String, AtomicLong[]> e : counters.entrySet()) {
+            JSONObject op = new JSONObject();
+            op.put("delayed", e.getValue()[0].get());
+            op.put("errors", e.getValue()[1].get());
+            op.put("timeouts", e.getValue()[2].get());
+            stats.put(e.getKey(), op);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,330 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Validates and canonicalizes ID numbers per ID type before anything else is done with them, so a
+ * malformed or mistyped number is rejected without a KMS call or a database round trip, and
+ * spelling variants of one number ("2341 2341 2346", "234123412346") hash to the same lookup hash.
+ *
+ * Per type, from id_type_master:
+ * - validation_regex: checked against the number as submitted (surrounding whitespace removed).
+ * - canonical_form: TRIM (surrounding whitespace only), DIGITS (spaces and hyphens removed, digits
+ *   only) or ALNUM_UPPER (spaces and hyphens removed, letters upper-cased, letters and digits only).
+ * - checksum: VERHOEFF (Aadhaar) or none.
+ *
+ * ID types are cached with their compiled pattern for vault.idType.cacheSeconds; changes made
+ * through update_id_type apply at once on the node that served it, and elsewhere after that time.
+ * Canonicalization works on the UTF-8 bytes of a SecureBuffer, so the canonical form of a number
+ * never becomes a String.
+ */
+public class IdNormalizer {
+
+    public static final String FORM_TRIM = "TRIM";
+    public static final String FORM_DIGITS = "DIGITS";
+    public static final String FORM_ALNUM_UPPER = "ALNUM_UPPER";
+    public static final String CHECKSUM_VERHOEFF = "VERHOEFF";
+
+    private static IdNormalizer instance = null;
+
+    private final long cacheMillis;
+    private final boolean regexEnabled;
+    private final ConcurrentHashMap<String, IdType> idTypes = new ConcurrentHashMap<>();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong respelled = new AtomicLong();
+    private final AtomicLong rejectedPattern = new AtomicLong();
+    private final AtomicLong rejectedFormat = new AtomicLong();
+    private final AtomicLong rejectedChecksum = new AtomicLong();
+
+    // Verhoeff dihedral group D5 multiplication and position permutation tables
+    private static final int[][] VERHOEFF_D = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, {1, 2, 3, 4, 0, 6, 7, 8, 9, 5}, {2, 3, 4, 0, 1, 7, 8, 9, 5, 6},
+            {3, 4, 0, 1, 2, 8, 9, 5, 6, 7}, {4, 0, 1, 2, 3, 9, 5, 6, 7, 8}, {5, 9, 8, 7, 6, 0, 4, 3, 2, 1},
+            {6, 5, 9, 8, 7, 1, 0, 4, 3, 2}, {7, 6, 5, 9, 8, 2, 1, 0, 4, 3}, {8, 7, 6, 5, 9, 3, 2, 1, 0, 4},
+            {9, 8, 7, 6, 5, 4, 3, 2, 1, 0}};
+    private static final int[][] VERHOEFF_P = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, {1, 5, 7, 6, 2, 8, 3, 0, 9, 4}, {5, 8, 0, 3, 7, 9, 6, 2, 4, 1},
+            {8, 9, 1, 6, 0, 4, 3, 5, 2, 7}, {9, 4, 5, 3, 1, 2, 6, 8, 7, 0}, {4, 2, 8, 6, 5, 7, 3, 9, 0, 1},
+            {2, 7, 9, 3, 8, 0, 6, 4, 1, 5}, {7, 0, 4, 6, 9, 1, 3, 2, 5, 8}};
+
+    /**
+     * An id_type_master row with its compiled validation pattern.
+     */
+    public final class IdType {
+        private final String code;
+        private final Integer typeId;
+        private final boolean active;
+        private final Integer dataKeyMaxUses;
+        private final Integer dataKeyMaxAgeSeconds;
+        private final Pattern pattern; // null: no pattern, or the pattern does not compile
+        private final String patternError;
+        private final String canonicalForm;
+        private final String checksum;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private IdType(String code, Integer typeId, boolean active, Integer dataKeyMaxUses, Integer dataKeyMaxAgeSeconds,
+                       String validationRegex, String canonicalForm, String checksum) {
+            this.code = code;
+            this.typeId = typeId;
+            this.active = active;
+            this.dataKeyMaxUses = dataKeyMaxUses;
+            this.dataKeyMaxAgeSeconds = dataKeyMaxAgeSeconds;
+            Pattern compiled = null;
+            String error = null;
+            if (validationRegex != null && !validationRegex.trim().isEmpty()) {
+                try {
+                    compiled = Pattern.compile(validationRegex);
+                } catch (PatternSyntaxException e) {
+                    error = "Invalid validation regex for ID type " + code;
+                }
+            }
+            this.pattern = compiled;
+            this.patternError = error;
+            this.canonicalForm = canonicalForm != null ? canonicalForm : FORM_TRIM;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return The compact type id stored in id_vault.id_type_id.
+         */
+        public Integer getTypeId() {
+            return typeId;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public Integer getDataKeyMaxUses() {
+            return dataKeyMaxUses;
+        }
+
+        public Integer getDataKeyMaxAgeSeconds() {
+            return dataKeyMaxAgeSeconds;
+        }
+
+        /**
+         * Stored rows keep the lookup hash of the canonical form they were stored under, and ID
+         * numbers they were stored with may fail a new checksum, so neither can change once the
+         * type has rows.
+         *
+         * @param canonicalForm Requested canonical form, or null to keep it.
+         * @param checksum      Requested checksum, NONE for none, or null to keep it.
+         * @return true if the request changes the canonical form or the checksum.
+         */
+        public boolean changesLookup(String canonicalForm, String checksum) {
+            if (canonicalForm != null && !canonicalForm.equals(this.canonicalForm)) {
+                return true;
+            }
+            if (checksum == null) {
+                return false;
+            }
+            return !Objects.equals("NONE".equals(checksum) ? null : checksum, this.checksum);
+        }
+
+        /**
+         * Validates an ID number as submitted and returns its canonical form.
+         *
+         * @return A new SecureBuffer with the canonical form; the caller closes it.
+         * @throws InvalidIdException if the number fails the pattern, the canonical form or the checksum.
+         */
+        public SecureBuffer normalize(String idNumber) throws InvalidIdException {
+            if (regexEnabled) {
+                if (patternError != null) {
+                    throw new InvalidIdException(patternError);
+                }
+                if (pattern != null && !pattern.matcher(idNumber.strip()).matches()) {
+                    rejectedPattern.incrementAndGet();
+                    throw new InvalidIdException("ID number format invalid for type: " + code);
+                }
+            }
+            SecureBuffer canonical;
+            try (SecureBuffer submitted = SecureBuffer.of(idNumber)) {
+                canonical = canonicalize(submitted);
+                if (!canonical.readable().equals(submitted.readable())) {
+                    respelled.incrementAndGet();
+                }
+            }
+            try {
+                ByteBuffer bytes = canonical.readable();
+                if (bytes.remaining() == 0 || !hasCanonicalCharacters(bytes)) {
+                    rejectedFormat.incrementAndGet();
+                    throw new InvalidIdException("ID number format invalid for type: " + code);
+                }
+                if (CHECKSUM_VERHOEFF.equals(checksum) && !verhoeffValid(bytes)) {
+                    rejectedChecksum.incrementAndGet();
+                    throw new InvalidIdException("ID number checksum invalid for type: " + code);
+                }
+            } catch (InvalidIdException e) {
+                canonical.close();
+                throw e;
+            }
+            accepted.incrementAndGet();
+            return canonical;
+        }
+
+        /**
+         * Canonical form of an ID number, without validation (for rows already stored).
+         *
+         * @return A new SecureBuffer; the caller closes it.
+         */
+        public SecureBuffer canonicalize(SecureBuffer idValue) {
+            ByteBuffer in = idValue.readable();
+            int start = in.position(), end = in.limit();
+            while (start < end && isSpace(in.get(start))) {
+                start++;
+            }
+            while (end > start && isSpace(in.get(end - 1))) {
+                end--;
+            }
+            SecureBuffer out = SecureBuffer.allocate(Math.max(1, end - start));
+            ByteBuffer w = out.writable();
+            boolean compact = !FORM_TRIM.equals(canonicalForm);
+            boolean upper = FORM_ALNUM_UPPER.equals(canonicalForm);
+            for (int i = start; i < end; i++) {
+                byte b = in.get(i);
+                if (compact && (isSpace(b) || b == '-')) {
+                    continue;
+                }
+                w.put(upper && b >= 'a' && b <= 'z' ? (byte) (b - 32) : b);
+            }
+            out.setLength(w.position());
+            return out;
+        }
+
+        private boolean hasCanonicalCharacters(ByteBuffer bytes) {
+            if (FORM_TRIM.equals(canonicalForm)) {
+                return true;
+            }
+            boolean digitsOnly = FORM_DIGITS.equals(canonicalForm);
+            for (int i = bytes.position(); i < bytes.limit(); i++) {
+                byte b = bytes.get(i);
+                boolean ok = (b >= '0' && b <= '9') || (!digitsOnly && b >= 'A' && b <= 'Z');
+                if (!ok) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private IdNormalizer() {
+        this.cacheMillis = TimeUnit.SECONDS.toMillis(SystemConfig.getIntProperty("vault.idType.cacheSeconds", 60));
+        this.regexEnabled = SystemConfig.getBooleanProperty("vault.idValidation.regex", true);
+    }
+
+    /**
+     * Called once from InterceptingFilter.init.
+     */
+    public static synchronized void createInstance() {
+        if (instance == null) {
+            instance = new IdNormalizer();
+        }
+    }
+
+    public static IdNormalizer getHandle() {
+        return instance;
+    }
+
+    /**
+     * @return The ID type, or null if there is no such type (also cached).
+     */
+    public IdType getIdType(String idTypeCode) throws SQLException {
+        if (idTypeCode == null) {
+            return null;
+        }
+        IdType cached = idTypes.get(idTypeCode);
+        if (cached != null && System.currentTimeMillis() - cached.loadedAt < cacheMillis) {
+            cacheHits.incrementAndGet();
+            return cached.code != null ? cached : null;
+        }
+        cacheMisses.incrementAndGet();
+        IdType loaded = load(idTypeCode);
+        idTypes.put(idTypeCode, loaded);
+        return loaded.code != null ? loaded : null;
+    }
+
+    /**
+     * Drops a cached ID type after it was changed on this node.
+     */
+    public void invalidate(String idTypeCode) {
+        idTypes.remove(idTypeCode);
+    }
+
+    /**
+     * An ID type defined in code instead of loaded from id_type_master, for tests.
+     */
+    IdType define(String idTypeCode, String validationRegex, String canonicalForm, String checksum) {
+        return new IdType(idTypeCode, null, true, null, null, validationRegex, canonicalForm, checksum);
+    }
+
+    private IdType load(String idTypeCode) throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        String sql = "SELECT type_id, active, data_key_max_uses, data_key_max_age_seconds, validation_regex, canonical_form, checksum FROM id_type_master WHERE id_type_code = ?";
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement(sql);
+            pstmt.setString(1, idTypeCode);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return new IdType(idTypeCode, rs.getInt("type_id"), rs.getBoolean("active"),
+                                  (Integer) rs.getObject("data_key_max_uses"), // null = use default
+                                  (Integer) rs.getObject("data_key_max_age_seconds"),
+                                  rs.getString("validation_regex"), rs.getString("canonical_form"), rs.getString("checksum"));
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        return new IdType(null, null, false, null, null, null, null, null); // unknown type
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return true if the digits (checksum digit last) pass the Verhoeff check.
+     */
+    public static boolean verhoeffValid(ByteBuffer digits) {
+        int c = 0;
+        int n = digits.limit() - digits.position();
+        for (int i = 0; i < n; i++) {
+            int digit = digits.get(digits.limit() - 1 - i) - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            c = VERHOEFF_D[c][VERHOEFF_P[i % 8][digit]];
+        }
+        return c == 0;
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("accepted", accepted.get());
+        stats.put("respelled", respelled.get());
+        stats.put("rejectedPattern", rejectedPattern.get());
+        stats.put("rejectedFormat", rejectedFormat.get());
+        stats.put("rejectedChecksum", rejectedChecksum.get());
+        stats.put("idTypeCacheHits", cacheHits.get());
+        stats.put("idTypeCacheMisses", cacheMisses.get());
+        return stats;
+    }
+}
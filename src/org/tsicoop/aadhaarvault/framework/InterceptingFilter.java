@@ -10,14 +10,22 @@ import java.util.Base64;
 
 public class InterceptingFilter implements Filter {
 
-    private static final String URL_DELIMITER = "/";
-    private static final String ADMIN_URI = "admin";
-    private static final String CLIENT_URI = "client";
-
     private static final HashMap<String, String> filterConfig = new HashMap<String, String>();
+
+    // _processor.tsi compiled at init, with one shared handler per class
+    private volatile RouteTable routes = null;
+
     @Override
     public void destroy() {
         // Any cleanup of resources
+        JobRunner.shutdown();
+        AsyncExecutor.shutdown();
+        LookupFilter.shutdown();
+        ReferenceKeyCache.shutdown();
+        MappedLookupIndex.shutdown();
+        ShardRouter.shutdown();
+        KmsService.shutdown();
+        System.out.println("Closed TSI KMS Service");
     }
 
     static {
@@ -27,16 +35,8 @@ public class InterceptingFilter implements Filter {
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         //System.out.println("Inside controller");
-        String responseJson = "";
         HttpServletRequest req = (HttpServletRequest) request;
         HttpServletResponse res = (HttpServletResponse) response;
-        String method = req.getMethod();
-        String servletPath = req.getServletPath();
-        String uri = req.getRequestURI();
-        String classname = null;
-        String operation = null;
-        Properties apiRegistry = null;
-        Properties config = null;
         boolean validrequest = true;
         boolean validheader = true;
 
@@ -54,67 +54,46 @@ public class InterceptingFilter implements Filter {
         res.setCharacterEncoding("UTF-8");
         res.setContentType("application/json");
 
-        apiRegistry = SystemConfig.getProcessorConfig();
-        config = SystemConfig.getAppConfig();
+        RouteTable.Route route = routes.get(req.getServletPath());
+        if (route == null) {
+            return;
+        }
 
-        if (apiRegistry.containsKey(servletPath.trim())) {
-            StringTokenizer strTok = new StringTokenizer(servletPath, URL_DELIMITER);
-            strTok.nextToken(); // skip api keyword
-            String uriIdentifier = strTok.nextToken();
-            //System.out.println("uriIdentifier:"+uriIdentifier);
-            if (!(uriIdentifier.equalsIgnoreCase(ADMIN_URI)||uriIdentifier.equalsIgnoreCase(CLIENT_URI))){
-                res.sendError(400);
+        try {
+            if (route.isAdminHeaderRequired()) {
+                validheader = InputProcessor.processAdminHeader(req, res);
+            }
+            if (!validheader) {
+                res.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized");
                 return;
             }
-
-            // Check
-            //System.out.println("servletPath:"+servletPath);
-             try {
-                 if(servletPath.contains("api/admin")
-                         && !servletPath.contains("api/admin/login")
-                         && !servletPath.contains("api/admin/register")) {
-                     validheader = InputProcessor.processAdminHeader(req, res);
-                 }else if(servletPath.contains("api/client")) {
-                     validheader = true;
-                 }
-                 //System.out.println(servletPath+" "+validheader);
-                 if(!validheader) {
-                     res.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Unauthorized");
-                 }else{
-                     InputProcessor.processInput(req, res);
-                     operation = strTok.nextToken();
-                     classname = apiRegistry.getProperty(servletPath.trim());
-                     //System.out.println("operation:" + operation + " classname:" + classname);
-                     if (classname == null || method == null) res.sendError(400);
-
-                     //System.out.println("c:"+req.getParameter(Constants.NOTIF_PARAM));
-                     // Check notification
-
-                     REST action = ((REST) Class.forName(classname).getConstructor().newInstance());
-                     validrequest = action.validate(method, req, res);
-                     //System.out.println("validrequest:" + validrequest);
-                     if (validrequest) {
-                         if (method.equalsIgnoreCase("GET")) {
-                             res.setContentType("application/json");
-                             action.get(req, res);
-                         } else if (method.equalsIgnoreCase("POST")) {
-                             res.setContentType("application/json");
-                             action.post(req, res);
-                         } else if (method.equalsIgnoreCase("PUT")) {
-                             res.setContentType("application/json");
-                             action.put(req, res);
-                         } else if (method.equalsIgnoreCase("DELETE")) {
-                             res.setContentType("application/json");
-                             action.delete(req, res);
-                         } else {
-                             res.sendError(400);
-                         }
-                     }
-                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+            InputProcessor.processInput(req, res);
+            RouteTable.Method method = RouteTable.Method.of(req.getMethod());
+            if (method == null) {
                 res.sendError(400);
+                return;
+            }
+            REST action = route.getHandler();
+            validrequest = action.validate(req.getMethod(), req, res);
+            if (validrequest) {
+                switch (method) {
+                    case GET:
+                        action.get(req, res);
+                        break;
+                    case POST:
+                        action.post(req, res);
+                        break;
+                    case PUT:
+                        action.put(req, res);
+                        break;
+                    case DELETE:
+                        action.delete(req, res);
+                        break;
+                }
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+            res.sendError(400);
         }
     }
 
@@ -126,8 +105,24 @@ public class InterceptingFilter implements Filter {
         SystemConfig.loadAppConfig(filterConfig.getServletContext());
 
         System.out.println("Loaded TSI App Config");
+        KmsService.createInstance();
+        System.out.println("Loaded TSI KMS Service");
+        ShardRouter.createInstance();
+        System.out.println("Loaded TSI Shard Router");
+        IdNormalizer.createInstance();
+        System.out.println("Loaded TSI ID Normalizer");
+        LookupFilter.createInstance();
+        System.out.println("Loaded TSI Lookup Filter");
+        ReferenceKeyCache.createInstance();
+        System.out.println("Loaded TSI Reference Key Cache");
+        MappedLookupIndex.createInstance();
+        System.out.println("Loaded TSI Lookup Index");
+        AsyncExecutor.createInstance();
+        System.out.println("Loaded TSI Async Executor");
         JSONSchemaValidator.createInstance(filterConfig.getServletContext());
         System.out.println("Loaded TSI Schema Validator");
+        routes = RouteTable.compile(SystemConfig.getProcessorConfig());
+        System.out.println("Loaded TSI Route Table (" + routes.size() + " routes)");
         System.out.println("TSI Aadhaar Vault Plus Service started in "+System.getenv("TSI_AADHAR_VAULT_PLUS_ENV")+" environment");
     }
 }
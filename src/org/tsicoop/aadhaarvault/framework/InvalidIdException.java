@@ -0,0 +1,14 @@
+package org.tsicoop.aadhaarvault.framework;
+
+/**
+ * Thrown when an ID number fails its type's format, pattern or checksum (see IdNormalizer). The
+ * request is answered 400 with the message, which never contains the ID number itself.
+ */
+public class InvalidIdException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public InvalidIdException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,100 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONArray;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs VaultJobs on background threads, at most one instance per job name on this node.
+ * Shut down from InterceptingFilter.destroy; running jobs stop after their current chunk.
+ */
+public class JobRunner {
+
+    private static final ConcurrentHashMap<String, VaultJob> jobs = new ConcurrentHashMap<>();
+    // The job's status only turns RUNNING once a thread picks it up; its future covers the gap
+    private static final ConcurrentHashMap<String, Future<?>> futures = new ConcurrentHashMap<>();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static ExecutorService executor = null;
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "vault-job-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Starts the job unless a job with the same name is already queued or running here, or a job it
+     * conflicts with is running on any node (see VaultJob.claim).
+     *
+     * @return null once started, or why it was not.
+     */
+    public static synchronized String start(VaultJob job) throws SQLException {
+        Future<?> current = futures.get(job.getName());
+        if (current != null && !current.isDone()) {
+            return "Job is already running";
+        }
+        String conflict = job.claim();
+        if (conflict != null) {
+            return conflict;
+        }
+        jobs.put(job.getName(), job);
+        futures.put(job.getName(), getExecutor().submit(job));
+        return null;
+    }
+
+    /**
+     * @return false if no job with this name is queued or running.
+     */
+    public static synchronized boolean stop(String jobName) {
+        VaultJob job = jobs.get(jobName);
+        Future<?> future = futures.get(jobName);
+        if (job == null || future == null || future.isDone()) {
+            return false;
+        }
+        job.stop();
+        return true;
+    }
+
+    /**
+     * @return The last job started with this name on this node, or null.
+     */
+    public static VaultJob get(String jobName) {
+        return jobs.get(jobName);
+    }
+
+    public static JSONArray getStatus() {
+        JSONArray output = new JSONArray();
+        for (VaultJob job : jobs.values()) {
+            output.add(job.getStatus());
+        }
+        return output;
+    }
+
+    public static synchronized void shutdown() {
+        for (VaultJob job : jobs.values()) {
+            job.stop();
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        jobs.clear();
+        futures.clear();
+    }
+}
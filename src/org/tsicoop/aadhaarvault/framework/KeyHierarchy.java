@@ -0,0 +1,279 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional two-level key hierarchy (kms.keyHierarchy.enabled). The KeyProvider wraps one
+ * key-encryption key (KEK) per client, ID type and rotation period, stored in key_encryption_key.
+ * Row data keys are derived locally with HKDF-SHA256 from the KEK and the row's reference key, so
+ * id_vault rows carry a kek_id instead of their own wrapped data key and KMS is only called when a
+ * KEK is created or first unwrapped on this node.
+ *
+ * Plaintext KEKs are cached in memory and dropped after kms.kek.cacheTtlSeconds without use. They
+ * are not zeroed on eviction because another request may still be deriving from the same KEK.
+ */
+public class KeyHierarchy {
+
+    private static final byte[] HKDF_SALT = "tsi-aadhaar-vault-plus/kek".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HKDF_INFO = "row-data-key/v1".getBytes(StandardCharsets.UTF_8);
+    private static final int DATA_KEY_LENGTH = 32; // AES-256, one HMAC-SHA256 block
+
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    });
+
+    private final KeyProvider keyProvider;
+    private final boolean enabled;
+    private final long rotationPeriodSeconds;
+    private final long cacheTtlMillis;
+
+    private final ConcurrentHashMap<Long, Kek> keksById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Kek> currentKeks = new ConcurrentHashMap<>(); // apiKey|idType -> KEK of the current period
+    private final Object createLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong kmsGenerates = new AtomicLong();
+    private final AtomicLong kmsUnwraps = new AtomicLong();
+    // Concurrent fetches needing the same uncached KEK share one read and KMS unwrap
+    private final SingleFlight<Long, Kek> unwrapFlights = new SingleFlight<>();
+
+    /**
+     * An unwrapped KEK. Holds the HKDF pseudorandom key rather than the KEK itself, so each row
+     * key costs one HMAC.
+     */
+    public static class Kek {
+        private final long id;
+        private final long periodStart;
+        private final byte[] prk;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Kek(long id, long periodStart, byte[] kek) {
+            this.id = id;
+            this.periodStart = periodStart;
+            this.prk = hmac(HKDF_SALT, kek);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * HKDF-Expand(PRK, info || referenceKey, 32).
+         *
+         * @return A DataKey owned by the caller; it has no encrypted form (see kek_id).
+         */
+        public DataKey deriveDataKey(UUID referenceKey) {
+            lastUsed = System.currentTimeMillis();
+            ByteBuffer info = ByteBuffer.allocate(HKDF_INFO.length + 16 + 1);
+            info.put(HKDF_INFO)
+                .putLong(referenceKey.getMostSignificantBits())
+                .putLong(referenceKey.getLeastSignificantBits())
+                .put((byte) 1);
+            byte[] okm = hmac(prk, info.array());
+            return new DataKey(Arrays.copyOf(okm, DATA_KEY_LENGTH), (byte[]) null);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) {
+        Mac mac = HMAC.get();
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (Exception e) {
+            throw new IllegalStateException("HMAC init failed", e);
+        }
+        return mac.doFinal(data);
+    }
+
+    public KeyHierarchy(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        this.enabled = SystemConfig.getBooleanProperty("kms.keyHierarchy.enabled", false);
+        this.rotationPeriodSeconds = Math.max(60, SystemConfig.getIntProperty("kms.kek.rotationPeriodSeconds", 86400));
+        this.cacheTtlMillis = SystemConfig.getIntProperty("kms.kek.cacheTtlSeconds", 3600) * 1000L;
+    }
+
+    /**
+     * @return true if new records should be written under a KEK (existing rows are read either way).
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the KEK for new records of this client and ID type, creating and wrapping one through
+     * the KeyProvider on the first store of a rotation period.
+     */
+    public Kek currentKek(String apiKey, String idType) throws SQLException {
+        long periodStart = System.currentTimeMillis() / 1000L;
+        periodStart -= periodStart % rotationPeriodSeconds;
+        String cacheKey = apiKey + "|" + idType;
+        Kek kek = currentKeks.get(cacheKey);
+        if (kek != null && kek.periodStart == periodStart) {
+            hits.incrementAndGet();
+            return kek;
+        }
+        synchronized (createLock) { // at most once per client/type/period, so a single lock is enough
+            kek = currentKeks.get(cacheKey);
+            if (kek == null || kek.periodStart != periodStart) {
+                kek = loadOrCreate(apiKey, idType, periodStart);
+                keksById.put(kek.id, kek);
+                currentKeks.put(cacheKey, kek);
+            }
+        }
+        return kek;
+    }
+
+    private Kek loadOrCreate(String apiKey, String idType, long periodStart) throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT kek_id, encrypted_kek FROM key_encryption_key WHERE api_key = ? AND id_type_code = ? AND period_start = ?");
+            pstmt.setString(1, apiKey);
+            pstmt.setString(2, idType);
+            pstmt.setLong(3, periodStart);
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return unwrap(rs.getLong("kek_id"), periodStart, rs.getString("encrypted_kek"));
+            }
+            rs.close();
+            pstmt.close();
+
+            DataKey generated = keyProvider.generateDataKey();
+            kmsGenerates.incrementAndGet();
+            try {
+                // Another node may have created the KEK meanwhile; the unique key decides, the loser re-reads
+                pstmt = conn.prepareStatement("INSERT INTO key_encryption_key (api_key, id_type_code, period_start, encrypted_kek, master_key_id) VALUES (?, ?, ?, ?, ?) "
+                                              + "ON CONFLICT (api_key, id_type_code, period_start) DO NOTHING RETURNING kek_id");
+                pstmt.setString(1, apiKey);
+                pstmt.setString(2, idType);
+                pstmt.setLong(3, periodStart);
+                pstmt.setString(4, generated.getEncryptedDataKey());
+                pstmt.setString(5, keyProvider.getKeyId());
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return new Kek(rs.getLong("kek_id"), periodStart, generated.getPlaintextKey());
+                }
+            } finally {
+                generated.destroy();
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        return loadOrCreate(apiKey, idType, periodStart);
+    }
+
+    private Kek unwrap(long kekId, long periodStart, String encryptedKek) {
+        byte[] plaintext = keyProvider.decryptDataKey(Base64.getDecoder().decode(encryptedKek));
+        kmsUnwraps.incrementAndGet();
+        try {
+            return new Kek(kekId, periodStart, plaintext);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Derives the data key of an existing row. Completes immediately when the KEK is cached;
+     * otherwise the KEK is read from key_encryption_key (on the calling thread) and unwrapped
+     * through the KeyProvider without blocking. Callers arriving while that is in flight share it.
+     */
+    public CompletableFuture<DataKey> deriveDataKeyAsync(long kekId, UUID referenceKey) throws SQLException {
+        Kek kek = keksById.get(kekId);
+        if (kek != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(kek.deriveDataKey(referenceKey));
+        }
+        return unwrapFlights.execute(kekId, () -> {
+            try {
+                return loadAndUnwrapAsync(kekId);
+            } catch (SQLException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }).thenApply(unwrapped -> unwrapped.deriveDataKey(referenceKey));
+    }
+
+    private CompletableFuture<Kek> loadAndUnwrapAsync(long kekId) throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        long periodStart;
+        String encryptedKek;
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT period_start, encrypted_kek FROM key_encryption_key WHERE kek_id = ?");
+            pstmt.setLong(1, kekId);
+            rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                throw new SQLException("Key encryption key not found: " + kekId);
+            }
+            periodStart = rs.getLong("period_start");
+            encryptedKek = rs.getString("encrypted_kek");
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        return keyProvider.decryptDataKeyAsync(Base64.getDecoder().decode(encryptedKek)).thenApply(plaintext -> {
+            kmsUnwraps.incrementAndGet();
+            Kek unwrapped;
+            try {
+                unwrapped = new Kek(kekId, periodStart, plaintext);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+            Kek existing = keksById.putIfAbsent(kekId, unwrapped);
+            return existing != null ? existing : unwrapped;
+        });
+    }
+
+    /**
+     * Drops KEKs that have not been used for kms.kek.cacheTtlSeconds.
+     */
+    public void evictExpired() {
+        long cutoff = System.currentTimeMillis() - cacheTtlMillis;
+        keksById.values().removeIf(kek -> kek.lastUsed < cutoff);
+        for (Iterator<Kek> it = currentKeks.values().iterator(); it.hasNext(); ) {
+            if (it.next().lastUsed < cutoff) {
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        keksById.clear();
+        currentKeks.clear();
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("enabled", enabled);
+        stats.put("cachedKeks", keksById.size());
+        stats.put("hits", hits.get());
+        stats.put("kmsGenerates", kmsGenerates.get());
+        stats.put("kmsUnwraps", kmsUnwraps.get());
+        stats.put("unwrapsCoalesced", unwrapFlights.getStats().get("coalesced"));
+        return stats;
+    }
+}
@@ -0,0 +1,68 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wraps and unwraps data keys under a master key (a KMS CMK or a local software key).
+ * KmsService layers its caches, pool and client-side AES on top of a KeyProvider, so nothing
+ * above it depends on a particular backend. Selected with KMS_PROVIDER (see KmsService.createInstance).
+ *
+ * Encrypted data keys are opaque byte arrays owned by the provider that produced them.
+ * Failures are reported as RuntimeException, matching the existing KmsService methods.
+ */
+public interface KeyProvider extends AutoCloseable {
+
+    /**
+     * @return Short provider name for logs and metrics (e.g. "aws", "local").
+     */
+    String getName();
+
+    /**
+     * @return The master key new data keys are wrapped under.
+     */
+    String getKeyId();
+
+    /**
+     * Generates a fresh AES-256 data key.
+     *
+     * @return A DataKey owned by the caller (Base64 encrypted form, plaintext bytes).
+     */
+    DataKey generateDataKey();
+
+    CompletableFuture<DataKey> generateDataKeyAsync();
+
+    /**
+     * Unwraps an encrypted data key produced by generateDataKey or reEncrypt.
+     *
+     * @return The plaintext data key; the caller should zero it when done.
+     */
+    byte[] decryptDataKey(byte[] encryptedDataKey);
+
+    CompletableFuture<byte[]> decryptDataKeyAsync(byte[] encryptedDataKey);
+
+    /**
+     * Re-wraps an encrypted data key under another master key without exposing the plaintext
+     * to the caller. A null destinationKeyId means the provider's current key.
+     */
+    byte[] reEncrypt(byte[] encryptedDataKey, String destinationKeyId);
+
+    CompletableFuture<byte[]> reEncryptAsync(byte[] encryptedDataKey, String destinationKeyId);
+
+    /**
+     * Encrypts a small payload (up to 4KB) directly under the master key.
+     */
+    byte[] encrypt(byte[] plaintext, Map<String, String> encryptionContext);
+
+    CompletableFuture<byte[]> encryptAsync(byte[] plaintext, Map<String, String> encryptionContext);
+
+    /**
+     * Decrypts a payload produced by encrypt; the encryption context must match.
+     */
+    byte[] decrypt(byte[] ciphertext, Map<String, String> encryptionContext);
+
+    CompletableFuture<byte[]> decryptAsync(byte[] ciphertext, Map<String, String> encryptionContext);
+
+    @Override
+    void close();
+}
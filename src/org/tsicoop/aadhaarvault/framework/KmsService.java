@@ -1,47 +1,140 @@
 package org.tsicoop.aadhaarvault.framework;
 
-import software.amazon.awssdk.core.SdkBytes;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.kms.KmsClient;
-import software.amazon.awssdk.services.kms.model.DecryptRequest;
-import software.amazon.awssdk.services.kms.model.DecryptResponse;
-import software.amazon.awssdk.services.kms.model.EncryptRequest;
-import software.amazon.awssdk.services.kms.model.EncryptResponse;
-import software.amazon.awssdk.services.kms.model.GenerateDataKeyRequest;
-import software.amazon.awssdk.services.kms.model.GenerateDataKeyResponse;
-import software.amazon.awssdk.services.kms.model.DataKeySpec;
-import software.amazon.awssdk.services.kms.model.KmsException;
+import org.json.simple.JSONObject;
+
 import java.util.Base64;// If not using Java 8+ java.util.Base64
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class KmsService {
 
-    private final KmsClient kmsClient;
-    private final String kmsKeyId; // KMS Key ARN or Alias ARN
+    // Process-wide instance, created once in InterceptingFilter.init and closed in destroy
+    private static volatile KmsService kmsService = null;
+
+    private final KeyProvider keyProvider; // AWS KMS by default; see createInstance
     private byte[] masterAESTransientKey; // Conceptual: Stores a master AES key loaded from KMS once
 
-    private static final String AES_ALGORITHM = "AES/CBC/PKCS5Padding";
-    private static final int IV_LENGTH = 16; // 16 bytes for AES CBC
+    // Reuses store-path data keys per ID type (see generateDataKey(String, Integer, Integer))
+    private final DataKeyCache dataKeyCache = new DataKeyCache();
+    // Pre-generated data keys, so a store after a key is retired rarely waits for KMS
+    private final DataKeyPool dataKeyPool;
+    // Plaintext data keys already unwrapped by KMS, for the fetch path (see unwrapDataKey)
+    private final DecryptedKeyCache decryptedKeyCache;
+    // Concurrent cache misses for the same encrypted data key share one KMS decrypt
+    private final SingleFlight<ByteBuffer, byte[]> unwrapFlights = new SingleFlight<>();
+    // Optional KEK-per-client/type/period mode with locally derived row keys (kms.keyHierarchy.enabled)
+    private final KeyHierarchy keyHierarchy;
+    // Long-lived keys for the masked form of stored IDs (fetch_masked_id_by_reference)
+    private final MaskingKeys maskingKeys;
+    private final ScheduledExecutorService keySweeper;
 
     public KmsService(String region, String kmsKeyId) {
-        this.kmsClient = KmsClient.builder()
-                .region(Region.of(region))
-                .build();
-        this.kmsKeyId = kmsKeyId;
+        this(new AwsKmsKeyProvider(region, kmsKeyId));
+    }
+
+    public KmsService(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        this.keyHierarchy = new KeyHierarchy(keyProvider);
+        this.maskingKeys = new MaskingKeys(keyProvider);
+        this.decryptedKeyCache = new DecryptedKeyCache(
+                SystemConfig.getIntProperty("kms.decryptedkey.cache.maxEntries", 10000),
+                TimeUnit.SECONDS.toMillis(SystemConfig.getIntProperty("kms.decryptedkey.cache.ttlSeconds", 300)));
+        this.dataKeyPool = new DataKeyPool(
+                SystemConfig.getIntProperty("kms.datakey.pool.low", 2),
+                SystemConfig.getIntProperty("kms.datakey.pool.high", 8),
+                TimeUnit.SECONDS.toMillis(SystemConfig.getIntProperty("kms.datakey.pool.maxIdleSeconds", 900)),
+                this::newDataKey);
+        if (!keyHierarchy.isEnabled()) {
+            this.dataKeyPool.prime(); // in key-hierarchy mode stores derive their keys from a KEK instead
+        }
+        this.keySweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kms-key-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        this.keySweeper.scheduleWithFixedDelay(() -> {
+            dataKeyCache.evictExpired();
+            dataKeyPool.evictExpired();
+            decryptedKeyCache.evictExpired();
+            keyHierarchy.evictExpired();
+        }, 30, 30, TimeUnit.SECONDS);
         // In a real scenario, you'd load this master key securely on startup
         // using generateDataKey or decryptDataKey of a stored encrypted master data key.
         // For simplicity in this example, it's a placeholder.
         // Example: loadMasterAESTransientKey();
     }
 
+    /**
+     * Creates the shared KmsService from the app config. Called once from InterceptingFilter.init.
+     */
+    public static synchronized void createInstance() {
+        if (kmsService == null) {
+            KeyProvider provider = createKeyProvider();
+            FaultInjector faults = FaultInjector.forKms();
+            if (faults != null) {
+                // Load tests only (FAULT_PROFILE); sits below the resilience layer so it sees the faults
+                provider = new FaultInjectingKeyProvider(provider, faults);
+            }
+            if (SystemConfig.getBooleanProperty("kms.resilience.enabled", true)) {
+                // Bulkhead, circuit breaker, timeouts and hedging around every provider call
+                provider = new ResilientKeyProvider(provider);
+            }
+            kmsService = new KmsService(provider);
+        }
+    }
+
+    /**
+     * KMS_PROVIDER=aws (default) uses the configured KMS key; KMS_PROVIDER=local uses an offline
+     * software key (LocalKeyProvider) for benchmarks and CI.
+     */
+    private static KeyProvider createKeyProvider() {
+        String provider = SystemConfig.getAppConfig().getProperty("kms.provider", "aws").trim().toLowerCase();
+        switch (provider) {
+            case "aws":
+                return new AwsKmsKeyProvider(SystemConfig.getAppConfig().getProperty("aws.region"),
+                                             SystemConfig.getAppConfig().getProperty("aws.kms.identifier"));
+            case "local":
+                return new LocalKeyProvider();
+            default:
+                throw new IllegalArgumentException("Unknown KMS provider: " + provider);
+        }
+    }
+
+    public KeyProvider getKeyProvider() {
+        return keyProvider;
+    }
+
+    public KeyHierarchy getKeyHierarchy() {
+        return keyHierarchy;
+    }
+
+    public MaskingKeys getMaskingKeys() {
+        return maskingKeys;
+    }
+
+    public static KmsService getHandle() {
+        return kmsService;
+    }
+
+    /**
+     * Closes the shared KmsService and its HTTP connection pool. Called from InterceptingFilter.destroy.
+     */
+    public static synchronized void shutdown() {
+        if (kmsService != null) {
+            kmsService.close();
+            kmsService = null;
+        }
+    }
+
     // Conceptual method to load a master AES key from KMS at application startup
     // In production, this key should itself be encrypted by KMS and only decrypted here once.
     // For this example, we'll simulate generating it once.
@@ -50,16 +143,13 @@ public class KmsService {
             System.out.println("KmsService: Loading master AES key for client-side encryption...");
             try {
                 // Generate a data key from KMS to be used as our master AES key
-                GenerateDataKeyResponse response = kmsClient.generateDataKey(GenerateDataKeyRequest.builder()
-                        .keyId(kmsKeyId)
-                        .keySpec(DataKeySpec.AES_256)
-                        .build());
-                this.masterAESTransientKey = response.plaintext().asByteArray();
-                // WARNING: The encrypted counterpart (response.ciphertextBlob()) should be stored
+                DataKey dataKey = keyProvider.generateDataKey();
+                this.masterAESTransientKey = dataKey.getPlaintextKey();
+                // WARNING: The encrypted counterpart (dataKey.getEncryptedDataKey()) should be stored
                 // and the plaintext used only temporarily in memory for real envelope encryption.
                 // This is a simplification for the 'master key once' scenario.
                 System.out.println("KmsService: Master AES key loaded successfully.");
-            } catch (KmsException e) {
+            } catch (RuntimeException e) {
                 System.err.println("KmsService: Error loading master AES key from KMS: " + e.getMessage());
                 // In production, this should be a critical startup failure
                 throw new RuntimeException("Failed to load master AES key from KMS", e);
@@ -85,20 +175,8 @@ public class KmsService {
      * @return Base64 encoded ciphertext.
      */
     public String encryptDataWithKms(String plaintext, Map<String, String> encryptionContext) {
-        try {
-            EncryptRequest encryptRequest = EncryptRequest.builder()
-                    .keyId(kmsKeyId)
-                    .plaintext(SdkBytes.fromString(plaintext, StandardCharsets.UTF_8))
-                    .encryptionContext(encryptionContext)
-                    .build();
-
-            EncryptResponse encryptResponse = kmsClient.encrypt(encryptRequest);
-            return Base64.getEncoder().encodeToString(encryptResponse.ciphertextBlob().asByteArray());
-
-        } catch (KmsException e) {
-            System.err.println("KMS Encryption Error: " + e.getMessage());
-            throw new RuntimeException("Failed to encrypt data with KMS", e);
-        }
+        byte[] ciphertext = keyProvider.encrypt(plaintext.getBytes(StandardCharsets.UTF_8), encryptionContext);
+        return Base64.getEncoder().encodeToString(ciphertext);
     }
 
     /**
@@ -110,21 +188,8 @@ public class KmsService {
      * @return Decrypted plaintext.
      */
     public String decryptDataWithKms(String ciphertextBase64, Map<String, String> encryptionContext) {
-        try {
-            byte[] ciphertextBytes = Base64.getDecoder().decode(ciphertextBase64);
-
-            DecryptRequest decryptRequest = DecryptRequest.builder()
-                    .ciphertextBlob(SdkBytes.fromByteArray(ciphertextBytes))
-                    .encryptionContext(encryptionContext)
-                    .build();
-
-            DecryptResponse decryptResponse = kmsClient.decrypt(decryptRequest);
-            return decryptResponse.plaintext().asString(StandardCharsets.UTF_8);
-
-        } catch (KmsException e) {
-            System.err.println("KMS Decryption Error: " + e.getMessage());
-            throw new RuntimeException("Failed to decrypt data with KMS", e);
-        }
+        byte[] plaintext = keyProvider.decrypt(Base64.getDecoder().decode(ciphertextBase64), encryptionContext);
+        return new String(plaintext, StandardCharsets.UTF_8);
     }
 
     /**
@@ -135,23 +200,77 @@ public class KmsService {
      * @return A map containing "plaintextDataKey" (Base64 encoded) and "encryptedDataKey" (Base64 encoded).
      */
     public Map<String, String> generateDataKey() {
-        try {
-            GenerateDataKeyRequest generateDataKeyRequest = GenerateDataKeyRequest.builder()
-                    .keyId(kmsKeyId)
-                    .keySpec(DataKeySpec.AES_256) // Request an AES-256 key
-                    .build();
+        DataKey dataKey = newDataKey();
+        Map<String, String> keys = new HashMap<>();
+        keys.put("plaintextDataKey", Base64.getEncoder().encodeToString(dataKey.getPlaintextKey()));
+        keys.put("encryptedDataKey", dataKey.getEncryptedDataKey());
+        dataKey.destroy();
+        return keys;
+    }
+
+    /**
+     * Returns a data key for encrypting one record of the given ID type.
+     * The same KMS data key is reused for up to maxUses encryptions or maxAgeSeconds, whichever
+     * comes first, after which it is retired and zeroed. Null limits fall back to the configured
+     * defaults (kms.datakey.cache.maxUses / kms.datakey.cache.maxAgeSeconds); a limit of 1 or 0
+     * disables reuse for that ID type.
+     *
+     * @return A DataKey owned by the caller; call destroy() once the record is encrypted.
+     */
+    public DataKey generateDataKey(String idType, Integer maxUses, Integer maxAgeSeconds) {
+        int uses = maxUses != null ? maxUses : SystemConfig.getIntProperty("kms.datakey.cache.maxUses", 500);
+        int ageSeconds = maxAgeSeconds != null ? maxAgeSeconds : SystemConfig.getIntProperty("kms.datakey.cache.maxAgeSeconds", 300);
+        return dataKeyCache.acquire(idType, uses, TimeUnit.SECONDS.toMillis(ageSeconds), () -> {
+            DataKey dataKey = dataKeyPool.poll();
+            if (dataKey == null) {
+                dataKey = newDataKey(); // pool empty or disabled
+            }
+            // Records written under this key are usually read back soon; save their first KMS decrypt
+            decryptedKeyCache.put(dataKey.getEncryptedDataKeyBytes(), dataKey.getPlaintextKey());
+            return dataKey;
+        });
+    }
+
+    /**
+     * Non-blocking variant of generateDataKey(String, Integer, Integer). Completes immediately on a
+     * cache hit or when a pooled key is available, otherwise when KMS GenerateDataKey returns.
+     */
+    public CompletableFuture<DataKey> generateDataKeyAsync(String idType, Integer maxUses, Integer maxAgeSeconds) {
+        int uses = maxUses != null ? maxUses : SystemConfig.getIntProperty("kms.datakey.cache.maxUses", 500);
+        long ageMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds != null ? maxAgeSeconds : SystemConfig.getIntProperty("kms.datakey.cache.maxAgeSeconds", 300));
+        DataKey cached = dataKeyCache.tryAcquire(idType, uses, ageMillis);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        DataKey pooled = dataKeyPool.poll();
+        CompletableFuture<DataKey> fresh = pooled != null ? CompletableFuture.completedFuture(pooled) : newDataKeyAsync();
+        return fresh.thenApply(dataKey -> {
+            decryptedKeyCache.put(dataKey.getEncryptedDataKeyBytes(), dataKey.getPlaintextKey());
+            return dataKeyCache.install(idType, dataKey, uses, ageMillis);
+        });
+    }
 
-            GenerateDataKeyResponse response = kmsClient.generateDataKey(generateDataKeyRequest);
+    private DataKey newDataKey() {
+        return keyProvider.generateDataKey();
+    }
 
-            Map<String, String> keys = new HashMap<>();
-            keys.put("plaintextDataKey", Base64.getEncoder().encodeToString(response.plaintext().asByteArray()));
-            keys.put("encryptedDataKey", Base64.getEncoder().encodeToString(response.ciphertextBlob().asByteArray()));
-            return keys;
+    private CompletableFuture<DataKey> newDataKeyAsync() {
+        return keyProvider.generateDataKeyAsync();
+    }
 
-        } catch (KmsException e) {
-            System.err.println("KMS GenerateDataKey Error: " + e.getMessage());
-            throw new RuntimeException("Failed to generate data key with KMS", e);
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("provider", keyProvider.getName());
+        stats.put("dataKeyCache", dataKeyCache.getStats());
+        stats.put("decryptedKeyCache", decryptedKeyCache.getStats());
+        stats.put("unwrapSingleFlight", unwrapFlights.getStats()); // coalesced = KMS decrypts saved
+        stats.put("dataKeyPool", dataKeyPool.getStats());
+        stats.put("keyHierarchy", keyHierarchy.getStats());
+        stats.put("maskingKeys", maskingKeys.getStats());
+        if (keyProvider instanceof ResilientKeyProvider) {
+            stats.put("resilience", ((ResilientKeyProvider) keyProvider).getStats());
         }
+        return stats;
     }
 
     /**
@@ -163,69 +282,129 @@ public class KmsService {
      * @return The plaintext data key (Base64 encoded).
      */
     public String decryptDataKey(String encryptedDataKeyBase64) {
-        try {
-            byte[] encryptedDataKeyBytes = Base64.getDecoder().decode(encryptedDataKeyBase64);
+        byte[] plaintextKey = keyProvider.decryptDataKey(Base64.getDecoder().decode(encryptedDataKeyBase64));
+        return Base64.getEncoder().encodeToString(plaintextKey);
+    }
 
-            DecryptRequest decryptRequest = DecryptRequest.builder()
-                    .ciphertextBlob(SdkBytes.fromByteArray(encryptedDataKeyBytes))
-                    .keyId(kmsKeyId) // Specify the CMK that encrypted the data key
-                    .build();
+    /**
+     * Re-wraps a stored encrypted data key under another master key (null for the current one).
+     * The plaintext key is never returned to the caller.
+     *
+     * @return The new encrypted data key (Base64 encoded).
+     */
+    public String reEncryptDataKey(String encryptedDataKeyBase64, String destinationKeyId) {
+        byte[] reEncrypted = keyProvider.reEncrypt(Base64.getDecoder().decode(encryptedDataKeyBase64), destinationKeyId);
+        return Base64.getEncoder().encodeToString(reEncrypted);
+    }
 
-            DecryptResponse response = kmsClient.decrypt(decryptRequest);
-            return Base64.getEncoder().encodeToString(response.plaintext().asByteArray());
+    // --- Non-blocking variants ---
+    // Futures complete on provider (SDK) threads; callers doing blocking work (JDBC) should continue on their own executor.
 
-        } catch (KmsException e) {
-            System.err.println("KMS DecryptDataKey Error: " + e.getMessage());
-            throw new RuntimeException("Failed to decrypt data key with KMS", e);
-        }
+    /**
+     * Non-blocking variant of encryptDataWithKms.
+     */
+    public CompletableFuture<String> encryptDataWithKmsAsync(String plaintext, Map<String, String> encryptionContext) {
+        return keyProvider.encryptAsync(plaintext.getBytes(StandardCharsets.UTF_8), encryptionContext)
+                .thenApply(ciphertext -> Base64.getEncoder().encodeToString(ciphertext));
     }
 
-    public void close() {
-        if (kmsClient != null) {
-            kmsClient.close();
-        }
+    /**
+     * Non-blocking variant of decryptDataWithKms.
+     */
+    public CompletableFuture<String> decryptDataWithKmsAsync(String ciphertextBase64, Map<String, String> encryptionContext) {
+        return keyProvider.decryptAsync(Base64.getDecoder().decode(ciphertextBase64), encryptionContext)
+                .thenApply(plaintext -> new String(plaintext, StandardCharsets.UTF_8));
     }
 
-    // --- Client-Side AES Encryption/Decryption using a Plaintext Data Key ---
-    // (This part is used by your application for actual sensitive data encryption/decryption)
-
-    public byte[] aesEncrypt(byte[] data, byte[] plaintextAesKey) throws Exception {
-        SecretKeySpec secretKey = new SecretKeySpec(plaintextAesKey, "AES");
-        SecureRandom secureRandom = new SecureRandom();
-        byte[] iv = new byte[IV_LENGTH];
-        secureRandom.nextBytes(iv); // Generate a random IV for each encryption
-
-        Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+    /**
+     * Non-blocking variant of decryptDataKey.
+     *
+     * @return The plaintext data key (Base64 encoded).
+     */
+    public CompletableFuture<String> decryptDataKeyAsync(String encryptedDataKeyBase64) {
+        return keyProvider.decryptDataKeyAsync(Base64.getDecoder().decode(encryptedDataKeyBase64))
+                .thenApply(plaintextKey -> Base64.getEncoder().encodeToString(plaintextKey));
+    }
 
-        byte[] encryptedData = cipher.doFinal(data);
-        // This 'encryptedData' should always be a multiple of 16 if padding is used.
-        System.out.println("DEBUG_ENCRYPT: Ciphertext length before IV prepend: " + encryptedData.length); // ADD THIS
+    /**
+     * Returns the plaintext of a stored encrypted data key, calling KMS only when the key is not
+     * already in the decrypted-key cache. Rows sharing an encrypted_data_key (see the store-path
+     * data key reuse) therefore cost one KMS decrypt per cache TTL instead of one per fetch.
+     *
+     * @param encryptedDataKeyBase64 The Base64 encoded encrypted data key, as stored in id_vault.
+     * @return A DataKey owned by the caller; call destroy() once the record is decrypted.
+     */
+    public DataKey unwrapDataKey(String encryptedDataKeyBase64) {
+        return unwrapDataKey(Base64.getDecoder().decode(encryptedDataKeyBase64));
+    }
 
-        // Prepend IV to encrypted data so it can be used for decryption
-        byte[] encryptedDataWithIv = new byte[iv.length + encryptedData.length];
-        System.arraycopy(iv, 0, encryptedDataWithIv, 0, iv.length);
-        System.arraycopy(encryptedData, 0, encryptedDataWithIv, iv.length, encryptedData.length);
-        System.out.println("DEBUG_ENCRYPT: Final blob length (IV+Ciphertext): " + encryptedDataWithIv.length); // ADD THIS
-        return encryptedDataWithIv;
+    /**
+     * As unwrapDataKey(String), for an encrypted data key stored as bytes (encrypted_data_key_bin).
+     */
+    public DataKey unwrapDataKey(byte[] encryptedDataKey) {
+        try {
+            return unwrapDataKeyAsync(encryptedDataKey).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
     }
 
-    public byte[] aesDecrypt(byte[] encryptedDataWithIv, byte[] plaintextAesKey) throws Exception {
-        SecretKeySpec secretKey = new SecretKeySpec(plaintextAesKey, "AES");
+    /**
+     * Non-blocking variant of unwrapDataKey. Completes immediately on a decrypted-key cache hit;
+     * on a miss, callers asking for the same key while its KMS decrypt is in flight wait for that
+     * call instead of issuing their own.
+     */
+    public CompletableFuture<DataKey> unwrapDataKeyAsync(String encryptedDataKeyBase64) {
+        return unwrapDataKeyAsync(Base64.getDecoder().decode(encryptedDataKeyBase64));
+    }
 
-        byte[] iv = Arrays.copyOfRange(encryptedDataWithIv, 0, IV_LENGTH);
-        byte[] encryptedData = Arrays.copyOfRange(encryptedDataWithIv, IV_LENGTH, encryptedDataWithIv.length);
+    public CompletableFuture<DataKey> unwrapDataKeyAsync(byte[] encryptedDataKey) {
+        byte[] plaintextKey = decryptedKeyCache.get(encryptedDataKey);
+        if (plaintextKey != null) {
+            return CompletableFuture.completedFuture(new DataKey(plaintextKey, encryptedDataKey));
+        }
+        // Every caller gets (and destroys) its own copy; the provider's array is zeroed once all are made
+        return unwrapFlights.executeOwned(ByteBuffer.wrap(encryptedDataKey), () -> keyProvider.decryptDataKeyAsync(encryptedDataKey).thenApply(unwrapped -> {
+            decryptedKeyCache.put(encryptedDataKey, unwrapped); // copies it; before the flight ends, so later callers hit the cache
+            return unwrapped;
+        }), byte[]::clone, unwrapped -> Arrays.fill(unwrapped, (byte) 0)).thenApply(plaintext -> new DataKey(plaintext, encryptedDataKey));
+    }
 
-        System.out.println("DEBUG: encryptedDataWithIv length: " + encryptedDataWithIv.length);
+    public void close() {
+        keySweeper.shutdownNow();
+        dataKeyPool.close();
+        dataKeyCache.clear();
+        decryptedKeyCache.clear();
+        keyHierarchy.clear();
+        maskingKeys.clear();
+        keyProvider.close();
+    }
 
-        System.out.println("DEBUG: IV length: " + iv.length);
+    // --- Client-Side AES Encryption/Decryption using a Plaintext Data Key ---
+    // (This part is used by your application for actual sensitive data encryption/decryption)
 
-        System.out.println("DEBUG: Ciphertext length (after IV extraction): " + encryptedData.length);
+    /**
+     * Encrypts with AES-GCM (see CryptoEngine); the result is IV || ciphertext || tag.
+     */
+    public byte[] aesEncrypt(byte[] data, byte[] plaintextAesKey) throws Exception {
+        return CryptoEngine.encrypt(data, plaintextAesKey);
+    }
 
-        Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
+    /**
+     * Decrypts the output of aesEncrypt.
+     */
+    public byte[] aesDecrypt(byte[] encryptedData, byte[] plaintextAesKey) throws Exception {
+        return CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, encryptedData, plaintextAesKey);
+    }
 
-        return cipher.doFinal(encryptedData);
+    /**
+     * Decrypts a stored record in the format given by id_vault.cipher_alg (legacy CBC or GCM).
+     */
+    public byte[] aesDecrypt(int cipherAlg, byte[] encryptedData, byte[] plaintextAesKey) throws Exception {
+        return CryptoEngine.decrypt(cipherAlg, encryptedData, plaintextAesKey);
     }
 
     public static void main(String[] args) {
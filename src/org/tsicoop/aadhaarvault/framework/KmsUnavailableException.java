@@ -0,0 +1,14 @@
+package org.tsicoop.aadhaarvault.framework;
+
+/**
+ * Thrown when a key provider call is shed instead of attempted (circuit open, bulkhead full) or
+ * gives up waiting. Callers should answer 503 rather than 500; the caller may retry later.
+ */
+public class KmsUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public KmsUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,136 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (four per power of two, about 19% wide)
+ * from 1 microsecond to about a minute.
+ *
+ * Percentiles cover the current and the previous window of windowMillis, so they follow recent
+ * behaviour (a KMS brownout shows up within one window) without dropping to zero samples right
+ * after a rotation. Counts and max are cumulative.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int MAX_EXPONENT = 26; // 2^26 us, about 67 s
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - 1) * SUB_BUCKETS;
+
+    private final long windowMillis;
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+    private volatile long windowStart = System.currentTimeMillis();
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public LatencyHistogram(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public void record(long nanos) {
+        rotateIfDue();
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        current.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * @return Samples in the current and previous window.
+     */
+    public long getRecentCount() {
+        rotateIfDue();
+        AtomicLongArray cur = current;
+        AtomicLongArray prev = previous;
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += cur.get(i) + prev.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile 0.0 to 1.0
+     * @return Upper bound of the bucket holding the percentile, in microseconds; 0 without samples.
+     */
+    public long percentileMicros(double percentile) {
+        rotateIfDue();
+        AtomicLongArray cur = current;
+        AtomicLongArray prev = previous;
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            merged[i] = cur.get(i) + prev.get(i);
+            total += merged[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += merged[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    private void rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < windowMillis) {
+            return;
+        }
+        synchronized (this) {
+            if (now - windowStart >= windowMillis) {
+                // A whole idle window means the previous samples are stale too
+                previous = now - windowStart >= 2 * windowMillis ? new AtomicLongArray(BUCKETS) : current;
+                current = new AtomicLongArray(BUCKETS);
+                windowStart = now;
+            }
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) ((micros >>> (exponent - 2)) & (SUB_BUCKETS - 1));
+        return SUB_BUCKETS + (exponent - 2) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1)) << (exponent - 2);
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("count", count.get());
+        stats.put("errors", errors.get());
+        stats.put("p50Ms", percentileMicros(0.50) / 1000.0);
+        stats.put("p95Ms", percentileMicros(0.95) / 1000.0);
+        stats.put("p99Ms", percentileMicros(0.99) / 1000.0);
+        stats.put("maxMs", maxMicros.get() / 1000.0);
+        return stats;
+    }
+}
@@ -0,0 +1,310 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Offline KeyProvider for benchmarks, load tests and CI: data keys are wrapped with AES-GCM under a
+ * master key held in a local file or a PKCS#12 keystore, so the real store/fetch code paths run
+ * without AWS credentials. An artificial latency (kms.local.latencyMs +/- kms.local.latencyJitterMs)
+ * can be added to every call to approximate a KMS round trip.
+ *
+ * Not for production use: the master key is only as safe as the file it lives in.
+ *
+ * Wrapped blob layout: [version:1][key fingerprint:8][iv:12][ciphertext + GCM tag:16].
+ * The header is bound as AAD, together with the encryption context for encrypt/decrypt.
+ */
+public class LocalKeyProvider implements KeyProvider {
+
+    private static final byte VERSION = 1;
+    private static final int FINGERPRINT_LENGTH = 8;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int HEADER_LENGTH = 1 + FINGERPRINT_LENGTH + IV_LENGTH;
+    private static final int DATA_KEY_LENGTH = 32; // AES-256, same as KMS DataKeySpec.AES_256
+
+    private final Map<String, SecretKey> keysByAlias = new HashMap<>();
+    private final Map<String, byte[]> fingerprintsByAlias = new HashMap<>();
+    private final String currentAlias;
+    private final long latencyMs;
+    private final long latencyJitterMs;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    public LocalKeyProvider() {
+        this.currentAlias = SystemConfig.getAppConfig().getProperty("kms.local.keyAlias", "vault-master");
+        this.latencyMs = SystemConfig.getIntProperty("kms.local.latencyMs", 0);
+        this.latencyJitterMs = SystemConfig.getIntProperty("kms.local.latencyJitterMs", 0);
+        String keystore = SystemConfig.getAppConfig().getProperty("kms.local.keystore", "");
+        try {
+            if (!keystore.isEmpty()) {
+                loadKeystore(keystore, SystemConfig.getAppConfig().getProperty("kms.local.keystorePassword", ""));
+            } else {
+                loadKeyFile(SystemConfig.getAppConfig().getProperty("kms.local.masterKeyFile", ""));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load local master key", e);
+        }
+        if (!keysByAlias.containsKey(currentAlias)) {
+            throw new RuntimeException("Local master key alias not found: " + currentAlias);
+        }
+        System.out.println("LocalKeyProvider: using master key " + getKeyId() + " (" + keysByAlias.size() + " key(s) loaded, latency "
+                           + latencyMs + "+/-" + latencyJitterMs + "ms). NOT FOR PRODUCTION USE.");
+    }
+
+    /**
+     * Loads every AES secret key entry of a PKCS#12 keystore; kms.local.keyAlias selects the one
+     * used for new data keys, the others stay available for decrypt and reEncrypt.
+     */
+    private void loadKeystore(String path, String password) throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        char[] pw = password.toCharArray();
+        try (InputStream in = new FileInputStream(path)) {
+            ks.load(in, pw);
+        }
+        Enumeration<String> aliases = ks.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            if (ks.isKeyEntry(alias)) {
+                Key key = ks.getKey(alias, pw);
+                if (key instanceof SecretKey && "AES".equalsIgnoreCase(key.getAlgorithm())) {
+                    addKey(alias, key.getEncoded());
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a Base64 encoded 256-bit key from a file, generating one on first use when the file does
+     * not exist yet (so a fresh CI runner needs no setup).
+     */
+    private void loadKeyFile(String path) throws Exception {
+        Path keyFile = Paths.get(path.isEmpty() ? System.getProperty("java.io.tmpdir") + "/tsi-vault-local-master.key" : path);
+        byte[] key;
+        if (Files.exists(keyFile)) {
+            key = Base64.getDecoder().decode(new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII).trim());
+        } else {
+            key = new byte[DATA_KEY_LENGTH];
+            secureRandom.nextBytes(key);
+            Files.write(keyFile, Base64.getEncoder().encode(key));
+            System.out.println("LocalKeyProvider: generated new master key at " + keyFile);
+        }
+        addKey(currentAlias, key);
+        Arrays.fill(key, (byte) 0);
+    }
+
+    private void addKey(String alias, byte[] keyBytes) throws Exception {
+        if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+            throw new IllegalArgumentException("Master key '" + alias + "' must be an AES key, got " + keyBytes.length + " bytes");
+        }
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(keyBytes);
+        keysByAlias.put(alias, new SecretKeySpec(keyBytes, "AES"));
+        fingerprintsByAlias.put(alias, Arrays.copyOf(digest, FINGERPRINT_LENGTH));
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    @Override
+    public String getKeyId() {
+        return "local:" + currentAlias;
+    }
+
+    // --- Simulated latency ---
+
+    private long nextDelay() {
+        if (latencyMs <= 0 && latencyJitterMs <= 0) {
+            return 0;
+        }
+        long jitter = latencyJitterMs > 0 ? ThreadLocalRandom.current().nextLong(-latencyJitterMs, latencyJitterMs + 1) : 0;
+        return Math.max(0, latencyMs + jitter);
+    }
+
+    private <T> T call(Supplier<T> op) {
+        long delay = nextDelay();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted during simulated KMS latency", e);
+            }
+        }
+        return op.get();
+    }
+
+    private <T> CompletableFuture<T> callAsync(Supplier<T> op) {
+        // Completes on a timer instead of parking a thread, like a real network round trip
+        return CompletableFuture.supplyAsync(op, CompletableFuture.delayedExecutor(nextDelay(), TimeUnit.MILLISECONDS));
+    }
+
+    // --- Wrapping ---
+
+    private String resolveAlias(String keyId) {
+        if (keyId == null) {
+            return currentAlias;
+        }
+        String alias = keyId.startsWith("local:") ? keyId.substring("local:".length()) : keyId;
+        if (!keysByAlias.containsKey(alias)) {
+            throw new RuntimeException("Unknown local master key: " + keyId);
+        }
+        return alias;
+    }
+
+    private byte[] wrap(String alias, byte[] plaintext, byte[] context) {
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            secureRandom.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, keysByAlias.get(alias), new GCMParameterSpec(TAG_BITS, iv));
+            ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + cipher.getOutputSize(plaintext.length));
+            out.put(VERSION).put(fingerprintsByAlias.get(alias)).put(iv);
+            cipher.updateAAD(out.array(), 0, HEADER_LENGTH);
+            if (context != null) {
+                cipher.updateAAD(context);
+            }
+            cipher.doFinal(ByteBuffer.wrap(plaintext), out);
+            return out.array();
+        } catch (Exception e) {
+            throw new RuntimeException("Local key wrap failed", e);
+        }
+    }
+
+    private byte[] unwrap(byte[] blob, byte[] context) {
+        if (blob == null || blob.length < HEADER_LENGTH + TAG_BITS / 8 || blob[0] != VERSION) {
+            throw new RuntimeException("Not a local key provider ciphertext");
+        }
+        byte[] fingerprint = Arrays.copyOfRange(blob, 1, 1 + FINGERPRINT_LENGTH);
+        String alias = null;
+        for (Map.Entry<String, byte[]> e : fingerprintsByAlias.entrySet()) {
+            if (Arrays.equals(e.getValue(), fingerprint)) {
+                alias = e.getKey();
+                break;
+            }
+        }
+        if (alias == null) {
+            throw new RuntimeException("Ciphertext was wrapped under a local master key that is not loaded");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, keysByAlias.get(alias), new GCMParameterSpec(TAG_BITS, blob, 1 + FINGERPRINT_LENGTH, IV_LENGTH));
+            cipher.updateAAD(blob, 0, HEADER_LENGTH);
+            if (context != null) {
+                cipher.updateAAD(context);
+            }
+            return cipher.doFinal(blob, HEADER_LENGTH, blob.length - HEADER_LENGTH);
+        } catch (Exception e) {
+            throw new RuntimeException("Local key unwrap failed", e);
+        }
+    }
+
+    private static byte[] contextBytes(Map<String, String> encryptionContext) {
+        if (encryptionContext == null || encryptionContext.isEmpty()) {
+            return null;
+        }
+        // Canonical (sorted) form, so the same map always yields the same AAD
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : new TreeMap<>(encryptionContext).entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private DataKey newDataKey() {
+        byte[] plaintext = new byte[DATA_KEY_LENGTH];
+        secureRandom.nextBytes(plaintext);
+        return new DataKey(plaintext, wrap(currentAlias, plaintext, null));
+    }
+
+    private byte[] rewrap(byte[] encryptedDataKey, String destinationKeyId) {
+        String alias = resolveAlias(destinationKeyId);
+        byte[] plaintext = unwrap(encryptedDataKey, null);
+        try {
+            return wrap(alias, plaintext, null);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    // --- KeyProvider ---
+
+    @Override
+    public DataKey generateDataKey() {
+        return call(this::newDataKey);
+    }
+
+    @Override
+    public CompletableFuture<DataKey> generateDataKeyAsync() {
+        return callAsync(this::newDataKey);
+    }
+
+    @Override
+    public byte[] decryptDataKey(byte[] encryptedDataKey) {
+        return call(() -> unwrap(encryptedDataKey, null));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptDataKeyAsync(byte[] encryptedDataKey) {
+        return callAsync(() -> unwrap(encryptedDataKey, null));
+    }
+
+    @Override
+    public byte[] reEncrypt(byte[] encryptedDataKey, String destinationKeyId) {
+        return call(() -> rewrap(encryptedDataKey, destinationKeyId));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> reEncryptAsync(byte[] encryptedDataKey, String destinationKeyId) {
+        return callAsync(() -> rewrap(encryptedDataKey, destinationKeyId));
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, Map<String, String> encryptionContext) {
+        return call(() -> wrap(currentAlias, plaintext, contextBytes(encryptionContext)));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> encryptAsync(byte[] plaintext, Map<String, String> encryptionContext) {
+        return callAsync(() -> wrap(currentAlias, plaintext, contextBytes(encryptionContext)));
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, Map<String, String> encryptionContext) {
+        return call(() -> unwrap(ciphertext, contextBytes(encryptionContext)));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext, Map<String, String> encryptionContext) {
+        return callAsync(() -> unwrap(ciphertext, contextBytes(encryptionContext)));
+    }
+
+    @Override
+    public void close() {
+        keysByAlias.clear();
+        fingerprintsByAlias.clear();
+    }
+}
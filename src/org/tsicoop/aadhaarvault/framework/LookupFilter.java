@@ -0,0 +1,388 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per ID type Bloom filters over the HMAC lookup hashes in id_vault (vault.bloom.enabled), so a
+ * duplicate check or fetch_reference_by_id_value for an ID that was never stored is answered
+ * without a database round trip.
+ *
+ * - Built on a background thread by streaming id_vault, and rebuilt every vault.bloom.rebuildHours
+ *   or once a type outgrows the capacity it was sized for.
+ * - Stores on this node are added immediately. Rows stored or repointed (ID normalization, lookup
+ *   hash migration) on other nodes are picked up by polling id_vault.created_at and updated_at
+ *   every vault.bloom.refreshSeconds, re-reading the last minute each time to
+ *   cover clock skew. Until then the filter may not have such a row, so fetch_reference_by_id_value
+ *   only trusts ABSENT once a poll that started after the request has completed, and otherwise
+ *   asks the database. Store trusts it either way because the unique index catches the duplicate
+ *   (see Vault.insertRecord).
+ * - Saved to vault.bloom.snapshotFile after each build and on shutdown, so a restart loads the
+ *   snapshot and only catches up on rows created since, instead of scanning the whole table.
+ *
+ * Only types without legacy-hash rows at build time (see LookupHasher) answer "absent"; for the
+ * others every lookup still goes to the database until a rebuild after lookup_hash_migration.
+ */
+public class LookupFilter {
+
+    public static final int ABSENT = 0;   // definitely not stored; skip the database
+    public static final int MAYBE = 1;    // the database decides
+    public static final int UNKNOWN = 2;  // filter not usable for this type (yet)
+
+    private static final int SNAPSHOT_MAGIC = 0x54534246; // "TSBF"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long POLL_OVERLAP_MILLIS = 60_000;
+    private static final int BUILD_FETCH_SIZE = 10_000;
+
+    private static LookupFilter instance = null;
+
+    private final double falsePositiveRate;
+    private final long minCapacity;
+    private final long rebuildMillis;
+    private final String snapshotFile;
+    private final byte[] keyFingerprint;
+    private final ScheduledExecutorService scheduler;
+
+    private static class TypeFilter {
+        final BloomFilter bloom;
+        final boolean complete; // no legacy-hash rows of this type when built
+
+        TypeFilter(BloomFilter bloom, boolean complete) {
+            this.bloom = bloom;
+            this.complete = complete;
+        }
+    }
+
+    private volatile ConcurrentHashMap<String, TypeFilter> filters = new ConcurrentHashMap<>();
+    private volatile boolean ready = false;
+    private volatile boolean rebuildRequested = false;
+    private volatile long watermarkMillis = 0; // rows created before (watermark - overlap) are in the filters
+    private volatile long lastBuildMillis = 0;
+    private volatile long lastBuildDurationMillis = 0;
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong notPolledYet = new AtomicLong();
+    private final AtomicLong polledRows = new AtomicLong();
+
+    private LookupFilter() {
+        this.falsePositiveRate = Double.parseDouble(SystemConfig.getAppConfig().getProperty("vault.bloom.fpp", "0.01"));
+        this.minCapacity = SystemConfig.getIntProperty("vault.bloom.minCapacity", 1000000);
+        this.rebuildMillis = TimeUnit.HOURS.toMillis(SystemConfig.getIntProperty("vault.bloom.rebuildHours", 24));
+        this.snapshotFile = SystemConfig.getAppConfig().getProperty("vault.bloom.snapshotFile", "").trim();
+        // Ties a snapshot to the lookup key: a snapshot from another TSI_LOOKUP_SALT is ignored
+        this.keyFingerprint = LookupHasher.getDefault().hash(ByteBuffer.wrap("tsi-lookup-filter".getBytes(StandardCharsets.UTF_8)));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lookup-filter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts loading or building the filters in the background. Called once from InterceptingFilter.init.
+     * Not available with id_vault sharded: the filters are built from the primary only, and would
+     * answer ABSENT for rows on the other shards.
+     */
+    public static synchronized void createInstance() {
+        if (instance == null && SystemConfig.getBooleanProperty("vault.bloom.enabled", false)) {
+            if (ShardRouter.getHandle() != null) {
+                System.out.println("LookupFilter: disabled, id_vault is sharded");
+                return;
+            }
+            instance = new LookupFilter();
+            instance.start();
+        }
+    }
+
+    /**
+     * @return The shared filter, or null when vault.bloom.enabled is off.
+     */
+    public static LookupFilter getHandle() {
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.scheduler.shutdownNow();
+            instance.saveSnapshot();
+            instance = null;
+        }
+    }
+
+    private void start() {
+        scheduler.execute(() -> {
+            if (!loadSnapshot()) {
+                rebuildRequested = true;
+            }
+        });
+        int refreshSeconds = Math.max(1, SystemConfig.getIntProperty("vault.bloom.refreshSeconds", 5));
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param currentAt Answer ABSENT only if the rows stored on any node before this time have been
+     *                  polled; 0 to rely on the rows added so far.
+     * @return ABSENT if the lookup hash is definitely not stored for this type, MAYBE if it may be,
+     *         UNKNOWN if the filter cannot tell (not built yet, legacy rows of this type, or not
+     *         polled since currentAt).
+     */
+    public int check(String idType, byte[] lookupHash, long currentAt) {
+        if (!ready) {
+            return UNKNOWN;
+        }
+        TypeFilter filter = filters.get(idType);
+        if (filter != null) {
+            if (!filter.complete) {
+                return UNKNOWN;
+            }
+            checks.incrementAndGet();
+            if (filter.bloom.mightContain(lookupHash)) {
+                return MAYBE;
+            }
+        }
+        // Absent, or no row of this type existed at build and none has been stored since
+        if (watermarkMillis < currentAt) {
+            notPolledYet.incrementAndGet();
+            return UNKNOWN;
+        }
+        if (filter != null) {
+            skipped.incrementAndGet();
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Called when check said MAYBE but the database had no such row.
+     */
+    public void recordFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    /**
+     * Adds a newly stored row.
+     */
+    public void add(String idType, byte[] lookupHash) {
+        add(filters, idType, lookupHash);
+    }
+
+    private void add(ConcurrentHashMap<String, TypeFilter> target, String idType, byte[] lookupHash) {
+        target.computeIfAbsent(idType, t -> new TypeFilter(BloomFilter.create(minCapacity, falsePositiveRate), true)).bloom.add(lookupHash);
+    }
+
+    /**
+     * Rebuilds from the table on the next refresh, e.g. once lookup_hash_migration has completed.
+     */
+    public void requestRebuild() {
+        rebuildRequested = true;
+    }
+
+    private void refresh() {
+        try {
+            boolean outgrown = filters.values().stream().anyMatch(f -> f.bloom.getCount() > f.bloom.getCapacity());
+            if (rebuildRequested || outgrown || (ready && System.currentTimeMillis() - lastBuildMillis > rebuildMillis)) {
+                rebuildRequested = false;
+                build();
+            } else if (ready) {
+                poll();
+            }
+        } catch (Exception e) {
+            // Keep serving from the current filters; a failed build is retried on the next refresh
+            if (!ready) {
+                rebuildRequested = true;
+            }
+            System.err.println("LookupFilter: refresh failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Streams every lookup hash into new filters sized from the current row counts, then swaps them in.
+     */
+    private void build() throws SQLException {
+        long started = System.currentTimeMillis();
+        ConcurrentHashMap<String, TypeFilter> built = new ConcurrentHashMap<>();
+        PoolDB pool = new PoolDB(false); // a server-side cursor needs a transaction
+        Connection conn = pool.getConnection();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement("SELECT id_type_code, count(*) AS total, count(*) FILTER (WHERE hashed_id_bin IS NULL) AS legacy FROM id_vault GROUP BY id_type_code");
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                long capacity = Math.max(minCapacity, rs.getLong("total") * 2);
+                built.put(rs.getString("id_type_code"), new TypeFilter(BloomFilter.create(capacity, falsePositiveRate), rs.getLong("legacy") == 0));
+            }
+            rs.close();
+            pstmt.close();
+
+            pstmt = conn.prepareStatement("SELECT id_type_code, hashed_id_bin FROM id_vault WHERE hashed_id_bin IS NOT NULL");
+            pstmt.setFetchSize(BUILD_FETCH_SIZE);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                add(built, rs.getString("id_type_code"), rs.getBytes("hashed_id_bin"));
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            pool.rollback(conn);
+            throw e;
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        filters = built;
+        watermarkMillis = started;
+        lastBuildMillis = started;
+        lastBuildDurationMillis = System.currentTimeMillis() - started;
+        ready = true;
+        System.out.println("LookupFilter: built " + built.size() + " ID type filters in " + lastBuildDurationMillis + " ms");
+        poll(); // rows stored while the scan ran
+        saveSnapshot();
+    }
+
+    /**
+     * Adds rows created, or given a new lookup hash, since the last poll, on any node.
+     */
+    private void poll() throws SQLException {
+        long now = System.currentTimeMillis();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT id_type_code, hashed_id_bin FROM id_vault WHERE (created_at >= ? OR updated_at >= ?) AND hashed_id_bin IS NOT NULL");
+            Timestamp since = new Timestamp(watermarkMillis - POLL_OVERLAP_MILLIS);
+            pstmt.setTimestamp(1, since);
+            pstmt.setTimestamp(2, since);
+            rs = pstmt.executeQuery();
+            ConcurrentHashMap<String, TypeFilter> current = filters;
+            while (rs.next()) {
+                add(current, rs.getString("id_type_code"), rs.getBytes("hashed_id_bin"));
+                polledRows.incrementAndGet();
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        watermarkMillis = now;
+    }
+
+    private void saveSnapshot() {
+        if (snapshotFile.isEmpty() || !ready) {
+            return;
+        }
+        Path target = Paths.get(snapshotFile);
+        Path temp = Paths.get(snapshotFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            ConcurrentHashMap<String, TypeFilter> current = filters;
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.write(keyFingerprint);
+            out.writeLong(watermarkMillis);
+            out.writeLong(lastBuildMillis);
+            out.writeInt(current.size());
+            for (Map.Entry<String, TypeFilter> e : current.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeBoolean(e.getValue().complete);
+                e.getValue().bloom.writeTo(out);
+            }
+        } catch (IOException e) {
+            System.err.println("LookupFilter: could not write snapshot " + snapshotFile + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("LookupFilter: could not replace snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if a usable snapshot was loaded; the first refresh then catches up from its watermark.
+     */
+    private boolean loadSnapshot() {
+        if (snapshotFile.isEmpty() || !Files.exists(Paths.get(snapshotFile))) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(snapshotFile))))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                System.err.println("LookupFilter: ignoring snapshot " + snapshotFile + " (unknown format)");
+                return false;
+            }
+            byte[] fingerprint = new byte[keyFingerprint.length];
+            in.readFully(fingerprint);
+            if (!Arrays.equals(fingerprint, keyFingerprint)) {
+                System.err.println("LookupFilter: ignoring snapshot " + snapshotFile + " (written under another lookup key)");
+                return false;
+            }
+            long watermark = in.readLong();
+            long builtAt = in.readLong();
+            int types = in.readInt();
+            ConcurrentHashMap<String, TypeFilter> loaded = new ConcurrentHashMap<>();
+            for (int i = 0; i < types; i++) {
+                String idType = in.readUTF();
+                boolean complete = in.readBoolean();
+                loaded.put(idType, new TypeFilter(BloomFilter.readFrom(in), complete));
+            }
+            filters = loaded;
+            watermarkMillis = watermark;
+            lastBuildMillis = builtAt;
+            ready = true;
+            System.out.println("LookupFilter: loaded " + types + " ID type filters from " + snapshotFile);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("LookupFilter: could not read snapshot " + snapshotFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("ready", ready);
+        stats.put("checks", checks.get());
+        stats.put("databaseSkipped", skipped.get());
+        stats.put("falsePositives", falsePositives.get());
+        stats.put("absentNotPolledYet", notPolledYet.get()); // sent to the database instead
+        stats.put("polledRows", polledRows.get());
+        stats.put("lastBuildDurationMs", lastBuildDurationMillis);
+        long memory = 0;
+        JSONObject types = new JSONObject();
+        for (Map.Entry<String, TypeFilter> e : filters.entrySet()) {
+            BloomFilter bloom = e.getValue().bloom;
+            JSONObject type = new JSONObject();
+            type.put("entries", bloom.getCount());
+            type.put("capacity", bloom.getCapacity());
+            type.put("hashFunctions", bloom.getNumHashes());
+            type.put("memoryBytes", bloom.getMemoryBytes());
+            type.put("expectedFalsePositiveRate", bloom.expectedFalsePositiveRate());
+            type.put("complete", e.getValue().complete);
+            types.put(e.getKey(), type);
+            memory += bloom.getMemoryBytes();
+        }
+        stats.put("memoryBytes", memory);
+        stats.put("idTypes", types);
+        return stats;
+    }
+}
@@ -1,50 +1,147 @@
 package org.tsicoop.aadhaarvault.framework;
 
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.Objects;
 
+/**
+ * Deterministic lookup hash of an ID number, used for duplicate checks and fetch-by-value.
+ *
+ * The current form is HMAC-SHA256 keyed with TSI_LOOKUP_SALT, a fixed 32-byte digest stored in
+ * id_vault.hashed_id_bin (bytea). Rows written before it carry the legacy Base64 salted SHA-256 in
+ * hashed_id_number; Vault reads both while vault.lookup.legacyHashRead is on and the
+ * lookup_hash_migration job converts the rest.
+ *
+ * Mac and MessageDigest instances are cached per thread and the key is set up once, so a hash
+ * allocates nothing but its result.
+ */
 public class LookupHasher {
 
+    public static final int HASH_LENGTH = 32;
+
     private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
     private static final String TSI_LOOKUP_SALT = "TSI_LOOKUP_SALT";
 
-    private final String globalLookupSalt;
+    private static volatile LookupHasher defaultHasher = null;
+
+    private final byte[] globalSaltBytes;
+    private final ThreadLocal<Mac> hmac;
+    private final ThreadLocal<MessageDigest> legacyDigest;
 
     public LookupHasher() {
         // Read the global salt from the environment variable when the class is instantiated
-        String salt = System.getenv(TSI_LOOKUP_SALT);
+        this(System.getenv(TSI_LOOKUP_SALT));
+    }
+
+    /**
+     * @param salt The global lookup salt; benchmarks pass one explicitly instead of TSI_LOOKUP_SALT.
+     */
+    public LookupHasher(String salt) {
         // Crucial: Fail fast if the salt is not provided in production
         if (salt == null || salt.trim().isEmpty()) {
             throw new IllegalStateException("FATAL: Global lookup salt environment variable '" +
                     TSI_LOOKUP_SALT + "' not set or empty. " +
                     "This is required for deterministic ID hashing.");
         }
-        this.globalLookupSalt = salt;
+        this.globalSaltBytes = salt.getBytes(StandardCharsets.UTF_8);
+        SecretKeySpec key = new SecretKeySpec(globalSaltBytes, HMAC_ALGORITHM);
+        this.hmac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(HMAC_ALGORITHM + " not available", e);
+            }
+        });
+        this.legacyDigest = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(HASH_ALGORITHM + " not available", e);
+            }
+        });
+    }
+
+    /**
+     * @return The process-wide hasher for TSI_LOOKUP_SALT; request handlers share it, and with it
+     *         the per-thread Mac instances.
+     */
+    public static LookupHasher getDefault() {
+        LookupHasher hasher = defaultHasher;
+        if (hasher == null) {
+            synchronized (LookupHasher.class) {
+                if (defaultHasher == null) {
+                    defaultHasher = new LookupHasher();
+                }
+                hasher = defaultHasher;
+            }
+        }
+        return hasher;
+    }
+
+    /**
+     * HMAC-SHA256 of the bytes from position to limit (the buffer's position is not moved).
+     *
+     * @return The 32-byte lookup hash stored in hashed_id_bin.
+     */
+    public byte[] hash(ByteBuffer data) {
+        Mac mac = hmac.get();
+        mac.update(data.duplicate());
+        return mac.doFinal(); // doFinal also resets the Mac for the next call
+    }
+
+    /**
+     * As hash(ByteBuffer), for an ID number held in a SecureBuffer; the bytes are never copied to the heap.
+     */
+    public byte[] hash(SecureBuffer data) {
+        return hash(data.readable());
+    }
+
+    /**
+     * @return The first 8 bytes of a lookup hash (big-endian), stored in id_vault.hash_prefix for
+     *         the compact lookup index.
+     */
+    public static long prefix(byte[] lookupHash) {
+        return ByteBuffer.wrap(lookupHash).getLong(0);
     }
 
     /**
      * Hashes the input data using a GLOBAL, fixed secret salt.
      * This hash is deterministic for the same input data and global salt.
-     * Suitable for creating `hashed_id_number` which is used for direct lookup and duplicate checking.
+     * Legacy form of `hashed_id_number`; new rows use hash() and `hashed_id_bin`.
      *
      * @param data The data to hash (e.g., Aadhaar number).
      * @return A Base64 encoded hash string.
      * @throws NoSuchAlgorithmException if SHA-256 algorithm is not available.
      */
     public String hashData(String data) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
-        byte[] globalSaltBytes = globalLookupSalt.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        MessageDigest digest = legacyDigest.get();
 
         // Apply global salt before hashing the data
         digest.update(globalSaltBytes);
-        byte[] hashedBytes = digest.digest(data.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        byte[] hashedBytes = digest.digest(data.getBytes(StandardCharsets.UTF_8));
 
         return Base64.getEncoder().encodeToString(hashedBytes);
     }
 
+    /**
+     * As hashData(String), for an ID number held in a SecureBuffer; the bytes are never copied to the heap.
+     */
+    public String hashData(SecureBuffer data) throws NoSuchAlgorithmException {
+        MessageDigest digest = legacyDigest.get();
+        digest.update(globalSaltBytes);
+        digest.update(data.readable());
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
     /**
      * Verifies a plaintext data against a stored hash that was generated using the GLOBAL salt.
      *
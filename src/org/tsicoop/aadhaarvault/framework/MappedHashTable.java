@@ -0,0 +1,332 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Open-addressing hash table from lookup hash to reference key in a memory-mapped file, for one
+ * ID type (see MappedLookupIndex). Entries live in the OS page cache, not on the Java heap, and
+ * survive a process restart.
+ *
+ * File layout: a HEADER_BYTES header, then a power-of-two number of SLOT_BYTES slots, each holding
+ * the 32-byte lookup hash and the 16-byte reference key; an all-zero reference key marks an empty
+ * slot. Lookup hashes are uniformly random, so the first 8 bytes pick the slot directly and
+ * collisions are resolved by linear probing. Entries are never removed.
+ *
+ * Files over 2 GB are mapped in regions of 2^REGION_SHIFT slots. Lookups share a read lock;
+ * inserts take the write lock, so a reader never sees a half-written slot.
+ */
+final class MappedHashTable implements Closeable {
+
+    static final int SLOT_BYTES = LookupHasher.HASH_LENGTH + 16;
+    static final int PUT_ADDED = 0;
+    static final int PUT_PRESENT = 1;
+    static final int PUT_FULL = 2;
+
+    private static final int HEADER_BYTES = 4096;
+    private static final int MAGIC = 0x5453494C; // "TSIL"
+    private static final int VERSION = 1;
+    private static final int REGION_SHIFT = 24; // 768 MB per mapping
+    private static final double MAX_LOAD = 0.9; // probe chains grow quickly beyond this
+
+    // Header fields
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOTS = 8;
+    private static final int H_ENTRIES = 16;
+    private static final int H_WATERMARK = 24;
+    private static final int H_CURSOR_MSB = 32;
+    private static final int H_CURSOR_LSB = 40;
+    private static final int H_FLAGS = 48;
+    private static final int H_FINGERPRINT = 64;
+    private static final int H_ID_TYPE = 128;
+
+    private static final int FLAG_CLEAN = 1;    // closed normally; entries count is exact
+    private static final int FLAG_COMPLETE = 2; // holds every row of the type (no legacy-hash rows)
+    private static final int FLAG_BUILT = 4;    // the build scan has finished
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] regions;
+    private final String idType;
+    private final long slots;
+    private final long maxEntries;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long entries;
+    private int flags;
+    private boolean recovered;
+
+    private MappedHashTable(RandomAccessFile file, String idType, long slots) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.idType = idType;
+        this.slots = slots;
+        this.maxEntries = (long) (slots * MAX_LOAD);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        long regionSlots = 1L << REGION_SHIFT;
+        int regionCount = (int) ((slots + regionSlots - 1) / regionSlots);
+        this.regions = new MappedByteBuffer[regionCount];
+        for (int r = 0; r < regionCount; r++) {
+            long first = r * regionSlots;
+            long size = Math.min(regionSlots, slots - first) * SLOT_BYTES;
+            regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + first * SLOT_BYTES, size);
+        }
+    }
+
+    /**
+     * Creates an empty table of at least minSlots slots (rounded up to a power of two). The file is
+     * sparse, so disk and page cache are only used as slots fill.
+     */
+    static MappedHashTable create(Path path, String idType, long minSlots, byte[] fingerprint) throws IOException {
+        long slots = Long.highestOneBit(Math.max(1024, minSlots) - 1) << 1;
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            file.setLength(0);
+            file.setLength(HEADER_BYTES + slots * SLOT_BYTES);
+            MappedHashTable table = new MappedHashTable(file, idType, slots);
+            byte[] type = idType.getBytes(StandardCharsets.UTF_8);
+            table.header.putInt(H_MAGIC, MAGIC);
+            table.header.putInt(H_VERSION, VERSION);
+            table.header.putLong(H_SLOTS, slots);
+            table.header.put(H_FINGERPRINT, fingerprint);
+            table.header.putShort(H_ID_TYPE, (short) type.length);
+            table.header.put(H_ID_TYPE + 2, type);
+            table.flush();
+            return table;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a table written by create. After a crash the entry count is recomputed from the slots,
+     * and the table is no longer taken as built or complete: slot pages written after the last
+     * checkpoint may have been lost with the host, while the header kept a later cursor.
+     *
+     * @throws IOException if the file is not a table, or was written under another lookup key.
+     */
+    static MappedHashTable open(Path path, byte[] fingerprint) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+            file.getChannel().read(head, 0);
+            if (head.getInt(H_MAGIC) != MAGIC || head.getInt(H_VERSION) != VERSION) {
+                throw new IOException("not a lookup index file");
+            }
+            byte[] storedFingerprint = new byte[fingerprint.length];
+            head.position(H_FINGERPRINT);
+            head.get(storedFingerprint);
+            if (!Arrays.equals(storedFingerprint, fingerprint)) {
+                throw new IOException("written under another lookup key");
+            }
+            long slots = head.getLong(H_SLOTS);
+            if (file.length() != HEADER_BYTES + slots * SLOT_BYTES) {
+                throw new IOException("truncated");
+            }
+            byte[] type = new byte[head.getShort(H_ID_TYPE)];
+            head.position(H_ID_TYPE + 2);
+            head.get(type);
+            MappedHashTable table = new MappedHashTable(file, new String(type, StandardCharsets.UTF_8), slots);
+            table.flags = head.getInt(H_FLAGS);
+            if ((table.flags & FLAG_CLEAN) != 0) {
+                table.entries = head.getLong(H_ENTRIES);
+            } else {
+                table.entries = table.countEntries();
+                table.flags &= ~(FLAG_COMPLETE | FLAG_BUILT);
+                table.recovered = true;
+            }
+            table.flags &= ~FLAG_CLEAN; // until closed normally again
+            table.flush();
+            return table;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The reference key stored for the lookup hash, or null.
+     */
+    UUID get(byte[] lookupHash) {
+        ByteBuffer hash = ByteBuffer.wrap(lookupHash);
+        long h0 = hash.getLong(0), h1 = hash.getLong(8), h2 = hash.getLong(16), h3 = hash.getLong(24);
+        lock.readLock().lock();
+        try {
+            for (long i = h0 & (slots - 1), probes = 0; probes < slots; i = (i + 1) & (slots - 1), probes++) {
+                ByteBuffer region = regions[(int) (i >>> REGION_SHIFT)];
+                int off = (int) (i & ((1L << REGION_SHIFT) - 1)) * SLOT_BYTES;
+                long msb = region.getLong(off + 32);
+                long lsb = region.getLong(off + 40);
+                if (msb == 0 && lsb == 0) {
+                    return null;
+                }
+                if (region.getLong(off) == h0 && region.getLong(off + 8) == h1
+                    && region.getLong(off + 16) == h2 && region.getLong(off + 24) == h3) {
+                    return new UUID(msb, lsb);
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return PUT_ADDED, PUT_PRESENT if the lookup hash was already stored, or PUT_FULL once the
+     *         table has reached its maximum load (the entry is not stored).
+     */
+    int put(byte[] lookupHash, UUID referenceKey) {
+        ByteBuffer hash = ByteBuffer.wrap(lookupHash);
+        long h0 = hash.getLong(0), h1 = hash.getLong(8), h2 = hash.getLong(16), h3 = hash.getLong(24);
+        lock.writeLock().lock();
+        try {
+            for (long i = h0 & (slots - 1); ; i = (i + 1) & (slots - 1)) {
+                ByteBuffer region = regions[(int) (i >>> REGION_SHIFT)];
+                int off = (int) (i & ((1L << REGION_SHIFT) - 1)) * SLOT_BYTES;
+                if (region.getLong(off + 32) == 0 && region.getLong(off + 40) == 0) {
+                    if (entries >= maxEntries) {
+                        return PUT_FULL;
+                    }
+                    region.putLong(off, h0).putLong(off + 8, h1).putLong(off + 16, h2).putLong(off + 24, h3);
+                    region.putLong(off + 32, referenceKey.getMostSignificantBits());
+                    region.putLong(off + 40, referenceKey.getLeastSignificantBits());
+                    entries++;
+                    return PUT_ADDED;
+                }
+                if (region.getLong(off) == h0 && region.getLong(off + 8) == h1
+                    && region.getLong(off + 16) == h2 && region.getLong(off + 24) == h3) {
+                    return PUT_PRESENT;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long countEntries() {
+        long count = 0;
+        for (ByteBuffer region : regions) {
+            for (int off = 0; off < region.capacity(); off += SLOT_BYTES) {
+                if (region.getLong(off + 32) != 0 || region.getLong(off + 40) != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    String getIdType() {
+        return idType;
+    }
+
+    long getSlots() {
+        return slots;
+    }
+
+    long getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getEntries() {
+        lock.readLock().lock();
+        try {
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getFileBytes() {
+        return HEADER_BYTES + slots * SLOT_BYTES;
+    }
+
+    /**
+     * Rows created before (watermark - poll overlap) are in the table.
+     */
+    long getWatermark() {
+        return header.getLong(H_WATERMARK);
+    }
+
+    void setWatermark(long watermarkMillis) {
+        header.putLong(H_WATERMARK, watermarkMillis);
+    }
+
+    /**
+     * @return The last reference key reached by an unfinished build scan, or null.
+     */
+    UUID getBuildCursor() {
+        long msb = header.getLong(H_CURSOR_MSB), lsb = header.getLong(H_CURSOR_LSB);
+        return msb == 0 && lsb == 0 ? null : new UUID(msb, lsb);
+    }
+
+    void setBuildCursor(UUID referenceKey) {
+        header.putLong(H_CURSOR_MSB, referenceKey != null ? referenceKey.getMostSignificantBits() : 0);
+        header.putLong(H_CURSOR_LSB, referenceKey != null ? referenceKey.getLeastSignificantBits() : 0);
+    }
+
+    synchronized boolean isComplete() {
+        return (flags & FLAG_COMPLETE) != 0;
+    }
+
+    synchronized void setComplete(boolean complete) {
+        flags = complete ? flags | FLAG_COMPLETE : flags & ~FLAG_COMPLETE;
+    }
+
+    synchronized boolean isBuilt() {
+        return (flags & FLAG_BUILT) != 0;
+    }
+
+    synchronized void setBuilt(boolean built) {
+        flags = built ? flags | FLAG_BUILT : flags & ~FLAG_BUILT;
+    }
+
+    /**
+     * @return true if the file was not closed normally by its last user (see open).
+     */
+    boolean isRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Writes the slots, then the header with the given watermark, to disk, so the watermark on disk
+     * never covers entries that are not.
+     */
+    synchronized void checkpoint(long watermarkMillis) {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+        setWatermark(watermarkMillis);
+        flush();
+    }
+
+    /**
+     * Writes the header to disk. Slot pages are written back by the OS, and forced only by
+     * checkpoint and close; a table not closed normally is rebuilt (see open).
+     */
+    synchronized void flush() {
+        header.putLong(H_ENTRIES, getEntries());
+        header.putInt(H_FLAGS, flags);
+        header.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flags |= FLAG_CLEAN;
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+        flush();
+        file.close(); // the mappings stay valid until garbage collected
+    }
+}
@@ -0,0 +1,638 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-local index from lookup hash to reference key, one MappedHashTable file per ID type under
+ * vault.lookupIndex.dir, so store_id duplicate checks and fetch_reference_by_id_value are answered
+ * from the page cache instead of the id_vault B-tree once that no longer fits in shared buffers.
+ *
+ * - Built by paging through id_vault in reference_key order into "<type>.idx.building" files; the
+ *   scan position is kept in their headers, so a build interrupted by a restart resumes. The
+ *   finished files replace the live ones, which keep serving meanwhile.
+ * - Kept current by the store path on this node and, for rows stored on other nodes, by polling
+ *   id_vault.created_at and updated_at every vault.lookupIndex.refreshSeconds (as LookupFilter does).
+ * - Rebuilt with twice the slots once a type passes 75% load; past 90% new rows only go to the
+ *   database and the type stops answering "not stored" until the rebuild lands.
+ * - rebuild_lookup_index and verify_lookup_index (api/admin/LookupIndex) rebuild from scratch and
+ *   check every row against the index.
+ * - Tables not closed normally (a crash) are rebuilt on the next start, as the OS may not have
+ *   written their latest slots back.
+ *
+ * Types with legacy-hash rows at build time answer hits only; misses go to the database.
+ */
+public class MappedLookupIndex {
+
+    private static final String SUFFIX = ".idx";
+    private static final String BUILDING_SUFFIX = ".idx.building";
+    private static final long POLL_OVERLAP_MILLIS = 60_000;
+    private static final long FLUSH_INTERVAL_MILLIS = 60_000;
+    private static final double GROW_LOAD = 0.75;
+    private static final int SCAN_CHUNK_SIZE = 10_000;
+
+    private static MappedLookupIndex instance = null;
+
+    private final Path dir;
+    private final long minSlots;
+    private final byte[] keyFingerprint;
+    private final ScheduledExecutorService scheduler; // polling and header flushes
+    private final ExecutorService scanner;            // builds and verifies, which may run for hours
+
+    private volatile ConcurrentHashMap<String, MappedHashTable> tables = new ConcurrentHashMap<>();
+    private volatile ConcurrentHashMap<String, MappedHashTable> building = null;
+    private volatile boolean ready = false;
+    private volatile long watermarkMillis = 0;
+    private volatile long buildStartedMillis = 0;
+    private volatile long lastFlushMillis = System.currentTimeMillis();
+    private final AtomicBoolean scanning = new AtomicBoolean();
+    private volatile boolean stopping = false;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeAnswers = new AtomicLong();
+    private final AtomicLong polledRows = new AtomicLong();
+    private final AtomicLong rowsScanned = new AtomicLong();
+    private volatile String scanStatus = "IDLE";
+    private volatile long lastBuildDurationMillis = 0;
+    private volatile JSONObject lastVerify = null;
+
+    private MappedLookupIndex(Path dir) {
+        this.dir = dir;
+        this.minSlots = SystemConfig.getIntProperty("vault.lookupIndex.minSlots", 1048576);
+        // Ties the files to the lookup key: files from another TSI_LOOKUP_SALT are rebuilt
+        this.keyFingerprint = LookupHasher.getDefault().hash(ByteBuffer.wrap("tsi-lookup-index".getBytes(StandardCharsets.UTF_8)));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lookup-index");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scanner = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "lookup-index-scan");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Opens the index files, resuming or starting a build as needed. Called once from
+     * InterceptingFilter.init; does nothing unless vault.lookupIndex.dir is set. Not available with
+     * id_vault sharded, for the same reason as the LookupFilter.
+     */
+    public static synchronized void createInstance() {
+        String dir = SystemConfig.getAppConfig().getProperty("vault.lookupIndex.dir", "").trim();
+        if (instance == null && !dir.isEmpty()) {
+            if (ShardRouter.getHandle() != null) {
+                System.out.println("MappedLookupIndex: disabled, id_vault is sharded");
+                return;
+            }
+            instance = new MappedLookupIndex(Paths.get(dir));
+            instance.start();
+        }
+    }
+
+    /**
+     * @return The shared index, or null when vault.lookupIndex.dir is not set.
+     */
+    public static MappedLookupIndex getHandle() {
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stopping = true;
+            instance.scheduler.shutdownNow();
+            instance.scanner.shutdown();
+            try {
+                instance.scanner.awaitTermination(30, TimeUnit.SECONDS); // the scan stops after its chunk
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (MappedHashTable table : instance.tables.values()) {
+                table.setWatermark(instance.watermarkMillis);
+            }
+            instance.closeAll(instance.tables);
+            if (instance.building != null) {
+                instance.closeAll(instance.building);
+            }
+            instance = null;
+        }
+    }
+
+    private void start() {
+        try {
+            Files.createDirectories(dir);
+            openTables();
+        } catch (IOException e) {
+            System.err.println("MappedLookupIndex: could not open " + dir + ": " + e.getMessage());
+        }
+        if (!ready || building != null) {
+            startScan(this::build);
+        }
+        int refreshSeconds = Math.max(1, SystemConfig.getIntProperty("vault.lookupIndex.refreshSeconds", 5));
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens the live tables and any unfinished build left by the previous run.
+     */
+    private void openTables() throws IOException {
+        ConcurrentHashMap<String, MappedHashTable> live = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, MappedHashTable> unfinished = new ConcurrentHashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                boolean isBuilding = name.endsWith(BUILDING_SUFFIX);
+                if (!isBuilding && !name.endsWith(SUFFIX)) {
+                    continue;
+                }
+                try {
+                    MappedHashTable table = MappedHashTable.open(file, keyFingerprint);
+                    (isBuilding ? unfinished : live).put(table.getIdType(), table);
+                } catch (IOException e) {
+                    System.err.println("MappedLookupIndex: ignoring " + file + " (" + e.getMessage() + ")");
+                }
+            }
+        }
+        long watermark = Long.MAX_VALUE;
+        for (MappedHashTable table : live.values()) {
+            watermark = Math.min(watermark, table.getWatermark());
+            if (!table.isBuilt()) {
+                watermark = 0;
+            }
+        }
+        if (!live.isEmpty() && watermark > 0) {
+            tables = live;
+            watermarkMillis = watermark; // the first poll catches up from here
+            ready = true;
+            System.out.println("MappedLookupIndex: opened " + live.size() + " ID type tables from " + dir);
+        } else {
+            closeAll(live);
+        }
+        boolean recovered = false;
+        for (MappedHashTable table : unfinished.values()) {
+            recovered |= table.isRecovered();
+        }
+        if (recovered) {
+            // The saved cursor may be past slots lost in a crash: start the build over
+            System.out.println("MappedLookupIndex: unfinished build was not stopped cleanly, starting over");
+            closeAll(unfinished);
+        } else if (!unfinished.isEmpty()) {
+            building = unfinished;
+        }
+    }
+
+    /**
+     * @return The reference key stored for the lookup hash, or null if the index does not have it
+     *         (see isComplete for whether that means it is not stored).
+     */
+    public UUID find(String idType, byte[] lookupHash) {
+        if (!ready) {
+            return null;
+        }
+        lookups.incrementAndGet();
+        MappedHashTable table = tables.get(idType);
+        UUID referenceKey = table != null ? table.get(lookupHash) : null;
+        if (referenceKey != null) {
+            hits.incrementAndGet();
+        }
+        return referenceKey;
+    }
+
+    /**
+     * @param currentAt Require the rows stored on any node before this time to have been polled; 0 to
+     *                  rely on the rows added so far (see LookupFilter.check).
+     * @return true if a miss from find for this type means the ID number is not stored (counted as
+     *         a negative answer).
+     */
+    public boolean isComplete(String idType, long currentAt) {
+        if (!ready || watermarkMillis < currentAt) {
+            return false;
+        }
+        MappedHashTable table = tables.get(idType);
+        boolean complete = table == null || table.isComplete(); // no table: no rows of the type yet
+        if (complete) {
+            negativeAnswers.incrementAndGet();
+        }
+        return complete;
+    }
+
+    /**
+     * Adds a stored row, to the live tables and to a build in progress.
+     */
+    public void add(String idType, byte[] lookupHash, UUID referenceKey) {
+        if (ready) {
+            addTo(tables, idType, lookupHash, referenceKey, false);
+        }
+        ConcurrentHashMap<String, MappedHashTable> target = building;
+        if (target != null) {
+            addTo(target, idType, lookupHash, referenceKey, true);
+        }
+    }
+
+    private void addTo(ConcurrentHashMap<String, MappedHashTable> target, String idType, byte[] lookupHash, UUID referenceKey, boolean isBuilding) {
+        MappedHashTable table = target.computeIfAbsent(idType, t -> {
+            try {
+                MappedHashTable created = MappedHashTable.create(fileFor(t, isBuilding), t, minSlots, keyFingerprint);
+                created.setComplete(true); // first row of the type
+                created.setBuilt(!isBuilding);
+                created.setWatermark(isBuilding ? buildStartedMillis : watermarkMillis);
+                return created;
+            } catch (IOException e) {
+                System.err.println("MappedLookupIndex: could not create table for " + t + ": " + e.getMessage());
+                return null;
+            }
+        });
+        if (table == null) {
+            return;
+        }
+        if (table.put(lookupHash, referenceKey) == MappedHashTable.PUT_FULL && table.isComplete()) {
+            // Misses for this type go to the database until the rebuild with more slots
+            table.setComplete(false);
+            System.err.println("MappedLookupIndex: table for " + idType + " is full, rebuilding");
+            requestRebuild();
+        }
+    }
+
+    private Path fileFor(String idType, boolean isBuilding) {
+        String safeName = idType.replaceAll("[^A-Za-z0-9_-]", "_");
+        return dir.resolve(safeName + (isBuilding ? BUILDING_SUFFIX : SUFFIX));
+    }
+
+    /**
+     * Starts a rebuild from id_vault in the background.
+     *
+     * @return false if a build or verify is already running.
+     */
+    public boolean requestRebuild() {
+        return startScan(() -> {
+            ConcurrentHashMap<String, MappedHashTable> unfinished = building;
+            if (unfinished != null) {
+                building = null;
+                closeAll(unfinished); // start over rather than resume
+            }
+            build();
+        });
+    }
+
+    /**
+     * Starts checking every row of id_vault against the index in the background; the result is
+     * reported by getStats under lastVerify.
+     *
+     * @return false if a build or verify is already running, or the index is not built yet.
+     */
+    public boolean requestVerify() {
+        return ready && startScan(this::verify);
+    }
+
+    private interface Scan {
+        void run() throws Exception;
+    }
+
+    private boolean startScan(Scan scan) {
+        if (!scanning.compareAndSet(false, true)) {
+            return false;
+        }
+        scanner.execute(() -> {
+            try {
+                scan.run();
+            } catch (Exception e) {
+                scanStatus = "FAILED: " + e.getMessage();
+                System.err.println("MappedLookupIndex: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                scanning.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Builds new tables sized from the current row counts (or resumes an unfinished build), then
+     * swaps them in for the live ones.
+     */
+    private void build() throws Exception {
+        long started = System.currentTimeMillis();
+        ConcurrentHashMap<String, MappedHashTable> target = building;
+        UUID cursor = null;
+        if (target != null) {
+            for (MappedHashTable table : target.values()) {
+                if (cursor == null) {
+                    cursor = table.getBuildCursor();
+                }
+                started = Math.min(started, table.getWatermark());
+            }
+            System.out.println("MappedLookupIndex: resuming build after " + cursor);
+        } else {
+            buildStartedMillis = started;
+            target = createBuildTables(started);
+            building = target;
+        }
+        buildStartedMillis = started;
+        scanStatus = "BUILDING";
+        rowsScanned.set(0);
+
+        int throttleMillis = SystemConfig.getIntProperty("vault.job.throttleMs", 50);
+        String firstSql = "SELECT reference_key, id_type_code, hashed_id_bin FROM id_vault ORDER BY reference_key LIMIT ?";
+        String nextSql = "SELECT reference_key, id_type_code, hashed_id_bin FROM id_vault WHERE reference_key > ? ORDER BY reference_key LIMIT ?";
+        int rows;
+        do {
+            if (stopping) {
+                for (MappedHashTable table : target.values()) {
+                    table.setBuildCursor(cursor);
+                }
+                scanStatus = "STOPPED";
+                return; // resumed on the next start
+            }
+            PoolDB pool = new PoolDB();
+            Connection conn = pool.getConnection();
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            rows = 0;
+            try {
+                pstmt = conn.prepareStatement(cursor == null ? firstSql : nextSql);
+                int param = 1;
+                if (cursor != null) {
+                    pstmt.setObject(param++, cursor);
+                }
+                pstmt.setInt(param, SCAN_CHUNK_SIZE);
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    cursor = (UUID) rs.getObject("reference_key");
+                    byte[] lookupHash = rs.getBytes("hashed_id_bin");
+                    if (lookupHash != null) { // legacy-hash rows: their type was marked incomplete
+                        addTo(target, rs.getString("id_type_code"), lookupHash, cursor, true);
+                    }
+                    rows++;
+                }
+            } finally {
+                pool.cleanup(rs, pstmt, conn);
+            }
+            rowsScanned.addAndGet(rows);
+            for (MappedHashTable table : target.values()) {
+                table.setBuildCursor(cursor);
+            }
+            if (rows == SCAN_CHUNK_SIZE && throttleMillis > 0) {
+                Thread.sleep(throttleMillis);
+            }
+        } while (rows == SCAN_CHUNK_SIZE);
+
+        // Rows stored on other nodes since the build started, then swap
+        catchUp(target, started);
+        ConcurrentHashMap<String, MappedHashTable> previous = tables;
+        for (MappedHashTable table : target.values()) {
+            table.setBuildCursor(null);
+            table.setBuilt(true);
+            table.checkpoint(started);
+            Files.move(fileFor(table.getIdType(), true), fileFor(table.getIdType(), false), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        tables = target;
+        building = null;
+        watermarkMillis = started;
+        ready = true;
+        for (Map.Entry<String, MappedHashTable> e : previous.entrySet()) {
+            if (!target.containsKey(e.getKey())) {
+                Files.deleteIfExists(fileFor(e.getKey(), false));
+            }
+        }
+        closeAll(previous);
+        lastBuildDurationMillis = System.currentTimeMillis() - started;
+        scanStatus = "IDLE";
+        System.out.println("MappedLookupIndex: built " + target.size() + " ID type tables from " + rowsScanned.get() + " rows in " + lastBuildDurationMillis + " ms");
+    }
+
+    private ConcurrentHashMap<String, MappedHashTable> createBuildTables(long started) throws SQLException, IOException {
+        ConcurrentHashMap<String, MappedHashTable> target = new ConcurrentHashMap<>();
+        PoolDB pool = new PoolDB();
+        Connection conn = pool.getConnection();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement("SELECT id_type_code, count(*) AS total, count(*) FILTER (WHERE hashed_id_bin IS NULL) AS legacy FROM id_vault GROUP BY id_type_code");
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                String idType = rs.getString("id_type_code");
+                MappedHashTable table = MappedHashTable.create(fileFor(idType, true), idType, Math.max(minSlots, rs.getLong("total") * 2), keyFingerprint);
+                table.setComplete(rs.getLong("legacy") == 0);
+                table.setWatermark(started);
+                target.put(idType, table);
+            }
+        } catch (SQLException | IOException e) {
+            closeAll(target);
+            throw e;
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        return target;
+    }
+
+    /**
+     * Compares every row of id_vault with the index. Rows created or repointed since the last poll
+     * are skipped.
+     */
+    private void verify() throws Exception {
+        long started = System.currentTimeMillis();
+        long cutoff = watermarkMillis - POLL_OVERLAP_MILLIS;
+        scanStatus = "VERIFYING";
+        rowsScanned.set(0);
+        long checked = 0, missing = 0, mismatched = 0, legacy = 0;
+        Map<String, Long> rowsPerType = new HashMap<>();
+        String firstSql = "SELECT reference_key, id_type_code, hashed_id_bin, created_at, updated_at FROM id_vault ORDER BY reference_key LIMIT ?";
+        String nextSql = "SELECT reference_key, id_type_code, hashed_id_bin, created_at, updated_at FROM id_vault WHERE reference_key > ? ORDER BY reference_key LIMIT ?";
+        UUID cursor = null;
+        int rows;
+        do {
+            if (stopping) {
+                scanStatus = "STOPPED";
+                return;
+            }
+            PoolDB pool = new PoolDB();
+            Connection conn = pool.getConnection();
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            rows = 0;
+            try {
+                pstmt = conn.prepareStatement(cursor == null ? firstSql : nextSql);
+                int param = 1;
+                if (cursor != null) {
+                    pstmt.setObject(param++, cursor);
+                }
+                pstmt.setInt(param, SCAN_CHUNK_SIZE);
+                rs = pstmt.executeQuery();
+                ConcurrentHashMap<String, MappedHashTable> current = tables;
+                while (rs.next()) {
+                    cursor = (UUID) rs.getObject("reference_key");
+                    rows++;
+                    byte[] lookupHash = rs.getBytes("hashed_id_bin");
+                    if (lookupHash == null) {
+                        legacy++;
+                        continue;
+                    }
+                    Timestamp createdAt = rs.getTimestamp("created_at");
+                    Timestamp updatedAt = rs.getTimestamp("updated_at");
+                    if (createdAt != null && createdAt.getTime() >= cutoff || updatedAt != null && updatedAt.getTime() >= cutoff) {
+                        continue;
+                    }
+                    String idType = rs.getString("id_type_code");
+                    rowsPerType.merge(idType, 1L, Long::sum);
+                    MappedHashTable table = current.get(idType);
+                    UUID indexed = table != null ? table.get(lookupHash) : null;
+                    if (indexed == null) {
+                        missing++;
+                    } else if (!indexed.equals(cursor)) {
+                        mismatched++;
+                    }
+                    checked++;
+                }
+            } finally {
+                pool.cleanup(rs, pstmt, conn);
+            }
+            rowsScanned.addAndGet(rows);
+        } while (rows == SCAN_CHUNK_SIZE);
+
+        JSONObject result = new JSONObject();
+        result.put("startedAt", new Timestamp(started).toString());
+        result.put("durationMs", System.currentTimeMillis() - started);
+        result.put("rowsChecked", checked);
+        result.put("rowsMissing", missing);
+        result.put("rowsMismatched", mismatched);
+        result.put("legacyRowsSkipped", legacy);
+        long extra = 0;
+        for (MappedHashTable table : tables.values()) {
+            // Entries without an (old enough) row; rows stored after the cutoff land here too
+            extra += Math.max(0, table.getEntries() - rowsPerType.getOrDefault(table.getIdType(), 0L));
+        }
+        result.put("entriesWithoutRow", extra);
+        result.put("ok", missing == 0 && mismatched == 0);
+        lastVerify = result;
+        scanStatus = "IDLE";
+        System.out.println("MappedLookupIndex: verify " + result.toJSONString());
+    }
+
+    private void refresh() {
+        try {
+            if (ready) {
+                catchUp(tables, watermarkMillis);
+            }
+            if (!scanning.get()) {
+                for (MappedHashTable table : tables.values()) {
+                    if (table.getEntries() > table.getSlots() * GROW_LOAD) {
+                        System.out.println("MappedLookupIndex: table for " + table.getIdType() + " passed " + (int) (GROW_LOAD * 100) + "% load, rebuilding");
+                        requestRebuild();
+                        break;
+                    }
+                }
+            }
+            if (System.currentTimeMillis() - lastFlushMillis > FLUSH_INTERVAL_MILLIS) {
+                lastFlushMillis = System.currentTimeMillis();
+                long watermark = watermarkMillis; // read before the slots are forced
+                for (MappedHashTable table : tables.values()) {
+                    table.checkpoint(watermark);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("MappedLookupIndex: refresh failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds rows created or given a new lookup hash since fromMillis (less the overlap for clock skew)
+     * on any node, to the
+     * given tables and, when polling the live ones, to a build in progress.
+     */
+    private void catchUp(ConcurrentHashMap<String, MappedHashTable> target, long fromMillis) throws SQLException {
+        long now = System.currentTimeMillis();
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        boolean live = target == tables;
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT reference_key, id_type_code, hashed_id_bin FROM id_vault WHERE (created_at >= ? OR updated_at >= ?) AND hashed_id_bin IS NOT NULL");
+            Timestamp since = new Timestamp(fromMillis - POLL_OVERLAP_MILLIS);
+            pstmt.setTimestamp(1, since);
+            pstmt.setTimestamp(2, since);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                String idType = rs.getString("id_type_code");
+                byte[] lookupHash = rs.getBytes("hashed_id_bin");
+                UUID referenceKey = (UUID) rs.getObject("reference_key");
+                if (live) {
+                    add(idType, lookupHash, referenceKey);
+                } else {
+                    addTo(target, idType, lookupHash, referenceKey, true);
+                }
+                polledRows.incrementAndGet();
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        if (live) {
+            watermarkMillis = now;
+        }
+    }
+
+    private void closeAll(Map<String, MappedHashTable> target) {
+        for (MappedHashTable table : target.values()) {
+            try {
+                table.close();
+            } catch (IOException e) {
+                System.err.println("MappedLookupIndex: could not close table for " + table.getIdType() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("ready", ready);
+        stats.put("scan", scanStatus);
+        stats.put("rowsScanned", rowsScanned.get());
+        stats.put("lookups", lookups.get());
+        stats.put("hits", hits.get());
+        stats.put("negativeAnswers", negativeAnswers.get());
+        stats.put("polledRows", polledRows.get());
+        stats.put("lastBuildDurationMs", lastBuildDurationMillis);
+        long fileBytes = 0;
+        JSONObject types = new JSONObject();
+        for (MappedHashTable table : tables.values()) {
+            JSONObject type = new JSONObject();
+            type.put("entries", table.getEntries());
+            type.put("slots", table.getSlots());
+            type.put("loadFactor", (double) table.getEntries() / table.getSlots());
+            type.put("fileBytes", table.getFileBytes());
+            type.put("complete", table.isComplete());
+            types.put(table.getIdType(), type);
+            fileBytes += table.getFileBytes();
+        }
+        stats.put("fileBytes", fileBytes);
+        stats.put("idTypes", types);
+        if (lastVerify != null) {
+            stats.put("lastVerify", lastVerify);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,203 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived keys for the masked form of an ID number (all but the last four characters replaced
+ * by 'X'), stored next to the full record in id_vault.masked_id_bin. fetch_masked_id_by_reference
+ * returns it without touching the row's data key, so the call costs one indexed read.
+ *
+ * The keys are ordinary provider-wrapped data keys in masking_key. A node unwraps each one through
+ * KMS once and then keeps it in memory for its lifetime, unlike row data keys and KEKs which age
+ * out of their caches; the masked form reveals no more than the last four characters, so a key
+ * that stays resident is an acceptable trade for never calling KMS on the masked path.
+ *
+ * Masked records use the VaultRecord layout with key type KEY_MASKING and the masking key_id as
+ * key id. CmkRotationJob re-wraps masking keys together with the KEKs.
+ */
+public class MaskingKeys {
+
+    public static final int VISIBLE_CHARS = 4;
+    private static final byte MASK_CHAR = 'X';
+
+    private final KeyProvider keyProvider;
+    private final ConcurrentHashMap<Long, byte[]> keysById = new ConcurrentHashMap<>();
+    private volatile Long currentKeyId = null;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong kmsGenerates = new AtomicLong();
+    private final AtomicLong kmsUnwraps = new AtomicLong();
+
+    public MaskingKeys(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+    }
+
+    /**
+     * Masks the ID number and encrypts the masked form under the current masking key.
+     *
+     * @return A masked record for id_vault.masked_id_bin.
+     */
+    public byte[] seal(ByteBuffer idValue) throws Exception {
+        long keyId = currentKeyId();
+        byte[] masked = mask(idValue);
+        return VaultRecord.encrypt(masked, key(keyId), VaultRecord.KEY_MASKING, VaultRecord.maskingKeyId(keyId));
+    }
+
+    /**
+     * @return The masked ID number held in a masked record.
+     */
+    public String open(byte[] maskedRecord) throws Exception {
+        VaultRecord record = VaultRecord.parse(maskedRecord);
+        return new String(record.decrypt(key(record.getMaskingKeyId())), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces every UTF-8 character but the last VISIBLE_CHARS with 'X'; the length in characters
+     * is kept, so callers can still tell a 12 digit number from a 16 digit one.
+     */
+    public static byte[] mask(ByteBuffer idValue) {
+        ByteBuffer in = idValue.duplicate();
+        int chars = 0;
+        for (int i = in.position(); i < in.limit(); i++) {
+            if ((in.get(i) & 0xC0) != 0x80) { // not a UTF-8 continuation byte
+                chars++;
+            }
+        }
+        int hidden = Math.max(0, chars - VISIBLE_CHARS);
+        int seen = 0;
+        int visibleFrom = in.limit();
+        for (int i = in.position(); i < in.limit(); i++) {
+            if ((in.get(i) & 0xC0) != 0x80 && seen++ == hidden) {
+                visibleFrom = i;
+                break;
+            }
+        }
+        byte[] masked = new byte[hidden + (in.limit() - visibleFrom)];
+        Arrays.fill(masked, 0, hidden, MASK_CHAR);
+        in.position(visibleFrom);
+        in.get(masked, hidden, in.remaining());
+        return masked;
+    }
+
+    private long currentKeyId() throws SQLException {
+        Long id = currentKeyId;
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            if (currentKeyId == null) {
+                currentKeyId = loadOrCreate();
+            }
+            return currentKeyId;
+        }
+    }
+
+    private byte[] key(long keyId) throws SQLException {
+        byte[] key = keysById.get(keyId);
+        if (key != null) {
+            hits.incrementAndGet();
+            return key;
+        }
+        synchronized (this) {
+            key = keysById.get(keyId);
+            if (key == null) {
+                key = load(keyId);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Uses the newest masking key, creating the first one if there is none. Two nodes starting
+     * together may both create one; either key stays readable through its key_id.
+     */
+    private long loadOrCreate() throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT key_id, encrypted_key FROM masking_key ORDER BY key_id DESC LIMIT 1");
+            rs = pstmt.executeQuery();
+            if (rs.next()) {
+                long keyId = rs.getLong("key_id");
+                unwrap(keyId, rs.getString("encrypted_key"));
+                return keyId;
+            }
+            rs.close();
+            pstmt.close();
+
+            DataKey generated = keyProvider.generateDataKey();
+            kmsGenerates.incrementAndGet();
+            try {
+                pstmt = conn.prepareStatement("INSERT INTO masking_key (encrypted_key, master_key_id) VALUES (?, ?) RETURNING key_id");
+                pstmt.setString(1, generated.getEncryptedDataKey());
+                pstmt.setString(2, keyProvider.getKeyId());
+                rs = pstmt.executeQuery();
+                rs.next();
+                long keyId = rs.getLong("key_id");
+                keysById.put(keyId, generated.getPlaintextKey().clone());
+                return keyId;
+            } finally {
+                generated.destroy();
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+    }
+
+    private byte[] load(long keyId) throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT encrypted_key FROM masking_key WHERE key_id = ?");
+            pstmt.setLong(1, keyId);
+            rs = pstmt.executeQuery();
+            if (!rs.next()) {
+                throw new SQLException("Masking key not found: " + keyId);
+            }
+            return unwrap(keyId, rs.getString("encrypted_key"));
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+    }
+
+    private byte[] unwrap(long keyId, String encryptedKey) {
+        byte[] plaintext = keyProvider.decryptDataKey(Base64.getDecoder().decode(encryptedKey));
+        kmsUnwraps.incrementAndGet();
+        keysById.put(keyId, plaintext);
+        return plaintext;
+    }
+
+    public void clear() {
+        for (byte[] key : keysById.values()) {
+            Arrays.fill(key, (byte) 0);
+        }
+        keysById.clear();
+        currentKeyId = null;
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("cachedKeys", keysById.size());
+        stats.put("hits", hits.get());
+        stats.put("kmsGenerates", kmsGenerates.get());
+        stats.put("kmsUnwraps", kmsUnwraps.get());
+        return stats;
+    }
+}
@@ -2,11 +2,13 @@ package org.tsicoop.aadhaarvault.framework;
 
 import jakarta.servlet.ServletOutputStream;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
 import org.json.simple.JSONValue;
 
 import jakarta.servlet.http.HttpServletResponse;
 
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
@@ -47,6 +49,15 @@ public class OutputProcessor {
             res.setContentType(MEDIA_TYPE_JSON);
             res.setCharacterEncoding("UTF-8");
             res.setStatus(status);
+            if (data instanceof JSONStreamAware) {
+                // Streamed rather than built as one String, so values such as SecureBuffer go
+                // straight into the response buffer
+                PrintWriter writer = res.getWriter();
+                ((JSONStreamAware) data).writeJSONString(writer);
+                writer.flush();
+                writer.close();
+                return;
+            }
             out = res.getOutputStream();
             if (data != null) {
                 if (data instanceof byte[]) {
@@ -61,6 +61,29 @@ public class PoolDB extends DB{
         con = createConnection(autocommit);
     }
 
+    /**
+     * Connection to a shard of id_vault (see ShardRouter); shard 0 is this pool's database.
+     */
+    public PoolDB(int shard, boolean autocommit) throws SQLException{
+        super();
+        if (shard == ShardRouter.PRIMARY) {
+            con = createConnection(autocommit);
+        } else {
+            ShardRouter router = ShardRouter.getHandle();
+            if (router == null) {
+                throw new SQLException("id_vault is not sharded (vault.shard.urls)");
+            }
+            FaultInjector faults = FaultInjector.forDb();
+            if (faults != null) {
+                faults.inject("getConnection", FaultInjectingConnection::failure);
+            }
+            con = router.createConnection(shard, autocommit);
+            if (faults != null) {
+                con = FaultInjectingConnection.wrap(con, faults);
+            }
+        }
+    }
+
     public Connection getConnection(){
         return con;
     }
@@ -83,8 +106,16 @@ public class PoolDB extends DB{
             if (basicDataSource == null) {
                 initBasicDataSource();
             }
+            FaultInjector faults = FaultInjector.forDb();
+            if (faults != null) {
+                // Load tests only (FAULT_PROFILE): delay or fail the checkout and the statements
+                faults.inject("getConnection", FaultInjectingConnection::failure);
+            }
             connection = basicDataSource.getConnection();
             connection.setAutoCommit(autocommit);
+            if (faults != null) {
+                connection = FaultInjectingConnection.wrap(connection, faults);
+            }
         }catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
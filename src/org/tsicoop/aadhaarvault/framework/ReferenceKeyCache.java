@@ -0,0 +1,168 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache from (ID type, lookup hash) to reference key, for repeated store_id and
+ * fetch_reference_by_id_value calls for the same ID number. A stored row's lookup hash and
+ * reference key never change, so entries need no expiry or invalidation; only hits are cached,
+ * never "not stored" answers (see LookupFilter for those).
+ *
+ * The entries are split over SEGMENTS access-ordered maps, each with its own lock, so concurrent
+ * lookups rarely wait on each other.
+ */
+public class ReferenceKeyCache {
+
+    private static final int SEGMENTS = 16;
+    // Rough heap cost of one entry: map entry, key, 32-byte hash array and UUID
+    private static final int ENTRY_BYTES = 200;
+
+    private static ReferenceKeyCache instance = null;
+
+    private final int maxEntries;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Key {
+        final String idType;
+        final byte[] lookupHash;
+        final int hash;
+
+        Key(String idType, byte[] lookupHash) {
+            this.idType = idType;
+            this.lookupHash = lookupHash;
+            // The lookup hash is uniformly random, so its first bytes are a good hash code
+            this.hash = 31 * idType.hashCode() + ByteBuffer.wrap(lookupHash).getInt(0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && idType.equals(other.idType) && Arrays.equals(lookupHash, other.lookupHash);
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<Key, UUID> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, UUID> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public ReferenceKeyCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        int perSegment = Math.max(1, maxEntries / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * Creates the shared cache, unless vault.referenceCache.maxEntries is 0. Called once from
+     * InterceptingFilter.init.
+     */
+    public static synchronized void createInstance() {
+        int maxEntries = SystemConfig.getIntProperty("vault.referenceCache.maxEntries", 200000);
+        if (instance == null && maxEntries > 0) {
+            instance = new ReferenceKeyCache(maxEntries);
+        }
+    }
+
+    /**
+     * @return The shared cache, or null when disabled.
+     */
+    public static ReferenceKeyCache getHandle() {
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.clear();
+            instance = null;
+        }
+    }
+
+    /**
+     * @return The cached reference key, or null on a miss.
+     */
+    public UUID get(String idType, byte[] lookupHash) {
+        Key key = new Key(idType, lookupHash);
+        Segment segment = segmentFor(key);
+        UUID referenceKey;
+        synchronized (segment) {
+            referenceKey = segment.get(key);
+        }
+        (referenceKey != null ? hits : misses).incrementAndGet();
+        return referenceKey;
+    }
+
+    public void put(String idType, byte[] lookupHash, UUID referenceKey) {
+        Key key = new Key(idType.intern(), lookupHash.clone()); // few distinct types; share their strings
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, referenceKey);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[(key.hash ^ (key.hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    public JSONObject getStats() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hitCount);
+        stats.put("misses", lookups - hitCount);
+        stats.put("hitRatio", lookups > 0 ? (double) hitCount / lookups : 0.0);
+        stats.put("evictions", evictions.get());
+        stats.put("size", size);
+        stats.put("maxEntries", maxEntries);
+        stats.put("approxMemoryBytes", size * ENTRY_BYTES);
+        return stats;
+    }
+}
@@ -0,0 +1,299 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * KeyProvider decorator that keeps a slow or failing KMS from taking the vault down with it.
+ *
+ * - Bulkhead: at most kms.bulkhead.maxConcurrent calls in flight. Async calls that find it full
+ *   fail at once; blocking calls wait up to kms.bulkhead.maxWaitMs.
+ * - Circuit breaker: errors and calls slower than kms.breaker.slowCallMs count as failures; see
+ *   CircuitBreaker for the window and half-open probing.
+ * - Timeout: async calls give up after kms.callTimeoutMs (blocking calls rely on the SDK timeouts).
+ * - Hedging (kms.hedge.enabled): for the idempotent async reads (GenerateDataKey, Decrypt) a second
+ *   request is sent if the first has not answered within the recent p95 of that operation. The
+ *   first success wins; a losing data key is destroyed.
+ * - Latency histograms per operation, reported through KmsService.getStats.
+ *
+ * Shed and timed-out calls fail with KmsUnavailableException, which Vault answers with 503.
+ * Fetches whose data key or KEK is already cached never reach the provider, so they keep working
+ * while the breaker is open.
+ */
+public class ResilientKeyProvider implements KeyProvider {
+
+    private static final String GENERATE_DATA_KEY = "GenerateDataKey";
+    private static final String DECRYPT_DATA_KEY = "DecryptDataKey";
+    private static final String RE_ENCRYPT = "ReEncrypt";
+    private static final String ENCRYPT = "Encrypt";
+    private static final String DECRYPT = "Decrypt";
+
+    private final KeyProvider delegate;
+    private final int maxConcurrent;
+    private final Semaphore bulkhead;
+    private final long bulkheadMaxWaitMillis;
+    private final long callTimeoutMillis;
+    private final long slowCallNanos;
+    private final CircuitBreaker breaker;
+    private final boolean hedgeEnabled;
+    private final long hedgeMinDelayMillis;
+    private final int hedgeMinSamples;
+    private final long histogramWindowMillis;
+
+    private final Map<String, LatencyHistogram> latency = new ConcurrentHashMap<>();
+    private final AtomicLong bulkheadRejected = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    public ResilientKeyProvider(KeyProvider delegate) {
+        this.delegate = delegate;
+        this.maxConcurrent = Math.max(1, SystemConfig.getIntProperty("kms.bulkhead.maxConcurrent", 64));
+        this.bulkhead = new Semaphore(maxConcurrent);
+        this.bulkheadMaxWaitMillis = SystemConfig.getIntProperty("kms.bulkhead.maxWaitMs", 50);
+        this.callTimeoutMillis = SystemConfig.getIntProperty("kms.callTimeoutMs", 3000);
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(SystemConfig.getIntProperty("kms.breaker.slowCallMs", 1000));
+        this.breaker = new CircuitBreaker(
+                SystemConfig.getIntProperty("kms.breaker.windowSize", 50),
+                SystemConfig.getIntProperty("kms.breaker.minCalls", 20),
+                SystemConfig.getIntProperty("kms.breaker.failureRatePercent", 50),
+                SystemConfig.getIntProperty("kms.breaker.openMs", 5000),
+                SystemConfig.getIntProperty("kms.breaker.halfOpenProbes", 3));
+        this.hedgeEnabled = SystemConfig.getBooleanProperty("kms.hedge.enabled", false);
+        this.hedgeMinDelayMillis = SystemConfig.getIntProperty("kms.hedge.minDelayMs", 10);
+        this.hedgeMinSamples = SystemConfig.getIntProperty("kms.hedge.minSamples", 100);
+        this.histogramWindowMillis = TimeUnit.SECONDS.toMillis(SystemConfig.getIntProperty("kms.latency.windowSeconds", 60));
+    }
+
+    public KeyProvider getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public String getKeyId() {
+        return delegate.getKeyId();
+    }
+
+    @Override
+    public DataKey generateDataKey() {
+        return call(GENERATE_DATA_KEY, delegate::generateDataKey);
+    }
+
+    @Override
+    public CompletableFuture<DataKey> generateDataKeyAsync() {
+        return callAsync(GENERATE_DATA_KEY, delegate::generateDataKeyAsync, true, DataKey::destroy);
+    }
+
+    @Override
+    public byte[] decryptDataKey(byte[] encryptedDataKey) {
+        return call(DECRYPT_DATA_KEY, () -> delegate.decryptDataKey(encryptedDataKey));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptDataKeyAsync(byte[] encryptedDataKey) {
+        return callAsync(DECRYPT_DATA_KEY, () -> delegate.decryptDataKeyAsync(encryptedDataKey), true, key -> Arrays.fill(key, (byte) 0));
+    }
+
+    @Override
+    public byte[] reEncrypt(byte[] encryptedDataKey, String destinationKeyId) {
+        return call(RE_ENCRYPT, () -> delegate.reEncrypt(encryptedDataKey, destinationKeyId));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> reEncryptAsync(byte[] encryptedDataKey, String destinationKeyId) {
+        return callAsync(RE_ENCRYPT, () -> delegate.reEncryptAsync(encryptedDataKey, destinationKeyId), false, null);
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, Map<String, String> encryptionContext) {
+        return call(ENCRYPT, () -> delegate.encrypt(plaintext, encryptionContext));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> encryptAsync(byte[] plaintext, Map<String, String> encryptionContext) {
+        return callAsync(ENCRYPT, () -> delegate.encryptAsync(plaintext, encryptionContext), false, null);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, Map<String, String> encryptionContext) {
+        return call(DECRYPT, () -> delegate.decrypt(ciphertext, encryptionContext));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext, Map<String, String> encryptionContext) {
+        return callAsync(DECRYPT, () -> delegate.decryptAsync(ciphertext, encryptionContext), true, plaintext -> Arrays.fill(plaintext, (byte) 0));
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private LatencyHistogram histogram(String operation) {
+        return latency.computeIfAbsent(operation, op -> new LatencyHistogram(histogramWindowMillis));
+    }
+
+    /**
+     * Blocking call through the bulkhead and breaker.
+     */
+    private <T> T call(String operation, Supplier<T> fn) {
+        boolean permitted;
+        try {
+            permitted = bulkhead.tryAcquire(bulkheadMaxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KmsUnavailableException(operation + " interrupted waiting for a KMS slot");
+        }
+        if (!permitted) {
+            bulkheadRejected.incrementAndGet();
+            throw new KmsUnavailableException(operation + " rejected: too many concurrent KMS calls");
+        }
+        try {
+            CircuitBreaker.State admittedIn = breaker.tryAcquire();
+            if (admittedIn == null) {
+                throw new KmsUnavailableException(operation + " rejected: KMS circuit breaker is open");
+            }
+            long start = System.nanoTime();
+            try {
+                T result = fn.get();
+                long elapsed = System.nanoTime() - start;
+                histogram(operation).record(elapsed);
+                breaker.onResult(admittedIn, elapsed > slowCallNanos);
+                return result;
+            } catch (RuntimeException e) {
+                histogram(operation).recordError();
+                breaker.onResult(admittedIn, true);
+                throw e;
+            }
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Non-blocking call through the bulkhead and breaker, with a timeout and optional hedging.
+     *
+     * @param hedge   Whether the operation is idempotent and may be sent twice.
+     * @param discard Releases a result that lost the hedge race, or null.
+     */
+    private <T> CompletableFuture<T> callAsync(String operation, Supplier<CompletableFuture<T>> fn, boolean hedge, Consumer<T> discard) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        KmsUnavailableException rejected = attempt(operation, fn, result, outstanding, false, discard);
+        if (rejected != null) {
+            result.completeExceptionally(rejected);
+            return result;
+        }
+        CompletableFuture.delayedExecutor(callTimeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (result.completeExceptionally(new KmsUnavailableException(operation + " timed out after " + callTimeoutMillis + " ms"))) {
+                timeouts.incrementAndGet();
+            }
+        });
+        if (hedge && hedgeEnabled) {
+            LatencyHistogram histogram = histogram(operation);
+            if (histogram.getRecentCount() >= hedgeMinSamples) {
+                long delayMillis = Math.max(hedgeMinDelayMillis, TimeUnit.MICROSECONDS.toMillis(histogram.percentileMicros(0.95)));
+                CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() -> {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    outstanding.incrementAndGet();
+                    // A full bulkhead or open breaker just means no hedge; the first request carries on
+                    if (attempt(operation, fn, result, outstanding, true, discard) != null) {
+                        outstanding.decrementAndGet();
+                    } else {
+                        hedgesSent.incrementAndGet();
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts one request and wires its outcome into result: the first success completes it, a
+     * failure only does once no other request for the same call is outstanding.
+     *
+     * @return null if started, otherwise why it was not.
+     */
+    private <T> KmsUnavailableException attempt(String operation, Supplier<CompletableFuture<T>> fn, CompletableFuture<T> result,
+                                                AtomicInteger outstanding, boolean isHedge, Consumer<T> discard) {
+        if (!bulkhead.tryAcquire()) {
+            bulkheadRejected.incrementAndGet();
+            return new KmsUnavailableException(operation + " rejected: too many concurrent KMS calls");
+        }
+        CircuitBreaker.State admittedIn = breaker.tryAcquire();
+        if (admittedIn == null) {
+            bulkhead.release();
+            return new KmsUnavailableException(operation + " rejected: KMS circuit breaker is open");
+        }
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = fn.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, error) -> {
+            long elapsed = System.nanoTime() - start;
+            bulkhead.release();
+            if (error != null) {
+                histogram(operation).recordError();
+            } else {
+                histogram(operation).record(elapsed);
+            }
+            breaker.onResult(admittedIn, error != null || elapsed > slowCallNanos);
+
+            int remaining = outstanding.decrementAndGet();
+            if (error == null) {
+                if (result.complete(value)) {
+                    if (isHedge) {
+                        hedgesWon.incrementAndGet();
+                    }
+                } else if (discard != null) {
+                    discard.accept(value);
+                }
+            } else if (remaining == 0) {
+                result.completeExceptionally(error);
+            }
+        });
+        return null;
+    }
+
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("circuitBreaker", breaker.getStats());
+        JSONObject bulkheadStats = new JSONObject();
+        bulkheadStats.put("maxConcurrent", maxConcurrent);
+        bulkheadStats.put("inFlight", maxConcurrent - bulkhead.availablePermits());
+        bulkheadStats.put("rejected", bulkheadRejected.get());
+        stats.put("bulkhead", bulkheadStats);
+        stats.put("timeouts", timeouts.get());
+        JSONObject hedgeStats = new JSONObject();
+        hedgeStats.put("enabled", hedgeEnabled);
+        hedgeStats.put("sent", hedgesSent.get());
+        hedgeStats.put("won", hedgesWon.get());
+        stats.put("hedging", hedgeStats);
+        JSONObject latencyStats = new JSONObject();
+        for (Map.Entry<String, LatencyHistogram> e : latency.entrySet()) {
+            latencyStats.put(e.getKey(), e.getValue().getStats());
+        }
+        stats.put("latency", latencyStats);
+        return stats;
+    }
+}
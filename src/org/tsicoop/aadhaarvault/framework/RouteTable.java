@@ -0,0 +1,137 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The handler registry of _processor.tsi, compiled once at startup: each path maps to a single,
+ * pre-constructed REST handler shared by all requests, so dispatch is one map lookup on the exact
+ * servlet path with no reflection or handler construction per request. Handlers must therefore be
+ * stateless (configuration read in the constructor is fine).
+ *
+ * Compiled at the end of InterceptingFilter.init, after the services the handlers pick up in their
+ * constructors (KmsService, ShardRouter, ...). A malformed entry fails startup instead of every
+ * request to it.
+ */
+public final class RouteTable {
+
+    private static final String URL_DELIMITER = "/";
+    private static final String API_URI = "api";
+    private static final String ADMIN_URI = "admin";
+    private static final String CLIENT_URI = "client";
+
+    // Admin paths open without a bearer token
+    private static final String ADMIN_LOGIN = "/api/admin/login";
+    private static final String ADMIN_REGISTER = "/api/admin/register";
+
+    /**
+     * HTTP methods a REST handler implements.
+     */
+    public enum Method {
+        GET, POST, PUT, DELETE;
+
+        /**
+         * @return The method, or null for any other (HEAD, OPTIONS, ...).
+         */
+        public static Method of(String method) {
+            if (method == null) {
+                return null;
+            }
+            switch (method.toUpperCase()) {
+                case "GET":
+                    return GET;
+                case "POST":
+                    return POST;
+                case "PUT":
+                    return PUT;
+                case "DELETE":
+                    return DELETE;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * A registered path and its handler.
+     */
+    public static final class Route {
+        private final String path;
+        private final REST handler;
+        private final boolean adminHeaderRequired;
+
+        private Route(String path, REST handler, boolean adminHeaderRequired) {
+            this.path = path;
+            this.handler = handler;
+            this.adminHeaderRequired = adminHeaderRequired;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public REST getHandler() {
+            return handler;
+        }
+
+        /**
+         * @return true for admin paths other than login and register, which need the bearer token.
+         */
+        public boolean isAdminHeaderRequired() {
+            return adminHeaderRequired;
+        }
+    }
+
+    private final Map<String, Route> routes;
+
+    private RouteTable(Map<String, Route> routes) {
+        this.routes = Collections.unmodifiableMap(routes);
+    }
+
+    /**
+     * Builds the table from _processor.tsi, constructing each handler class once (handlers
+     * registered under several paths share one instance).
+     *
+     * @throws IllegalStateException if a path is not /api/admin/... or /api/client/..., or a
+     *                               handler cannot be constructed.
+     */
+    public static RouteTable compile(Properties processorConfig) {
+        Map<String, Route> routes = new HashMap<>();
+        Map<String, REST> handlers = new HashMap<>();
+        for (String path : processorConfig.stringPropertyNames()) {
+            String classname = processorConfig.getProperty(path).trim();
+            String[] segments = path.split(URL_DELIMITER);
+            // "/api/<area>/<operation>" splits into "", "api", area, operation
+            if (segments.length != 4 || !API_URI.equals(segments[1]) || segments[3].isEmpty()
+                    || !(segments[2].equalsIgnoreCase(ADMIN_URI) || segments[2].equalsIgnoreCase(CLIENT_URI))) {
+                throw new IllegalStateException("_processor.tsi: invalid path " + path);
+            }
+            REST handler = handlers.get(classname);
+            if (handler == null) {
+                try {
+                    handler = (REST) Class.forName(classname).getConstructor().newInstance();
+                } catch (Exception e) {
+                    throw new IllegalStateException("_processor.tsi: cannot create handler " + classname + " for " + path, e);
+                }
+                handlers.put(classname, handler);
+            }
+            boolean adminHeaderRequired = segments[2].equalsIgnoreCase(ADMIN_URI)
+                                          && !path.equals(ADMIN_LOGIN) && !path.equals(ADMIN_REGISTER);
+            routes.put(path, new Route(path, handler, adminHeaderRequired));
+        }
+        return new RouteTable(routes);
+    }
+
+    /**
+     * @return The route of the exact servlet path, or null if it is not registered.
+     */
+    public Route get(String servletPath) {
+        return routes.get(servletPath);
+    }
+
+    public int size() {
+        return routes.size();
+    }
+}
@@ -0,0 +1,230 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONAware;
+import org.json.simple.JSONStreamAware;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Off-heap holder for a plaintext ID number on its way through hash, encrypt and decrypt.
+ *
+ * The bytes live in a direct ByteBuffer, so the GC never copies them around the heap, and close()
+ * zeroes them at a known point instead of leaving them for a collection. Small buffers come from
+ * a shared pool, which keeps a store or fetch from allocating a fresh direct buffer each time.
+ *
+ * A SecureBuffer placed in a JSONObject is streamed straight into the response by
+ * OutputProcessor.send (JSONStreamAware), so the decrypted value never becomes a String. Callers
+ * close it, e.g. with closeAll(output), once the response has been written.
+ *
+ * The JSON request body still arrives as a String, and JCE may stage data through its own
+ * buffers; this removes the copies the vault made itself, not every copy in the process.
+ */
+public final class SecureBuffer implements AutoCloseable, JSONStreamAware, JSONAware {
+
+    private static final int POOLED_CAPACITY = 128;
+    private static final int MAX_POOLED = 1024;
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT));
+    private static final ThreadLocal<CharsetDecoder> DECODER = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final ThreadLocal<CharBuffer> CHARS = ThreadLocal.withInitial(() -> CharBuffer.allocate(64));
+
+    private final AtomicReference<ByteBuffer> buffer;
+    private int length = 0;
+
+    private SecureBuffer(ByteBuffer buffer) {
+        this.buffer = new AtomicReference<>(buffer);
+    }
+
+    /**
+     * @return An empty buffer of at least the given capacity.
+     */
+    public static SecureBuffer allocate(int capacity) {
+        ByteBuffer buffer = capacity <= POOLED_CAPACITY ? pool.poll() : null;
+        if (buffer != null) {
+            pooled.decrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(Math.max(capacity, POOLED_CAPACITY));
+        }
+        return new SecureBuffer(buffer);
+    }
+
+    /**
+     * UTF-8 encodes the characters directly into a new buffer, without an intermediate byte[].
+     */
+    public static SecureBuffer of(CharSequence chars) {
+        CharsetEncoder encoder = ENCODER.get();
+        SecureBuffer secure = allocate((int) Math.ceil(chars.length() * encoder.maxBytesPerChar()));
+        ByteBuffer out = secure.writable();
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(chars), out, true);
+        if (!result.isUnderflow() || !encoder.flush(out).isUnderflow()) {
+            secure.close();
+            throw new IllegalArgumentException("Value is not valid UTF-16 text");
+        }
+        secure.setLength(out.position());
+        return secure;
+    }
+
+    private ByteBuffer open() {
+        ByteBuffer b = buffer.get();
+        if (b == null) {
+            throw new IllegalStateException("SecureBuffer used after close");
+        }
+        return b;
+    }
+
+    /**
+     * @return A view positioned at 0 with the full capacity remaining; call setLength after filling it.
+     */
+    public ByteBuffer writable() {
+        ByteBuffer b = open().duplicate();
+        b.clear();
+        return b;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > open().capacity()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        this.length = length;
+    }
+
+    /**
+     * @return A read-only view of the content (position 0, limit length).
+     */
+    public ByteBuffer readable() {
+        ByteBuffer b = open().asReadOnlyBuffer();
+        b.clear().limit(length);
+        return b;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Writes the content as a JSON string literal, decoding UTF-8 through a small reused char buffer.
+     */
+    @Override
+    public void writeJSONString(Writer out) throws IOException {
+        CharsetDecoder decoder = DECODER.get();
+        CharBuffer chars = CHARS.get();
+        ByteBuffer in = readable();
+        decoder.reset();
+        out.write('"');
+        try {
+            boolean done = false;
+            while (!done) {
+                chars.clear();
+                CoderResult result = decoder.decode(in, chars, true);
+                if (result.isUnderflow()) {
+                    decoder.flush(chars);
+                    done = true;
+                } else if (result.isError()) {
+                    result.throwException();
+                }
+                chars.flip();
+                while (chars.hasRemaining()) {
+                    writeEscaped(out, chars.get());
+                }
+            }
+        } catch (CharacterCodingException e) {
+            throw new IOException(e);
+        } finally {
+            Arrays.fill(chars.array(), '\0');
+        }
+        out.write('"');
+    }
+
+    private static void writeEscaped(Writer out, char c) throws IOException {
+        switch (c) {
+            case '"': out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+        }
+    }
+
+    /**
+     * Fallback for serializers that need a String; OutputProcessor.send streams instead.
+     */
+    @Override
+    public String toJSONString() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJSONString(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Never prints the content, so a SecureBuffer that ends up in a log message stays harmless.
+     */
+    @Override
+    public String toString() {
+        return "SecureBuffer[" + length + " bytes]";
+    }
+
+    /**
+     * Zeroes the content and returns the memory to the pool. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        ByteBuffer b = buffer.getAndSet(null);
+        if (b == null) {
+            return;
+        }
+        b.clear();
+        while (b.hasRemaining()) {
+            b.put((byte) 0);
+        }
+        length = 0;
+        if (b.capacity() == POOLED_CAPACITY && pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(b);
+        } else if (b.capacity() == POOLED_CAPACITY) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes every SecureBuffer value of a response object once it has been sent.
+     */
+    public static void closeAll(Map<?, ?> output) {
+        if (output == null) {
+            return;
+        }
+        for (Object value : output.values()) {
+            if (value instanceof SecureBuffer) {
+                ((SecureBuffer) value).close();
+            }
+        }
+    }
+}
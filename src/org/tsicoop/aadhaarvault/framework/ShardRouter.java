@@ -0,0 +1,432 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads id_vault over several Postgres instances (vault.shard.urls). Shard 0 is the primary
+ * database behind PoolDB, which also keeps every other table; shards 1..N-1 hold only id_vault
+ * (db/shard/shard_init.sql) and each has its own Hikari pool.
+ *
+ * Rows are routed by their vault bucket (see VaultPartitions): lookups by ID number take it from
+ * the lookup hash, fetches by reference key from the key itself, so routing needs no query. Which
+ * shard owns each bucket is kept in vault_shard_bucket on the primary, cached here and reloaded
+ * every vault.shard.refreshSeconds. Reference keys issued before sharding do not carry a bucket;
+ * theirs is looked up in id_vault_legacy_ref.
+ *
+ * ReshardJob moves a range of buckets between shards online. While it copies, the buckets stay
+ * COPYING and are served by the old owner. For the final catch-up they are FROZEN: reads still go
+ * to the old owner, stores are refused with BucketMovingException (answered 503). After the switch
+ * they are DRAINING on the new owner until the old copies are deleted. Stores check the state in
+ * the database under a WriteFence, not only in the cached map, so a move step cannot overtake a
+ * store that is in flight.
+ */
+public class ShardRouter {
+
+    public static final int PRIMARY = 0;
+
+    public static final String STATE_ACTIVE = "ACTIVE";
+    public static final String STATE_COPYING = "COPYING";
+    public static final String STATE_FROZEN = "FROZEN";
+    public static final String STATE_DRAINING = "DRAINING";
+
+    private static ShardRouter instance = null;
+
+    private final String[] urls;
+    private final HikariDataSource[] shards; // [0] unused: the primary is PoolDB's pool
+    private final long refreshMillis;
+    private final ScheduledExecutorService scheduler;
+    private volatile int[] owners = new int[VaultPartitions.BUCKETS];
+    private volatile String[] states = new String[VaultPartitions.BUCKETS];
+    private volatile long loadedAt = 0;
+
+    private ShardRouter(String[] urls) {
+        this.urls = urls;
+        this.shards = new HikariDataSource[urls.length + 1];
+        this.refreshMillis = TimeUnit.SECONDS.toMillis(SystemConfig.getIntProperty("vault.shard.refreshSeconds", 5));
+        for (int i = 0; i < urls.length; i++) {
+            shards[i + 1] = createDataSource(i + 1, urls[i].trim());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard-router");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static HikariDataSource createDataSource(int shard, String url) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("shard-" + shard);
+        config.setJdbcUrl(url);
+        String user = SystemConfig.getAppConfig().getProperty("vault.shard.user", "");
+        String password = SystemConfig.getAppConfig().getProperty("vault.shard.password", "");
+        config.setUsername(!user.isEmpty() ? user : SystemConfig.getAppConfig().getProperty("framework.db.user"));
+        config.setPassword(!password.isEmpty() ? password : SystemConfig.getAppConfig().getProperty("framework.db.password"));
+        // Same settings as the primary pool (see PoolDB)
+        config.setMaximumPoolSize(SystemConfig.getIntProperty("vault.shard.poolSize", 10));
+        config.setMinimumIdle(Math.min(5, config.getMaximumPoolSize()));
+        config.setConnectionTimeout(30000);
+        config.setIdleTimeout(600000);
+        config.setMaxLifetime(1800000);
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * Creates the router, unless vault.shard.urls is empty. Called once from InterceptingFilter.init,
+     * before anything that reads id_vault.
+     *
+     * @throws IllegalStateException if the bucket map cannot be loaded: routing without it would
+     *                               store rows on the wrong shard.
+     */
+    public static synchronized void createInstance() {
+        String urls = SystemConfig.getAppConfig().getProperty("vault.shard.urls", "").trim();
+        if (instance != null || urls.isEmpty()) {
+            return;
+        }
+        ShardRouter router = new ShardRouter(urls.split(","));
+        try {
+            router.refresh();
+        } catch (SQLException e) {
+            router.close();
+            throw new IllegalStateException("ShardRouter: could not load vault_shard_bucket (run 011_vault_shards.sql): " + e.getMessage(), e);
+        }
+        router.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                router.refresh();
+            } catch (Exception e) {
+                // Keep routing with the last map; a move waits for every node to have seen its state
+                System.err.println("ShardRouter: refresh failed: " + e.getMessage());
+            }
+        }, router.refreshMillis, router.refreshMillis, TimeUnit.MILLISECONDS);
+        instance = router;
+    }
+
+    /**
+     * @return The router, or null when id_vault is not sharded.
+     */
+    public static ShardRouter getHandle() {
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    private void close() {
+        scheduler.shutdownNow();
+        for (HikariDataSource shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * Reloads the bucket map from vault_shard_bucket.
+     */
+    public void refresh() throws SQLException {
+        int[] newOwners = new int[VaultPartitions.BUCKETS];
+        String[] newStates = new String[VaultPartitions.BUCKETS];
+        Arrays.fill(newStates, STATE_ACTIVE);
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT vault_bucket, shard_id, state FROM vault_shard_bucket");
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                int bucket = rs.getInt("vault_bucket");
+                int shard = rs.getInt("shard_id");
+                if (shard < 0 || shard >= getShardCount()) {
+                    throw new SQLException("bucket " + bucket + " is on shard " + shard + ", which is not configured");
+                }
+                newOwners[bucket] = shard;
+                newStates[bucket] = rs.getString("state");
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        owners = newOwners;
+        states = newStates;
+        loadedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The number of shards, the primary included.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return How long until every node has reloaded the bucket map after a change.
+     */
+    public long getPropagationMillis() {
+        return 2 * refreshMillis;
+    }
+
+    /**
+     * @return The shard to read a bucket from.
+     */
+    public int shardFor(int bucket) {
+        return owners[bucket];
+    }
+
+    /**
+     * @return The shard to store a row of the bucket on.
+     * @throws BucketMovingException if the bucket is frozen for the last step of a move.
+     */
+    public int shardForWrite(int bucket) throws BucketMovingException {
+        if (STATE_FROZEN.equals(states[bucket])) {
+            throw new BucketMovingException("Vault bucket " + bucket + " is being moved to another shard");
+        }
+        return owners[bucket];
+    }
+
+    public String getState(int bucket) {
+        return states[bucket];
+    }
+
+    /**
+     * Holds a bucket's row of vault_shard_bucket (FOR SHARE) while a row of the bucket is stored.
+     * The routing decision is taken from that row, not from the cached map, and a move step
+     * (updateBuckets) waits for every fence on its buckets to be released, so once a bucket is
+     * FROZEN no store can still commit on the old owner.
+     */
+    public static final class WriteFence implements AutoCloseable {
+        private final Connection conn;
+        private final int shard;
+        private boolean open = true;
+
+        private WriteFence(Connection conn, int shard) {
+            this.conn = conn;
+            this.shard = shard;
+        }
+
+        /**
+         * @return The shard that owns the bucket while the fence is held.
+         */
+        public int getShard() {
+            return shard;
+        }
+
+        /**
+         * @return The fence's connection to the primary. A row stored on the primary through it
+         *         commits together with release, instead of taking a second primary connection.
+         */
+        public Connection getConnection() {
+            return conn;
+        }
+
+        /**
+         * Commits, releasing the bucket. Call once the row is committed on its shard.
+         */
+        public void release() throws SQLException {
+            if (open) {
+                conn.commit();
+                close();
+            }
+        }
+
+        /**
+         * Releases the bucket without committing anything stored through getConnection.
+         */
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                try {
+                    conn.rollback(); // no-op after release
+                } catch (SQLException ignored) {
+                }
+                try {
+                    conn.close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Fences a store into the bucket (see WriteFence). Take it right before the INSERT, after the
+     * KMS and encryption work, and release it as soon as the row is committed.
+     *
+     * @throws BucketMovingException if the bucket is frozen for the last step of a move.
+     */
+    public WriteFence fenceWrite(int bucket) throws SQLException, BucketMovingException {
+        return fenceWrite(new PoolDB(false).getConnection(), bucket);
+    }
+
+    /**
+     * @param conn A primary connection without autocommit; owned by the fence, closed on failure.
+     */
+    static WriteFence fenceWrite(Connection conn, int bucket) throws SQLException, BucketMovingException {
+        WriteFence fence = new WriteFence(conn, PRIMARY);
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT shard_id, state FROM vault_shard_bucket WHERE vault_bucket = ? FOR SHARE")) {
+            pstmt.setInt(1, bucket);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("vault_shard_bucket has no row for bucket " + bucket);
+                }
+                if (STATE_FROZEN.equals(rs.getString("state"))) {
+                    throw new BucketMovingException("Vault bucket " + bucket + " is being moved to another shard");
+                }
+                return new WriteFence(conn, rs.getInt("shard_id"));
+            }
+        } catch (SQLException | BucketMovingException | RuntimeException e) {
+            fence.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The bucket of a reference key issued before sharding, or -1 if it is not recorded
+     *         (then the row is on the primary).
+     */
+    public int getLegacyBucket(UUID referenceKey) throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT vault_bucket FROM id_vault_legacy_ref WHERE reference_key = ?");
+            pstmt.setObject(1, referenceKey);
+            rs = pstmt.executeQuery();
+            return rs.next() ? rs.getInt("vault_bucket") : -1;
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+    }
+
+    /**
+     * Opens a connection to a shard other than the primary (see PoolDB(int, boolean)).
+     */
+    Connection createConnection(int shard, boolean autocommit) throws SQLException {
+        if (shard <= PRIMARY || shard >= shards.length) {
+            throw new SQLException("No such shard: " + shard);
+        }
+        Connection connection = shards[shard].getConnection();
+        connection.setAutoCommit(autocommit);
+        return connection;
+    }
+
+    /**
+     * @return true if id_vault on the shard has the vault_bucket column: every shard but the
+     *         primary, which only has it once partitioned.
+     */
+    public static boolean storesBucket(int shard) {
+        return shard != PRIMARY || VaultPartitions.isEnabled();
+    }
+
+    /**
+     * Records a step of a bucket move in vault_shard_bucket and reloads the map on this node;
+     * other nodes follow within getPropagationMillis. Stores already routed by the previous state
+     * hold a WriteFence on their bucket, so this returns only after they have committed.
+     * move_started_at is kept from the first step until the move ends, on the node clock like
+     * id_vault.created_at.
+     */
+    public void updateBuckets(int fromBucket, int toBucket, Integer shard, String state, Integer targetShard) throws SQLException {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("UPDATE vault_shard_bucket SET shard_id = COALESCE(?, shard_id), state = ?, target_shard_id = ?, "
+                                          + "move_started_at = CASE WHEN ? = 'ACTIVE' THEN NULL ELSE COALESCE(move_started_at, ?) END, "
+                                          + "updated_at = CURRENT_TIMESTAMP WHERE vault_bucket BETWEEN ? AND ?");
+            pstmt.setObject(1, shard, Types.SMALLINT);
+            pstmt.setString(2, state);
+            pstmt.setObject(3, targetShard, Types.SMALLINT);
+            pstmt.setString(4, state);
+            pstmt.setTimestamp(5, Timestamp.valueOf(LocalDateTime.now()));
+            pstmt.setInt(6, fromBucket);
+            pstmt.setInt(7, toBucket);
+            pstmt.executeUpdate();
+        } finally {
+            pool.cleanup(null, pstmt, conn);
+        }
+        refresh();
+    }
+
+    /**
+     * @return The host[:port] part of a JDBC URL, without user info, database or parameters (a
+     *         password may be in any of them), for the metrics.
+     */
+    static String hostOf(String jdbcUrl) {
+        int start = jdbcUrl.indexOf("//");
+        if (start < 0) {
+            return "unknown";
+        }
+        String authority = jdbcUrl.substring(start + 2);
+        int end = authority.length();
+        for (char c : new char[]{'/', '?', '#'}) {
+            int i = authority.indexOf(c);
+            if (i >= 0 && i < end) {
+                end = i;
+            }
+        }
+        authority = authority.substring(0, end);
+        return authority.substring(authority.lastIndexOf('@') + 1);
+    }
+
+    public JSONObject getStats() {
+        int[] currentOwners = owners;
+        String[] currentStates = states;
+        JSONArray shardStats = new JSONArray();
+        for (int shard = 0; shard < getShardCount(); shard++) {
+            int buckets = 0, moving = 0;
+            for (int b = 0; b < VaultPartitions.BUCKETS; b++) {
+                if (currentOwners[b] == shard) {
+                    buckets++;
+                    if (!STATE_ACTIVE.equals(currentStates[b])) {
+                        moving++;
+                    }
+                }
+            }
+            JSONObject stats = new JSONObject();
+            stats.put("shard", shard);
+            stats.put("host", shard == PRIMARY ? "primary" : hostOf(urls[shard - 1].trim()));
+            stats.put("buckets", buckets);
+            stats.put("bucketsMoving", moving);
+            if (shards[shard] != null) {
+                HikariPoolMXBean poolBean = shards[shard].getHikariPoolMXBean();
+                if (poolBean != null) {
+                    stats.put("activeConnections", poolBean.getActiveConnections());
+                    stats.put("idleConnections", poolBean.getIdleConnections());
+                    stats.put("threadsAwaitingConnection", poolBean.getThreadsAwaitingConnection());
+                }
+            }
+            shardStats.add(stats);
+        }
+        JSONObject output = new JSONObject();
+        output.put("shardCount", getShardCount());
+        output.put("mapAgeMs", System.currentTimeMillis() - loadedAt);
+        output.put("shards", shardStats);
+        return output;
+    }
+}
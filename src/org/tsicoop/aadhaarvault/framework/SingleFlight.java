@@ -0,0 +1,146 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces concurrent calls for the same key into one: the first caller starts the call, callers
+ * arriving while it is in flight get the same future. Once it completes the key is released, so
+ * later callers start a new call (normally they hit a cache the call has filled by then).
+ *
+ * With execute the shared result is seen by every waiter; callers that zero or modify it must copy
+ * it first. executeOwned hands each caller its own copy instead. Both may be used on the same key:
+ * an executeOwned caller joining an execute call copies the shared result with its own copy
+ * function, and an execute caller never joins a call whose result is released, but makes its own.
+ */
+public class SingleFlight<K, V> {
+
+    private static final class Flight<V> {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        // Callers of executeOwned, each completed with its own copy of the result
+        final List<Owner<V>> owners = new ArrayList<>();
+        final boolean shared; // false if the result is released once copied: execute may not join
+        boolean closed = false;
+
+        Flight(boolean shared) {
+            this.shared = shared;
+        }
+    }
+
+    private static final class Owner<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final UnaryOperator<V> copy;
+
+        Owner(UnaryOperator<V> copy) {
+            this.copy = copy;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        Flight<V> flight = new Flight<>(true);
+        Flight<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            if (existing.shared) {
+                coalesced.incrementAndGet();
+                return existing.result;
+            }
+            // An executeOwned call whose result is released once copied: make our own call
+            calls.incrementAndGet();
+            return invoke(call);
+        }
+        calls.incrementAndGet();
+        start(key, flight, call, null);
+        return flight.result;
+    }
+
+    /**
+     * As execute, for a result nobody may keep a shared reference to (a plaintext key): every
+     * caller, the first included, gets its own copy, and release then runs once on the shared
+     * result (e.g. to zero it), after the last copy is made. A failure reaches every caller and
+     * skips release.
+     */
+    public CompletableFuture<V> executeOwned(K key, Supplier<CompletableFuture<V>> call, UnaryOperator<V> copy, Consumer<V> release) {
+        Owner<V> mine = new Owner<>(copy);
+        while (true) {
+            Flight<V> flight = new Flight<>(release == null);
+            flight.owners.add(mine);
+            Flight<V> existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null) {
+                calls.incrementAndGet();
+                start(key, flight, call, release);
+                return mine.future;
+            }
+            synchronized (existing) {
+                if (!existing.closed) {
+                    existing.owners.add(mine);
+                    coalesced.incrementAndGet();
+                    return mine.future;
+                }
+            }
+            // It completed since we found it and its key is already released: start or join the next one
+        }
+    }
+
+    private static <V> CompletableFuture<V> invoke(Supplier<CompletableFuture<V>> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void start(K key, Flight<V> flight, Supplier<CompletableFuture<V>> call, Consumer<V> release) {
+        invoke(call).whenComplete((value, error) -> {
+            // Release the key first: a caller that still finds this flight gets the completed result
+            inFlight.remove(key, flight);
+            List<Owner<V>> owners;
+            synchronized (flight) {
+                flight.closed = true;
+                owners = new ArrayList<>(flight.owners);
+            }
+            if (error != null) {
+                owners.forEach(owner -> owner.future.completeExceptionally(error));
+                flight.result.completeExceptionally(error);
+                return;
+            }
+            try {
+                for (Owner<V> owner : owners) {
+                    try {
+                        owner.future.complete(owner.copy.apply(value));
+                    } catch (RuntimeException e) {
+                        owner.future.completeExceptionally(e);
+                    }
+                }
+                flight.result.complete(value);
+            } finally {
+                if (release != null) {
+                    release.accept(value);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return calls (actually started), coalesced (callers that joined an in-flight call, i.e.
+     *         calls saved) and inFlight.
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("calls", calls.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("inFlight", inFlight.size());
+        return stats;
+    }
+}
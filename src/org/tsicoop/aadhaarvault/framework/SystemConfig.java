@@ -46,6 +46,119 @@ public class SystemConfig {
         appConfig.setProperty("aws.region",System.getenv("AWS_REGION"));
         appConfig.setProperty("aws.kms.identifier",System.getenv("AWS_KMS_KEY_IDENTIFIER"));
         appConfig.setProperty("tsi.lookup.salt",System.getenv("TSI_LOOKUP_SALT"));
+
+        // KMS SDK HTTP client tuning (optional, defaults apply when unset)
+        setAppProperty("aws.kms.http.maxConnections", "AWS_KMS_HTTP_MAX_CONNECTIONS", "50");
+        setAppProperty("aws.kms.http.connectionTimeoutMs", "AWS_KMS_HTTP_CONNECTION_TIMEOUT_MS", "2000");
+        setAppProperty("aws.kms.http.socketTimeoutMs", "AWS_KMS_HTTP_SOCKET_TIMEOUT_MS", "5000");
+        setAppProperty("aws.kms.http.acquisitionTimeoutMs", "AWS_KMS_HTTP_ACQUISITION_TIMEOUT_MS", "2000");
+        setAppProperty("aws.kms.http.maxIdleMs", "AWS_KMS_HTTP_MAX_IDLE_MS", "60000");
+        setAppProperty("aws.kms.http.tcpKeepAlive", "AWS_KMS_HTTP_TCP_KEEP_ALIVE", "true");
+        setAppProperty("aws.kms.apiCallTimeoutMs", "AWS_KMS_API_CALL_TIMEOUT_MS", "10000");
+        setAppProperty("aws.kms.apiCallAttemptTimeoutMs", "AWS_KMS_API_CALL_ATTEMPT_TIMEOUT_MS", "3000");
+
+        // Store-path data key reuse defaults (overridable per ID type in id_type_master)
+        setAppProperty("kms.datakey.cache.maxUses", "KMS_DATA_KEY_CACHE_MAX_USES", "500");
+        setAppProperty("kms.datakey.cache.maxAgeSeconds", "KMS_DATA_KEY_CACHE_MAX_AGE_SECONDS", "300");
+
+        // Fetch-path cache of KMS-decrypted data keys
+        setAppProperty("kms.decryptedkey.cache.maxEntries", "KMS_DECRYPTED_KEY_CACHE_MAX_ENTRIES", "10000");
+        setAppProperty("kms.decryptedkey.cache.ttlSeconds", "KMS_DECRYPTED_KEY_CACHE_TTL_SECONDS", "300");
+
+        // Background-refilled pool of pre-generated data keys
+        setAppProperty("kms.datakey.pool.low", "KMS_DATA_KEY_POOL_LOW", "2");
+        setAppProperty("kms.datakey.pool.high", "KMS_DATA_KEY_POOL_HIGH", "8");
+        setAppProperty("kms.datakey.pool.maxIdleSeconds", "KMS_DATA_KEY_POOL_MAX_IDLE_SECONDS", "900");
+
+        // Key provider: aws (default) or local (offline software key, benchmarks/CI only)
+        setAppProperty("kms.provider", "KMS_PROVIDER", "aws");
+        setAppProperty("kms.local.masterKeyFile", "KMS_LOCAL_MASTER_KEY_FILE", "");
+        setAppProperty("kms.local.keystore", "KMS_LOCAL_KEYSTORE", "");
+        setAppProperty("kms.local.keystorePassword", "KMS_LOCAL_KEYSTORE_PASSWORD", "");
+        setAppProperty("kms.local.keyAlias", "KMS_LOCAL_KEY_ALIAS", "vault-master");
+        setAppProperty("kms.local.latencyMs", "KMS_LOCAL_LATENCY_MS", "0");
+        setAppProperty("kms.local.latencyJitterMs", "KMS_LOCAL_LATENCY_JITTER_MS", "0");
+
+        // Key hierarchy: KMS-wrapped KEK per client/ID type/period, locally derived row keys
+        setAppProperty("kms.keyHierarchy.enabled", "KMS_KEY_HIERARCHY_ENABLED", "false");
+        setAppProperty("kms.kek.rotationPeriodSeconds", "KMS_KEK_ROTATION_PERIOD_SECONDS", "86400");
+        setAppProperty("kms.kek.cacheTtlSeconds", "KMS_KEK_CACHE_TTL_SECONDS", "3600");
+
+        // Resilience around key provider calls (see ResilientKeyProvider)
+        setAppProperty("kms.resilience.enabled", "KMS_RESILIENCE_ENABLED", "true");
+        setAppProperty("kms.bulkhead.maxConcurrent", "KMS_BULKHEAD_MAX_CONCURRENT", "64");
+        setAppProperty("kms.bulkhead.maxWaitMs", "KMS_BULKHEAD_MAX_WAIT_MS", "50");
+        setAppProperty("kms.callTimeoutMs", "KMS_CALL_TIMEOUT_MS", "3000");
+        setAppProperty("kms.breaker.windowSize", "KMS_BREAKER_WINDOW_SIZE", "50");
+        setAppProperty("kms.breaker.minCalls", "KMS_BREAKER_MIN_CALLS", "20");
+        setAppProperty("kms.breaker.failureRatePercent", "KMS_BREAKER_FAILURE_RATE_PERCENT", "50");
+        setAppProperty("kms.breaker.slowCallMs", "KMS_BREAKER_SLOW_CALL_MS", "1000");
+        setAppProperty("kms.breaker.openMs", "KMS_BREAKER_OPEN_MS", "5000");
+        setAppProperty("kms.breaker.halfOpenProbes", "KMS_BREAKER_HALF_OPEN_PROBES", "3");
+        setAppProperty("kms.hedge.enabled", "KMS_HEDGE_ENABLED", "false");
+        setAppProperty("kms.hedge.minDelayMs", "KMS_HEDGE_MIN_DELAY_MS", "10");
+        setAppProperty("kms.hedge.minSamples", "KMS_HEDGE_MIN_SAMPLES", "100");
+        setAppProperty("kms.latency.windowSeconds", "KMS_LATENCY_WINDOW_SECONDS", "60");
+
+        // Load-test fault injection into KMS and DB calls, off unless a profile is set (see FaultInjector)
+        setAppProperty("fault.profile", "FAULT_PROFILE", "");
+        setAppProperty("fault.kms", "FAULT_KMS", "");
+        setAppProperty("fault.db", "FAULT_DB", "");
+
+        // Match the legacy salted SHA-256 lookup hash too, until lookup_hash_migration has completed (see LookupHasher)
+        setAppProperty("vault.lookup.legacyHashRead", "VAULT_LOOKUP_LEGACY_HASH_READ", "true");
+        // Look up through the compact (hash_prefix, id_type_id) index; turn on once hash_prefix_backfill has completed
+        setAppProperty("vault.lookup.prefixRead", "VAULT_LOOKUP_PREFIX_READ", "false");
+        // Match rows hashed as submitted too, until id_normalization has completed (see IdNormalizer)
+        setAppProperty("vault.lookup.rawHashRead", "VAULT_LOOKUP_RAW_HASH_READ", "true");
+
+        // In-memory Bloom filters answering lookups for ID numbers that were never stored (see LookupFilter)
+        setAppProperty("vault.bloom.enabled", "VAULT_BLOOM_ENABLED", "false");
+        setAppProperty("vault.bloom.fpp", "VAULT_BLOOM_FPP", "0.01");
+        setAppProperty("vault.bloom.minCapacity", "VAULT_BLOOM_MIN_CAPACITY", "1000000");
+        setAppProperty("vault.bloom.refreshSeconds", "VAULT_BLOOM_REFRESH_SECONDS", "5");
+        setAppProperty("vault.bloom.rebuildHours", "VAULT_BLOOM_REBUILD_HOURS", "24");
+        setAppProperty("vault.bloom.snapshotFile", "VAULT_BLOOM_SNAPSHOT_FILE", "");
+
+        // LRU cache of lookup hash -> reference key for repeated stores and reverse lookups, 0 disables (see ReferenceKeyCache)
+        setAppProperty("vault.referenceCache.maxEntries", "VAULT_REFERENCE_CACHE_MAX_ENTRIES", "200000");
+
+        // Node-local memory-mapped index of lookup hash -> reference key, off unless a directory is set (see MappedLookupIndex)
+        setAppProperty("vault.lookupIndex.dir", "VAULT_LOOKUP_INDEX_DIR", "");
+        setAppProperty("vault.lookupIndex.minSlots", "VAULT_LOOKUP_INDEX_MIN_SLOTS", "1048576");
+        setAppProperty("vault.lookupIndex.refreshSeconds", "VAULT_LOOKUP_INDEX_REFRESH_SECONDS", "5");
+
+        // ID number validation and canonicalization before any KMS or database work (see IdNormalizer)
+        setAppProperty("vault.idType.cacheSeconds", "VAULT_ID_TYPE_CACHE_SECONDS", "60");
+        setAppProperty("vault.idValidation.regex", "VAULT_ID_VALIDATION_REGEX", "true");
+
+        // id_vault has been converted by 010_partitioned_id_vault.sql; queries name the bucket (see VaultPartitions)
+        setAppProperty("vault.partitioned", "VAULT_PARTITIONED", "false");
+
+        // id_vault spread over more Postgres instances by vault bucket; empty = primary only (see ShardRouter)
+        setAppProperty("vault.shard.urls", "VAULT_SHARD_URLS", "");
+        setAppProperty("vault.shard.user", "VAULT_SHARD_USER", "");
+        setAppProperty("vault.shard.password", "VAULT_SHARD_PASSWORD", "");
+        setAppProperty("vault.shard.poolSize", "VAULT_SHARD_POOL_SIZE", "10");
+        setAppProperty("vault.shard.refreshSeconds", "VAULT_SHARD_REFRESH_SECONDS", "5");
+
+        // Online maintenance jobs (see VaultJob)
+        setAppProperty("vault.job.chunkSize", "VAULT_JOB_CHUNK_SIZE", "500");
+        setAppProperty("vault.job.throttleMs", "VAULT_JOB_THROTTLE_MS", "50");
+        setAppProperty("vault.job.staleSeconds", "VAULT_JOB_STALE_SECONDS", "300");
+        setAppProperty("vault.rotation.concurrency", "VAULT_ROTATION_CONCURRENCY", "8");
+
+        // Non-blocking request handling for store/fetch
+        setAppProperty("vault.async.enabled", "VAULT_ASYNC_ENABLED", "true");
+        setAppProperty("vault.async.workerThreads", "VAULT_ASYNC_WORKER_THREADS", "16");
+    }
+
+    private static void setAppProperty(String key, String envName, String defaultValue) {
+        String value = System.getenv(envName);
+        if (value == null || value.trim().isEmpty()) {
+            value = defaultValue;
+        }
+        appConfig.setProperty(key, value.trim());
     }
 
     public static Properties getAppConfig() {
@@ -53,6 +166,27 @@ public class SystemConfig {
     }
     public static Properties getSchema() { return schemaConfig;}
 
+    public static int getIntProperty(String key, int defaultValue) {
+        String value = appConfig != null ? appConfig.getProperty(key) : null;
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid integer for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBooleanProperty(String key, boolean defaultValue) {
+        String value = appConfig != null ? appConfig.getProperty(key) : null;
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
     public static Properties getProcessorConfig(){
         return processorConfig;
     }
@@ -0,0 +1,415 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.json.simple.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for online maintenance jobs over id_vault (format migration, key rotation, backfills).
+ *
+ * Rows are visited in reference_key order with keyset pagination, one chunk per transaction.
+ * After each chunk the last reference_key is written to vault_job_checkpoint in the same
+ * transaction, so a stopped or failed job resumes where it left off instead of starting over.
+ * A pause of vault.job.throttleMs between chunks keeps the job from starving request traffic;
+ * chunk size and throttle can also be changed per job from the admin API while it runs.
+ *
+ * Subclasses name the extra columns to read, an optional row filter, and process each row,
+ * typically by adding it to a batched UPDATE that is executed in finishChunk.
+ *
+ * Jobs run on the primary database. A job that scans another shard of id_vault (see ShardRouter)
+ * overrides getShard, and a job that must visit every row wherever it lives overrides
+ * scansAllShards: it then scans the shards one after the other, and the checkpoint keeps the shard
+ * along with the last reference_key. Off the primary the checkpoint is written on the primary right
+ * after each chunk commits, so the chunk must be safe to run twice.
+ *
+ * JobRunner claims a job before starting it: under a cluster-wide lock, the job is refused while a
+ * job it conflicts with (getConflictingJobs) is RUNNING on any node, and marked RUNNING otherwise.
+ * A RUNNING checkpoint not written for vault.job.staleSeconds is taken to be left by a dead node.
+ */
+public abstract class VaultJob implements Runnable {
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_STOPPED = "STOPPED";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    // Key of the advisory lock serializing claims across nodes
+    private static final long CLAIM_LOCK_ID = 0x5453495641554C54L; // "TSIVAULT"
+
+    private volatile boolean stopRequested = false;
+    private volatile boolean claimed = false;
+    private volatile int shard = ShardRouter.PRIMARY;
+    private volatile String status = STATUS_STOPPED;
+    private volatile String message = null;
+    private volatile UUID lastReferenceKey = null;
+    private final AtomicLong rowsProcessed = new AtomicLong();
+    private final AtomicLong rowsThisRun = new AtomicLong();
+    private volatile long startedAt = 0;
+    private volatile int chunkSize = SystemConfig.getIntProperty("vault.job.chunkSize", 500);
+    private volatile long throttleMillis = SystemConfig.getIntProperty("vault.job.throttleMs", 50);
+
+    /**
+     * @return Unique job name; also the checkpoint key.
+     */
+    public abstract String getName();
+
+    /**
+     * @return Comma separated id_vault columns to read in addition to reference_key.
+     */
+    protected abstract String getColumns();
+
+    /**
+     * @return Optional SQL condition on id_vault limiting the rows to visit, or null for all rows.
+     */
+    protected String getFilter() {
+        return null;
+    }
+
+    /**
+     * @return The shard of id_vault to scan.
+     */
+    protected int getShard() {
+        return ShardRouter.PRIMARY;
+    }
+
+    /**
+     * @return true to scan every shard of id_vault in turn when it is sharded, instead of getShard.
+     *         The job must only update the rows it reads, by reference_key, and leave their lookup
+     *         hash (and so their bucket) alone.
+     */
+    protected boolean scansAllShards() {
+        return false;
+    }
+
+    /**
+     * @return Names of the jobs, this one included if it applies, that must not run anywhere in the
+     *         cluster while this one does.
+     */
+    protected Set<String> getConflictingJobs() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Called by claim under the cluster-wide lock.
+     *
+     * @return null if the job may start, or why not.
+     */
+    protected String checkConflicts(Connection conn) throws SQLException {
+        Set<String> conflicting = getConflictingJobs();
+        if (!conflicting.isEmpty()) {
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                pstmt = conn.prepareStatement("SELECT job_name FROM vault_job_checkpoint WHERE job_name = ANY (?) AND status = ? "
+                                              + "AND updated_at > LOCALTIMESTAMP - make_interval(secs => ?) ORDER BY job_name");
+                pstmt.setArray(1, conn.createArrayOf("varchar", conflicting.toArray()));
+                pstmt.setString(2, STATUS_RUNNING);
+                pstmt.setInt(3, SystemConfig.getIntProperty("vault.job.staleSeconds", 300));
+                rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return "Job " + rs.getString("job_name") + " is running";
+                }
+            } finally {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            }
+        }
+        if (scansAllShards() && ShardRouter.getHandle() != null) {
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT 1 FROM vault_shard_bucket WHERE state <> 'ACTIVE' LIMIT 1");
+                 ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return "A bucket range is being moved; complete the reshard job first";
+                }
+            }
+        }
+        return null;
+    }
+    /**
+     * Called once per run after the checkpoint is loaded, before the first chunk.
+     */
+    protected void onStarted() throws Exception {
+    }
+
+    protected void startChunk(Connection conn) throws Exception {
+    }
+
+    protected abstract void processRow(Connection conn, ResultSet rs) throws Exception;
+
+    protected void finishChunk(Connection conn) throws Exception {
+    }
+
+    /**
+     * Called once after the last chunk, before the job is marked COMPLETED.
+     */
+    protected void onCompleted() throws Exception {
+    }
+
+    protected int getChunkSize() {
+        return chunkSize;
+    }
+
+    protected long getThrottleMillis() {
+        return throttleMillis;
+    }
+
+    /**
+     * Applies the optional tuning parameters of start_vault_job / update_vault_job. Safe to call
+     * while the job runs; new values take effect from the next chunk.
+     */
+    public void configure(JSONObject input) {
+        if (input.get("chunkSize") != null) {
+            chunkSize = Math.max(1, ((Number) input.get("chunkSize")).intValue());
+        }
+        if (input.get("throttleMs") != null) {
+            throttleMillis = Math.max(0, ((Number) input.get("throttleMs")).longValue());
+        }
+    }
+
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public boolean isRunning() {
+        return STATUS_RUNNING.equals(status);
+    }
+
+    /**
+     * Loads the checkpoint and marks the job RUNNING in it, unless checkConflicts refuses. Runs under
+     * a transaction-level advisory lock on the primary, so two nodes cannot both pass the check.
+     *
+     * @return null once claimed, or why the job cannot start.
+     */
+    String claim() throws SQLException {
+        PoolDB pool = new PoolDB(false);
+        Connection conn = pool.getConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn.prepareStatement("SELECT pg_advisory_xact_lock(?)");
+            pstmt.setLong(1, CLAIM_LOCK_ID);
+            pstmt.execute();
+            String conflict = checkConflicts(conn);
+            if (conflict != null) {
+                conn.rollback();
+                return conflict;
+            }
+            loadCheckpoint(conn);
+            status = STATUS_RUNNING;
+            message = null;
+            saveCheckpoint(conn);
+            conn.commit();
+            claimed = true;
+            return null;
+        } catch (SQLException e) {
+            pool.rollback(conn);
+            throw e;
+        } finally {
+            pool.cleanup(null, pstmt, conn);
+        }
+    }
+    @Override
+    public void run() {
+        // stopRequested is not reset: a stop while the job is still queued must hold (instances run once)
+        rowsThisRun.set(0);
+        startedAt = System.currentTimeMillis();
+        status = STATUS_RUNNING;
+        message = null;
+        try {
+            if (!claimed) {
+                loadCheckpoint(null);
+            }
+            onStarted();
+            String filter = getFilter();
+            String sql = "SELECT reference_key, " + getColumns() + " FROM id_vault WHERE reference_key > ?"
+                         + (filter != null ? " AND (" + filter + ")" : "")
+                         + " ORDER BY reference_key LIMIT ?";
+            String firstSql = "SELECT reference_key, " + getColumns() + " FROM id_vault"
+                              + (filter != null ? " WHERE (" + filter + ")" : "")
+                              + " ORDER BY reference_key LIMIT ?";
+            boolean done = false;
+            while (!done && !stopRequested) {
+                if (runChunk(lastReferenceKey == null ? firstSql : sql) < getChunkSize()) {
+                    if (shard < getLastShard()) {
+                        shard++;
+                        lastReferenceKey = null;
+                        saveCheckpoint(null);
+                    } else {
+                        done = true;
+                    }
+                }
+                if (!done && getThrottleMillis() > 0) {
+                    Thread.sleep(getThrottleMillis());
+                }
+            }
+            if (done) {
+                onCompleted();
+            }
+            status = done ? STATUS_COMPLETED : STATUS_STOPPED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = STATUS_STOPPED;
+        } catch (Exception e) {
+            status = STATUS_FAILED;
+            message = e.getMessage();
+            System.err.println("VaultJob " + getName() + " failed after " + lastReferenceKey + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+        try {
+            saveCheckpoint(null);
+        } catch (SQLException e) {
+            System.err.println("VaultJob " + getName() + ": could not save final status: " + e.getMessage());
+        }
+        System.out.println("VaultJob " + getName() + " " + status + " (" + rowsThisRun.get() + " rows this run, " + rowsProcessed.get() + " total)");
+    }
+
+    private int getLastShard() {
+        ShardRouter router = ShardRouter.getHandle();
+        return scansAllShards() && router != null ? router.getShardCount() - 1 : shard;
+    }
+
+    private int runChunk(String sql) throws Exception {
+        boolean primary = shard == ShardRouter.PRIMARY;
+        PoolDB pool = new PoolDB(shard, false);
+        Connection conn = pool.getConnection();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        int rows = 0;
+        UUID last = lastReferenceKey;
+        try {
+            pstmt = conn.prepareStatement(sql);
+            int param = 1;
+            if (last != null) {
+                pstmt.setObject(param++, last);
+            }
+            pstmt.setInt(param, getChunkSize());
+            rs = pstmt.executeQuery();
+            startChunk(conn);
+            while (rs.next()) {
+                processRow(conn, rs);
+                last = (UUID) rs.getObject("reference_key");
+                rows++;
+            }
+            finishChunk(conn);
+            if (rows > 0) {
+                lastReferenceKey = last;
+                rowsProcessed.addAndGet(rows);
+                rowsThisRun.addAndGet(rows);
+            }
+            if (primary) {
+                saveCheckpoint(conn);
+                conn.commit();
+            } else {
+                conn.commit();
+                saveCheckpoint(null);
+            }
+        } catch (Exception e) {
+            pool.rollback(conn);
+            throw e;
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        return rows;
+    }
+
+    /**
+     * Loads this job's checkpoint, inside the given transaction when conn is given. The shard is
+     * only kept in the checkpoint while id_vault is sharded (the column comes with 011_vault_shards).
+     */
+    private void loadCheckpoint(Connection conn) throws SQLException {
+        boolean sharded = ShardRouter.getHandle() != null;
+        PoolDB pool = conn == null ? new PoolDB() : null;
+        Connection c = conn != null ? conn : pool.getConnection();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = c.prepareStatement("SELECT last_reference_key, rows_processed, status" + (sharded ? ", shard_id" : "")
+                                       + " FROM vault_job_checkpoint WHERE job_name = ?");
+            pstmt.setString(1, getName());
+            rs = pstmt.executeQuery();
+            shard = scansAllShards() ? ShardRouter.PRIMARY : getShard();
+            if (rs.next() && !STATUS_COMPLETED.equals(rs.getString("status"))) {
+                lastReferenceKey = (UUID) rs.getObject("last_reference_key");
+                rowsProcessed.set(rs.getLong("rows_processed"));
+                if (sharded && scansAllShards()) {
+                    shard = Math.min(rs.getInt("shard_id"), getLastShard());
+                }
+            } else {
+                // New job, or a completed one being run again: start from the beginning
+                lastReferenceKey = null;
+                rowsProcessed.set(0);
+            }
+        } finally {
+            if (pool != null) {
+                pool.cleanup(rs, pstmt, c);
+            } else {
+                if (rs != null) {
+                    rs.close();
+                }
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Upserts this job's checkpoint, inside the chunk transaction when conn is given.
+     */
+    private void saveCheckpoint(Connection conn) throws SQLException {
+        boolean sharded = ShardRouter.getHandle() != null;
+        PoolDB pool = conn == null ? new PoolDB() : null;
+        Connection c = conn != null ? conn : pool.getConnection();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = c.prepareStatement("INSERT INTO vault_job_checkpoint (job_name, last_reference_key, rows_processed, status, message, updated_at" + (sharded ? ", shard_id" : "")
+                                       + ") VALUES (?, ?, ?, ?, ?, CURRENT_TIMESTAMP" + (sharded ? ", ?" : "") + ") "
+                                       + "ON CONFLICT (job_name) DO UPDATE SET last_reference_key = EXCLUDED.last_reference_key, rows_processed = EXCLUDED.rows_processed, "
+                                       + "status = EXCLUDED.status, message = EXCLUDED.message, updated_at = EXCLUDED.updated_at" + (sharded ? ", shard_id = EXCLUDED.shard_id" : ""));
+            pstmt.setString(1, getName());
+            pstmt.setObject(2, lastReferenceKey);
+            pstmt.setLong(3, rowsProcessed.get());
+            pstmt.setString(4, status);
+            pstmt.setString(5, message);
+            if (sharded) {
+                pstmt.setInt(6, shard);
+            }
+            pstmt.executeUpdate();
+        } finally {
+            if (pool != null) {
+                pool.cleanup(null, pstmt, c);
+            } else if (pstmt != null) {
+                pstmt.close();
+            }
+        }
+    }
+
+    public JSONObject getStatus() {
+        JSONObject output = new JSONObject();
+        output.put("jobName", getName());
+        output.put("status", status);
+        output.put("rowsProcessed", rowsProcessed.get());
+        output.put("rowsThisRun", rowsThisRun.get());
+        output.put("lastReferenceKey", lastReferenceKey != null ? lastReferenceKey.toString() : null);
+        if (ShardRouter.getHandle() != null) {
+            output.put("shard", shard);
+        }
+        output.put("message", message);
+        output.put("chunkSize", chunkSize);
+        output.put("throttleMs", throttleMillis);
+        if (startedAt > 0) {
+            long seconds = Math.max(1, (System.currentTimeMillis() - startedAt) / 1000);
+            output.put("rowsPerSecond", rowsThisRun.get() / seconds);
+        }
+        return output;
+    }
+}
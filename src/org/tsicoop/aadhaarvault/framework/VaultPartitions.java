@@ -0,0 +1,111 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Bucket arithmetic for the partitioned id_vault layout (vault.partitioned, see
+ * 010_partitioned_id_vault.sql). Every row has a vault_bucket taken from its lookup hash, and the
+ * table is range-partitioned on it, so each Vault query names the bucket and touches one partition:
+ * - Lookups by ID number compute the bucket from the lookup hash.
+ * - Fetches by reference key read it from the key: rows stored once partitioning is on get a
+ *   version 8 UUID whose low BUCKET_BITS bits are the bucket. Rows that existed before the
+ *   migration keep their random (version 4) keys, and their bucket is looked up in
+ *   id_vault_legacy_ref inside the same query.
+ *
+ * The bucket count is fixed; the number of partitions is not (each covers a range of buckets and
+ * can be split later).
+ *
+ * The bucket in a reference key is visible to whoever holds the key, and it is the low 10 bits of
+ * the row's lookup hash. This is accepted: the lookup hash is an HMAC under the vault's secret
+ * salt, so the bits say nothing about the ID number, and a client holding two keys learns only
+ * whether the two rows share a bucket (and so a partition and shard), which unrelated rows do one
+ * time in 1024. A key keeps 112 random bits, against 122 in a version 4 UUID, so keys stay
+ * unguessable. Hiding the bucket would need a keyed encoding or a server-side lookup per fetch, and
+ * a different encoding could not be told apart from the keys already issued.
+ */
+public final class VaultPartitions {
+
+    public static final int BUCKET_BITS = 10;
+    public static final int BUCKETS = 1 << BUCKET_BITS;
+
+    // bucket() in SQL, for rows that do not have a vault_bucket column
+    public static final String BUCKET_SQL = "(((get_byte(hashed_id_bin, 30) << 8) | get_byte(hashed_id_bin, 31)) & 1023)";
+
+    private static final long BUCKET_MASK = BUCKETS - 1;
+    private static final int BUCKETED_KEY_VERSION = 8;
+
+    private VaultPartitions() {
+    }
+
+    /**
+     * @return true once id_vault has been converted to the partitioned layout (vault.partitioned).
+     */
+    public static boolean isEnabled() {
+        return SystemConfig.getBooleanProperty("vault.partitioned", false);
+    }
+
+    /**
+     * @return The bucket of a lookup hash: its last BUCKET_BITS bits, so it is independent of the
+     *         leading bytes used by hash_prefix and the in-memory lookup structures. The migration
+     *         script computes the same value in SQL.
+     */
+    public static int bucket(byte[] lookupHash) {
+        int n = lookupHash.length;
+        return (int) ((((lookupHash[n - 2] & 0xff) << 8) | (lookupHash[n - 1] & 0xff)) & BUCKET_MASK);
+    }
+
+    /**
+     * @return A new random reference key carrying the bucket in the clear (version 8 UUID, see the
+     *         class comment on what that reveals).
+     */
+    public static UUID newReferenceKey(int bucket) {
+        UUID random = UUID.randomUUID();
+        long msb = (random.getMostSignificantBits() & ~0xF000L) | ((long) BUCKETED_KEY_VERSION << 12);
+        long lsb = (random.getLeastSignificantBits() & ~BUCKET_MASK) | bucket;
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * @return The bucket carried by a reference key, or -1 for a key issued before partitioning.
+     */
+    public static int bucketOf(UUID referenceKey) {
+        if (referenceKey.version() != BUCKETED_KEY_VERSION || referenceKey.variant() != 2) {
+            return -1;
+        }
+        return (int) (referenceKey.getLeastSignificantBits() & BUCKET_MASK);
+    }
+
+    /**
+     * @param column The vault_bucket column as named in the query (e.g. "iv.vault_bucket").
+     * @return A condition to append to a query by reference key so it is pruned to one partition,
+     *         or "" when partitioning is off. Bind it with bindBucket.
+     */
+    public static String bucketCondition(String column, UUID referenceKey) {
+        if (!isEnabled()) {
+            return "";
+        }
+        return bucketOf(referenceKey) >= 0
+                ? " AND " + column + " = ?"
+                : " AND " + column + " = (SELECT vault_bucket FROM id_vault_legacy_ref WHERE reference_key = ?)";
+    }
+
+    /**
+     * Binds the parameter of bucketCondition, if any.
+     *
+     * @return The next parameter index.
+     */
+    public static int bindBucket(PreparedStatement pstmt, int param, UUID referenceKey) throws SQLException {
+        if (!isEnabled()) {
+            return param;
+        }
+        int bucket = bucketOf(referenceKey);
+        if (bucket >= 0) {
+            pstmt.setShort(param, (short) bucket);
+        } else {
+            pstmt.setObject(param, referenceKey);
+        }
+        return param + 1;
+    }
+}
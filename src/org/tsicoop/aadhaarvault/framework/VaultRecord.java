@@ -0,0 +1,165 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Binary, versioned layout of an encrypted ID as stored in id_vault.encrypted_id_bin (bytea):
+ *
+ *   version(1) | alg(1) | keyType(1) | keyIdLength(1) | keyId(keyIdLength) | payload
+ *
+ * alg is a CryptoEngine.ALG_* value and payload is that algorithm's layout (for AES-GCM:
+ * IV || ciphertext || tag). keyType says where the record's data key comes from: KEY_WRAPPED is
+ * the provider-wrapped key in id_vault.encrypted_data_key_bin (empty key id), KEY_KEK derives it
+ * from the KEK whose 8-byte kek_id is the key id (see KeyHierarchy), and KEY_MASKING marks a masked
+ * record in id_vault.masked_id_bin encrypted under the masking key with that 8-byte key_id (see MaskingKeys).
+ *
+ * Rows still in the legacy Base64 TEXT columns are read through fromLegacy, so callers handle
+ * both formats the same way while the migration job runs.
+ */
+public final class VaultRecord {
+
+    public static final int VERSION_1 = 1;
+
+    public static final int KEY_WRAPPED = 0;
+    public static final int KEY_KEK = 1;
+    public static final int KEY_MASKING = 2;
+
+    private static final int HEADER_LENGTH = 4;
+
+    private final int alg;
+    private final int keyType;
+    private final byte[] data;
+    private final int keyIdOffset;
+    private final int keyIdLength;
+    private final int payloadOffset;
+
+    private VaultRecord(int alg, int keyType, byte[] data, int keyIdOffset, int keyIdLength, int payloadOffset) {
+        this.alg = alg;
+        this.keyType = keyType;
+        this.data = data;
+        this.keyIdOffset = keyIdOffset;
+        this.keyIdLength = keyIdLength;
+        this.payloadOffset = payloadOffset;
+    }
+
+    /**
+     * Encrypts plaintext with AES-GCM straight into a single, exactly sized record array.
+     */
+    public static byte[] encrypt(byte[] plaintext, byte[] key, int keyType, byte[] keyId) throws GeneralSecurityException {
+        return encrypt(ByteBuffer.wrap(plaintext), key, keyType, keyId);
+    }
+
+    /**
+     * As encrypt(byte[], ...), reading the plaintext (position to limit) from a buffer such as
+     * SecureBuffer.readable().
+     */
+    public static byte[] encrypt(ByteBuffer plaintext, byte[] key, int keyType, byte[] keyId) throws GeneralSecurityException {
+        int keyIdLength = keyId != null ? keyId.length : 0;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + keyIdLength + CryptoEngine.encryptedSize(plaintext.remaining()));
+        out.put((byte) VERSION_1).put((byte) CryptoEngine.ALG_AES_GCM).put((byte) keyType).put((byte) keyIdLength);
+        if (keyIdLength > 0) {
+            out.put(keyId);
+        }
+        CryptoEngine.encrypt(plaintext, key, out);
+        return out.array();
+    }
+
+    /**
+     * Builds a record around an existing payload without re-encrypting (used by the format migration).
+     */
+    public static byte[] encode(int alg, int keyType, byte[] keyId, byte[] payload) {
+        int keyIdLength = keyId != null ? keyId.length : 0;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + keyIdLength + payload.length);
+        out.put((byte) VERSION_1).put((byte) alg).put((byte) keyType).put((byte) keyIdLength);
+        if (keyIdLength > 0) {
+            out.put(keyId);
+        }
+        out.put(payload);
+        return out.array();
+    }
+
+    public static VaultRecord parse(byte[] record) {
+        if (record.length < HEADER_LENGTH || record[0] != VERSION_1) {
+            throw new IllegalArgumentException("Unsupported vault record version: " + (record.length > 0 ? record[0] : -1));
+        }
+        int keyIdLength = record[3] & 0xFF;
+        if (record.length < HEADER_LENGTH + keyIdLength) {
+            throw new IllegalArgumentException("Truncated vault record");
+        }
+        return new VaultRecord(record[1], record[2], record, HEADER_LENGTH, keyIdLength, HEADER_LENGTH + keyIdLength);
+    }
+
+    /**
+     * Wraps a row that is still in the legacy columns (Base64-decoded encrypted_id_number, cipher_alg, kek_id).
+     */
+    public static VaultRecord fromLegacy(int cipherAlg, byte[] payload, Long kekId) {
+        if (kekId != null) {
+            byte[] keyId = kekKeyId(kekId);
+            return new VaultRecord(cipherAlg, KEY_KEK, concat(keyId, payload), 0, keyId.length, keyId.length);
+        }
+        return new VaultRecord(cipherAlg, KEY_WRAPPED, payload, 0, 0, 0);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = new byte[a.length + b.length];
+        System.arraycopy(a, 0, out, 0, a.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    public static byte[] kekKeyId(long kekId) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(kekId).array();
+    }
+
+    public static byte[] maskingKeyId(long maskingKeyId) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(maskingKeyId).array();
+    }
+
+    public int getAlg() {
+        return alg;
+    }
+
+    public int getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * @return The KEK of a KEY_KEK record.
+     */
+    public long getKekId() {
+        if (keyType != KEY_KEK || keyIdLength != Long.BYTES) {
+            throw new IllegalStateException("Vault record is not keyed by a KEK");
+        }
+        return ByteBuffer.wrap(data, keyIdOffset, keyIdLength).getLong();
+    }
+
+    /**
+     * @return The masking key of a KEY_MASKING record.
+     */
+    public long getMaskingKeyId() {
+        if (keyType != KEY_MASKING || keyIdLength != Long.BYTES) {
+            throw new IllegalStateException("Vault record is not a masked record");
+        }
+        return ByteBuffer.wrap(data, keyIdOffset, keyIdLength).getLong();
+    }
+
+    public byte[] decrypt(byte[] key) throws GeneralSecurityException {
+        return CryptoEngine.decrypt(alg, data, payloadOffset, data.length - payloadOffset, key);
+    }
+
+    /**
+     * Decrypts into an off-heap SecureBuffer owned by the caller, who must close it.
+     */
+    public SecureBuffer decryptToBuffer(byte[] key) throws GeneralSecurityException {
+        int payloadLength = data.length - payloadOffset;
+        SecureBuffer plaintext = SecureBuffer.allocate(CryptoEngine.maxDecryptedSize(alg, payloadLength));
+        try {
+            plaintext.setLength(CryptoEngine.decrypt(alg, ByteBuffer.wrap(data, payloadOffset, payloadLength), key, plaintext.writable()));
+            return plaintext;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            plaintext.close();
+            throw e;
+        }
+    }
+}
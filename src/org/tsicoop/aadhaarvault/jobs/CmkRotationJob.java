@@ -0,0 +1,417 @@
+package org.tsicoop.aadhaarvault.jobs;
+
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.KeyProvider;
+import org.tsicoop.aadhaarvault.framework.KmsService;
+import org.tsicoop.aadhaarvault.framework.PoolDB;
+import org.tsicoop.aadhaarvault.framework.SystemConfig;
+import org.tsicoop.aadhaarvault.framework.VaultJob;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rotates the customer master key by re-wrapping the data keys stored in id_vault (and the KEKs in
+ * key_encryption_key and the keys in masking_key) under the destination key. Only the wrapped keys
+ * change: KMS ReEncrypt (or the LocalKeyProvider equivalent) re-wraps them server side, so neither
+ * the plaintext data keys nor the encrypted ID numbers are touched.
+ *
+ * Data keys are shared by many rows, so each distinct wrapped key in a chunk is re-wrapped once, in
+ * parallel on a bounded worker pool, and the result is remembered for the following chunks. Rows
+ * sharing a key before the rotation still share it afterwards. Rows derived from a KEK carry no
+ * wrapped key of their own and are covered by re-wrapping their KEK after the last chunk, together
+ * with the masking keys.
+ *
+ * A row whose wrapped key changed between the read and the update is read again and its current
+ * key re-wrapped; if it changes once more the chunk fails, so the job never completes with rows
+ * left under the old key. binary_format_migration, the other job rewriting wrapped keys, is
+ * refused cluster-wide while this job runs, and the other way round.
+ *
+ * Switch the service to the new CMK (and restart, which empties the data key caches) before
+ * starting the job, otherwise rows written behind the job's cursor stay under the old key.
+ */
+public class CmkRotationJob extends VaultJob {
+
+    public static final String NAME = "cmk_rotation";
+
+    // Jobs rewriting encrypted_data_key[_bin]: only one may run at a time, anywhere
+    static final Set<String> KEY_REWRITING_JOBS = Set.of(NAME, BinaryFormatMigrationJob.NAME);
+
+    static final int REWRAPPED_CACHE_SIZE = 10000;
+
+    private final String destinationKeyId;
+    private volatile int concurrency = SystemConfig.getIntProperty("vault.rotation.concurrency", 8);
+    private ThreadPoolExecutor workers = null;
+
+    private final RewrappedKeys rewrapped = new RewrappedKeys(REWRAPPED_CACHE_SIZE);
+    private final List<Object[]> chunkRows = new ArrayList<>();
+
+    private final AtomicLong keysReEncrypted = new AtomicLong();
+    private final AtomicLong keysReused = new AtomicLong();
+    private final AtomicLong rowsChangedMeanwhile = new AtomicLong();
+    private final AtomicLong keksReEncrypted = new AtomicLong();
+    private final AtomicLong maskingKeysReEncrypted = new AtomicLong();
+
+    /**
+     * @param destinationKeyId Key to re-wrap under; null for the provider's current key.
+     */
+    public CmkRotationJob(String destinationKeyId) {
+        this.destinationKeyId = destinationKeyId;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected boolean scansAllShards() {
+        return true;
+    }
+
+    @Override
+    protected Set<String> getConflictingJobs() {
+        Set<String> conflicting = new HashSet<>(KEY_REWRITING_JOBS);
+        conflicting.add(ReshardJob.NAME); // rows copied by a move would miss the update
+        return conflicting;
+    }
+
+    @Override
+    protected String getColumns() {
+        return "encrypted_data_key_bin, encrypted_data_key";
+    }
+
+    @Override
+    protected String getFilter() {
+        return "encrypted_data_key_bin IS NOT NULL OR encrypted_data_key IS NOT NULL";
+    }
+
+    @Override
+    public void configure(JSONObject input) {
+        super.configure(input);
+        if (input.get("concurrency") != null) {
+            concurrency = Math.max(1, ((Number) input.get("concurrency")).intValue());
+            resizeWorkers();
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            AtomicInteger threadCount = new AtomicInteger();
+            workers = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "cmk-rotation-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        try {
+            super.run();
+        } finally {
+            synchronized (this) {
+                workers.shutdownNow();
+                workers = null;
+            }
+            rewrapped.reset();
+        }
+    }
+
+    private synchronized void resizeWorkers() {
+        if (workers == null) {
+            return;
+        }
+        // The core size may never exceed the maximum, so the order depends on the direction
+        if (concurrency > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(concurrency);
+            workers.setCorePoolSize(concurrency);
+        } else {
+            workers.setCorePoolSize(concurrency);
+            workers.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    @Override
+    protected void startChunk(Connection conn) {
+        chunkRows.clear();
+        rewrapped.clearChunk();
+    }
+
+    @Override
+    protected void processRow(Connection conn, ResultSet rs) throws Exception {
+        byte[] bin = rs.getBytes("encrypted_data_key_bin");
+        String legacy = rs.getString("encrypted_data_key");
+        ByteBuffer wrapped = ByteBuffer.wrap(bin != null ? bin : Base64.getDecoder().decode(legacy));
+        chunkRows.add(new Object[] { rs.getObject("reference_key"), wrapped, bin == null ? legacy : null });
+        if (rewrapped.add(wrapped)) {
+            keysReused.incrementAndGet();
+        }
+    }
+
+    @Override
+    protected void finishChunk(Connection conn) throws Exception {
+        rewrapped.complete(reEncryptAll(rewrapped.getPending()));
+
+        // The old key in the WHERE clause skips rows that changed since they were read
+        PreparedStatement updateBin = conn.prepareStatement("UPDATE id_vault SET encrypted_data_key_bin = ? WHERE reference_key = ? AND encrypted_data_key_bin = ?");
+        PreparedStatement updateLegacy = conn.prepareStatement("UPDATE id_vault SET encrypted_data_key = ? WHERE reference_key = ? AND encrypted_data_key = ?");
+        try {
+            for (Object[] row : chunkRows) {
+                bindUpdate(updateBin, updateLegacy, row, rewrapped.get((ByteBuffer) row[1]));
+                (row[2] == null ? updateBin : updateLegacy).addBatch();
+            }
+            int[] binCounts = updateBin.executeBatch();
+            int[] legacyCounts = updateLegacy.executeBatch();
+            List<Object[]> changed = new ArrayList<>();
+            int b = 0, l = 0;
+            for (Object[] row : chunkRows) {
+                if ((row[2] == null ? binCounts[b++] : legacyCounts[l++]) == 0) {
+                    changed.add(row);
+                }
+            }
+            if (!changed.isEmpty()) {
+                rewrapChanged(conn, changed, updateBin, updateLegacy);
+            }
+        } finally {
+            updateBin.close();
+            updateLegacy.close();
+            chunkRows.clear();
+            rewrapped.clearChunk();
+        }
+    }
+
+    private static void bindUpdate(PreparedStatement updateBin, PreparedStatement updateLegacy, Object[] row, byte[] newKey) throws SQLException {
+        String legacy = (String) row[2];
+        if (legacy == null) {
+            updateBin.setBytes(1, newKey);
+            updateBin.setObject(2, (UUID) row[0]);
+            updateBin.setBytes(3, ((ByteBuffer) row[1]).array());
+        } else {
+            updateLegacy.setString(1, Base64.getEncoder().encodeToString(newKey));
+            updateLegacy.setObject(2, (UUID) row[0]);
+            updateLegacy.setString(3, legacy);
+        }
+    }
+
+    /**
+     * Reads the rows whose update matched nothing again and re-wraps their current key. A row that
+     * changed once more fails the chunk; a row that is gone, or no longer has a wrapped key, is done.
+     */
+    private void rewrapChanged(Connection conn, List<Object[]> rows, PreparedStatement updateBin, PreparedStatement updateLegacy) throws Exception {
+        List<Object[]> current = new ArrayList<>();
+        Set<ByteBuffer> keys = new LinkedHashSet<>();
+        try (PreparedStatement select = conn.prepareStatement("SELECT encrypted_data_key_bin, encrypted_data_key FROM id_vault WHERE reference_key = ?")) {
+            for (Object[] row : rows) {
+                select.setObject(1, (UUID) row[0]);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        continue;
+                    }
+                    byte[] bin = rs.getBytes("encrypted_data_key_bin");
+                    String legacy = rs.getString("encrypted_data_key");
+                    if (bin == null && legacy == null) {
+                        continue;
+                    }
+                    ByteBuffer wrapped = ByteBuffer.wrap(bin != null ? bin : Base64.getDecoder().decode(legacy));
+                    current.add(new Object[] { row[0], wrapped, bin == null ? legacy : null });
+                    keys.add(wrapped);
+                }
+            }
+        }
+        Map<ByteBuffer, byte[]> results = reEncryptAll(keys);
+        for (Object[] row : current) {
+            PreparedStatement update = row[2] == null ? updateBin : updateLegacy;
+            bindUpdate(updateBin, updateLegacy, row, results.get((ByteBuffer) row[1]));
+            if (update.executeUpdate() == 0) {
+                throw new IllegalStateException("Data key of " + row[0] + " changed again during the rotation");
+            }
+            rowsChangedMeanwhile.incrementAndGet();
+        }
+    }
+
+    /**
+     * Re-wraps every key in parallel on the worker pool; any failure fails the whole chunk.
+     */
+    private Map<ByteBuffer, byte[]> reEncryptAll(Set<ByteBuffer> keys) throws Exception {
+        KeyProvider provider = KmsService.getHandle().getKeyProvider();
+        Map<ByteBuffer, Future<byte[]>> futures = new LinkedHashMap<>();
+        for (ByteBuffer key : keys) {
+            futures.put(key, workers.submit(() -> provider.reEncrypt(key.array(), destinationKeyId)));
+        }
+        Map<ByteBuffer, byte[]> results = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<ByteBuffer, Future<byte[]>> e : futures.entrySet()) {
+                results.put(e.getKey(), e.getValue().get());
+                keysReEncrypted.incrementAndGet();
+            }
+        } catch (Exception e) {
+            for (Future<byte[]> f : futures.values()) {
+                f.cancel(true);
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Re-wraps the KEKs and masking keys once all rows are done; there are only a few per API key
+     * and ID type, and usually a single masking key.
+     */
+    @Override
+    protected void onCompleted() throws Exception {
+        PoolDB pool = new PoolDB(false);
+        Connection conn = pool.getConnection();
+        try {
+            keksReEncrypted.addAndGet(rewrapKeys(conn, "key_encryption_key", "kek_id", "encrypted_kek"));
+            maskingKeysReEncrypted.addAndGet(rewrapKeys(conn, "masking_key", "key_id", "encrypted_key"));
+            conn.commit();
+        } catch (Exception e) {
+            pool.rollback(conn);
+            throw e;
+        } finally {
+            pool.cleanup(null, null, conn);
+        }
+    }
+
+    /**
+     * Re-wraps every Base64 wrapped key of a key table and records the destination key.
+     *
+     * @return Number of keys re-wrapped.
+     */
+    private int rewrapKeys(Connection conn, String table, String idColumn, String keyColumn) throws Exception {
+        Map<Long, String> wrappedKeys = new LinkedHashMap<>();
+        Set<ByteBuffer> keys = new LinkedHashSet<>();
+        try (PreparedStatement select = conn.prepareStatement("SELECT " + idColumn + ", " + keyColumn + " FROM " + table);
+             ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                String encryptedKey = rs.getString(keyColumn);
+                wrappedKeys.put(rs.getLong(idColumn), encryptedKey);
+                keys.add(ByteBuffer.wrap(Base64.getDecoder().decode(encryptedKey)));
+            }
+        }
+
+        Map<ByteBuffer, byte[]> results = reEncryptAll(keys);
+        String masterKeyId = destinationKeyId != null ? destinationKeyId : KmsService.getHandle().getKeyProvider().getKeyId();
+        try (PreparedStatement update = conn.prepareStatement("UPDATE " + table + " SET " + keyColumn + " = ?, master_key_id = ? WHERE " + idColumn + " = ? AND " + keyColumn + " = ?")) {
+            for (Map.Entry<Long, String> e : wrappedKeys.entrySet()) {
+                byte[] newKey = results.get(ByteBuffer.wrap(Base64.getDecoder().decode(e.getValue())));
+                update.setString(1, Base64.getEncoder().encodeToString(newKey));
+                update.setString(2, masterKeyId);
+                update.setLong(3, e.getKey());
+                update.setString(4, e.getValue());
+                update.addBatch();
+            }
+            update.executeBatch();
+        }
+        return wrappedKeys.size();
+    }
+
+    @Override
+    public JSONObject getStatus() {
+        JSONObject output = super.getStatus();
+        output.put("destinationKeyId", destinationKeyId);
+        output.put("concurrency", concurrency);
+        output.put("keysReEncrypted", keysReEncrypted.get());
+        output.put("keysReused", keysReused.get());
+        output.put("rowsChangedMeanwhile", rowsChangedMeanwhile.get());
+        output.put("keksReEncrypted", keksReEncrypted.get());
+        output.put("maskingKeysReEncrypted", maskingKeysReEncrypted.get());
+        return output;
+    }
+
+    /**
+     * Old wrapped key -> re-wrapped key. The LRU carries keys shared across chunk boundaries; the
+     * chunk map pins every key the current chunk needs, as filling the LRU with the chunk's new keys
+     * may evict the reused ones before the rows are written.
+     */
+    static class RewrappedKeys {
+
+        private final Map<ByteBuffer, byte[]> cache;
+        private final Map<ByteBuffer, byte[]> chunk = new HashMap<>();
+        private final Set<ByteBuffer> pending = new LinkedHashSet<>();
+
+        RewrappedKeys(int cacheSize) {
+            cache = new LinkedHashMap<ByteBuffer, byte[]>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        /**
+         * Records a key needed by the current chunk.
+         *
+         * @return True if the key was already re-wrapped or is already pending in this chunk.
+         */
+        boolean add(ByteBuffer wrapped) {
+            if (chunk.containsKey(wrapped)) {
+                return true;
+            }
+            byte[] newKey = cache.get(wrapped);
+            if (newKey != null) {
+                chunk.put(wrapped, newKey);
+                return true;
+            }
+            return !pending.add(wrapped);
+        }
+
+        Set<ByteBuffer> getPending() {
+            return pending;
+        }
+
+        /**
+         * Takes the re-wrapped pending keys; a pending key without a result fails the chunk.
+         */
+        void complete(Map<ByteBuffer, byte[]> results) {
+            for (ByteBuffer wrapped : pending) {
+                byte[] newKey = results.get(wrapped);
+                if (newKey == null) {
+                    throw new IllegalStateException("No re-wrapped key for a pending data key");
+                }
+                chunk.put(wrapped, newKey);
+                cache.put(wrapped, newKey);
+            }
+            pending.clear();
+        }
+
+        /**
+         * @return Re-wrapped key of a key added in the current chunk; never null.
+         */
+        byte[] get(ByteBuffer wrapped) {
+            byte[] newKey = chunk.get(wrapped);
+            if (newKey == null) {
+                throw new IllegalStateException("Data key was not re-wrapped in this chunk");
+            }
+            return newKey;
+        }
+
+        void clearChunk() {
+            chunk.clear();
+            pending.clear();
+        }
+
+        void reset() {
+            clearChunk();
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.tsicoop.aadhaarvault.jobs;
+
+import org.tsicoop.aadhaarvault.framework.DataKey;
+import org.tsicoop.aadhaarvault.framework.IdNormalizer;
+import org.tsicoop.aadhaarvault.framework.KmsService;
+import org.tsicoop.aadhaarvault.framework.SecureBuffer;
+import org.tsicoop.aadhaarvault.framework.VaultJob;
+import org.tsicoop.aadhaarvault.framework.VaultRecord;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Base for jobs that need each row's plaintext ID number (backfills derived from it). Rows in
+ * either record format are decrypted with their own data key through the KmsService caches, so
+ * rows sharing a data key or KEK cost one KMS call between them. The plaintext only lives in a
+ * SecureBuffer for the duration of processId.
+ */
+abstract class DecryptingVaultJob extends VaultJob {
+
+    @Override
+    protected String getColumns() {
+        return "id_type_code, encrypted_id_bin, encrypted_data_key_bin, encrypted_id_number, encrypted_data_key, kek_id, cipher_alg";
+    }
+
+    /**
+     * Called with the ID type and decrypted ID number of each row; the buffer is closed afterwards.
+     */
+    protected abstract void processId(Connection conn, UUID referenceKey, String idType, SecureBuffer idValue) throws Exception;
+
+    /**
+     * @return The canonical form of a stored ID number (see IdNormalizer), or a copy of it if the
+     *         type no longer exists. The caller closes it.
+     */
+    protected SecureBuffer canonicalize(String idType, SecureBuffer idValue) throws Exception {
+        IdNormalizer.IdType type = IdNormalizer.getHandle().getIdType(idType);
+        if (type != null) {
+            return type.canonicalize(idValue);
+        }
+        SecureBuffer copy = SecureBuffer.allocate(idValue.length());
+        copy.writable().put(idValue.readable());
+        copy.setLength(idValue.length());
+        return copy;
+    }
+
+    @Override
+    protected void processRow(Connection conn, ResultSet rs) throws Exception {
+        UUID referenceKey = (UUID) rs.getObject("reference_key");
+        VaultRecord record;
+        byte[] encryptedDataKey;
+        byte[] encryptedIdRecord = rs.getBytes("encrypted_id_bin");
+        if (encryptedIdRecord != null) {
+            record = VaultRecord.parse(encryptedIdRecord);
+            encryptedDataKey = rs.getBytes("encrypted_data_key_bin");
+        } else {
+            long rowKekId = rs.getLong("kek_id");
+            Long kekId = rs.wasNull() ? null : rowKekId;
+            record = VaultRecord.fromLegacy(rs.getInt("cipher_alg"), Base64.getDecoder().decode(rs.getString("encrypted_id_number")), kekId);
+            String encryptedDataKeyBase64 = rs.getString("encrypted_data_key");
+            encryptedDataKey = encryptedDataKeyBase64 != null ? Base64.getDecoder().decode(encryptedDataKeyBase64) : null;
+        }
+
+        KmsService kmsService = KmsService.getHandle();
+        DataKey dataKey = record.getKeyType() == VaultRecord.KEY_KEK
+                ? kmsService.getKeyHierarchy().deriveDataKeyAsync(record.getKekId(), referenceKey).join()
+                : kmsService.unwrapDataKey(encryptedDataKey);
+        SecureBuffer idValue;
+        try {
+            idValue = record.decryptToBuffer(dataKey.getPlaintextKey());
+        } finally {
+            dataKey.destroy();
+        }
+        try {
+            processId(conn, referenceKey, rs.getString("id_type_code"), idValue);
+        } finally {
+            idValue.close();
+        }
+    }
+}
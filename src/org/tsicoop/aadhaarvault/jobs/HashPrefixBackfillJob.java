@@ -0,0 +1,74 @@
+package org.tsicoop.aadhaarvault.jobs;
+
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.LookupHasher;
+import org.tsicoop.aadhaarvault.framework.VaultJob;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills id_vault.hash_prefix and id_type_id for rows stored before the compact lookup index. Both
+ * are derived from columns already in the row, so nothing is decrypted. Rows still on the legacy
+ * hash get them from lookup_hash_migration instead.
+ *
+ * Once it has completed, set VAULT_LOOKUP_PREFIX_READ=true.
+ */
+public class HashPrefixBackfillJob extends VaultJob {
+
+    public static final String NAME = "hash_prefix_backfill";
+
+    private PreparedStatement update = null;
+    private final AtomicLong rowsPrefixed = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected String getColumns() {
+        return "hashed_id_bin";
+    }
+
+    @Override
+    protected String getFilter() {
+        return "hash_prefix IS NULL AND hashed_id_bin IS NOT NULL";
+    }
+
+    @Override
+    protected void startChunk(Connection conn) throws Exception {
+        update = conn.prepareStatement("UPDATE id_vault SET hash_prefix = ?, "
+                                       + "id_type_id = (SELECT type_id FROM id_type_master m WHERE m.id_type_code = id_vault.id_type_code) "
+                                       + "WHERE reference_key = ? AND hash_prefix IS NULL");
+    }
+
+    @Override
+    protected void processRow(Connection conn, ResultSet rs) throws Exception {
+        update.setLong(1, LookupHasher.prefix(rs.getBytes("hashed_id_bin")));
+        update.setObject(2, (UUID) rs.getObject("reference_key"));
+        update.addBatch();
+    }
+
+    @Override
+    protected void finishChunk(Connection conn) throws Exception {
+        try {
+            for (int count : update.executeBatch()) {
+                rowsPrefixed.addAndGet(Math.max(count, 0));
+            }
+        } finally {
+            update.close();
+            update = null;
+        }
+    }
+
+    @Override
+    public JSONObject getStatus() {
+        JSONObject output = super.getStatus();
+        output.put("rowsPrefixed", rowsPrefixed.get());
+        return output;
+    }
+}
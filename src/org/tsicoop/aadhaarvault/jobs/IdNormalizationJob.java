@@ -0,0 +1,133 @@
+package org.tsicoop.aadhaarvault.jobs;
+
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.LookupFilter;
+import org.tsicoop.aadhaarvault.framework.LookupHasher;
+import org.tsicoop.aadhaarvault.framework.MappedLookupIndex;
+import org.tsicoop.aadhaarvault.framework.SecureBuffer;
+import org.tsicoop.aadhaarvault.framework.VaultPartitions;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the lookup hash of rows stored before ID normalization to the hash of the ID number's
+ * canonical form (see IdNormalizer), so "2341 2341 2346" and "234123412346" find the same row.
+ * Only types with a canonical form other than TRIM are scanned. The stored ID number itself is
+ * left as it was submitted.
+ *
+ * A row whose canonical form is already stored under another spelling keeps its hash and is
+ * counted in duplicatesFound. Lookups repoint the rows they hit on their own; once this job has
+ * completed, set VAULT_LOOKUP_RAW_HASH_READ=false. Repointed rows get updated_at, which the lookup
+ * filter and index poll on every node along with created_at.
+ *
+ * Refused once id_vault is partitioned: a row's bucket (and its reference key) follows its lookup
+ * hash, and this job would leave the row in the bucket of the old hash.
+ */
+public class IdNormalizationJob extends DecryptingVaultJob {
+
+    public static final String NAME = "id_normalization";
+
+    private final LookupHasher lookupHasher = LookupHasher.getDefault();
+    private PreparedStatement update = null;
+    private byte[] storedHash = null;
+    private final AtomicLong rowsRehashed = new AtomicLong();
+    private final AtomicLong duplicatesFound = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected String checkConflicts(Connection conn) throws SQLException {
+        if (VaultPartitions.isEnabled()) {
+            return "Job is not available on a partitioned id_vault: it rewrites lookup hashes, and a row stays in the bucket of its old hash";
+        }
+        return super.checkConflicts(conn);
+    }
+
+    @Override
+    protected String getColumns() {
+        return super.getColumns() + ", hashed_id_bin";
+    }
+
+    @Override
+    protected String getFilter() {
+        return "hashed_id_bin IS NOT NULL AND id_type_code IN (SELECT id_type_code FROM id_type_master WHERE canonical_form <> 'TRIM')";
+    }
+
+    @Override
+    protected void startChunk(Connection conn) throws Exception {
+        // The hash guard skips rows a lookup has repointed since they were read
+        update = conn.prepareStatement("UPDATE id_vault SET hashed_id_bin = ?, hash_prefix = ?, updated_at = ? WHERE reference_key = ? AND hashed_id_bin = ? "
+                                       + "AND NOT EXISTS (SELECT 1 FROM id_vault d WHERE d.id_type_code = id_vault.id_type_code AND d.hashed_id_bin = ?)");
+    }
+
+    @Override
+    protected void processRow(Connection conn, ResultSet rs) throws Exception {
+        storedHash = rs.getBytes("hashed_id_bin");
+        super.processRow(conn, rs);
+    }
+
+    @Override
+    protected void processId(Connection conn, UUID referenceKey, String idType, SecureBuffer idValue) throws Exception {
+        byte[] lookupHash;
+        try (SecureBuffer canonicalId = canonicalize(idType, idValue)) {
+            lookupHash = lookupHasher.hash(canonicalId);
+        }
+        if (Arrays.equals(lookupHash, storedHash)) {
+            return; // already canonical
+        }
+        update.setBytes(1, lookupHash);
+        update.setLong(2, LookupHasher.prefix(lookupHash));
+        update.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+        update.setObject(4, referenceKey);
+        update.setBytes(5, storedHash);
+        update.setBytes(6, lookupHash);
+        update.addBatch();
+    }
+
+    @Override
+    protected void finishChunk(Connection conn) throws Exception {
+        try {
+            for (int count : update.executeBatch()) {
+                if (count == 0) {
+                    duplicatesFound.incrementAndGet(); // or repointed by a lookup meanwhile
+                }
+                rowsRehashed.addAndGet(Math.max(count, 0));
+            }
+        } finally {
+            update.close();
+            update = null;
+        }
+    }
+
+    @Override
+    protected void onCompleted() {
+        // Drop the superseded hashes from this node's lookup filter and index (the new ones were polled)
+        LookupFilter lookupFilter = LookupFilter.getHandle();
+        if (lookupFilter != null) {
+            lookupFilter.requestRebuild();
+        }
+        MappedLookupIndex lookupIndex = MappedLookupIndex.getHandle();
+        if (lookupIndex != null) {
+            lookupIndex.requestRebuild();
+        }
+    }
+
+    @Override
+    public JSONObject getStatus() {
+        JSONObject output = super.getStatus();
+        output.put("rowsRehashed", rowsRehashed.get());
+        output.put("duplicatesFound", duplicatesFound.get());
+        return output;
+    }
+}
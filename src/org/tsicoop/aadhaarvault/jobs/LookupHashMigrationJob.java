@@ -0,0 +1,116 @@
+package org.tsicoop.aadhaarvault.jobs;
+
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.LookupFilter;
+import org.tsicoop.aadhaarvault.framework.LookupHasher;
+import org.tsicoop.aadhaarvault.framework.MappedLookupIndex;
+import org.tsicoop.aadhaarvault.framework.SecureBuffer;
+import org.tsicoop.aadhaarvault.framework.VaultPartitions;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves rows from the legacy Base64 salted SHA-256 in hashed_id_number to the HMAC-SHA256 lookup
+ * hash in hashed_id_bin. A keyed hash cannot be computed from the old digest, so each row is
+ * decrypted (see DecryptingVaultJob) and its canonical form (see IdNormalizer) hashed again. A row
+ * whose canonical form is already stored under another spelling keeps its legacy hash and is
+ * counted in duplicatesFound.
+ *
+ * Lookups upgrade the rows they hit on their own; once this job has completed, set
+ * VAULT_LOOKUP_LEGACY_HASH_READ=false to stop computing and matching the legacy hash.
+ *
+ * Refused once id_vault is partitioned, like id_normalization: the new hash would not match the
+ * row's bucket.
+ */
+public class LookupHashMigrationJob extends DecryptingVaultJob {
+
+    public static final String NAME = "lookup_hash_migration";
+
+    private final LookupHasher lookupHasher = LookupHasher.getDefault();
+    private PreparedStatement update = null;
+    private final AtomicLong rowsRehashed = new AtomicLong();
+    private final AtomicLong duplicatesFound = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected String checkConflicts(Connection conn) throws SQLException {
+        if (VaultPartitions.isEnabled()) {
+            return "Job is not available on a partitioned id_vault: it rewrites lookup hashes, and a row stays in the bucket of its old hash";
+        }
+        return super.checkConflicts(conn);
+    }
+
+    @Override
+    protected String getFilter() {
+        return "hashed_id_bin IS NULL";
+    }
+
+    @Override
+    protected void startChunk(Connection conn) throws Exception {
+        // The IS NULL guard skips rows a lookup has upgraded since they were read
+        update = conn.prepareStatement("UPDATE id_vault SET hashed_id_bin = ?, hashed_id_number = NULL, hash_prefix = ?, updated_at = ?, "
+                                       + "id_type_id = (SELECT type_id FROM id_type_master m WHERE m.id_type_code = id_vault.id_type_code) "
+                                       + "WHERE reference_key = ? AND hashed_id_bin IS NULL "
+                                       + "AND NOT EXISTS (SELECT 1 FROM id_vault d WHERE d.id_type_code = id_vault.id_type_code AND d.hashed_id_bin = ?)");
+    }
+
+    @Override
+    protected void processId(Connection conn, UUID referenceKey, String idType, SecureBuffer idValue) throws Exception {
+        byte[] lookupHash;
+        try (SecureBuffer canonicalId = canonicalize(idType, idValue)) {
+            lookupHash = lookupHasher.hash(canonicalId);
+        }
+        update.setBytes(1, lookupHash);
+        update.setLong(2, LookupHasher.prefix(lookupHash));
+        update.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+        update.setObject(4, referenceKey);
+        update.setBytes(5, lookupHash);
+        update.addBatch();
+    }
+
+    @Override
+    protected void finishChunk(Connection conn) throws Exception {
+        try {
+            for (int count : update.executeBatch()) {
+                if (count == 0) {
+                    duplicatesFound.incrementAndGet(); // or upgraded by a lookup meanwhile
+                }
+                rowsRehashed.addAndGet(Math.max(count, 0));
+            }
+        } finally {
+            update.close();
+            update = null;
+        }
+    }
+
+    @Override
+    protected void onCompleted() {
+        // Types that had legacy rows bypass the lookup filter and index until they are rebuilt without them
+        LookupFilter lookupFilter = LookupFilter.getHandle();
+        if (lookupFilter != null) {
+            lookupFilter.requestRebuild();
+        }
+        MappedLookupIndex lookupIndex = MappedLookupIndex.getHandle();
+        if (lookupIndex != null) {
+            lookupIndex.requestRebuild();
+        }
+    }
+
+    @Override
+    public JSONObject getStatus() {
+        JSONObject output = super.getStatus();
+        output.put("rowsRehashed", rowsRehashed.get());
+        output.put("duplicatesFound", duplicatesFound.get());
+        return output;
+    }
+}
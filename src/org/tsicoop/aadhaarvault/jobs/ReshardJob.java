@@ -0,0 +1,475 @@
+package org.tsicoop.aadhaarvault.jobs;
+
+import org.json.simple.JSONObject;
+import org.tsicoop.aadhaarvault.framework.PoolDB;
+import org.tsicoop.aadhaarvault.framework.ShardRouter;
+import org.tsicoop.aadhaarvault.framework.VaultJob;
+import org.tsicoop.aadhaarvault.framework.VaultPartitions;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves a range of vault buckets (fromBucket..toBucket) to another shard while the vault keeps
+ * serving (see ShardRouter):
+ * 1. COPYING: the rows of the range are copied from the owning shard to the target in
+ *    reference_key order, chunk by chunk. Reads and stores still go to the owner.
+ * 2. FROZEN: stores into the range are refused (503) and the rows stored during the copy are
+ *    copied as well. Stores hold a ShardRouter.WriteFence on their bucket's row until they commit,
+ *    so the freeze only takes effect once every store routed to the source has committed there.
+ * 3. DRAINING: the target becomes the owner. Once every node reads from it, the old copies are
+ *    deleted from the source, each only once it is confirmed on the target (copied first if not).
+ * 4. ACTIVE again.
+ * Reference keys do not change: they carry the bucket, not the shard.
+ *
+ * One range moves at a time; a stopped or failed move is resumed by starting the job again with the
+ * same range. The jobs that scan every shard (SHARD_SCANNING_JOBS) must not be unfinished meanwhile:
+ * a row they have not reached could move to a shard they have already scanned. The other
+ * maintenance jobs are refused while sharding is on (see Jobs).
+ */
+public class ReshardJob extends VaultJob {
+
+    public static final String NAME = "reshard";
+
+    static final Set<String> SHARD_SCANNING_JOBS = Set.of(CmkRotationJob.NAME, BinaryFormatMigrationJob.NAME, MaskedIdBackfillJob.NAME);
+
+    // created_at is set by the node storing the row: allow for clock differences between nodes
+    private static final int CLOCK_SKEW_SECONDS = 60;
+
+    private static final String[] COPY_COLUMNS = {
+            "id_type_code", "encrypted_id_bin", "encrypted_data_key_bin", "encrypted_id_number", "encrypted_data_key",
+            "kek_id", "cipher_alg", "hashed_id_bin", "hashed_id_number", "masked_id_bin", "hash_prefix", "id_type_id", "created_at"};
+
+    private final ShardRouter router;
+    private final int fromBucket;
+    private final int toBucket;
+    private final int targetShard;
+    private final int sourceShard;
+    private volatile String phase; // state of the range when the job started, then as it advances
+
+    private PoolDB targetPool = null;
+    private Connection target = null;
+    private PreparedStatement insert = null;
+    private PreparedStatement legacyInsert = null;
+
+    private final AtomicLong rowsCopied = new AtomicLong();
+    private final AtomicLong rowsCaughtUp = new AtomicLong();
+    private final AtomicLong rowsDeleted = new AtomicLong();
+
+    /**
+     * @throws Exception if id_vault is not sharded, the range or shard is invalid, the range is not
+     *                   owned by a single shard, or another range is being moved.
+     */
+    public ReshardJob(Number fromBucket, Number toBucket, Number targetShard) throws Exception {
+        this.router = ShardRouter.getHandle();
+        if (router == null) {
+            throw new Exception("id_vault is not sharded (VAULT_SHARD_URLS)");
+        }
+        if (fromBucket == null || toBucket == null || targetShard == null) {
+            throw new Exception("Missing required fields (fromBucket, toBucket, targetShard).");
+        }
+        this.fromBucket = fromBucket.intValue();
+        this.toBucket = toBucket.intValue();
+        this.targetShard = targetShard.intValue();
+        if (this.fromBucket < 0 || this.fromBucket > this.toBucket || this.toBucket >= VaultPartitions.BUCKETS) {
+            throw new Exception("Bucket range must lie within 0.." + (VaultPartitions.BUCKETS - 1));
+        }
+        if (this.targetShard < 0 || this.targetShard >= router.getShardCount()) {
+            throw new Exception("No such shard: " + this.targetShard);
+        }
+
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        int owner = -1, rangeTarget = -1, groups = 0;
+        String state = null;
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT COUNT(*) FROM vault_shard_bucket WHERE state <> 'ACTIVE' AND vault_bucket NOT BETWEEN ? AND ?");
+            pstmt.setInt(1, this.fromBucket);
+            pstmt.setInt(2, this.toBucket);
+            rs = pstmt.executeQuery();
+            if (rs.next() && rs.getLong(1) > 0) {
+                throw new Exception("Another bucket range is being moved");
+            }
+            pool.cleanup(rs, pstmt, null);
+            pstmt = conn.prepareStatement("SELECT shard_id, state, COALESCE(target_shard_id, -1) AS target_shard_id FROM vault_shard_bucket "
+                                          + "WHERE vault_bucket BETWEEN ? AND ? GROUP BY shard_id, state, COALESCE(target_shard_id, -1)");
+            pstmt.setInt(1, this.fromBucket);
+            pstmt.setInt(2, this.toBucket);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                owner = rs.getInt("shard_id");
+                state = rs.getString("state");
+                rangeTarget = rs.getInt("target_shard_id");
+                groups++;
+            }
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+        if (groups != 1) {
+            throw new Exception("Buckets " + this.fromBucket + ".." + this.toBucket + " are not on one shard in one state");
+        }
+        if (ShardRouter.STATE_ACTIVE.equals(state)) {
+            if (owner == this.targetShard) {
+                throw new Exception("Buckets " + this.fromBucket + ".." + this.toBucket + " are already on shard " + owner);
+            }
+            this.sourceShard = owner;
+        } else if (ShardRouter.STATE_DRAINING.equals(state) && owner == this.targetShard) {
+            this.sourceShard = rangeTarget; // the old owner, still to be emptied
+        } else if (!ShardRouter.STATE_DRAINING.equals(state) && rangeTarget == this.targetShard) {
+            this.sourceShard = owner;
+        } else {
+            throw new Exception("Buckets " + this.fromBucket + ".." + this.toBucket + " are being moved to another shard");
+        }
+        this.phase = state;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected int getShard() {
+        return sourceShard;
+    }
+
+    @Override
+    protected Set<String> getConflictingJobs() {
+        return SHARD_SCANNING_JOBS;
+    }
+
+    /**
+     * Also refuses while a shard-scanning job is stopped or failed part way.
+     */
+    @Override
+    protected String checkConflicts(Connection conn) throws SQLException {
+        String conflict = super.checkConflicts(conn);
+        if (conflict != null) {
+            return conflict;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT job_name FROM vault_job_checkpoint WHERE job_name = ANY (?) AND status <> ? ORDER BY job_name")) {
+            pstmt.setArray(1, conn.createArrayOf("varchar", SHARD_SCANNING_JOBS.toArray()));
+            pstmt.setString(2, STATUS_COMPLETED);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return "Job " + rs.getString("job_name") + " has not completed; run it to completion before moving buckets";
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected String getColumns() {
+        return String.join(", ", COPY_COLUMNS);
+    }
+
+    @Override
+    protected String getFilter() {
+        // Already copied: go straight to the drain in onCompleted
+        return ShardRouter.STATE_DRAINING.equals(phase) ? "FALSE" : rangeFilter();
+    }
+
+    private String rangeFilter() {
+        String bucket = ShardRouter.storesBucket(sourceShard) ? "vault_bucket" : VaultPartitions.BUCKET_SQL;
+        return bucket + " BETWEEN " + fromBucket + " AND " + toBucket;
+    }
+
+    @Override
+    protected void onStarted() throws Exception {
+        if (!ShardRouter.STATE_ACTIVE.equals(phase)) {
+            return; // resuming
+        }
+        if (getStatus().get("lastReferenceKey") != null) {
+            // The range was reset to ACTIVE by hand after an earlier move stopped part way
+            throw new Exception("Checkpoint of an abandoned move found; delete the '" + NAME + "' row from vault_job_checkpoint first");
+        }
+        router.updateBuckets(fromBucket, toBucket, null, ShardRouter.STATE_COPYING, targetShard);
+        phase = ShardRouter.STATE_COPYING;
+        System.out.println("ReshardJob: copying buckets " + fromBucket + ".." + toBucket + " from shard " + sourceShard + " to shard " + targetShard);
+    }
+
+    @Override
+    public void run() {
+        try {
+            super.run();
+        } finally {
+            closeTarget(); // left open if a chunk failed part way
+        }
+    }
+
+    @Override
+    protected void startChunk(Connection conn) throws Exception {
+        closeTarget();
+        targetPool = new PoolDB(targetShard, false);
+        target = targetPool.getConnection();
+        boolean withBucket = ShardRouter.storesBucket(targetShard);
+        StringBuilder columns = new StringBuilder("reference_key");
+        StringBuilder values = new StringBuilder("?");
+        for (String column : COPY_COLUMNS) {
+            columns.append(", ").append(column);
+            values.append(", ?");
+        }
+        if (withBucket) {
+            columns.append(", vault_bucket");
+            values.append(", ?");
+        }
+        insert = target.prepareStatement("INSERT INTO id_vault (" + columns + ") VALUES (" + values + ") ON CONFLICT DO NOTHING");
+        // Keys issued before sharding do not carry their bucket; record it while the row is still on the primary
+        legacyInsert = sourceShard == ShardRouter.PRIMARY
+                ? conn.prepareStatement("INSERT INTO id_vault_legacy_ref (reference_key, vault_bucket) VALUES (?, ?) ON CONFLICT DO NOTHING")
+                : null;
+    }
+
+    @Override
+    protected void processRow(Connection conn, ResultSet rs) throws Exception {
+        UUID referenceKey = (UUID) rs.getObject("reference_key");
+        int bucket = VaultPartitions.bucket(rs.getBytes("hashed_id_bin"));
+        int param = 1;
+        insert.setObject(param++, referenceKey);
+        for (String column : COPY_COLUMNS) {
+            insert.setObject(param++, rs.getObject(column));
+        }
+        if (ShardRouter.storesBucket(targetShard)) {
+            insert.setShort(param, (short) bucket);
+        }
+        insert.addBatch();
+        if (legacyInsert != null && VaultPartitions.bucketOf(referenceKey) < 0) {
+            legacyInsert.setObject(1, referenceKey);
+            legacyInsert.setShort(2, (short) bucket);
+            legacyInsert.addBatch();
+        }
+    }
+
+    @Override
+    protected void finishChunk(Connection conn) throws Exception {
+        try {
+            if (legacyInsert != null) {
+                legacyInsert.executeBatch(); // committed with the chunk, before the copies are
+            }
+            for (int count : insert.executeBatch()) {
+                rowsCopied.addAndGet(Math.max(count, 0));
+            }
+            target.commit();
+        } finally {
+            closeTarget();
+        }
+    }
+
+    private void closeTarget() {
+        if (legacyInsert != null) {
+            try {
+                legacyInsert.close();
+            } catch (Exception ignored) {
+            }
+            legacyInsert = null;
+        }
+        if (targetPool != null) {
+            targetPool.rollback(target); // no-op after a commit
+            targetPool.cleanup(null, insert, target);
+            targetPool = null;
+            target = null;
+            insert = null;
+        }
+    }
+
+    @Override
+    protected void onCompleted() throws Exception {
+        if (!ShardRouter.STATE_DRAINING.equals(phase)) {
+            // Returns once every store fenced on the range has committed; later ones are refused
+            router.updateBuckets(fromBucket, toBucket, null, ShardRouter.STATE_FROZEN, targetShard);
+            phase = ShardRouter.STATE_FROZEN;
+            rowsCaughtUp.addAndGet(copyRecent());
+            router.updateBuckets(fromBucket, toBucket, targetShard, ShardRouter.STATE_DRAINING, sourceShard);
+            phase = ShardRouter.STATE_DRAINING;
+            System.out.println("ReshardJob: buckets " + fromBucket + ".." + toBucket + " now on shard " + targetShard);
+        }
+        Thread.sleep(router.getPropagationMillis()); // until no node reads the range from the source
+        deleteFromSource();
+        router.updateBuckets(fromBucket, toBucket, null, ShardRouter.STATE_ACTIVE, null);
+        phase = ShardRouter.STATE_ACTIVE;
+    }
+
+    /**
+     * Copies the rows of the range stored on the source since the move started.
+     *
+     * @return The number of rows read.
+     */
+    private long copyRecent() throws Exception {
+        Timestamp since = getMoveStartedAt();
+        long rowsRead = 0;
+        UUID last = null;
+        while (true) {
+            PoolDB pool = new PoolDB(sourceShard, false);
+            Connection conn = pool.getConnection();
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            int rows = 0;
+            try {
+                pstmt = conn.prepareStatement("SELECT reference_key, " + getColumns() + " FROM id_vault WHERE " + rangeFilter()
+                                              + " AND created_at >= ?" + (last != null ? " AND reference_key > ?" : "")
+                                              + " ORDER BY reference_key LIMIT ?");
+                int param = 1;
+                pstmt.setTimestamp(param++, since);
+                if (last != null) {
+                    pstmt.setObject(param++, last);
+                }
+                pstmt.setInt(param, getChunkSize());
+                rs = pstmt.executeQuery();
+                startChunk(conn);
+                while (rs.next()) {
+                    processRow(conn, rs);
+                    last = (UUID) rs.getObject("reference_key");
+                    rows++;
+                }
+                finishChunk(conn);
+                conn.commit();
+            } catch (Exception e) {
+                pool.rollback(conn);
+                throw e;
+            } finally {
+                pool.cleanup(rs, pstmt, conn);
+            }
+            rowsRead += rows;
+            if (rows < getChunkSize()) {
+                return rowsRead;
+            }
+        }
+    }
+
+    private Timestamp getMoveStartedAt() throws Exception {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT MIN(move_started_at) FROM vault_shard_bucket WHERE vault_bucket BETWEEN ? AND ?");
+            pstmt.setInt(1, fromBucket);
+            pstmt.setInt(2, toBucket);
+            rs = pstmt.executeQuery();
+            Timestamp started = rs.next() ? rs.getTimestamp(1) : null;
+            if (started == null) {
+                throw new Exception("Buckets " + fromBucket + ".." + toBucket + " have no move in progress");
+            }
+            return new Timestamp(started.getTime() - CLOCK_SKEW_SECONDS * 1000L);
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+    }
+
+    /**
+     * Deletes the old copies from the source in reference_key order, a chunk at a time, pausing
+     * between chunks like the copy does. Each chunk is copied to the target again (rows already
+     * there are skipped) and only the rows then found on the target are deleted.
+     *
+     * @throws Exception if some rows could not be confirmed on the target; they are left on the
+     *                   source and the range stays DRAINING, so the job can be started again.
+     */
+    private void deleteFromSource() throws Exception {
+        UUID last = null;
+        long unconfirmed = 0;
+        while (true) {
+            PoolDB pool = new PoolDB(sourceShard, false);
+            Connection conn = pool.getConnection();
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            List<UUID> keys = new ArrayList<>();
+            try {
+                pstmt = conn.prepareStatement("SELECT reference_key, " + getColumns() + " FROM id_vault WHERE " + rangeFilter()
+                                              + (last != null ? " AND reference_key > ?" : "") + " ORDER BY reference_key LIMIT ?");
+                int param = 1;
+                if (last != null) {
+                    pstmt.setObject(param++, last);
+                }
+                pstmt.setInt(param, getChunkSize());
+                rs = pstmt.executeQuery();
+                long copiedBefore = rowsCopied.get();
+                startChunk(conn);
+                while (rs.next()) {
+                    processRow(conn, rs);
+                    keys.add((UUID) rs.getObject("reference_key"));
+                }
+                finishChunk(conn);
+                rowsCaughtUp.addAndGet(rowsCopied.get() - copiedBefore);
+                pool.cleanup(rs, pstmt, null);
+                rs = null;
+                pstmt = null;
+                if (!keys.isEmpty()) {
+                    List<UUID> confirmed = findOnTarget(keys);
+                    unconfirmed += keys.size() - confirmed.size();
+                    if (!confirmed.isEmpty()) {
+                        pstmt = conn.prepareStatement("DELETE FROM id_vault WHERE reference_key = ANY (?)");
+                        pstmt.setArray(1, conn.createArrayOf("uuid", confirmed.toArray()));
+                        rowsDeleted.addAndGet(pstmt.executeUpdate());
+                    }
+                }
+                conn.commit();
+            } catch (Exception e) {
+                pool.rollback(conn);
+                throw e;
+            } finally {
+                pool.cleanup(rs, pstmt, conn);
+            }
+            if (keys.size() < getChunkSize()) {
+                break;
+            }
+            last = keys.get(keys.size() - 1);
+            if (getThrottleMillis() > 0) {
+                Thread.sleep(getThrottleMillis());
+            }
+        }
+        if (unconfirmed > 0) {
+            throw new Exception(unconfirmed + " rows of buckets " + fromBucket + ".." + toBucket + " are not on shard " + targetShard
+                                + " after copying; left on shard " + sourceShard);
+        }
+    }
+
+    /**
+     * @return The keys that have a row on the target.
+     */
+    private List<UUID> findOnTarget(List<UUID> keys) throws Exception {
+        Connection conn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        PoolDB pool = new PoolDB(targetShard, true);
+        List<UUID> found = new ArrayList<>();
+        try {
+            conn = pool.getConnection();
+            pstmt = conn.prepareStatement("SELECT reference_key FROM id_vault WHERE reference_key = ANY (?)");
+            pstmt.setArray(1, conn.createArrayOf("uuid", keys.toArray()));
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                found.add((UUID) rs.getObject("reference_key"));
+            }
+            return found;
+        } finally {
+            pool.cleanup(rs, pstmt, conn);
+        }
+    }
+
+    @Override
+    public JSONObject getStatus() {
+        JSONObject output = super.getStatus();
+        output.put("fromBucket", fromBucket);
+        output.put("toBucket", toBucket);
+        output.put("sourceShard", sourceShard);
+        output.put("targetShard", targetShard);
+        output.put("phase", phase);
+        output.put("rowsCopied", rowsCopied.get());
+        output.put("rowsCaughtUp", rowsCaughtUp.get());
+        output.put("rowsDeleted", rowsDeleted.get());
+        return output;
+    }
+}
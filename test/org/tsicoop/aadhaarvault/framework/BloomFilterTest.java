@@ -0,0 +1,107 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+    // Lookup hashes are HMAC output, so random bytes stand in for them
+    private static byte[][] hashes(long seed, int count) {
+        Random random = new Random(seed);
+        byte[][] out = new byte[count][LookupHasher.HASH_LENGTH];
+        for (byte[] hash : out) {
+            random.nextBytes(hash);
+        }
+        return out;
+    }
+
+    @Test
+    public void sizedForCapacityAndRate() {
+        BloomFilter filter = BloomFilter.create(1_000_000, 0.01);
+        assertEquals(7, filter.getNumHashes());
+        // m = -n ln p / (ln 2)^2 = 9.59 bits per entry
+        assertEquals(1_198_132, filter.getMemoryBytes(), 8);
+        assertEquals(1_000_000, filter.getCapacity());
+    }
+
+    @Test
+    public void neverForgetsAnAddedHash() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01);
+        byte[][] added = hashes(1, 10_000);
+        for (byte[] hash : added) {
+            filter.add(hash);
+        }
+        for (byte[] hash : added) {
+            assertTrue(filter.mightContain(hash));
+        }
+    }
+
+    @Test
+    public void repeatsAreNotCounted() {
+        BloomFilter filter = BloomFilter.create(1000, 0.01);
+        byte[] hash = hashes(2, 1)[0];
+        assertTrue(filter.add(hash));
+        assertFalse(filter.add(hash));
+        assertEquals(1, filter.getCount());
+    }
+
+    @Test
+    public void falsePositiveRateNearTargetAtCapacity() {
+        BloomFilter filter = BloomFilter.create(20_000, 0.01);
+        for (byte[] hash : hashes(3, 20_000)) {
+            filter.add(hash);
+        }
+        int falsePositives = 0;
+        byte[][] absent = hashes(4, 100_000);
+        for (byte[] hash : absent) {
+            if (filter.mightContain(hash)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / absent.length;
+        assertTrue("false-positive rate " + rate, rate < 0.015);
+        assertEquals(0.01, filter.expectedFalsePositiveRate(), 0.002);
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() {
+        BloomFilter filter = BloomFilter.create(1000, 0.01);
+        for (byte[] hash : hashes(5, 1000)) {
+            assertFalse(filter.mightContain(hash));
+        }
+        assertEquals(0.0, filter.expectedFalsePositiveRate(), 0.0);
+    }
+
+    @Test
+    public void survivesWriteAndRead() throws Exception {
+        BloomFilter filter = BloomFilter.create(5000, 0.001);
+        byte[][] added = hashes(6, 5000);
+        for (byte[] hash : added) {
+            filter.add(hash);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            filter.writeTo(out);
+        }
+        BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(filter.getCount(), read.getCount());
+        assertEquals(filter.getNumHashes(), read.getNumHashes());
+        assertEquals(filter.getCapacity(), read.getCapacity());
+        assertEquals(filter.getMemoryBytes(), read.getMemoryBytes());
+        for (byte[] hash : added) {
+            assertTrue(read.mightContain(hash));
+        }
+        for (byte[] hash : hashes(7, 1000)) {
+            assertEquals(filter.mightContain(hash), read.mightContain(hash));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class CryptoEngineTest {
+
+    // AES-256-GCM test case 15 of the GCM specification (McGrew and Viega), no AAD
+    private static final byte[] GCM_KEY = hex("feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308");
+    private static final byte[] GCM_IV = hex("cafebabefacedbaddecaf888");
+    private static final byte[] GCM_PLAINTEXT = hex("d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a72"
+                                                    + "1c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255");
+    private static final byte[] GCM_CIPHERTEXT = hex("522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa"
+                                                     + "8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662898015ad");
+    private static final byte[] GCM_TAG = hex("b094dac5d93471bdec1a502270e3cc6c");
+
+    static byte[] hex(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return out;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteBuffer out = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(p -> p.length).sum());
+        for (byte[] part : parts) {
+            out.put(part);
+        }
+        return out.array();
+    }
+
+    static byte[] knownGcmRecord() {
+        return concat(GCM_IV, GCM_CIPHERTEXT, GCM_TAG);
+    }
+
+    static byte[] knownGcmKey() {
+        return GCM_KEY.clone();
+    }
+
+    static byte[] knownGcmPlaintext() {
+        return GCM_PLAINTEXT.clone();
+    }
+
+    @Test
+    public void decryptsKnownGcmVector() throws Exception {
+        assertArrayEquals(GCM_PLAINTEXT, CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, knownGcmRecord(), GCM_KEY));
+    }
+
+    @Test
+    public void decryptsKnownGcmVectorIntoBuffer() throws Exception {
+        byte[] record = knownGcmRecord();
+        ByteBuffer out = ByteBuffer.allocateDirect(CryptoEngine.maxDecryptedSize(CryptoEngine.ALG_AES_GCM, record.length));
+        int length = CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, ByteBuffer.wrap(record), GCM_KEY, out);
+        assertEquals(GCM_PLAINTEXT.length, length);
+        byte[] plaintext = new byte[length];
+        out.flip();
+        out.get(plaintext);
+        assertArrayEquals(GCM_PLAINTEXT, plaintext);
+    }
+
+    @Test
+    public void decryptsKnownVectorInsideLargerArray() throws Exception {
+        byte[] record = knownGcmRecord();
+        byte[] embedded = concat(new byte[]{1, 2, 3}, record, new byte[]{4});
+        assertArrayEquals(GCM_PLAINTEXT, CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, embedded, 3, record.length, GCM_KEY));
+    }
+
+    @Test
+    public void roundTripsWithFreshIv() throws Exception {
+        byte[] plaintext = "234123412346".getBytes(StandardCharsets.UTF_8);
+        byte[] first = CryptoEngine.encrypt(plaintext, GCM_KEY);
+        byte[] second = CryptoEngine.encrypt(plaintext, GCM_KEY);
+        assertEquals(CryptoEngine.encryptedSize(plaintext.length), first.length);
+        assertFalse("IV reused", Arrays.equals(Arrays.copyOf(first, CryptoEngine.GCM_IV_LENGTH), Arrays.copyOf(second, CryptoEngine.GCM_IV_LENGTH)));
+        assertArrayEquals(plaintext, CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, first, GCM_KEY));
+        assertArrayEquals(plaintext, CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, second, GCM_KEY));
+    }
+
+    @Test
+    public void roundTripsEmptyPlaintext() throws Exception {
+        byte[] record = CryptoEngine.encrypt(new byte[0], GCM_KEY);
+        assertEquals(CryptoEngine.GCM_IV_LENGTH + CryptoEngine.GCM_TAG_LENGTH, record.length);
+        assertEquals(0, CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, record, GCM_KEY).length);
+    }
+
+    @Test
+    public void rejectsTamperedRecord() throws Exception {
+        byte[] record = knownGcmRecord();
+        record[CryptoEngine.GCM_IV_LENGTH] ^= 1;
+        try {
+            CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, record, GCM_KEY);
+            fail("tampered ciphertext decrypted");
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsWrongKey() throws Exception {
+        byte[] key = GCM_KEY.clone();
+        key[0] ^= 1;
+        try {
+            CryptoEngine.decrypt(CryptoEngine.ALG_AES_GCM, knownGcmRecord(), key);
+            fail("decrypted under the wrong key");
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    @Test
+    public void decryptsLegacyCbcRecord() throws Exception {
+        byte[] iv = hex("000102030405060708090a0b0c0d0e0f");
+        byte[] plaintext = "ABCDE1234F".getBytes(StandardCharsets.UTF_8);
+        Cipher cbc = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cbc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(GCM_KEY, "AES"), new IvParameterSpec(iv));
+        byte[] record = concat(iv, cbc.doFinal(plaintext));
+        assertArrayEquals(plaintext, CryptoEngine.decrypt(CryptoEngine.ALG_AES_CBC, record, GCM_KEY));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void rejectsUnknownAlgorithm() throws Exception {
+        CryptoEngine.decrypt(7, knownGcmRecord(), GCM_KEY);
+    }
+}
@@ -0,0 +1,67 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DataKeyPoolTest {
+
+    private static void awaitDepth(DataKeyPool pool, int depth) throws InterruptedException {
+        for (int i = 0; i < 200 && ((Number) pool.getStats().get("depth")).intValue() != depth; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, ((Number) pool.getStats().get("depth")).intValue());
+    }
+
+    @Test
+    public void evictsIdleKeysWithoutAPollAndRefills() throws Exception {
+        List<DataKey> generated = new CopyOnWriteArrayList<>();
+        DataKeyPool pool = new DataKeyPool(2, 4, 50, () -> {
+            DataKey dataKey = new DataKey(new byte[]{1, 2, 3}, new byte[]{4});
+            generated.add(dataKey);
+            return dataKey;
+        });
+        try {
+            pool.prime();
+            awaitDepth(pool, 4);
+            assertEquals(4, generated.size());
+
+            Thread.sleep(100);
+            pool.evictExpired();
+            assertEquals(4L, pool.getStats().get("discarded"));
+            for (DataKey stale : generated.subList(0, 4)) {
+                assertArrayEquals(new byte[3], stale.getPlaintextKey());
+            }
+            awaitDepth(pool, 4);
+            assertEquals(8, generated.size());
+
+            // Fresh keys are left alone
+            pool.evictExpired();
+            assertEquals(4L, pool.getStats().get("discarded"));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void leavesAPoolThatWasNeverFilledEmpty() throws Exception {
+        List<DataKey> generated = new CopyOnWriteArrayList<>();
+        DataKeyPool pool = new DataKeyPool(2, 4, 50, () -> {
+            DataKey dataKey = new DataKey(new byte[]{1}, new byte[]{4});
+            generated.add(dataKey);
+            return dataKey;
+        });
+        try {
+            pool.evictExpired();
+            Thread.sleep(50);
+            assertTrue(generated.isEmpty());
+        } finally {
+            pool.close();
+        }
+    }
+}
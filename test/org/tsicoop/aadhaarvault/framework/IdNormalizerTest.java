@@ -0,0 +1,157 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IdNormalizerTest {
+
+    private static IdNormalizer.IdType aadhaar;
+
+    @BeforeClass
+    public static void setUp() {
+        IdNormalizer.createInstance();
+        aadhaar = IdNormalizer.getHandle().define("AADHAAR", "^[2-9][0-9]{3}[ -]?[0-9]{4}[ -]?[0-9]{4}$",
+                                                  IdNormalizer.FORM_DIGITS, IdNormalizer.CHECKSUM_VERHOEFF);
+    }
+
+    private static boolean verhoeff(String digits) {
+        return IdNormalizer.verhoeffValid(ByteBuffer.wrap(digits.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String withCheckDigit(String digits) {
+        for (char d = '0'; d <= '9'; d++) {
+            if (verhoeff(digits + d)) {
+                return digits + d;
+            }
+        }
+        throw new AssertionError("no check digit for " + digits);
+    }
+
+    private static String text(SecureBuffer buffer) {
+        ByteBuffer readable = buffer.readable();
+        byte[] bytes = new byte[readable.remaining()];
+        readable.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void knownCheckDigits() {
+        // 236 -> 3 is the worked example of Verhoeff's scheme; 2341 2341 2346 is the usual sample Aadhaar number
+        assertTrue(verhoeff("2363"));
+        assertTrue(verhoeff("234123412346"));
+        assertFalse(verhoeff("2364"));
+        assertFalse(verhoeff("234123412345"));
+        assertEquals("2363", withCheckDigit("236"));
+    }
+
+    @Test
+    public void exactlyOneCheckDigitPerNumber() {
+        Random random = new Random(1);
+        for (int n = 0; n < 200; n++) {
+            String body = String.valueOf(100000000000L + (random.nextLong() & Long.MAX_VALUE) % 900000000000L).substring(0, 11);
+            int valid = 0;
+            for (char d = '0'; d <= '9'; d++) {
+                valid += verhoeff(body + d) ? 1 : 0;
+            }
+            assertEquals(body, 1, valid);
+        }
+    }
+
+    @Test
+    public void detectsEverySingleDigitError() {
+        String number = "234123412346";
+        for (int i = 0; i < number.length(); i++) {
+            for (char d = '0'; d <= '9'; d++) {
+                if (d != number.charAt(i)) {
+                    String wrong = number.substring(0, i) + d + number.substring(i + 1);
+                    assertFalse(wrong, verhoeff(wrong));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void detectsAdjacentTranspositions() {
+        String number = "234123412346";
+        for (int i = 0; i + 1 < number.length(); i++) {
+            String swapped = number.substring(0, i) + number.charAt(i + 1) + number.charAt(i) + number.substring(i + 2);
+            assertFalse(swapped, verhoeff(swapped));
+        }
+    }
+
+    @Test
+    public void rejectsNonDigits() {
+        assertFalse(verhoeff("23a3"));
+        assertFalse(verhoeff("2363 "));
+    }
+
+    @Test
+    public void readsOnlyPositionToLimit() {
+        ByteBuffer framed = ByteBuffer.wrap("xx2363yy".getBytes(StandardCharsets.US_ASCII), 2, 4);
+        assertTrue(IdNormalizer.verhoeffValid(framed));
+        assertEquals(2, framed.position());
+    }
+
+    @Test
+    public void normalizesSpellingsToOneCanonicalForm() throws Exception {
+        for (String spelling : new String[]{"234123412346", " 2341 2341 2346 ", "2341-2341-2346"}) {
+            try (SecureBuffer canonical = aadhaar.normalize(spelling)) {
+                assertEquals("234123412346", text(canonical));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsBadChecksumWithoutEchoingTheNumber() {
+        try {
+            aadhaar.normalize("2341 2341 2345").close();
+            fail("bad checksum accepted");
+        } catch (InvalidIdException e) {
+            assertTrue(e.getMessage().contains("checksum"));
+            assertFalse(e.getMessage().contains("2341"));
+        }
+    }
+
+    @Test(expected = InvalidIdException.class)
+    public void rejectsPatternMismatch() throws Exception {
+        aadhaar.normalize("134123412346").close(); // Aadhaar numbers do not start with 0 or 1
+    }
+
+    @Test(expected = InvalidIdException.class)
+    public void rejectsLettersInDigitsForm() throws Exception {
+        IdNormalizer.getHandle().define("DIGITS_ONLY", null, IdNormalizer.FORM_DIGITS, null).normalize("12A4").close();
+    }
+
+    @Test
+    public void alphanumericFormIsUppercased() throws Exception {
+        IdNormalizer.IdType pan = IdNormalizer.getHandle().define("PAN", null, IdNormalizer.FORM_ALNUM_UPPER, null);
+        try (SecureBuffer canonical = pan.normalize(" abcde 1234f ")) {
+            assertEquals("ABCDE1234F", text(canonical));
+        }
+    }
+
+    @Test
+    public void detectsChangesToTheCanonicalFormOrChecksum() {
+        // Unchanged: nothing requested, or the same values again
+        assertFalse(aadhaar.changesLookup(null, null));
+        assertFalse(aadhaar.changesLookup(IdNormalizer.FORM_DIGITS, IdNormalizer.CHECKSUM_VERHOEFF));
+        // Back to TRIM, another form, or the checksum dropped
+        assertTrue(aadhaar.changesLookup(IdNormalizer.FORM_TRIM, null));
+        assertTrue(aadhaar.changesLookup(IdNormalizer.FORM_ALNUM_UPPER, null));
+        assertTrue(aadhaar.changesLookup(null, "NONE"));
+
+        IdNormalizer.IdType plain = IdNormalizer.getHandle().define("PLAIN", null, null, null);
+        assertFalse(plain.changesLookup(IdNormalizer.FORM_TRIM, "NONE"));
+        assertTrue(plain.changesLookup(IdNormalizer.FORM_DIGITS, null));
+        assertTrue(plain.changesLookup(null, IdNormalizer.CHECKSUM_VERHOEFF));
+    }
+}
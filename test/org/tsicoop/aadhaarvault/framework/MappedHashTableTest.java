@@ -0,0 +1,201 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedHashTableTest {
+
+    private static final byte[] FINGERPRINT = new byte[32];
+
+    static {
+        Arrays.fill(FINGERPRINT, (byte) 7);
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(1);
+
+    private byte[] hash() {
+        byte[] hash = new byte[LookupHasher.HASH_LENGTH];
+        random.nextBytes(hash);
+        return hash;
+    }
+
+    // Same slot as the given hash (first 8 bytes), different entry
+    private byte[] collidingWith(byte[] hash) {
+        byte[] other = hash();
+        System.arraycopy(hash, 0, other, 0, Long.BYTES);
+        return other;
+    }
+
+    private Path file() throws IOException {
+        return folder.newFile("lookup.idx").toPath();
+    }
+
+    @Test
+    public void storesAndFindsEntries() throws Exception {
+        try (MappedHashTable table = MappedHashTable.create(file(), "AADHAAR", 100, FINGERPRINT)) {
+            assertEquals(1024, table.getSlots());
+            byte[] hash = hash();
+            UUID key = UUID.randomUUID();
+            assertNull(table.get(hash));
+            assertEquals(MappedHashTable.PUT_ADDED, table.put(hash, key));
+            assertEquals(key, table.get(hash));
+            assertEquals(MappedHashTable.PUT_PRESENT, table.put(hash, UUID.randomUUID()));
+            assertEquals(key, table.get(hash)); // first key kept
+            assertEquals(1, table.getEntries());
+            assertNull(table.get(hash()));
+        }
+    }
+
+    @Test
+    public void roundsSlotsUpToPowerOfTwo() throws Exception {
+        try (MappedHashTable table = MappedHashTable.create(file(), "AADHAAR", 5000, FINGERPRINT)) {
+            assertEquals(8192, table.getSlots());
+            assertEquals((long) (8192 * 0.9), table.getMaxEntries());
+        }
+    }
+
+    @Test
+    public void probesPastCollisions() throws Exception {
+        try (MappedHashTable table = MappedHashTable.create(file(), "AADHAAR", 1024, FINGERPRINT)) {
+            byte[] first = hash();
+            byte[] second = collidingWith(first);
+            byte[] third = collidingWith(first);
+            UUID k1 = UUID.randomUUID(), k2 = UUID.randomUUID(), k3 = UUID.randomUUID();
+            table.put(first, k1);
+            table.put(second, k2);
+            table.put(third, k3);
+            assertEquals(k1, table.get(first));
+            assertEquals(k2, table.get(second));
+            assertEquals(k3, table.get(third));
+            assertNull(table.get(collidingWith(first)));
+        }
+    }
+
+    @Test
+    public void probesWrapAroundTheEnd() throws Exception {
+        try (MappedHashTable table = MappedHashTable.create(file(), "AADHAAR", 1024, FINGERPRINT)) {
+            byte[] last = hash();
+            ByteBuffer.wrap(last).putLong(0, 1023); // the last slot
+            byte[] next = collidingWith(last);
+            UUID k1 = UUID.randomUUID(), k2 = UUID.randomUUID();
+            table.put(last, k1);
+            table.put(next, k2);
+            assertEquals(k1, table.get(last));
+            assertEquals(k2, table.get(next));
+        }
+    }
+
+    @Test
+    public void refusesEntriesBeyondMaxLoad() throws Exception {
+        try (MappedHashTable table = MappedHashTable.create(file(), "AADHAAR", 1024, FINGERPRINT)) {
+            byte[][] stored = new byte[(int) table.getMaxEntries()][];
+            for (int i = 0; i < stored.length; i++) {
+                stored[i] = hash();
+                assertEquals(MappedHashTable.PUT_ADDED, table.put(stored[i], UUID.randomUUID()));
+            }
+            assertEquals(MappedHashTable.PUT_FULL, table.put(hash(), UUID.randomUUID()));
+            assertEquals(MappedHashTable.PUT_PRESENT, table.put(stored[0], UUID.randomUUID()));
+            assertEquals(table.getMaxEntries(), table.getEntries());
+        }
+    }
+
+    @Test
+    public void reopensWithEntriesAndHeader() throws Exception {
+        Path path = file();
+        byte[] hash = hash();
+        UUID key = UUID.randomUUID();
+        UUID cursor = UUID.randomUUID();
+        try (MappedHashTable table = MappedHashTable.create(path, "PAN", 1024, FINGERPRINT)) {
+            table.put(hash, key);
+            table.setWatermark(12345L);
+            table.setBuildCursor(cursor);
+            table.setBuilt(true);
+        }
+        try (MappedHashTable table = MappedHashTable.open(path, FINGERPRINT)) {
+            assertEquals("PAN", table.getIdType());
+            assertEquals(key, table.get(hash));
+            assertEquals(1, table.getEntries());
+            assertEquals(12345L, table.getWatermark());
+            assertEquals(cursor, table.getBuildCursor());
+            assertTrue(table.isBuilt());
+            assertFalse(table.isComplete());
+            assertFalse(table.isRecovered());
+        }
+    }
+
+    @Test
+    public void dropsBuiltAndCompleteWhenReopenedWithoutClose() throws Exception {
+        Path path = file();
+        byte[] hash = hash();
+        UUID key = UUID.randomUUID();
+        MappedHashTable crashed = MappedHashTable.create(path, "AADHAAR", 1024, FINGERPRINT);
+        crashed.setBuilt(true);
+        crashed.setComplete(true);
+        crashed.put(hash, key);
+        crashed.checkpoint(12345L);
+        crashed.put(hash(), UUID.randomUUID()); // after the checkpoint: may not survive a host crash
+        // not closed: the flags on disk must not be trusted
+        try (MappedHashTable table = MappedHashTable.open(path, FINGERPRINT)) {
+            assertTrue(table.isRecovered());
+            assertFalse(table.isBuilt());
+            assertFalse(table.isComplete());
+            assertEquals(12345L, table.getWatermark());
+            assertEquals(key, table.get(hash));
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void recountsEntriesAfterUncleanShutdown() throws Exception {
+        Path path = file();
+        MappedHashTable crashed = MappedHashTable.create(path, "AADHAAR", 1024, FINGERPRINT);
+        for (int i = 0; i < 3; i++) {
+            crashed.put(hash(), UUID.randomUUID());
+        }
+        // not closed: the header still says 0 entries and is not marked clean
+        try (MappedHashTable table = MappedHashTable.open(path, FINGERPRINT)) {
+            assertEquals(3, table.getEntries());
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void rejectsFileWrittenUnderAnotherKey() throws Exception {
+        Path path = file();
+        MappedHashTable.create(path, "AADHAAR", 1024, FINGERPRINT).close();
+        byte[] otherKey = FINGERPRINT.clone();
+        otherKey[0] ^= 1;
+        try {
+            MappedHashTable.open(path, otherKey).close();
+            fail("opened under another lookup key");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsFileThatIsNotATable() throws Exception {
+        Path path = file();
+        Files.write(path, new byte[8192]);
+        MappedHashTable.open(path, FINGERPRINT).close();
+    }
+}
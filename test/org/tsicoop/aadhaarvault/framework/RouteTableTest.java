@@ -0,0 +1,143 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RouteTableTest {
+
+    public static class Handler implements REST {
+        @Override
+        public void get(HttpServletRequest req, HttpServletResponse res) {
+        }
+
+        @Override
+        public void post(HttpServletRequest req, HttpServletResponse res) {
+        }
+
+        @Override
+        public void delete(HttpServletRequest req, HttpServletResponse res) {
+        }
+
+        @Override
+        public void put(HttpServletRequest req, HttpServletResponse res) {
+        }
+
+        @Override
+        public boolean validate(String method, HttpServletRequest req, HttpServletResponse res) {
+            return true;
+        }
+    }
+
+    public static class OtherHandler extends Handler {
+    }
+
+    public static class FailingHandler extends Handler {
+        public FailingHandler() {
+            throw new IllegalStateException("not configured");
+        }
+    }
+
+    private static final String HANDLER = Handler.class.getName();
+
+    private static Properties processor(String... pathsAndClasses) {
+        Properties config = new Properties();
+        for (int i = 0; i < pathsAndClasses.length; i += 2) {
+            config.setProperty(pathsAndClasses[i], pathsAndClasses[i + 1]);
+        }
+        return config;
+    }
+
+    private static void assertRejected(String path) {
+        try {
+            RouteTable.compile(processor(path, HANDLER));
+            fail("compiled " + path);
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(path));
+        }
+    }
+
+    @Test
+    public void routesExactPaths() {
+        RouteTable routes = RouteTable.compile(processor("/api/client/vault", HANDLER, "/api/admin/jobs", " " + HANDLER + " "));
+        assertEquals(2, routes.size());
+        assertEquals("/api/client/vault", routes.get("/api/client/vault").getPath());
+        assertTrue(routes.get("/api/client/vault").getHandler() instanceof Handler);
+        assertNull(routes.get("/api/client/vault/"));
+        assertNull(routes.get("/api/client/VAULT"));
+        assertNull(routes.get("/api/client/other"));
+    }
+
+    @Test
+    public void sharesOneHandlerPerClass() {
+        RouteTable routes = RouteTable.compile(processor("/api/client/vault", HANDLER, "/api/client/fetch", HANDLER,
+                                                         "/api/admin/jobs", OtherHandler.class.getName()));
+        assertSame(routes.get("/api/client/vault").getHandler(), routes.get("/api/client/fetch").getHandler());
+        assertNotSame(routes.get("/api/client/vault").getHandler(), routes.get("/api/admin/jobs").getHandler());
+    }
+
+    @Test
+    public void rejectsMalformedPaths() {
+        assertRejected("/api/client");
+        assertRejected("/api/client/");
+        assertRejected("/api/client/vault/extra");
+        assertRejected("/api/other/vault");
+        assertRejected("/v1/client/vault");
+        assertRejected("api/client/vault");
+        assertRejected("/api//vault");
+        assertRejected("");
+    }
+
+    @Test
+    public void rejectsHandlersThatCannotBeCreated() {
+        for (String classname : new String[]{"org.tsicoop.aadhaarvault.NoSuchHandler", FailingHandler.class.getName(), String.class.getName()}) {
+            try {
+                RouteTable.compile(processor("/api/client/vault", classname));
+                fail("compiled " + classname);
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(classname));
+            }
+        }
+    }
+
+    @Test
+    public void adminPathsNeedTheHeaderExceptLoginAndRegister() {
+        RouteTable routes = RouteTable.compile(processor("/api/admin/jobs", HANDLER, "/api/admin/login", HANDLER,
+                                                         "/api/admin/register", HANDLER, "/api/client/vault", HANDLER,
+                                                         "/api/Admin/metrics", HANDLER));
+        assertTrue(routes.get("/api/admin/jobs").isAdminHeaderRequired());
+        assertTrue(routes.get("/api/Admin/metrics").isAdminHeaderRequired());
+        assertFalse(routes.get("/api/admin/login").isAdminHeaderRequired());
+        assertFalse(routes.get("/api/admin/register").isAdminHeaderRequired());
+        assertFalse(routes.get("/api/client/vault").isAdminHeaderRequired());
+    }
+
+    @Test
+    public void loginIsOnlyOpenAtItsExactPath() {
+        RouteTable routes = RouteTable.compile(processor("/api/admin/Login", HANDLER, "/api/admin/login2", HANDLER));
+        assertTrue(routes.get("/api/admin/Login").isAdminHeaderRequired());
+        assertTrue(routes.get("/api/admin/login2").isAdminHeaderRequired());
+    }
+
+    @Test
+    public void mapsOnlyTheFourRestMethods() {
+        assertEquals(RouteTable.Method.GET, RouteTable.Method.of("GET"));
+        assertEquals(RouteTable.Method.POST, RouteTable.Method.of("post"));
+        assertEquals(RouteTable.Method.PUT, RouteTable.Method.of("PUT"));
+        assertEquals(RouteTable.Method.DELETE, RouteTable.Method.of("Delete"));
+        assertNull(RouteTable.Method.of("HEAD"));
+        assertNull(RouteTable.Method.of("OPTIONS"));
+        assertNull(RouteTable.Method.of("PATCH"));
+        assertNull(RouteTable.Method.of(null));
+    }
+}
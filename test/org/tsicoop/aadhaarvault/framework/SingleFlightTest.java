@@ -0,0 +1,130 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void coalescesCallsWhileInFlight() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CompletableFuture<String> call = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> first = flights.execute("k", () -> {
+            started.incrementAndGet();
+            return call;
+        });
+        CompletableFuture<String> second = flights.execute("k", () -> {
+            started.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        call.complete("value");
+        assertEquals("value", first.get());
+        assertEquals("value", second.get());
+        assertEquals(1, started.get());
+        assertEquals(1L, flights.getStats().get("coalesced"));
+
+        // Released once complete: the next caller starts a new call
+        assertEquals("again", flights.execute("k", () -> CompletableFuture.completedFuture("again")).get());
+    }
+
+    @Test
+    public void ownedResultIsCopiedPerCallerThenReleased() throws Exception {
+        SingleFlight<String, byte[]> flights = new SingleFlight<>();
+        CompletableFuture<byte[]> call = new CompletableFuture<>();
+        byte[] shared = {1, 2, 3};
+        List<CompletableFuture<byte[]>> callers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            callers.add(flights.executeOwned("k", () -> call, byte[]::clone, value -> Arrays.fill(value, (byte) 0)));
+        }
+        call.complete(shared);
+        List<byte[]> copies = new ArrayList<>();
+        for (CompletableFuture<byte[]> caller : callers) {
+            byte[] copy = caller.get();
+            assertArrayEquals(new byte[]{1, 2, 3}, copy);
+            assertNotSame(shared, copy);
+            for (byte[] other : copies) {
+                assertNotSame(other, copy);
+            }
+            copies.add(copy);
+        }
+        assertArrayEquals("shared result not released", new byte[3], shared);
+        assertEquals(1L, flights.getStats().get("calls"));
+        assertEquals(3L, flights.getStats().get("coalesced"));
+    }
+
+    @Test
+    public void ownedFailureReachesEveryCallerWithoutRelease() throws Exception {
+        SingleFlight<String, byte[]> flights = new SingleFlight<>();
+        CompletableFuture<byte[]> call = new CompletableFuture<>();
+        AtomicInteger released = new AtomicInteger();
+        CompletableFuture<byte[]> first = flights.executeOwned("k", () -> call, byte[]::clone, value -> released.incrementAndGet());
+        CompletableFuture<byte[]> second = flights.executeOwned("k", () -> call, byte[]::clone, value -> released.incrementAndGet());
+        IllegalStateException failure = new IllegalStateException("KMS down");
+        call.completeExceptionally(failure);
+        for (CompletableFuture<byte[]> caller : Arrays.asList(first, second)) {
+            try {
+                caller.get();
+                fail("failure not propagated");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+        assertEquals(0, released.get());
+    }
+
+    @Test
+    public void ownedCallerAfterCompletionStartsANewCall() throws Exception {
+        SingleFlight<String, byte[]> flights = new SingleFlight<>();
+        byte[] firstValue = {1};
+        byte[] secondValue = {2};
+        assertArrayEquals(new byte[]{1}, flights.executeOwned("k", () -> CompletableFuture.completedFuture(firstValue), byte[]::clone, value -> Arrays.fill(value, (byte) 0)).get());
+        assertArrayEquals(new byte[]{2}, flights.executeOwned("k", () -> CompletableFuture.completedFuture(secondValue), byte[]::clone, value -> Arrays.fill(value, (byte) 0)).get());
+        assertEquals(2L, flights.getStats().get("calls"));
+        assertArrayEquals(new byte[1], firstValue);
+        assertArrayEquals(new byte[1], secondValue);
+    }
+
+    @Test
+    public void ownedCallerJoiningASharedCallCopiesWithItsOwnFunction() throws Exception {
+        SingleFlight<String, byte[]> flights = new SingleFlight<>();
+        CompletableFuture<byte[]> call = new CompletableFuture<>();
+        byte[] shared = {1, 2, 3};
+        CompletableFuture<byte[]> plain = flights.execute("k", () -> call);
+        CompletableFuture<byte[]> owned = flights.executeOwned("k", () -> CompletableFuture.completedFuture(new byte[]{9}), byte[]::clone, value -> Arrays.fill(value, (byte) 0));
+        call.complete(shared);
+        assertSame(shared, plain.get());
+        assertArrayEquals(new byte[]{1, 2, 3}, owned.get());
+        assertNotSame(shared, owned.get());
+        assertArrayEquals("shared result released by a joining caller", new byte[]{1, 2, 3}, shared);
+        assertEquals(1L, flights.getStats().get("calls"));
+        assertEquals(1L, flights.getStats().get("coalesced"));
+    }
+
+    @Test
+    public void sharedCallerDoesNotJoinAnOwnedCall() throws Exception {
+        SingleFlight<String, byte[]> flights = new SingleFlight<>();
+        CompletableFuture<byte[]> call = new CompletableFuture<>();
+        byte[] ownedValue = {1, 2, 3};
+        CompletableFuture<byte[]> owned = flights.executeOwned("k", () -> call, byte[]::clone, value -> Arrays.fill(value, (byte) 0));
+        CompletableFuture<byte[]> plain = flights.execute("k", () -> CompletableFuture.completedFuture(new byte[]{4, 5, 6}));
+        call.complete(ownedValue);
+        assertArrayEquals(new byte[]{1, 2, 3}, owned.get());
+        assertArrayEquals(new byte[]{4, 5, 6}, plain.get());
+        assertArrayEquals(new byte[3], ownedValue);
+        assertEquals(2L, flights.getStats().get("calls"));
+        assertEquals(0L, flights.getStats().get("coalesced"));
+    }
+}
@@ -0,0 +1,109 @@
+package org.tsicoop.aadhaarvault.framework;
+
+import org.junit.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class VaultRecordTest {
+
+    private static final byte[] KEY = CryptoEngineTest.hex("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+    private static final byte[] ID_NUMBER = "234123412346".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void wrappedKeyRecordLayout() throws Exception {
+        byte[] record = VaultRecord.encrypt(ID_NUMBER, KEY, VaultRecord.KEY_WRAPPED, null);
+        assertEquals(4 + CryptoEngine.encryptedSize(ID_NUMBER.length), record.length);
+        assertArrayEquals(new byte[]{VaultRecord.VERSION_1, CryptoEngine.ALG_AES_GCM, VaultRecord.KEY_WRAPPED, 0}, Arrays.copyOf(record, 4));
+        VaultRecord parsed = VaultRecord.parse(record);
+        assertEquals(CryptoEngine.ALG_AES_GCM, parsed.getAlg());
+        assertEquals(VaultRecord.KEY_WRAPPED, parsed.getKeyType());
+        assertArrayEquals(ID_NUMBER, parsed.decrypt(KEY));
+    }
+
+    @Test
+    public void kekRecordCarriesKekId() throws Exception {
+        long kekId = 0x0102030405060708L;
+        byte[] record = VaultRecord.encrypt(ID_NUMBER, KEY, VaultRecord.KEY_KEK, VaultRecord.kekKeyId(kekId));
+        assertArrayEquals(new byte[]{VaultRecord.VERSION_1, CryptoEngine.ALG_AES_GCM, VaultRecord.KEY_KEK, 8, 1, 2, 3, 4, 5, 6, 7, 8},
+                          Arrays.copyOf(record, 12));
+        VaultRecord parsed = VaultRecord.parse(record);
+        assertEquals(kekId, parsed.getKekId());
+        assertArrayEquals(ID_NUMBER, parsed.decrypt(KEY));
+    }
+
+    @Test
+    public void encryptsFromBuffer() throws Exception {
+        try (SecureBuffer idNumber = SecureBuffer.of("234123412346")) {
+            byte[] record = VaultRecord.encrypt(idNumber.readable(), KEY, VaultRecord.KEY_WRAPPED, null);
+            assertArrayEquals(ID_NUMBER, VaultRecord.parse(record).decrypt(KEY));
+        }
+    }
+
+    @Test
+    public void decryptsIntoSecureBuffer() throws Exception {
+        byte[] record = VaultRecord.encrypt(ID_NUMBER, KEY, VaultRecord.KEY_WRAPPED, null);
+        try (SecureBuffer plaintext = VaultRecord.parse(record).decryptToBuffer(KEY)) {
+            ByteBuffer readable = plaintext.readable();
+            byte[] out = new byte[readable.remaining()];
+            readable.get(out);
+            assertArrayEquals(ID_NUMBER, out);
+        }
+    }
+
+    @Test
+    public void encodesKnownGcmPayload() throws Exception {
+        // The format migration wraps an existing payload without re-encrypting it
+        byte[] record = VaultRecord.encode(CryptoEngine.ALG_AES_GCM, VaultRecord.KEY_MASKING, VaultRecord.maskingKeyId(42),
+                                           CryptoEngineTest.knownGcmRecord());
+        VaultRecord parsed = VaultRecord.parse(record);
+        assertEquals(VaultRecord.KEY_MASKING, parsed.getKeyType());
+        assertEquals(42, parsed.getMaskingKeyId());
+        assertArrayEquals(CryptoEngineTest.knownGcmPlaintext(), parsed.decrypt(CryptoEngineTest.knownGcmKey()));
+    }
+
+    @Test
+    public void readsLegacyColumns() throws Exception {
+        byte[] payload = CryptoEngine.encrypt(ID_NUMBER, KEY);
+        VaultRecord wrapped = VaultRecord.fromLegacy(CryptoEngine.ALG_AES_GCM, payload, null);
+        assertEquals(VaultRecord.KEY_WRAPPED, wrapped.getKeyType());
+        assertArrayEquals(ID_NUMBER, wrapped.decrypt(KEY));
+
+        VaultRecord keyed = VaultRecord.fromLegacy(CryptoEngine.ALG_AES_GCM, payload, 77L);
+        assertEquals(VaultRecord.KEY_KEK, keyed.getKeyType());
+        assertEquals(77, keyed.getKekId());
+        assertArrayEquals(ID_NUMBER, keyed.decrypt(KEY));
+    }
+
+    @Test
+    public void rejectsTamperedRecord() throws Exception {
+        byte[] record = VaultRecord.encrypt(ID_NUMBER, KEY, VaultRecord.KEY_WRAPPED, null);
+        record[record.length - 1] ^= 1;
+        try {
+            VaultRecord.parse(record).decrypt(KEY);
+            fail("tampered record decrypted");
+        } catch (AEADBadTagException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        VaultRecord.parse(new byte[]{2, CryptoEngine.ALG_AES_GCM, VaultRecord.KEY_WRAPPED, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedKeyId() {
+        VaultRecord.parse(new byte[]{VaultRecord.VERSION_1, CryptoEngine.ALG_AES_GCM, VaultRecord.KEY_KEK, 8, 1, 2});
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void wrappedRecordHasNoKekId() throws Exception {
+        VaultRecord.parse(VaultRecord.encrypt(ID_NUMBER, KEY, VaultRecord.KEY_WRAPPED, null)).getKekId();
+    }
+}
@@ -0,0 +1,89 @@
+package org.tsicoop.aadhaarvault.jobs;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CmkRotationJobTest {
+
+    private static ByteBuffer key(int i) {
+        return ByteBuffer.wrap(("old-" + i).getBytes());
+    }
+
+    private static byte[] newKey(ByteBuffer wrapped) {
+        return ("new-" + new String(wrapped.array()).substring(4)).getBytes();
+    }
+
+    private static Map<ByteBuffer, byte[]> reEncrypt(Iterable<ByteBuffer> keys) {
+        Map<ByteBuffer, byte[]> results = new HashMap<>();
+        for (ByteBuffer key : keys) {
+            results.put(key, newKey(key));
+        }
+        return results;
+    }
+
+    @Test
+    public void reusedKeysSurviveEvictionByTheChunksNewKeys() {
+        int size = CmkRotationJob.REWRAPPED_CACHE_SIZE;
+        CmkRotationJob.RewrappedKeys rewrapped = new CmkRotationJob.RewrappedKeys(size);
+
+        // First chunk fills the cache to its limit
+        for (int i = 0; i < size; i++) {
+            assertFalse(rewrapped.add(key(i)));
+        }
+        rewrapped.complete(reEncrypt(rewrapped.getPending()));
+        rewrapped.clearChunk();
+
+        // Second chunk reuses the eldest keys and brings enough new ones to evict them from the cache
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rewrapped.add(key(i)));
+        }
+        for (int i = size; i < 2 * size; i++) {
+            assertFalse(rewrapped.add(key(i)));
+        }
+        rewrapped.complete(reEncrypt(rewrapped.getPending()));
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(newKey(key(i)), rewrapped.get(key(i)));
+        }
+        for (int i = size; i < 2 * size; i++) {
+            assertArrayEquals(newKey(key(i)), rewrapped.get(key(i)));
+        }
+        rewrapped.clearChunk();
+
+        // Evicted keys are re-wrapped again rather than reused
+        assertFalse(rewrapped.add(key(0)));
+        assertEquals(1, rewrapped.getPending().size());
+    }
+
+    @Test
+    public void keySharedWithinAChunkIsReEncryptedOnce() {
+        CmkRotationJob.RewrappedKeys rewrapped = new CmkRotationJob.RewrappedKeys(4);
+        assertFalse(rewrapped.add(key(1)));
+        assertTrue(rewrapped.add(key(1)));
+        assertEquals(1, rewrapped.getPending().size());
+    }
+
+    @Test
+    public void missingResultFailsTheChunk() {
+        CmkRotationJob.RewrappedKeys rewrapped = new CmkRotationJob.RewrappedKeys(4);
+        rewrapped.add(key(1));
+        try {
+            rewrapped.complete(new HashMap<>());
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            rewrapped.get(key(2));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}